@@ -23,7 +23,11 @@ public class GeneratedTests {
       .timeout(Duration.ofSeconds(10))
       .POST(HttpRequest.BodyPublishers.ofString("{ \"username\": \"admin\", \"password\": \"1234\" }"));
     for (var e: DEFAULT_HEADERS.entrySet()) b.header(e.getKey(), e.getValue());
-    HttpResponse<String> resp = client.send(b.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    HttpResponse<String> resp = client.send(b.build(), info ->
+        info.statusCode() == 200
+            && info.headers().firstValue("Content-Type").orElse("").contains("json")
+          ? HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8)
+          : HttpResponse.BodySubscribers.replacing(null));
 
     assertEquals(200, resp.statusCode());
     assertTrue(resp.headers().firstValue("Content-Type").orElse("").contains("json"));
@@ -36,7 +40,10 @@ public class GeneratedTests {
       .timeout(Duration.ofSeconds(10))
       .GET();
     for (var e: DEFAULT_HEADERS.entrySet()) b.header(e.getKey(), e.getValue());
-    HttpResponse<String> resp = client.send(b.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    HttpResponse<String> resp = client.send(b.build(), info ->
+        info.statusCode() == 200
+          ? HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8)
+          : HttpResponse.BodySubscribers.replacing(null));
 
     assertEquals(200, resp.statusCode());
     assertTrue(resp.body().contains("\"id\": 42"));
@@ -0,0 +1,62 @@
+package com.example.testlangcompiler;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import testlangcompiler.CodeGenerator;
+import testlangcompiler.CompileException;
+import testlangcompiler.Frontend;
+
+/**
+ * {@code POST /compile} with a .test source as the request body. Returns the
+ * generated Java source, or a JSON map of class name to source when sharding.
+ * Errors in the source are a 422; anything else is left to Spring as a 500.
+ */
+@RestController
+public class CompileController {
+
+	private final CompileService service;
+
+	public CompileController(CompileService service) {
+		this.service = service;
+	}
+
+	@PostMapping(path = "/compile", consumes = MediaType.ALL_VALUE)
+	public ResponseEntity<?> compile(@RequestBody String source,
+			@RequestParam(defaultValue = "handwritten") String frontend,
+			@RequestParam(defaultValue = "0") int maxTests,
+			@RequestParam(defaultValue = "0") int maxBytes,
+			@RequestParam(defaultValue = "false") boolean instrument) throws Exception {
+		CodeGenerator.Options options = new CodeGenerator.Options();
+		options.maxTestsPerShard = maxTests;
+		options.maxCharsPerShard = maxBytes;
+		options.instrument = instrument;
+
+		CompileService.CompileResult result = service.compile(source, Frontend.fromId(frontend), options);
+		ResponseEntity.BodyBuilder ok = ResponseEntity.ok().header("X-Testlang-Cache", result.cached ? "hit" : "miss");
+		if (options.isSharded()) {
+			return ok.contentType(MediaType.APPLICATION_JSON).body(result.files);
+		}
+		return ok.contentType(MediaType.TEXT_PLAIN).body(result.files.values().iterator().next());
+	}
+
+	@ExceptionHandler(RejectedExecutionException.class)
+	public ResponseEntity<String> busy(RejectedExecutionException e) {
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Compiler busy, retry later\n");
+	}
+
+	@ExceptionHandler(IllegalArgumentException.class)
+	public ResponseEntity<String> badOption(IllegalArgumentException e) {
+		return ResponseEntity.badRequest().body(e.getMessage() + "\n");
+	}
+
+	@ExceptionHandler(CompileException.class)
+	public ResponseEntity<String> compileError(CompileException e) {
+		return ResponseEntity.unprocessableEntity().body("Error: " + e.getMessage() + "\n");
+	}
+
+}
@@ -0,0 +1,123 @@
+package com.example.testlangcompiler;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import testlangcompiler.CodeGenerator;
+import testlangcompiler.CompileCache;
+import testlangcompiler.Compiler;
+import testlangcompiler.Frontend;
+
+/**
+ * Runs compilations on a bounded worker pool so a warm JVM can serve the IDE
+ * plugin and CI agents. Parsed units and generated code are cached by source hash.
+ */
+@Service
+public class CompileService {
+
+	private final ThreadPoolExecutor workers;
+	private final CompileCache cache;
+	private final MeterRegistry registry;
+	// Shared by the workers; each worker thread keeps its own lexer and parser in them
+	private final Map<Frontend, Compiler> parsers = new EnumMap<>(Frontend.class);
+
+	public CompileService(MeterRegistry registry,
+			@Value("${testlang.workers:4}") int workerCount,
+			@Value("${testlang.queue-capacity:64}") int queueCapacity,
+			@Value("${testlang.cache-size:256}") int cacheSize) {
+		this.registry = registry;
+		this.cache = new CompileCache(cacheSize);
+		this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.AbortPolicy());
+		registry.gauge("testlang.compile.queue", workers.getQueue(), BlockingQueue::size);
+		for (Frontend frontend : Frontend.values()) {
+			parsers.put(frontend, new Compiler(frontend));
+		}
+	}
+
+	public CompileResult compile(String source, Frontend frontend, CodeGenerator.Options options)
+			throws Exception {
+		Future<CompileResult> future;
+		try {
+			future = workers.submit(() -> compileNow(source, frontend, options));
+		} catch (RejectedExecutionException e) {
+			outcome(frontend, "rejected").increment();
+			throw e;
+		}
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			outcome(frontend, "error").increment();
+			Throwable cause = e.getCause();
+			if (cause instanceof Error error) {
+				throw error;
+			}
+			throw cause instanceof Exception exception ? exception : new ExecutionException(cause);
+		}
+	}
+
+	private CompileResult compileNow(String source, Frontend frontend, CodeGenerator.Options options)
+			throws Exception {
+		String sourceKey = CompileCache.key(frontend, source);
+		String outputKey = CompileCache.key(sourceKey, options);
+
+		Map<String, String> files = cache.getOutput(outputKey);
+		if (files != null) {
+			outcome(frontend, "hit").increment();
+			return new CompileResult(files, true);
+		}
+
+		Object unit = cache.getUnit(sourceKey);
+		if (unit == null) {
+			unit = phase("parse", frontend).recordCallable(() -> parsers.get(frontend).parse(source));
+			cache.putUnit(sourceKey, unit);
+		}
+		Object parsed = unit;
+		files = phase("generate", frontend).record(() -> frontend.generate(parsed, options));
+		cache.putOutput(outputKey, files);
+		outcome(frontend, "miss").increment();
+		return new CompileResult(files, false);
+	}
+
+	private Timer phase(String phase, Frontend frontend) {
+		return Timer.builder("testlang.compile.phase")
+			.tag("phase", phase)
+			.tag("frontend", frontend.id)
+			.publishPercentiles(0.5, 0.95, 0.99)
+			.register(registry);
+	}
+
+	private Counter outcome(Frontend frontend, String outcome) {
+		return Counter.builder("testlang.compile.requests")
+			.tag("frontend", frontend.id)
+			.tag("outcome", outcome)
+			.register(registry);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		workers.shutdown();
+	}
+
+	public static class CompileResult {
+
+		public final Map<String, String> files;
+
+		public final boolean cached;
+
+		CompileResult(Map<String, String> files, boolean cached) {
+			this.files = files;
+			this.cached = cached;
+		}
+
+	}
+
+}
@@ -0,0 +1,787 @@
+package testlangcompiler;
+
+import java.util.*;
+
+import org.objectweb.asm.*;
+
+import static org.objectweb.asm.Opcodes.*;
+
+// Emits the test classes as class files straight from the AST, so that huge
+// suites don't have to go through javac. The classes, fields and test methods
+// are the ones CodeGenerator writes as source, in the same shards. Sequences
+// that every request repeats are calls into testlangcompiler.runtime.Steps,
+// and JSON paths and body handlers are static final constants of the class,
+// so a test method is a short list of calls.
+public class BytecodeGenerator {
+    
+    private static final String STEPS = "testlangcompiler/runtime/Steps";
+    private static final String JSON_PATH = "testlangcompiler/runtime/JsonPath";
+    private static final String ASSERTIONS = "org/junit/jupiter/api/Assertions";
+    private static final String BUILDER = "java/net/http/HttpRequest$Builder";
+    private static final String RESPONSE = "java/net/http/HttpResponse";
+    private static final String HANDLER_DESC = "Ljava/net/http/HttpResponse$BodyHandler;";
+    private static final String PUBLISHER_DESC = "Ljava/net/http/HttpRequest$BodyPublisher;";
+    private static final String MAP_DESC = "Ljava/util/Map;";
+    private static final String STRING_MAP = "Ljava/util/Map<Ljava/lang/String;Ljava/lang/String;>;";
+    // Longest string that always fits a constant pool entry (3 bytes per char)
+    private static final int MAX_CONSTANT = 65535 / 3;
+    
+    // Class name -> class file: the classes generate or generateShards would write
+    public static Map<String, byte[]> generate(Object unit, CodeGenerator.Options options) {
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        if (!options.isSharded()) {
+            classes.put(options.className, testClass(unit, options, options.className, null,
+                                                     CodeGenerator.selectedTests(unit, options)));
+            return classes;
+        }
+        String baseName = options.className + "Base";
+        classes.put(baseName, baseClass(unit, options, baseName));
+        for (List<Object> tests : CodeGenerator.shardTests(unit, options)) {
+            String name = options.className + classes.size();
+            classes.put(name, testClass(unit, options, name, baseName, tests));
+        }
+        return classes;
+    }
+    
+    // public abstract class <base> with the shared fields, set up in a static initializer
+    private static byte[] baseClass(Object unit, CodeGenerator.Options options, String name) {
+        ClassWriter cw = newClass(name, "java/lang/Object", ACC_PUBLIC | ACC_ABSTRACT);
+        sharedFields(cw, unit, options);
+        MethodVisitor clinit = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        clinit.visitCode();
+        initSharedFields(clinit, name, unit, options);
+        setup(clinit, name, unit, options);
+        clinit.visitInsn(RETURN);
+        clinit.visitMaxs(0, 0);
+        clinit.visitEnd();
+        constructor(cw, "java/lang/Object");
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+    
+    // A test class: standalone with its own fields and @BeforeAll setup(), or a
+    // shard extending the base class
+    private static byte[] testClass(Object unit, CodeGenerator.Options options, String name, String baseName,
+                                    List<?> tests) {
+        ClassWriter cw = newClass(name, baseName != null ? baseName : "java/lang/Object", ACC_PUBLIC);
+        String owner = baseName != null ? baseName : name;
+        if (baseName == null) {
+            sharedFields(cw, unit, options);
+            MethodVisitor setup = cw.visitMethod(ACC_STATIC, "setup", "()V", null, null);
+            setup.visitAnnotation("Lorg/junit/jupiter/api/BeforeAll;", true).visitEnd();
+            setup.visitCode();
+            setup(setup, owner, unit, options);
+            setup.visitInsn(RETURN);
+            setup.visitMaxs(0, 0);
+            setup.visitEnd();
+        }
+        
+        Constants constants = new Constants(name);
+        for (Object tm : tests) {
+            new TestMethod(cw, owner, constants, unit, options).emit(tm);
+        }
+        
+        MethodVisitor clinit = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        clinit.visitCode();
+        if (baseName == null) {
+            initSharedFields(clinit, name, unit, options);
+        }
+        constants.emit(cw, clinit);
+        clinit.visitInsn(RETURN);
+        clinit.visitMaxs(0, 0);
+        clinit.visitEnd();
+        constructor(cw, baseName != null ? baseName : "java/lang/Object");
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+    
+    private static ClassWriter newClass(String name, String superName, int access) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            // The generated classes can't be loaded to compare; their locals
+            // only ever merge with their own type or null
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                try {
+                    return super.getCommonSuperClass(type1, type2);
+                } catch (RuntimeException | LinkageError e) {
+                    return "java/lang/Object";
+                }
+            }
+        };
+        cw.visit(V17, access | ACC_SUPER, name, null, superName, null);
+        return cw;
+    }
+    
+    private static void constructor(ClassWriter cw, String superName) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+    
+    private static boolean hasVariables(Object unit, CodeGenerator.Options options) {
+        Map<?, ?> variables = (Map<?, ?>)CodeGenerator.getField(unit, "variables");
+        return CodeGenerator.sendsFiles(unit, options) && variables != null && !variables.isEmpty();
+    }
+    
+    // BASE, DEFAULT_HEADERS, client, SCHEDULER and VARIABLES, as in CodeGenerator.appendSharedMembers
+    private static void sharedFields(ClassWriter cw, Object unit, CodeGenerator.Options options) {
+        cw.visitField(ACC_STATIC, "BASE", "Ljava/lang/String;", null, null).visitEnd();
+        cw.visitField(ACC_STATIC, "DEFAULT_HEADERS", MAP_DESC, STRING_MAP, null).visitEnd();
+        cw.visitField(ACC_STATIC, "client", "Ljava/net/http/HttpClient;", null, null).visitEnd();
+        if (CodeGenerator.isScheduled(unit)) {
+            cw.visitField(ACC_STATIC | ACC_FINAL, "SCHEDULER", "Ltestlangcompiler/runtime/Scheduler;", null, null).visitEnd();
+        }
+        if (hasVariables(unit, options)) {
+            cw.visitField(ACC_STATIC | ACC_FINAL, "VARIABLES", MAP_DESC, STRING_MAP, null).visitEnd();
+        }
+    }
+    
+    private static void initSharedFields(MethodVisitor mv, String owner, Object unit, CodeGenerator.Options options) {
+        String baseUrl = "http://localhost:8080";
+        Object config = CodeGenerator.getField(unit, "config");
+        if (config != null && CodeGenerator.getField(config, "baseUrl") != null) {
+            baseUrl = (String)CodeGenerator.getField(config, "baseUrl");
+        }
+        pushString(mv, baseUrl);
+        mv.visitFieldInsn(PUTSTATIC, owner, "BASE", "Ljava/lang/String;");
+        mv.visitTypeInsn(NEW, "java/util/HashMap");
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/util/HashMap", "<init>", "()V", false);
+        mv.visitFieldInsn(PUTSTATIC, owner, "DEFAULT_HEADERS", MAP_DESC);
+        
+        if (CodeGenerator.isScheduled(unit)) {
+            Object settings = CodeGenerator.settings(unit);
+            String rate = ConfigSettings.get(settings, ConfigSettings.RATE);
+            String maxInFlight = ConfigSettings.get(settings, ConfigSettings.MAX_IN_FLIGHT);
+            mv.visitTypeInsn(NEW, "testlangcompiler/runtime/Scheduler");
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn(rate != null ? ConfigSettings.ratePerSecond(rate) : 0.0);
+            pushInt(mv, maxInFlight != null ? ConfigSettings.positiveInt(maxInFlight) : 0);
+            mv.visitMethodInsn(INVOKESPECIAL, "testlangcompiler/runtime/Scheduler", "<init>", "(DI)V", false);
+            mv.visitFieldInsn(PUTSTATIC, owner, "SCHEDULER", "Ltestlangcompiler/runtime/Scheduler;");
+        }
+        
+        if (hasVariables(unit, options)) {
+            Map<?, ?> variables = (Map<?, ?>)CodeGenerator.getField(unit, "variables");
+            pushInt(mv, variables.size());
+            mv.visitTypeInsn(ANEWARRAY, "java/util/Map$Entry");
+            int i = 0;
+            for (Map.Entry<?, ?> var : variables.entrySet()) {
+                Object value = CodeGenerator.getField(var.getValue(), "value");
+                mv.visitInsn(DUP);
+                pushInt(mv, i++);
+                pushString(mv, (String)var.getKey());
+                pushString(mv, value != null ? value.toString() : "");
+                mv.visitMethodInsn(INVOKESTATIC, "java/util/Map", "entry",
+                                   "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/util/Map$Entry;", true);
+                mv.visitInsn(AASTORE);
+            }
+            mv.visitMethodInsn(INVOKESTATIC, "java/util/Map", "ofEntries", "([Ljava/util/Map$Entry;)Ljava/util/Map;", true);
+            mv.visitFieldInsn(PUTSTATIC, owner, "VARIABLES", MAP_DESC);
+        }
+    }
+    
+    // The client and the default headers
+    private static void setup(MethodVisitor mv, String owner, Object unit, CodeGenerator.Options options) {
+        String clientBuilder = "java/net/http/HttpClient$Builder";
+        mv.visitMethodInsn(INVOKESTATIC, "java/net/http/HttpClient", "newBuilder", "()L" + clientBuilder + ";", false);
+        mv.visitLdcInsn(5L);
+        mv.visitMethodInsn(INVOKESTATIC, "java/time/Duration", "ofSeconds", "(J)Ljava/time/Duration;", false);
+        mv.visitMethodInsn(INVOKEINTERFACE, clientBuilder, "connectTimeout",
+                           "(Ljava/time/Duration;)L" + clientBuilder + ";", true);
+        if (CodeGenerator.isScheduled(unit)) {
+            mv.visitMethodInsn(INVOKESTATIC, "testlangcompiler/runtime/Scheduler", "executor",
+                               "()Ljava/util/concurrent/ExecutorService;", false);
+            mv.visitMethodInsn(INVOKEINTERFACE, clientBuilder, "executor",
+                               "(Ljava/util/concurrent/Executor;)L" + clientBuilder + ";", true);
+        }
+        mv.visitMethodInsn(INVOKEINTERFACE, clientBuilder, "build", "()Ljava/net/http/HttpClient;", true);
+        if (options.instrument) {
+            mv.visitMethodInsn(INVOKESTATIC, "testlangcompiler/runtime/Exchanges", "client",
+                               "(Ljava/net/http/HttpClient;)Ljava/net/http/HttpClient;", false);
+        }
+        mv.visitFieldInsn(PUTSTATIC, owner, "client", "Ljava/net/http/HttpClient;");
+        
+        Object config = CodeGenerator.getField(unit, "config");
+        List<String[]> puts = new ArrayList<>();
+        if (CodeGenerator.compresses(unit)) {
+            puts.add(new String[] {"Accept-Encoding", "gzip"});
+        }
+        if (config != null && CodeGenerator.getField(config, "defaultHeaders") instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)CodeGenerator.getField(config, "defaultHeaders")).entrySet()) {
+                puts.add(new String[] {(String)entry.getKey(), (String)entry.getValue()});
+            }
+        }
+        for (String[] put : puts) {
+            mv.visitFieldInsn(GETSTATIC, owner, "DEFAULT_HEADERS", MAP_DESC);
+            pushString(mv, put[0]);
+            pushString(mv, put[1]);
+            mv.visitMethodInsn(INVOKEINTERFACE, "java/util/Map", "put",
+                               "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", true);
+            mv.visitInsn(POP);
+        }
+    }
+    
+    // Static final fields of a class, each created once in its static initializer
+    private static class Constants {
+        private final String owner;
+        private final Map<String, String> paths = new LinkedHashMap<>();
+        private final Map<List<String>, String> handlers = new LinkedHashMap<>();
+        
+        Constants(String owner) {
+            this.owner = owner;
+        }
+        
+        // JsonPath.of(path), or JsonPath.size(path)
+        void path(MethodVisitor mv, String factory, String path) {
+            String field = paths.computeIfAbsent(factory + ":" + path, k -> "PATH" + paths.size());
+            mv.visitFieldInsn(GETSTATIC, owner, field, "L" + JSON_PATH + ";");
+        }
+        
+        // Steps.handler(kind, gzip, checks...)
+        void handler(MethodVisitor mv, int kind, boolean gzip, List<String> checks) {
+            List<String> key = new ArrayList<>();
+            key.add(String.valueOf(kind));
+            key.add(String.valueOf(gzip));
+            key.addAll(checks);
+            String field = handlers.computeIfAbsent(key, k -> "HANDLER" + handlers.size());
+            mv.visitFieldInsn(GETSTATIC, owner, field, HANDLER_DESC);
+        }
+        
+        void emit(ClassWriter cw, MethodVisitor clinit) {
+            for (Map.Entry<String, String> path : paths.entrySet()) {
+                int colon = path.getKey().indexOf(':');
+                cw.visitField(ACC_STATIC | ACC_FINAL, path.getValue(), "L" + JSON_PATH + ";", null, null).visitEnd();
+                pushString(clinit, path.getKey().substring(colon + 1));
+                clinit.visitMethodInsn(INVOKESTATIC, JSON_PATH, path.getKey().substring(0, colon),
+                                       "(Ljava/lang/String;)L" + JSON_PATH + ";", false);
+                clinit.visitFieldInsn(PUTSTATIC, owner, path.getValue(), "L" + JSON_PATH + ";");
+            }
+            for (Map.Entry<List<String>, String> handler : handlers.entrySet()) {
+                List<String> key = handler.getKey();
+                cw.visitField(ACC_STATIC | ACC_FINAL, handler.getValue(), HANDLER_DESC, null, null).visitEnd();
+                pushInt(clinit, Integer.parseInt(key.get(0)));
+                clinit.visitInsn(Boolean.parseBoolean(key.get(1)) ? ICONST_1 : ICONST_0);
+                pushStrings(clinit, key.subList(2, key.size()));
+                clinit.visitMethodInsn(INVOKESTATIC, STEPS, "handler", "(IZ[Ljava/lang/String;)" + HANDLER_DESC, false);
+                clinit.visitFieldInsn(PUTSTATIC, owner, handler.getValue(), HANDLER_DESC);
+            }
+        }
+    }
+    
+    // One @Test method, following CodeGenerator.generateTestMethod step by step
+    private static class TestMethod {
+        private final ClassWriter cw;
+        private final String owner;
+        private final Constants constants;
+        private final Object unit;
+        private final CodeGenerator.Options options;
+        private final Object vars;
+        private MethodVisitor mv;
+        private final Map<String, Integer> slots = new HashMap<>();
+        private int nextSlot = 1;
+        private final int builder = local(1);
+        private final int response = local(1);
+        private final int json = local(1);
+        private final int start = local(2);
+        // Type of response.body(): String, InputStream, or null when discarded
+        private String bodyType;
+        
+        TestMethod(ClassWriter cw, String owner, Constants constants, Object unit, CodeGenerator.Options options) {
+            this.cw = cw;
+            this.owner = owner;
+            this.constants = constants;
+            this.unit = unit;
+            this.options = options;
+            this.vars = CodeGenerator.getField(unit, "variables");
+        }
+        
+        private int local(int size) {
+            int slot = nextSlot;
+            nextSlot += size;
+            return slot;
+        }
+        
+        private int variable(String name) {
+            return slots.computeIfAbsent(name, k -> local(1));
+        }
+        
+        void emit(Object tm) {
+            String name = (String)CodeGenerator.getField(tm, "name");
+            if (CodeGenerator.isScheduled(unit)) {
+                // test_name() { SCHEDULER.run(this, "run_name"); }, the body going in run_name()
+                MethodVisitor test = cw.visitMethod(0, "test_" + name, "()V", null, new String[] {"java/lang/Throwable"});
+                test.visitAnnotation("Lorg/junit/jupiter/api/Test;", true).visitEnd();
+                test.visitCode();
+                test.visitFieldInsn(GETSTATIC, owner, "SCHEDULER", "Ltestlangcompiler/runtime/Scheduler;");
+                test.visitVarInsn(ALOAD, 0);
+                pushString(test, "run_" + name);
+                test.visitMethodInsn(INVOKEVIRTUAL, "testlangcompiler/runtime/Scheduler", "run",
+                                     "(Ljava/lang/Object;Ljava/lang/String;)V", false);
+                test.visitInsn(RETURN);
+                test.visitMaxs(0, 0);
+                test.visitEnd();
+                mv = cw.visitMethod(0, "run_" + name, "()V", null, new String[] {"java/lang/Exception"});
+            } else {
+                mv = cw.visitMethod(0, "test_" + name, "()V", null, new String[] {"java/lang/Exception"});
+                mv.visitAnnotation("Lorg/junit/jupiter/api/Test;", true).visitEnd();
+            }
+            mv.visitCode();
+            
+            if (!options.instrument) {
+                body(tm, null);
+                mv.visitInsn(RETURN);
+            } else {
+                // long testStart = System.nanoTime(); boolean passed = false;
+                // try { ...; passed = true; } finally { Results.test(name, passed, testStart); }
+                int testStart = local(2);
+                int passed = local(1);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+                mv.visitVarInsn(LSTORE, testStart);
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ISTORE, passed);
+                Label tryStart = new Label();
+                Label tryEnd = new Label();
+                Label handler = new Label();
+                mv.visitTryCatchBlock(tryStart, tryEnd, handler, null);
+                mv.visitLabel(tryStart);
+                body(tm, name);
+                mv.visitInsn(ICONST_1);
+                mv.visitVarInsn(ISTORE, passed);
+                mv.visitLabel(tryEnd);
+                recordTest(name, passed, testStart);
+                mv.visitInsn(RETURN);
+                mv.visitLabel(handler);
+                int thrown = local(1);
+                mv.visitVarInsn(ASTORE, thrown);
+                recordTest(name, passed, testStart);
+                mv.visitVarInsn(ALOAD, thrown);
+                mv.visitInsn(ATHROW);
+            }
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        
+        private void recordTest(String name, int passed, int testStart) {
+            pushString(mv, name);
+            mv.visitVarInsn(ILOAD, passed);
+            mv.visitVarInsn(LLOAD, testStart);
+            mv.visitMethodInsn(INVOKESTATIC, "testlangcompiler/runtime/Results", "test", "(Ljava/lang/String;ZJ)V", false);
+        }
+        
+        private void body(Object tm, String recordAs) {
+            List<?> requests = CodeGenerator.getField(tm, "requests") instanceof List
+                ? (List<?>)CodeGenerator.getField(tm, "requests") : List.of();
+            List<Object> assertions = CodeGenerator.orderAssertions(CodeGenerator.getField(tm, "assertions"));
+            if (requests.isEmpty() && !assertions.isEmpty()) {
+                throw new IllegalArgumentException("Test " + CodeGenerator.getField(tm, "name")
+                    + " has assertions but no request to check them on");
+            }
+            Set<String> bound = new HashSet<>();
+            
+            for (int i = 0; i < requests.size(); i++) {
+                Object req = requests.get(i);
+                List<?> extractions = (List<?>)CodeGenerator.getField(req, "extractions");
+                if (i < requests.size() - 1) {
+                    Set<String> before = new HashSet<>(bound);
+                    for (Object extraction : extractions) {
+                        bound.add((String)CodeGenerator.getField(extraction, "name"));
+                    }
+                    request(req, List.of(), before, recordAs);
+                    jsonEvaluation(extractions, List.of());
+                    continue;
+                }
+                
+                request(req, assertions, bound, recordAs);
+                List<Object> jsonAssertions = new ArrayList<>();
+                for (Object ass : assertions) {
+                    if (CodeGenerator.isJsonAssertion((String)CodeGenerator.getField(ass, "type"))) jsonAssertions.add(ass);
+                }
+                int jsonIndex = extractions.size();
+                boolean evaluated = false;
+                for (Object ass : assertions) {
+                    String type = (String)CodeGenerator.getField(ass, "type");
+                    if (!evaluated && CodeGenerator.readsBody(type)) {
+                        jsonEvaluation(extractions, jsonAssertions);
+                        evaluated = true;
+                    }
+                    if (CodeGenerator.isJsonAssertion(type)) {
+                        jsonAssertion(ass, jsonIndex++);
+                    } else {
+                        assertion(ass);
+                    }
+                }
+                if (!evaluated) {
+                    jsonEvaluation(extractions, jsonAssertions);
+                }
+                for (Object extraction : extractions) {
+                    bound.add((String)CodeGenerator.getField(extraction, "name"));
+                }
+            }
+        }
+        
+        private void request(Object req, List<Object> assertions, Set<String> bound, String recordAs) {
+            String path = (String)CodeGenerator.getField(req, "path");
+            String method = (String)CodeGenerator.getField(req, "method");
+            
+            // HttpRequest.Builder b = Steps.request(url)
+            expression(CodeGenerator.resolveUrl(path, unit), bound);
+            mv.visitMethodInsn(INVOKESTATIC, STEPS, "request", "(Ljava/lang/String;)L" + BUILDER + ";", false);
+            mv.visitVarInsn(ASTORE, builder);
+            
+            if (method.equals("POST") || method.equals("PUT")) {
+                int threshold = CodeGenerator.requestThreshold(unit);
+                mv.visitVarInsn(ALOAD, builder);
+                if (threshold >= 0) {
+                    mv.visitLdcInsn(method);
+                }
+                publisher(req, bound);
+                if (threshold >= 0) {
+                    mv.visitLdcInsn((long)threshold);
+                    mv.visitMethodInsn(INVOKESTATIC, "testlangcompiler/runtime/Compression", "body",
+                                       "(L" + BUILDER + ";Ljava/lang/String;" + PUBLISHER_DESC + "J)V", false);
+                } else {
+                    mv.visitMethodInsn(INVOKEINTERFACE, BUILDER, method, "(" + PUBLISHER_DESC + ")L" + BUILDER + ";", true);
+                    mv.visitInsn(POP);
+                }
+            } else {
+                mv.visitVarInsn(ALOAD, builder);
+                mv.visitMethodInsn(INVOKEINTERFACE, BUILDER, method, "()L" + BUILDER + ";", true);
+                mv.visitInsn(POP);
+            }
+            
+            // Steps.headers(b, DEFAULT_HEADERS, name, value, ...)
+            mv.visitVarInsn(ALOAD, builder);
+            mv.visitFieldInsn(GETSTATIC, owner, "DEFAULT_HEADERS", MAP_DESC);
+            Object headers = CodeGenerator.getField(req, "headers");
+            Map<?, ?> requestHeaders = headers instanceof Map ? (Map<?, ?>)headers : Map.of();
+            pushInt(mv, requestHeaders.size() * 2);
+            mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+            int index = 0;
+            for (Map.Entry<?, ?> header : requestHeaders.entrySet()) {
+                mv.visitInsn(DUP);
+                pushInt(mv, index++);
+                pushString(mv, (String)header.getKey());
+                mv.visitInsn(AASTORE);
+                mv.visitInsn(DUP);
+                pushInt(mv, index++);
+                expression((String)header.getValue(), bound);
+                mv.visitInsn(AASTORE);
+            }
+            mv.visitMethodInsn(INVOKESTATIC, STEPS, "headers", "(L" + BUILDER + ";" + MAP_DESC + "[Ljava/lang/String;)V", false);
+            
+            if (recordAs != null) {
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+                mv.visitVarInsn(LSTORE, start);
+            }
+            send(assertions, !((List<?>)CodeGenerator.getField(req, "extractions")).isEmpty());
+            if (recordAs != null) {
+                pushString(mv, recordAs);
+                pushString(mv, method + " " + path);
+                mv.visitVarInsn(ALOAD, response);
+                mv.visitVarInsn(LLOAD, start);
+                mv.visitMethodInsn(INVOKESTATIC, "testlangcompiler/runtime/Results", "request",
+                                   "(Ljava/lang/String;Ljava/lang/String;L" + RESPONSE + ";J)V", false);
+            }
+        }
+        
+        // The body publisher, as CodeGenerator writes it for body = "..." or body = file "..."
+        private void publisher(Object req, Set<String> bound) {
+            Object bodyFile = CodeGenerator.getField(req, "bodyFile");
+            if (bodyFile == null) {
+                Object body = CodeGenerator.getField(req, "body");
+                expression(body != null ? (String)body : "", bound);
+                mv.visitMethodInsn(INVOKESTATIC, "java/net/http/HttpRequest$BodyPublishers", "ofString",
+                                   "(Ljava/lang/String;)" + PUBLISHER_DESC, false);
+                return;
+            }
+            String fileBody = "testlangcompiler/runtime/FileBody";
+            pushString(mv, (String)bodyFile);
+            if (((Map<?, ?>)vars).isEmpty() && bound.isEmpty()) {
+                mv.visitMethodInsn(INVOKESTATIC, fileBody, "of", "(Ljava/lang/String;)" + PUBLISHER_DESC, false);
+                return;
+            }
+            if (((Map<?, ?>)vars).isEmpty()) {
+                mv.visitMethodInsn(INVOKESTATIC, "java/util/Map", "of", "()Ljava/util/Map;", true);
+            } else {
+                mv.visitFieldInsn(GETSTATIC, owner, "VARIABLES", MAP_DESC);
+            }
+            List<String> names = new ArrayList<>(new TreeSet<>(bound));
+            pushInt(mv, names.size() * 2);
+            mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+            for (int i = 0; i < names.size(); i++) {
+                mv.visitInsn(DUP);
+                pushInt(mv, i * 2);
+                pushString(mv, names.get(i));
+                mv.visitInsn(AASTORE);
+                mv.visitInsn(DUP);
+                pushInt(mv, i * 2 + 1);
+                mv.visitVarInsn(ALOAD, variable(names.get(i)));
+                mv.visitInsn(AASTORE);
+            }
+            mv.visitMethodInsn(INVOKESTATIC, fileBody, "of",
+                               "(Ljava/lang/String;Ljava/util/Map;[Ljava/lang/String;)" + PUBLISHER_DESC, false);
+        }
+        
+        // resp = client.send(b.build(), HANDLERn), or through the SCHEDULER; the
+        // handler is the one CodeGenerator.generateSend picks
+        private void send(List<Object> assertions, boolean extracts) {
+            List<String> checks = new ArrayList<>();
+            boolean needsString = false;
+            boolean needsJson = extracts;
+            for (Object ass : assertions) {
+                String type = (String)CodeGenerator.getField(ass, "type");
+                if (CodeGenerator.isJsonAssertion(type)) {
+                    needsJson = true;
+                } else if (CodeGenerator.readsBody(type)) {
+                    needsString = true;
+                } else {
+                    checks.add(type);
+                    checks.add(String.valueOf(CodeGenerator.getField(ass, "expected")));
+                    checks.add((String)CodeGenerator.getField(ass, "expectedStr"));
+                }
+            }
+            int kind = needsString ? 1 : needsJson ? 2 : 0;
+            bodyType = kind == 1 ? "java/lang/String" : kind == 2 ? "java/io/InputStream" : null;
+            
+            boolean scheduled = CodeGenerator.isScheduled(unit);
+            if (scheduled) {
+                mv.visitFieldInsn(GETSTATIC, owner, "SCHEDULER", "Ltestlangcompiler/runtime/Scheduler;");
+            }
+            mv.visitFieldInsn(GETSTATIC, owner, "client", "Ljava/net/http/HttpClient;");
+            mv.visitVarInsn(ALOAD, builder);
+            mv.visitMethodInsn(INVOKEINTERFACE, BUILDER, "build", "()Ljava/net/http/HttpRequest;", true);
+            constants.handler(mv, kind, kind != 0 && CodeGenerator.compresses(unit), kind != 0 ? checks : List.of());
+            if (scheduled) {
+                mv.visitMethodInsn(INVOKEVIRTUAL, "testlangcompiler/runtime/Scheduler", "send",
+                                   "(Ljava/net/http/HttpClient;Ljava/net/http/HttpRequest;" + HANDLER_DESC + ")L" + RESPONSE + ";",
+                                   false);
+            } else {
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/net/http/HttpClient", "send",
+                                   "(Ljava/net/http/HttpRequest;" + HANDLER_DESC + ")L" + RESPONSE + ";", false);
+            }
+            mv.visitVarInsn(ASTORE, response);
+        }
+        
+        // Object[] json = JsonPath.evaluate(resp.body(), paths...), then the bound variables
+        private void jsonEvaluation(List<?> extractions, List<Object> jsonAssertions) {
+            if (extractions.isEmpty() && jsonAssertions.isEmpty()) return;
+            mv.visitVarInsn(ALOAD, response);
+            mv.visitMethodInsn(INVOKEINTERFACE, RESPONSE, "body", "()Ljava/lang/Object;", true);
+            mv.visitTypeInsn(CHECKCAST, bodyType);
+            pushInt(mv, extractions.size() + jsonAssertions.size());
+            mv.visitTypeInsn(ANEWARRAY, JSON_PATH);
+            int index = 0;
+            for (Object extraction : extractions) {
+                mv.visitInsn(DUP);
+                pushInt(mv, index++);
+                constants.path(mv, "of", (String)CodeGenerator.getField(extraction, "path"));
+                mv.visitInsn(AASTORE);
+            }
+            for (Object ass : jsonAssertions) {
+                mv.visitInsn(DUP);
+                pushInt(mv, index++);
+                constants.path(mv, "json_size".equals(CodeGenerator.getField(ass, "type")) ? "size" : "of",
+                               (String)CodeGenerator.getField(ass, "expectedStr"));
+                mv.visitInsn(AASTORE);
+            }
+            mv.visitMethodInsn(INVOKESTATIC, JSON_PATH, "evaluate",
+                               "(L" + bodyType + ";[L" + JSON_PATH + ";)[Ljava/lang/Object;", false);
+            mv.visitVarInsn(ASTORE, json);
+            
+            index = 0;
+            for (Object extraction : extractions) {
+                mv.visitVarInsn(ALOAD, json);
+                pushInt(mv, index++);
+                mv.visitInsn(AALOAD);
+                pushString(mv, (String)CodeGenerator.getField(extraction, "path"));
+                mv.visitMethodInsn(INVOKESTATIC, JSON_PATH, "require", "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/String;",
+                                   false);
+                mv.visitVarInsn(ASTORE, variable((String)CodeGenerator.getField(extraction, "name")));
+            }
+        }
+        
+        private void jsonAssertion(Object ass, int index) {
+            String type = (String)CodeGenerator.getField(ass, "type");
+            Object expected = CodeGenerator.getField(ass, "expected");
+            String path = (String)CodeGenerator.getField(ass, "expectedStr");
+            mv.visitVarInsn(ALOAD, json);
+            pushInt(mv, index);
+            mv.visitInsn(AALOAD);
+            if (type.equals("json_equals")) {
+                // Boxed as javac boxes the literal CodeGenerator writes
+                if (expected instanceof String) {
+                    pushString(mv, (String)expected);
+                } else if (expected instanceof Integer) {
+                    pushInt(mv, (Integer)expected);
+                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false);
+                } else if (expected instanceof Boolean) {
+                    mv.visitInsn((Boolean)expected ? ICONST_1 : ICONST_0);
+                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", false);
+                } else {
+                    mv.visitInsn(ACONST_NULL);
+                }
+                pushString(mv, path);
+                mv.visitMethodInsn(INVOKESTATIC, JSON_PATH, "assertValue",
+                                   "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;)V", false);
+            } else if (type.equals("json_exists")) {
+                pushString(mv, path);
+                mv.visitMethodInsn(INVOKESTATIC, JSON_PATH, "assertExists", "(Ljava/lang/Object;Ljava/lang/String;)V", false);
+            } else {
+                pushInt(mv, (Integer)expected);
+                pushString(mv, path);
+                mv.visitMethodInsn(INVOKESTATIC, JSON_PATH, "assertSize", "(Ljava/lang/Object;ILjava/lang/String;)V", false);
+            }
+        }
+        
+        // The JUnit assertion CodeGenerator.generateAssertion writes
+        private void assertion(Object ass) {
+            String type = (String)CodeGenerator.getField(ass, "type");
+            Object expected = CodeGenerator.getField(ass, "expected");
+            String expectedStr = (String)CodeGenerator.getField(ass, "expectedStr");
+            if (type.equals("status")) {
+                pushInt(mv, (Integer)expected);
+                mv.visitVarInsn(ALOAD, response);
+                mv.visitMethodInsn(INVOKEINTERFACE, RESPONSE, "statusCode", "()I", true);
+                mv.visitMethodInsn(INVOKESTATIC, ASSERTIONS, "assertEquals", "(II)V", false);
+            } else if (type.equals("header_equals")) {
+                pushString(mv, expectedStr);
+                header((String)expected);
+                mv.visitMethodInsn(INVOKESTATIC, ASSERTIONS, "assertEquals", "(Ljava/lang/Object;Ljava/lang/Object;)V", false);
+            } else if (type.equals("header_contains")) {
+                header((String)expected);
+                pushString(mv, expectedStr);
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "contains", "(Ljava/lang/CharSequence;)Z", false);
+                mv.visitMethodInsn(INVOKESTATIC, ASSERTIONS, "assertTrue", "(Z)V", false);
+            } else if (type.equals("body_contains")) {
+                mv.visitVarInsn(ALOAD, response);
+                mv.visitMethodInsn(INVOKEINTERFACE, RESPONSE, "body", "()Ljava/lang/Object;", true);
+                mv.visitTypeInsn(CHECKCAST, "java/lang/String");
+                pushString(mv, expectedStr);
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "contains", "(Ljava/lang/CharSequence;)Z", false);
+                mv.visitMethodInsn(INVOKESTATIC, ASSERTIONS, "assertTrue", "(Z)V", false);
+            }
+        }
+        
+        private void header(String name) {
+            mv.visitVarInsn(ALOAD, response);
+            pushString(mv, name);
+            mv.visitMethodInsn(INVOKESTATIC, STEPS, "header", "(L" + RESPONSE + ";Ljava/lang/String;)Ljava/lang/String;", false);
+        }
+        
+        // A string with $variables, as CodeGenerator.javaExpression builds it:
+        // let variables substituted, bound ones concatenated in at run time
+        private void expression(String text, Set<String> bound) {
+            if (bound.isEmpty()) {
+                pushString(mv, CodeGenerator.substituteVariablesInternal(text, vars));
+                return;
+            }
+            List<Object> parts = new ArrayList<>();
+            int literalStart = 0;
+            int i = 0;
+            while (i < text.length()) {
+                int end = i + 1;
+                if (text.charAt(i) == '$') {
+                    while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_')) {
+                        end++;
+                    }
+                    String name = text.substring(i + 1, end);
+                    if (bound.contains(name)) {
+                        if (i > literalStart) {
+                            parts.add(CodeGenerator.substituteVariablesInternal(text.substring(literalStart, i), vars));
+                        }
+                        parts.add(variable(name));
+                        literalStart = end;
+                    }
+                }
+                i = end;
+            }
+            if (literalStart < text.length() || parts.isEmpty()) {
+                parts.add(CodeGenerator.substituteVariablesInternal(text.substring(literalStart), vars));
+            }
+            
+            if (parts.size() == 1) {
+                if (parts.get(0) instanceof String) {
+                    pushString(mv, (String)parts.get(0));
+                } else {
+                    mv.visitVarInsn(ALOAD, (Integer)parts.get(0));
+                }
+                return;
+            }
+            // "a" + v_x + "b" as javac compiles it: one invokedynamic string concatenation
+            StringBuilder recipe = new StringBuilder();
+            StringBuilder descriptor = new StringBuilder("(");
+            List<Object> constants = new ArrayList<>();
+            for (Object part : parts) {
+                if (part instanceof Integer || ((String)part).length() > MAX_CONSTANT) {
+                    // Literals too long for a constant are passed like a variable
+                    if (part instanceof Integer) {
+                        mv.visitVarInsn(ALOAD, (Integer)part);
+                    } else {
+                        pushString(mv, (String)part);
+                    }
+                    recipe.append('\u0001');
+                    descriptor.append("Ljava/lang/String;");
+                } else {
+                    recipe.append('\u0002');
+                    constants.add(part);
+                }
+            }
+            constants.add(0, recipe.toString());
+            mv.visitInvokeDynamicInsn("makeConcatWithConstants", descriptor.append(")Ljava/lang/String;").toString(),
+                new Handle(H_INVOKESTATIC, "java/lang/invoke/StringConcatFactory", "makeConcatWithConstants",
+                           "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                           + "Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false),
+                constants.toArray());
+        }
+    }
+    
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+    
+    // A constant string; one too long for the constant pool is joined from pieces
+    private static void pushString(MethodVisitor mv, String value) {
+        if (value.length() <= MAX_CONSTANT) {
+            mv.visitLdcInsn(value);
+            return;
+        }
+        mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
+        mv.visitInsn(DUP);
+        pushInt(mv, value.length());
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(I)V", false);
+        for (int i = 0; i < value.length(); i += MAX_CONSTANT) {
+            mv.visitLdcInsn(value.substring(i, Math.min(value.length(), i + MAX_CONSTANT)));
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                               "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+    }
+    
+    private static void pushStrings(MethodVisitor mv, List<String> values) {
+        pushInt(mv, values.size());
+        mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+        for (int i = 0; i < values.size(); i++) {
+            mv.visitInsn(DUP);
+            pushInt(mv, i);
+            if (values.get(i) != null) {
+                pushString(mv, values.get(i));
+            } else {
+                mv.visitInsn(ACONST_NULL);
+            }
+            mv.visitInsn(AASTORE);
+        }
+    }
+}
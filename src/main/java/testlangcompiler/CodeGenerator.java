@@ -12,6 +12,83 @@ public class CodeGenerator {
         return generateCodeCUP(unit);
     }
     
+    public static String generate(TestlangCompiler.CompilationUnit unit, Options options) {
+        return generateCodeInternal(unit, options);
+    }
+    
+    public static String generate(ParserCUP.CompilationUnit unit, Options options) {
+        return generateCodeInternal(unit, options);
+    }
+    
+    // Sharded output: class name -> source, the shared base class first
+    public static Map<String, String> generateShards(TestlangCompiler.CompilationUnit unit, Options options) {
+        return generateShardsInternal(unit, options);
+    }
+    
+    public static Map<String, String> generateShards(ParserCUP.CompilationUnit unit, Options options) {
+        return generateShardsInternal(unit, options);
+    }
+    
+    public static class Options {
+        public String className = "GeneratedTests";
+        public int maxTestsPerShard;
+        public int maxCharsPerShard;
+        // Record every request and test outcome through testlangcompiler.runtime.Results
+        public boolean instrument;
+        // Names of the tests to generate, e.g. from EndpointIndex.select; null generates all
+        public Set<String> onlyTests;
+        // Exactly this many shards, balanced by durations (test name -> nanoseconds,
+        // e.g. from a TimingStore); the size limits above are then ignored
+        public int shards;
+        public Map<String, Long> durations;
+        // Output of earlier runs over the same, changing suite (see IncrementalSuite);
+        // null generates everything afresh
+        public MethodCache methods;
+        
+        public boolean isSharded() {
+            return maxTestsPerShard > 0 || maxCharsPerShard > 0 || shards > 0;
+        }
+    }
+    
+    // Generated test methods by test node and classes by name. A method is reused
+    // while its node stays in the suite, a class while its header and methods are
+    // the same strings as last time.
+    public static class MethodCache {
+        private final Map<Object, String> methods = new IdentityHashMap<>();
+        private final Map<String, List<String>> classMethods = new HashMap<>();
+        private final Map<String, String> classHeaders = new HashMap<>();
+        private final Map<String, String> classes = new HashMap<>();
+        
+        public void clear() {
+            methods.clear();
+            classMethods.clear();
+            classHeaders.clear();
+            classes.clear();
+        }
+        
+        // Forgets a test node that has left the suite
+        public void remove(Object test) {
+            methods.remove(test);
+        }
+        
+        String classSource(String name, String header, List<String> methods) {
+            List<String> previous = classMethods.get(name);
+            if (previous == null || previous.size() != methods.size() || !header.equals(classHeaders.get(name))) {
+                return null;
+            }
+            for (int i = 0; i < methods.size(); i++) {
+                if (previous.get(i) != methods.get(i)) return null;
+            }
+            return classes.get(name);
+        }
+        
+        void putClass(String name, String header, List<String> methods, String source) {
+            classMethods.put(name, methods);
+            classHeaders.put(name, header);
+            classes.put(name, source);
+        }
+    }
+    
     // Substitute variables in a string (e.g., "$user" -> "admin")
     private static String substituteVariables(String text, Map<String, TestlangCompiler.Variable> vars) {
         return substituteVariablesInternal(text, vars);
@@ -21,37 +98,53 @@ public class CodeGenerator {
         return substituteVariablesInternal(text, vars);
     }
     
-    private static String substituteVariablesInternal(String text, Object vars) {
-        if (text == null) return text;
-        StringBuilder result = new StringBuilder();
-        int i = 0;
-        while (i < text.length()) {
-            if (text.charAt(i) == '$' && i + 1 < text.length()) {
+    static String substituteVariablesInternal(String text, Object vars) {
+        if (text == null || text.indexOf('$') < 0) return text;
+        return appendSubstituted(new StringBuilder(text.length() + 16), text, 0, text.length(), vars, false).toString();
+    }
+    
+    // text[from, to) with its $variables replaced by their values, escaped for a
+    // Java string literal if asked; written straight into out, without copies
+    private static StringBuilder appendSubstituted(StringBuilder out, String text, int from, int to, Object vars,
+                                                   boolean escape) {
+        int i = from;
+        while (i < to) {
+            if (text.charAt(i) == '$' && i + 1 < to) {
                 int start = i + 1;
                 int end = start;
-                while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_')) {
+                while (end < to && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_')) {
                     end++;
                 }
                 if (end > start) {
-                    String varName = text.substring(start, end);
-                    Object var = ((Map<?,?>)vars).get(varName);
+                    Object var = ((Map<?,?>)vars).get(text.substring(start, end));
                     if (var != null) {
                         Object value = getField(var, "value");
-                        result.append(value != null ? value.toString() : "");
+                        String v = value != null ? value.toString() : "";
+                        appendText(out, v, 0, v.length(), escape);
                     } else {
-                        result.append(text.substring(i, end));
+                        appendText(out, text, i, end, escape);
                     }
                     i = end;
-                } else {
-                    result.append('$');
-                    i++;
+                    continue;
                 }
-            } else {
-                result.append(text.charAt(i));
-                i++;
             }
+            appendText(out, text, i, i + 1, escape);
+            i++;
+        }
+        return out;
+    }
+    
+    private static void appendText(StringBuilder out, String text, int from, int to, boolean escape) {
+        if (!escape) {
+            out.append(text, from, to);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            String e = escape(c);
+            if (e != null) out.append(e);
+            else out.append(c);
         }
-        return result.toString();
     }
     
     // Resolve URL - add base_url if path starts with "/"
@@ -63,7 +156,7 @@ public class CodeGenerator {
         return path;
     }
     
-    private static String resolveUrl(String path, Object unit) {
+    static String resolveUrl(String path, Object unit) {
         if (path == null) return path;
         Object config = getField(unit, "config");
         if (config != null) {
@@ -77,29 +170,309 @@ public class CodeGenerator {
     
     // Generate the complete JUnit test class
     private static String generateCode(TestlangCompiler.CompilationUnit unit) {
-        return generateCodeInternal(unit);
+        return generateCodeInternal(unit, new Options());
     }
     
     private static String generateCodeCUP(ParserCUP.CompilationUnit unit) {
-        return generateCodeInternal(unit);
+        return generateCodeInternal(unit, new Options());
     }
     
-    private static String generateCodeInternal(Object unit) {
-        StringBuilder code = new StringBuilder();
+    // Builders each thread reuses for whole classes and for single test methods,
+    // so a long-lived caller (see Compiler) doesn't grow new ones on every call.
+    // One that grew past MAX_KEPT_CHARS is dropped instead of being kept.
+    private static final ThreadLocal<StringBuilder> CLASS_BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(1 << 14));
+    private static final ThreadLocal<StringBuilder> METHOD_BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(1 << 10));
+    private static final int MAX_KEPT_CHARS = 1 << 22;
+    
+    private static StringBuilder buffer(ThreadLocal<StringBuilder> local) {
+        StringBuilder buffer = local.get();
+        buffer.setLength(0);
+        return buffer;
+    }
+    
+    private static String release(ThreadLocal<StringBuilder> local, StringBuilder buffer) {
+        String text = buffer.toString();
+        if (buffer.capacity() > MAX_KEPT_CHARS) local.remove();
+        return text;
+    }
+    
+    private static String generateCodeInternal(Object unit, Options options) {
+        StringBuilder code = buffer(CLASS_BUFFER);
+        
+        appendImports(code, unit, options);
+        
+        // Class declaration
+        code.append("public class ").append(options.className).append(" {\n");
+        appendSharedMembers(code, unit, options, "static void setup()");
+        
+        // Generate test methods
+        if (options.methods == null) {
+            for (Object testMethod : selectedTests(unit, options)) {
+                generateTestMethod(code, testMethod, unit, options);
+            }
+            code.append("}\n");
+            return release(CLASS_BUFFER, code);
+        }
+        List<String> methods = new ArrayList<>();
+        for (Object testMethod : selectedTests(unit, options)) {
+            methods.add(methodSource(testMethod, unit, options));
+        }
+        // As a string: classSource fills the same buffer
+        return classSource(options.className, code.toString(), methods, options);
+    }
+    
+    // The class header followed by the methods and the closing brace
+    private static String classSource(String name, CharSequence header, List<String> methods, Options options) {
+        String headerText = options.methods != null ? header.toString() : null;
+        if (options.methods != null) {
+            String cached = options.methods.classSource(name, headerText, methods);
+            if (cached != null) return cached;
+        }
+        StringBuilder code = buffer(CLASS_BUFFER).append(header);
+        for (String method : methods) {
+            code.append(method);
+        }
+        code.append("}\n");
+        String source = release(CLASS_BUFFER, code);
+        if (options.methods != null) {
+            options.methods.putClass(name, headerText, methods, source);
+        }
+        return source;
+    }
+    
+    // Split the suite into a shared base class plus N test classes. Each shard is
+    // closed once it reaches maxTestsPerShard tests or maxCharsPerShard characters
+    // of generated method source (0 disables that limit).
+    private static Map<String, String> generateShardsInternal(Object unit, Options options) {
+        String baseName = options.className + "Base";
+        Map<String, String> files = new LinkedHashMap<>();
+        
+        // The imports scan every test, so they are worked out once for all shards
+        StringBuilder imports = new StringBuilder();
+        appendImports(imports, unit, options);
+        
+        StringBuilder base = new StringBuilder(imports);
+        base.append("public abstract class ").append(baseName).append(" {\n");
+        appendSharedMembers(base, unit, options, null);
+        base.append("}\n");
+        files.put(baseName, base.toString());
+        
+        if (options.shards > 0) {
+            generateBalancedShards(files, unit, options, baseName, imports);
+            return files;
+        }
         
-        // Imports
+        List<String> methods = new ArrayList<>();
+        int methodChars = 0;
+        
+        for (Object testMethod : selectedTests(unit, options)) {
+            String method = methodSource(testMethod, unit, options);
+            
+            boolean full = !methods.isEmpty() && (
+                (options.maxTestsPerShard > 0 && methods.size() >= options.maxTestsPerShard) ||
+                (options.maxCharsPerShard > 0 && methodChars + method.length() > options.maxCharsPerShard));
+            if (full) {
+                addShard(files, imports, unit, options, baseName, files.size(), null, methods);
+                methods = new ArrayList<>();
+                methodChars = 0;
+            }
+            methods.add(method);
+            methodChars += method.length();
+        }
+        if (!methods.isEmpty()) {
+            addShard(files, imports, unit, options, baseName, files.size(), null, methods);
+        }
+        
+        return files;
+    }
+    
+    private static void addShard(Map<String, String> files, CharSequence imports, Object unit, Options options,
+                                 String baseName, int number, String comment, List<String> methods) {
+        StringBuilder shard = new StringBuilder(imports);
+        if (comment != null) {
+            shard.append("// ").append(comment).append("\n");
+        }
+        shard.append("public class ").append(options.className).append(number)
+             .append(" extends ").append(baseName).append(" {\n\n");
+        String name = options.className + number;
+        files.put(name, classSource(name, shard, methods, options));
+    }
+    
+    // Longest-first bin packing: each test, slowest first, goes to the shard
+    // with the least recorded time so far, so all shards finish at about the
+    // same time. Tests without a recorded duration count as the median one.
+    // Within a shard the tests keep their order in the suite.
+    private static void generateBalancedShards(Map<String, String> files, Object unit, Options options,
+                                               String baseName, CharSequence imports) {
+        List<?> tests = selectedTests(unit, options);
+        long[] load = new long[Math.min(options.shards, Math.max(tests.size(), 1))];
+        int[] shardOf = balance(tests, options, load);
+        boolean timed = false;
+        for (Object tm : tests) {
+            timed |= options.durations != null && options.durations.containsKey((String)getField(tm, "name"));
+        }
+        
+        for (int s = 0; s < load.length; s++) {
+            List<String> methods = new ArrayList<>();
+            for (int i = 0; i < tests.size(); i++) {
+                if (shardOf[i] == s) methods.add(methodSource(tests.get(i), unit, options));
+            }
+            addShard(files, imports, unit, options, baseName, s + 1, !timed ? null
+                : String.format(Locale.ROOT, "Shard %d of %d, about %.1f s of recorded test time", s + 1, load.length, load[s] / 1e9),
+                methods);
+        }
+    }
+    
+    // The shard (index into load) of each test; load gets the time of each shard
+    private static int[] balance(List<?> tests, Options options, long[] load) {
+        Map<String, Long> durations = options.durations != null ? options.durations : Map.of();
+        
+        List<Long> known = new ArrayList<>();
+        long[] cost = new long[tests.size()];
+        for (int i = 0; i < tests.size(); i++) {
+            Long d = durations.get((String)getField(tests.get(i), "name"));
+            cost[i] = d != null ? d : -1;
+            if (d != null) known.add(d);
+        }
+        Collections.sort(known);
+        long fallback = known.isEmpty() ? 1 : known.get(known.size() / 2);
+        
+        Integer[] order = new Integer[tests.size()];
+        for (int i = 0; i < order.length; i++) {
+            if (cost[i] < 0) cost[i] = fallback;
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(cost[b], cost[a]));
+        
+        int[] shardOf = new int[tests.size()];
+        for (int i : order) {
+            int lightest = 0;
+            for (int s = 1; s < load.length; s++) {
+                if (load[s] < load[lightest]) lightest = s;
+            }
+            shardOf[i] = lightest;
+            load[lightest] += cost[i];
+        }
+        return shardOf;
+    }
+    
+    // The tests of each shard class, split the way generateShards splits them
+    static List<List<Object>> shardTests(Object unit, Options options) {
+        List<?> tests = selectedTests(unit, options);
+        List<List<Object>> shards = new ArrayList<>();
+        if (options.shards > 0) {
+            long[] load = new long[Math.min(options.shards, Math.max(tests.size(), 1))];
+            int[] shardOf = balance(tests, options, load);
+            for (int s = 0; s < load.length; s++) {
+                shards.add(new ArrayList<>());
+            }
+            for (int i = 0; i < tests.size(); i++) {
+                shards.get(shardOf[i]).add(tests.get(i));
+            }
+            return shards;
+        }
+        
+        List<Object> shard = null;
+        int methodChars = 0;
+        for (Object testMethod : tests) {
+            int length = options.maxCharsPerShard > 0 ? methodSource(testMethod, unit, options).length() : 0;
+            boolean full = shard != null && (
+                (options.maxTestsPerShard > 0 && shard.size() >= options.maxTestsPerShard) ||
+                (options.maxCharsPerShard > 0 && methodChars + length > options.maxCharsPerShard));
+            if (shard == null || full) {
+                shard = new ArrayList<>();
+                shards.add(shard);
+                methodChars = 0;
+            }
+            shard.add(testMethod);
+            methodChars += length;
+        }
+        return shards;
+    }
+    
+    // The unit's tests, restricted to options.onlyTests when set
+    static List<?> selectedTests(Object unit, Options options) {
+        Object testMethods = getField(unit, "testMethods");
+        if (!(testMethods instanceof List)) return List.of();
+        if (options.onlyTests == null) return (List<?>)testMethods;
+        List<Object> selected = new ArrayList<>();
+        for (Object tm : (List<?>)testMethods) {
+            if (options.onlyTests.contains(getField(tm, "name"))) selected.add(tm);
+        }
+        return selected;
+    }
+    
+    private static void appendImports(StringBuilder code, Object unit, Options options) {
         code.append("import org.junit.jupiter.api.*;\n");
         code.append("import static org.junit.jupiter.api.Assertions.*;\n");
         code.append("import java.net.http.*;\n");
         code.append("import java.net.*;\n");
         code.append("import java.time.Duration;\n");
         code.append("import java.nio.charset.StandardCharsets;\n");
-        code.append("import java.util.*;\n\n");
-        
-        // Class declaration
-        code.append("public class GeneratedTests {\n");
-        
-        // Static fields
+        code.append("import java.util.*;\n");
+        if (readsJson(unit)) {
+            code.append("import java.io.InputStream;\n");
+        }
+        if (isScheduled(unit) || readsJson(unit) || options.instrument || sendsFiles(unit, options)
+            || compresses(unit) || requestThreshold(unit) >= 0) {
+            code.append("import testlangcompiler.runtime.*;\n");
+        }
+        code.append("\n");
+    }
+    
+    // True if the config sets a rate or max_in_flight limit
+    static boolean isScheduled(Object unit) {
+        Object settings = settings(unit);
+        return ConfigSettings.get(settings, ConfigSettings.RATE) != null
+            || ConfigSettings.get(settings, ConfigSettings.MAX_IN_FLIGHT) != null;
+    }
+    
+    // True if any test binds a variable from a response or asserts on a JSON path
+    static boolean readsJson(Object unit) {
+        Object testMethods = getField(unit, "testMethods");
+        if (testMethods instanceof List) {
+            for (Object tm : (List<?>)testMethods) {
+                for (Object req : (List<?>)getField(tm, "requests")) {
+                    if (!((List<?>)getField(req, "extractions")).isEmpty()) return true;
+                }
+                for (Object ass : (List<?>)getField(tm, "assertions")) {
+                    if (isJsonAssertion((String)getField(ass, "type"))) return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    // True if the config asks for gzip responses
+    static boolean compresses(Object unit) {
+        return "gzip".equals(ConfigSettings.get(settings(unit), ConfigSettings.COMPRESSION));
+    }
+    
+    // Size from which request bodies are gzipped, or -1
+    static int requestThreshold(Object unit) {
+        String value = ConfigSettings.get(settings(unit), ConfigSettings.COMPRESS_REQUESTS_OVER);
+        return value != null ? ConfigSettings.positiveInt(value) : -1;
+    }
+    
+    // True if a request of the selected tests sends a body = file "..."
+    static boolean sendsFiles(Object unit, Options options) {
+        for (Object tm : selectedTests(unit, options)) {
+            for (Object req : (List<?>)getField(tm, "requests")) {
+                if (getField(req, "bodyFile") != null) return true;
+            }
+        }
+        return false;
+    }
+    
+    static Object settings(Object unit) {
+        Object config = getField(unit, "config");
+        return config != null ? getField(config, "settings") : null;
+    }
+    
+    // Static fields plus client/header setup. With a setup signature this is a
+    // @BeforeAll method, otherwise a static initializer so that every shard
+    // extending the base class shares a single client.
+    private static void appendSharedMembers(StringBuilder code, Object unit, Options options, String setupSignature) {
         String baseUrl = "http://localhost:8080";
         Object config = getField(unit, "config");
         if (config != null) {
@@ -110,12 +483,45 @@ public class CodeGenerator {
         }
         code.append("  static String BASE = \"").append(escapeJava(baseUrl)).append("\";\n");
         code.append("  static Map<String,String> DEFAULT_HEADERS = new HashMap<>();\n");
-        code.append("  static HttpClient client;\n\n");
+        code.append("  static HttpClient client;\n");
+        if (isScheduled(unit)) {
+            String rate = ConfigSettings.get(settings(unit), ConfigSettings.RATE);
+            String maxInFlight = ConfigSettings.get(settings(unit), ConfigSettings.MAX_IN_FLIGHT);
+            code.append("  static final Scheduler SCHEDULER = new Scheduler(")
+                 .append(rate != null ? ConfigSettings.ratePerSecond(rate) : 0.0).append(", ")
+                 .append(maxInFlight != null ? ConfigSettings.positiveInt(maxInFlight) : 0).append(");\n");
+        }
+        // Body files are filled in when sent, so they need the values of the let variables
+        Map<?, ?> variables = (Map<?, ?>)getField(unit, "variables");
+        if (sendsFiles(unit, options) && variables != null && !variables.isEmpty()) {
+            code.append("  static final Map<String,String> VARIABLES = Map.ofEntries(");
+            String separator = "\n";
+            for (Map.Entry<?, ?> var : variables.entrySet()) {
+                Object value = getField(var.getValue(), "value");
+                code.append(separator).append("    Map.entry(\"").append(escapeJava((String)var.getKey())).append("\", \"")
+                     .append(escapeJava(value != null ? value.toString() : "")).append("\")");
+                separator = ",\n";
+            }
+            code.append(");\n");
+        }
+        code.append("\n");
         
-        // Setup method
-        code.append("  @BeforeAll\n");
-        code.append("  static void setup() {\n");
-        code.append("    client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();\n");
+        if (setupSignature != null) {
+            code.append("  @BeforeAll\n");
+            code.append("  ").append(setupSignature).append(" {\n");
+        } else {
+            code.append("  static {\n");
+        }
+        // Instrumented suites can record their exchanges or replay them (see Exchanges)
+        code.append("    client = ").append(options.instrument ? "Exchanges.client(" : "")
+             .append("HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5))");
+        if (isScheduled(unit)) {
+            code.append("\n      .executor(Scheduler.executor())");
+        }
+        code.append(options.instrument ? ".build());\n" : ".build();\n");
+        if (compresses(unit)) {
+            code.append("    DEFAULT_HEADERS.put(\"Accept-Encoding\", \"gzip\");\n");
+        }
         if (config != null) {
             Object headers = getField(config, "defaultHeaders");
             if (headers instanceof Map) {
@@ -126,83 +532,378 @@ public class CodeGenerator {
             }
         }
         code.append("  }\n\n");
-        
-        // Generate test methods
-        Object testMethods = getField(unit, "testMethods");
-        if (testMethods instanceof List) {
-            for (Object testMethod : (List<?>)testMethods) {
-                generateTestMethod(code, testMethod, unit);
-            }
+    }
+    
+    private static String methodSource(Object tm, Object unit, Options options) {
+        String method = options.methods != null ? options.methods.methods.get(tm) : null;
+        if (method == null) {
+            StringBuilder code = buffer(METHOD_BUFFER);
+            generateTestMethod(code, tm, unit, options);
+            method = release(METHOD_BUFFER, code);
+            if (options.methods != null) options.methods.methods.put(tm, method);
         }
-        
-        code.append("}\n");
-        
-        return code.toString();
+        return method;
     }
     
-    private static void generateTestMethod(StringBuilder code, Object tm, Object unit) {
+    private static void generateTestMethod(StringBuilder target, Object tm, Object unit, Options options) {
         String name = (String)getField(tm, "name");
-        code.append("  @Test\n");
-        code.append("  void test_").append(name).append("() throws Exception {\n");
+        target.append("  @Test\n");
+        if (isScheduled(unit)) {
+            // The SCHEDULER runs the body on its own threads; the test waits for it
+            target.append("  void test_").append(name).append("() throws Throwable {\n");
+            target.append("    SCHEDULER.run(this, \"run_").append(name).append("\");\n");
+            target.append("  }\n\n");
+            target.append("  void run_").append(name).append("() throws Exception {\n");
+        } else {
+            target.append("  void test_").append(name).append("() throws Exception {\n");
+        }
+        
+        // Instrumented bodies are generated separately, then wrapped in try/finally
+        StringBuilder code = options.instrument ? new StringBuilder() : target;
+        String recordAs = options.instrument ? name : null;
+        
+        List<?> requests = getField(tm, "requests") instanceof List ? (List<?>)getField(tm, "requests") : List.of();
+        List<Object> assertions = orderAssertions(getField(tm, "assertions"));
+        
+        // Variables bound so far by let ... = body.json; later requests substitute them at run time
+        Set<String> bound = new HashSet<>();
         
-        // Generate each request
-        Object requests = getField(tm, "requests");
-        if (requests instanceof List) {
-            for (Object req : (List<?>)requests) {
-                generateHttpRequest(code, req, unit);
+        // Assertions only look at the last response; earlier requests run in
+        // their own block and only read a body to extract variables from it
+        for (int i = 0; i < requests.size(); i++) {
+            Object req = requests.get(i);
+            List<?> extractions = (List<?>)getField(req, "extractions");
+            if (i < requests.size() - 1) {
+                Set<String> before = new HashSet<>(bound);
+                for (Object extraction : extractions) {
+                    if (bound.add((String)getField(extraction, "name"))) {
+                        code.append("    String ").append(javaVariable(extraction)).append(";\n");
+                    }
+                }
+                code.append("    {\n");
+                generateHttpRequest(code, req, unit, "      ", List.of(), before, recordAs);
+                generateJsonEvaluation(code, "      ", extractions, List.of(), null);
+                code.append("    }\n");
+            } else {
+                generateHttpRequest(code, req, unit, "    ", assertions, bound, recordAs);
+                code.append("\n");
+                
+                // Status and header checks run before the body is read; every JSON
+                // path of the response is then resolved in one pass
+                List<Object> jsonAssertions = new ArrayList<>();
+                for (Object ass : assertions) {
+                    if (isJsonAssertion((String)getField(ass, "type"))) jsonAssertions.add(ass);
+                }
+                int assertIndex = 0;
+                int jsonIndex = extractions.size();
+                boolean evaluated = false;
+                for (Object ass : assertions) {
+                    String type = (String)getField(ass, "type");
+                    if (!evaluated && readsBody(type)) {
+                        generateJsonEvaluation(code, "    ", extractions, jsonAssertions, bound);
+                        evaluated = true;
+                    }
+                    if (isJsonAssertion(type)) {
+                        generateJsonAssertion(code, ass, jsonIndex++);
+                    } else {
+                        generateAssertion(code, ass, assertIndex++);
+                    }
+                }
+                if (!evaluated) {
+                    generateJsonEvaluation(code, "    ", extractions, jsonAssertions, bound);
+                }
+                assertions = List.of();
             }
         }
         
         // Generate assertions
-        Object assertions = getField(tm, "assertions");
-        if (assertions instanceof List) {
-            int assertIndex = 0;
-            for (Object ass : (List<?>)assertions) {
-                generateAssertion(code, ass, assertIndex++);
-            }
+        int assertIndex = 0;
+        for (Object ass : assertions) {
+            generateAssertion(code, ass, assertIndex++);
         }
         
-        code.append("  }\n\n");
+        if (options.instrument) {
+            target.append("    long testStart = System.nanoTime();\n");
+            target.append("    boolean passed = false;\n");
+            target.append("    try {\n");
+            for (String line : code.toString().split("\n", -1)) {
+                if (!line.isEmpty()) target.append("  ").append(line);
+                target.append("\n");
+            }
+            target.setLength(target.length() - 1);
+            target.append("      passed = true;\n");
+            target.append("    } finally {\n");
+            target.append("      Results.test(\"").append(escapeJava(name)).append("\", passed, testStart);\n");
+            target.append("    }\n");
+        }
+        target.append("  }\n\n");
     }
     
-    private static void generateHttpRequest(StringBuilder code, Object req, Object unit) {
+    // Cheap checks first: status, then headers, then JSON paths (one streaming
+    // pass that can stop early), then full-text body checks.
+    // The sort is stable, so assertions of the same cost keep their source order.
+    static List<Object> orderAssertions(Object assertions) {
+        List<Object> ordered = new ArrayList<>();
+        if (assertions instanceof List) {
+            ordered.addAll((List<?>)assertions);
+        }
+        ordered.sort(Comparator.comparingInt(ass -> assertionCost((String)getField(ass, "type"))));
+        return ordered;
+    }
+    
+    private static int assertionCost(String type) {
+        switch (type) {
+            case "status": return 0;
+            case "header_equals":
+            case "header_contains": return 1;
+            case "json_equals":
+            case "json_exists":
+            case "json_size": return 2;
+            default: return 3;
+        }
+    }
+    
+    static boolean isJsonAssertion(String type) {
+        return type.startsWith("json_");
+    }
+    
+    static boolean readsBody(String type) {
+        return assertionCost(type) > 1;
+    }
+    
+    // With recordAs (the test name) the request is timed and recorded in Results
+    private static void generateHttpRequest(StringBuilder code, Object req, Object unit, String indent,
+                                            List<Object> assertions, Set<String> bound, String recordAs) {
         String path = (String)getField(req, "path");
         String method = (String)getField(req, "method");
         String url = resolveUrl(path, unit);
-        String resolvedUrl = substituteVariablesInternal(url, getField(unit, "variables"));
+        Object vars = getField(unit, "variables");
         
-        code.append("    HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(\"")
-             .append(escapeJava(resolvedUrl)).append("\"))\n");
-        code.append("      .timeout(Duration.ofSeconds(10))");
+        code.append(indent).append("HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(");
+        appendJavaExpression(code, url, vars, bound).append("))\n");
+        code.append(indent).append("  .timeout(Duration.ofSeconds(10))");
         
         // Add method-specific code
         if (method.equals("POST") || method.equals("PUT")) {
-            Object body = getField(req, "body");
-            if (body != null) {
-                String resolvedBody = substituteVariablesInternal((String)body, getField(unit, "variables"));
-                code.append("\n      .").append(method).append("(HttpRequest.BodyPublishers.ofString(\"")
-                     .append(escapeJava(resolvedBody)).append("\"))");
+            if (requestThreshold(unit) >= 0) {
+                // Gzipped from the threshold on, which also sets Content-Encoding
+                code.append(";\n").append(indent).append("Compression.body(b, \"").append(method).append("\", ");
+                appendBodyPublisher(code, req, vars, bound).append(", ").append(requestThreshold(unit)).append(")");
             } else {
-                code.append("\n      .").append(method).append("(HttpRequest.BodyPublishers.ofString(\"\"))");
+                code.append("\n").append(indent).append("  .").append(method).append("(");
+                appendBodyPublisher(code, req, vars, bound).append(")");
             }
         } else {
-            code.append("\n      .").append(method).append("()");
+            code.append("\n").append(indent).append("  .").append(method).append("()");
         }
         code.append(";\n");
         
         // Add default headers
-        code.append("    for (var e: DEFAULT_HEADERS.entrySet()) b.header(e.getKey(), e.getValue());\n");
+        code.append(indent).append("for (var e: DEFAULT_HEADERS.entrySet()) b.header(e.getKey(), e.getValue());\n");
         
         // Add request-specific headers
         Object headers = getField(req, "headers");
         if (headers instanceof Map && !((Map<?,?>)headers).isEmpty()) {
             for (Map.Entry<String, String> header : ((Map<String, String>)headers).entrySet()) {
-                code.append("    b.header(\"").append(escapeJava(header.getKey()))
-                     .append("\", \"").append(escapeJava(header.getValue())).append("\");\n");
+                code.append(indent).append("b.header(\"").append(escapeJava(header.getKey())).append("\", ");
+                appendJavaExpression(code, header.getValue(), vars, bound).append(");\n");
+            }
+        }
+        
+        boolean extracts = !((List<?>)getField(req, "extractions")).isEmpty();
+        if (recordAs != null) {
+            code.append(indent).append("long start = System.nanoTime();\n");
+        }
+        generateSend(code, indent, isScheduled(unit) ? "SCHEDULER.send(client, " : "client.send(", assertions, extracts,
+                     compresses(unit));
+        if (recordAs != null) {
+            code.append(indent).append("Results.request(\"").append(escapeJava(recordAs)).append("\", \"")
+                 .append(method).append(" ").append(escapeJava(path)).append("\", resp, start);\n");
+        }
+    }
+    
+    // Picks the cheapest body handler for what follows: discard the body when
+    // nothing reads it, stream it when only JSON paths are read from it, and
+    // read it as a String for full-text checks. With status or header
+    // assertions the body is only subscribed to once they pass. A body that is
+    // read goes through Compression.decode when the suite asks for gzip.
+    private static void generateSend(StringBuilder code, String indent, String send, List<Object> assertions,
+                                     boolean extracts, boolean gzip) {
+        StringBuilder precheck = new StringBuilder();
+        boolean needsString = false;
+        boolean needsJson = extracts;
+        for (Object ass : assertions) {
+            String type = (String)getField(ass, "type");
+            if (isJsonAssertion(type)) {
+                needsJson = true;
+                continue;
+            }
+            if (readsBody(type)) {
+                needsString = true;
+                continue;
             }
+            if (precheck.length() > 0) {
+                precheck.append("\n").append(indent).append("        && ");
+            }
+            precheck.append(responseCheck(type, "info", getField(ass, "expected"),
+                                          (String)getField(ass, "expectedStr")));
         }
         
-        code.append("    HttpResponse<String> resp = client.send(b.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));\n\n");
+        if (!needsString && !needsJson) {
+            code.append(indent).append("HttpResponse<Void> resp = ").append(send).append("b.build(), ")
+                 .append("HttpResponse.BodyHandlers.discarding());\n");
+            return;
+        }
+        String type = needsString ? "String" : "InputStream";
+        String subscriber = needsString ? "ofString(StandardCharsets.UTF_8)" : "ofInputStream()";
+        if (gzip) {
+            String decoded = "Compression.decode(info, HttpResponse.BodySubscribers." + subscriber + ")";
+            code.append(indent).append("HttpResponse<").append(type).append("> resp = ").append(send)
+                 .append("b.build(), info ->\n");
+            if (precheck.length() == 0) {
+                code.append(indent).append("    ").append(decoded).append(");\n");
+            } else {
+                code.append(indent).append("    ").append(precheck).append("\n");
+                code.append(indent).append("      ? ").append(decoded).append("\n");
+                code.append(indent).append("      : HttpResponse.BodySubscribers.replacing(null));\n");
+            }
+        } else if (precheck.length() == 0) {
+            code.append(indent).append("HttpResponse<").append(type).append("> resp = ").append(send)
+                 .append("b.build(), HttpResponse.BodyHandlers.").append(subscriber).append(");\n");
+        } else {
+            code.append(indent).append("HttpResponse<").append(type).append("> resp = ").append(send)
+                 .append("b.build(), info ->\n");
+            code.append(indent).append("    ").append(precheck).append("\n");
+            code.append(indent).append("      ? HttpResponse.BodySubscribers.").append(subscriber).append("\n");
+            code.append(indent).append("      : HttpResponse.BodySubscribers.replacing(null));\n");
+        }
+    }
+    
+    // Resolves the JSON paths of one response (let ... = body.json first, then
+    // expect json) in a single pass over its body. With a declared set,
+    // variables not in it are declared here.
+    private static void generateJsonEvaluation(StringBuilder code, String indent, List<?> extractions,
+                                               List<Object> jsonAssertions, Set<String> declared) {
+        if (extractions.isEmpty() && jsonAssertions.isEmpty()) return;
+        // One path per line once there are several
+        String separator = extractions.size() + jsonAssertions.size() > 1 ? ",\n" + indent + "    " : ", ";
+        code.append(indent).append("Object[] json = JsonPath.evaluate(resp.body()");
+        for (Object extraction : extractions) {
+            code.append(separator).append("JsonPath.of(\"")
+                 .append(escapeJava((String)getField(extraction, "path"))).append("\")");
+        }
+        for (Object ass : jsonAssertions) {
+            code.append(separator).append("JsonPath.").append("json_size".equals(getField(ass, "type")) ? "size" : "of")
+                 .append("(\"").append(escapeJava((String)getField(ass, "expectedStr"))).append("\")");
+        }
+        code.append(");\n");
+        int index = 0;
+        for (Object extraction : extractions) {
+            code.append(indent);
+            if (declared != null && declared.add((String)getField(extraction, "name"))) {
+                code.append("String ");
+            }
+            code.append(javaVariable(extraction)).append(" = JsonPath.require(json[").append(index++)
+                 .append("], \"").append(escapeJava((String)getField(extraction, "path"))).append("\");\n");
+        }
+    }
+    
+    private static void generateJsonAssertion(StringBuilder code, Object ass, int index) {
+        String type = (String)getField(ass, "type");
+        Object expected = getField(ass, "expected");
+        String path = "\"" + escapeJava((String)getField(ass, "expectedStr")) + "\"";
+        
+        if (type.equals("json_equals")) {
+            String value = expected instanceof String ? "\"" + escapeJava((String)expected) + "\"" : String.valueOf(expected);
+            code.append("    JsonPath.assertValue(json[").append(index).append("], ").append(value)
+                 .append(", ").append(path).append(");\n");
+        } else if (type.equals("json_exists")) {
+            code.append("    JsonPath.assertExists(json[").append(index).append("], ").append(path).append(");\n");
+        } else if (type.equals("json_size")) {
+            code.append("    JsonPath.assertSize(json[").append(index).append("], ").append(expected)
+                 .append(", ").append(path).append(");\n");
+        }
+    }
+    
+    // Publisher for body = file "...": the file as is when there are no
+    // variables, otherwise filled in with them while it is sent
+    private static String fileBody(String file, Object vars, Set<String> bound) {
+        String expression = "FileBody.of(\"" + escapeJava(file) + "\"";
+        if (((Map<?, ?>)vars).isEmpty() && bound.isEmpty()) {
+            return expression + ")";
+        }
+        expression += ((Map<?, ?>)vars).isEmpty() ? ", Map.of()" : ", VARIABLES";
+        for (String name : new TreeSet<>(bound)) {
+            expression += ", \"" + name + "\", v_" + name;
+        }
+        return expression + ")";
+    }
+    
+    private static StringBuilder appendBodyPublisher(StringBuilder code, Object req, Object vars, Set<String> bound) {
+        Object bodyFile = getField(req, "bodyFile");
+        if (bodyFile != null) {
+            return code.append(fileBody((String)bodyFile, vars, bound));
+        }
+        Object body = getField(req, "body");
+        code.append("HttpRequest.BodyPublishers.ofString(");
+        return appendJavaExpression(code, body != null ? (String)body : "", vars, bound).append(")");
+    }
+    
+    static String javaVariable(Object extraction) {
+        return "v_" + getField(extraction, "name");
+    }
+    
+    // Java expression for a string with $variables: compile-time variables are
+    // substituted, variables bound at run time are concatenated in
+    private static StringBuilder appendJavaExpression(StringBuilder code, String text, Object vars, Set<String> bound) {
+        if (bound.isEmpty()) {
+            return appendLiteral(code, text, 0, text.length(), vars);
+        }
+        int parts = 0;
+        int literalStart = 0;
+        int i = 0;
+        while (i < text.length()) {
+            int end = i + 1;
+            if (text.charAt(i) == '$') {
+                while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_')) {
+                    end++;
+                }
+                String name = text.substring(i + 1, end);
+                if (bound.contains(name)) {
+                    if (i > literalStart) {
+                        if (parts++ > 0) code.append(" + ");
+                        appendLiteral(code, text, literalStart, i, vars);
+                    }
+                    if (parts++ > 0) code.append(" + ");
+                    code.append("v_").append(name);
+                    literalStart = end;
+                }
+            }
+            i = end;
+        }
+        if (literalStart < text.length() || parts == 0) {
+            if (parts > 0) code.append(" + ");
+            appendLiteral(code, text, literalStart, text.length(), vars);
+        }
+        return code;
+    }
+    
+    // A Java string literal for text[from, to) with its compile-time variables substituted
+    private static StringBuilder appendLiteral(StringBuilder code, String text, int from, int to, Object vars) {
+        code.append('"');
+        return appendSubstituted(code, text, from, to, vars, true).append('"');
+    }
+    
+    // Boolean expression for a status/header assertion against a response or ResponseInfo
+    private static String responseCheck(String type, String target, Object expected, String expectedStr) {
+        if (type.equals("status")) {
+            return target + ".statusCode() == " + expected;
+        }
+        String header = target + ".headers().firstValue(\"" + escapeJava((String)expected) + "\").orElse(\"\")";
+        if (type.equals("header_equals")) {
+            return header + ".equals(\"" + escapeJava(expectedStr) + "\")";
+        }
+        return header + ".contains(\"" + escapeJava(expectedStr) + "\")";
     }
     
     private static void generateAssertion(StringBuilder code, Object ass, int index) {
@@ -229,22 +930,49 @@ public class CodeGenerator {
         }
     }
     
-    private static Object getField(Object obj, String fieldName) {
+    // Fields looked up once per AST class; Class.getField copies the Field on every call
+    private static final ClassValue<Map<String, java.lang.reflect.Field>> FIELDS = new ClassValue<>() {
+        @Override
+        protected Map<String, java.lang.reflect.Field> computeValue(Class<?> type) {
+            Map<String, java.lang.reflect.Field> fields = new HashMap<>();
+            for (java.lang.reflect.Field field : type.getFields()) {
+                fields.putIfAbsent(field.getName(), field);
+            }
+            return fields;
+        }
+    };
+    
+    static Object getField(Object obj, String fieldName) {
+        if (obj == null) return null;
+        java.lang.reflect.Field field = FIELDS.get(obj.getClass()).get(fieldName);
+        if (field == null) return null;
         try {
-            java.lang.reflect.Field field = obj.getClass().getField(fieldName);
             return field.get(obj);
-        } catch (Exception e) {
+        } catch (IllegalAccessException e) {
             return null;
         }
     }
     
+    // One pass, and no copy at all for the usual string with nothing to escape
     private static String escapeJava(String str) {
         if (str == null) return "";
-        return str.replace("\\", "\\\\")
-                  .replace("\"", "\\\"")
-                  .replace("\n", "\\n")
-                  .replace("\r", "\\r")
-                  .replace("\t", "\\t");
+        int i = 0;
+        while (i < str.length() && escape(str.charAt(i)) == null) i++;
+        if (i == str.length()) return str;
+        StringBuilder escaped = new StringBuilder(str.length() + 8).append(str, 0, i);
+        appendText(escaped, str, i, str.length(), true);
+        return escaped.toString();
+    }
+    
+    private static String escape(char c) {
+        switch (c) {
+            case '\\': return "\\\\";
+            case '"': return "\\\"";
+            case '\n': return "\\n";
+            case '\r': return "\\r";
+            case '\t': return "\\t";
+            default: return null;
+        }
     }
 }
 
@@ -0,0 +1,189 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+// LRU cache of parse results, endpoint indexes and generated code keyed by a hash
+// of the source. Generated code and indexes can optionally be persisted to a
+// directory so they survive restarts.
+public class CompileCache {
+    
+    private final int capacity;
+    private final Path dir;
+    private final Map<String, Object> units;
+    private final Map<String, Map<String, String>> outputs;
+    private final Map<String, EndpointIndex> indexes;
+    
+    public CompileCache(int capacity) {
+        this(capacity, null);
+    }
+    
+    public CompileCache(int capacity, Path dir) {
+        this.capacity = capacity;
+        this.dir = dir;
+        this.units = lru(capacity);
+        this.outputs = lru(capacity);
+        this.indexes = lru(capacity);
+    }
+    
+    private static <V> Map<String, V> lru(int capacity) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    public Path getDirectory() {
+        return dir;
+    }
+    
+    // Key for a source text parsed by the given front end
+    public static String key(Frontend frontend, CharSequence source) {
+        return sha256(frontend.id, source.toString());
+    }
+    
+    // Key for generated output: source key plus the generator options
+    public static String key(String sourceKey, CodeGenerator.Options options) {
+        return sourceKey + "-" + options.className + "-" + options.maxTestsPerShard + "-" + options.maxCharsPerShard
+            + (options.instrument ? "-i" : "")
+            + (options.onlyTests != null ? "-" + sha256(options.onlyTests.toArray(new String[0])).substring(0, 16) : "")
+            + (options.shards > 0 ? "-s" + options.shards + "-" + sha256(new TreeMap<>(
+                options.durations != null ? options.durations : Map.of()).toString()).substring(0, 16) : "");
+    }
+    
+    private static String sha256(String... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                md.update(part.getBytes(StandardCharsets.UTF_8));
+                md.update((byte)0);
+            }
+            return HexFormat.of().formatHex(md.digest());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public synchronized Object getUnit(String key) {
+        return units.get(key);
+    }
+    
+    public synchronized void putUnit(String key, Object unit) {
+        units.put(key, unit);
+    }
+    
+    public Map<String, String> getOutput(String key) {
+        synchronized (this) {
+            Map<String, String> code = outputs.get(key);
+            if (code != null || dir == null) return code;
+        }
+        Map<String, String> code = readOutput(key);
+        if (code != null) {
+            synchronized (this) {
+                outputs.put(key, code);
+            }
+        }
+        return code;
+    }
+    
+    public void putOutput(String key, Map<String, String> code) {
+        synchronized (this) {
+            outputs.put(key, code);
+        }
+        if (dir != null) {
+            writeOutput(key, code);
+        }
+    }
+    
+    // Endpoint index of a source, by source key
+    public EndpointIndex getIndex(String sourceKey) {
+        synchronized (this) {
+            EndpointIndex index = indexes.get(sourceKey);
+            if (index != null || dir == null) return index;
+        }
+        Path file = dir.resolve(sourceKey + ".idx");
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            EndpointIndex index = EndpointIndex.read(in);
+            synchronized (this) {
+                indexes.put(sourceKey, index);
+            }
+            return index;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    public void putIndex(String sourceKey, EndpointIndex index) {
+        synchronized (this) {
+            indexes.put(sourceKey, index);
+        }
+        if (dir != null) {
+            write(sourceKey + ".idx", index::write);
+        }
+    }
+    
+    public synchronized int size() {
+        return outputs.size();
+    }
+    
+    // Disk format: entry count, then (name, source) pairs as length-prefixed UTF-8
+    private Map<String, String> readOutput(String key) {
+        Path file = dir.resolve(key + ".out");
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int count = in.readInt();
+            Map<String, String> code = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                code.put(readString(in), readString(in));
+            }
+            return code;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    private void writeOutput(String key, Map<String, String> code) {
+        write(key + ".out", out -> {
+            out.writeInt(code.size());
+            for (Map.Entry<String, String> e : code.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+        });
+    }
+    
+    private interface Content {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+    
+    // Writes to a temporary file first so readers never see a partial entry
+    private void write(String name, Content content) {
+        try {
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, name, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                content.writeTo(out);
+            }
+            Files.move(tmp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The cache is best effort; a failed write only costs a recompile
+        }
+    }
+    
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
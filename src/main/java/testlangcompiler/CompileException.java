@@ -0,0 +1,28 @@
+package testlangcompiler;
+
+import java.util.*;
+
+// Thrown once a parse has finished with one or more diagnostics
+public class CompileException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    private final List<Diagnostic> diagnostics;
+    
+    public CompileException(List<Diagnostic> diagnostics) {
+        super(format(diagnostics));
+        this.diagnostics = Collections.unmodifiableList(new ArrayList<>(diagnostics));
+    }
+    
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+    
+    private static String format(List<Diagnostic> diagnostics) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(diagnostics.size()).append(diagnostics.size() == 1 ? " error" : " errors");
+        for (Diagnostic d : diagnostics) {
+            sb.append("\n  ").append(d);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,131 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Entry point for embedding the compiler, e.g. in a build server. One instance
+// is safe to share between threads: its options are copied when it is made,
+// and each thread parses with its own lexer, parser and token buffer, reset
+// on every call instead of being made again. CodeGenerator likewise reuses a
+// per-thread builder, so after the first few calls a compile allocates little
+// more than the AST and the generated source.
+public final class Compiler {
+    private final Frontend frontend;
+    private final CodeGenerator.Options options;
+    private final ThreadLocal<Parser> parsers;
+    
+    // The outcome of one compile
+    public static final class Result {
+        // Class name -> Java source, in generation order (base class first when sharded)
+        public final Map<String, String> files;
+        // The parsed suite, with its imports applied
+        public final Object unit;
+        
+        Result(Map<String, String> files, Object unit) {
+            this.files = files;
+            this.unit = unit;
+        }
+    }
+    
+    public Compiler(Frontend frontend) {
+        this(frontend, new CodeGenerator.Options());
+    }
+    
+    // Later changes to options do not reach the compiler. A MethodCache is not
+    // thread-safe, so options.methods must be null (use IncrementalSuite instead).
+    public Compiler(Frontend frontend, CodeGenerator.Options options) {
+        if (options.methods != null) {
+            throw new IllegalArgumentException("a shared Compiler cannot use a MethodCache");
+        }
+        this.frontend = frontend;
+        this.options = new CodeGenerator.Options();
+        this.options.className = options.className;
+        this.options.maxTestsPerShard = options.maxTestsPerShard;
+        this.options.maxCharsPerShard = options.maxCharsPerShard;
+        this.options.instrument = options.instrument;
+        this.options.onlyTests = options.onlyTests != null ? Set.copyOf(options.onlyTests) : null;
+        this.options.shards = options.shards;
+        this.options.durations = options.durations != null ? Map.copyOf(options.durations) : null;
+        this.parsers = ThreadLocal.withInitial(() -> new Parser(frontend));
+    }
+    
+    public Frontend getFrontend() {
+        return frontend;
+    }
+    
+    // A suite given as text; it cannot have imports
+    public Result compile(CharSequence source) throws Exception {
+        return generate(parse(source));
+    }
+    
+    // Only the parse, for callers that keep units of their own (see CompileService)
+    public Object parse(CharSequence source) throws Exception {
+        Object unit = parsers.get().parse(source.toString());
+        SuiteLoader.checkNoImports(unit);
+        return unit;
+    }
+    
+    // A suite file; its imports are resolved against its directory
+    public Result compile(Path file) throws Exception {
+        String source = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        Object unit = SuiteLoader.scanImports(source).isEmpty()
+            ? parsers.get().parse(source)
+            : new SuiteLoader(frontend, false).load(file);
+        return generate(unit);
+    }
+    
+    private Result generate(Object unit) {
+        return new Result(Collections.unmodifiableMap(frontend.generate(unit, options)), unit);
+    }
+    
+    // One thread's parsing state for one front end, reset before each parse
+    private static final class Parser {
+        private final Frontend frontend;
+        private TestlangCompiler handwritten;
+        private LexerCUP cupLexer;
+        private LexerJFlex jflexLexer;
+        private ParserCUP cupParser;
+        private ParserLALR lalrParser;
+        
+        Parser(Frontend frontend) {
+            this.frontend = frontend;
+        }
+        
+        Object parse(String source) throws Exception {
+            switch (frontend) {
+                case HANDWRITTEN:
+                    if (handwritten == null) handwritten = new TestlangCompiler(StringPool.NONE, new TokenBuffer());
+                    return handwritten.parse(source);
+                case CUP:
+                    if (cupLexer == null) {
+                        cupLexer = new LexerCUP(new StringReader(source));
+                        cupParser = new ParserCUP(cupLexer, StringPool.NONE);
+                    } else {
+                        cupLexer.reset(new StringReader(source));
+                        cupParser.reset(cupLexer);
+                    }
+                    return cupParser.parse();
+                case JFLEX:
+                    if (jflexLexer == null) {
+                        jflexLexer = new LexerJFlex(new StringReader(source));
+                        cupParser = new ParserCUP(jflexLexer, StringPool.NONE);
+                    } else {
+                        jflexLexer.yyreset(new StringReader(source));
+                        cupParser.reset(jflexLexer);
+                    }
+                    return cupParser.parse();
+                default:
+                    if (jflexLexer == null) {
+                        jflexLexer = new LexerJFlex(new StringReader(source));
+                        lalrParser = new ParserLALR(jflexLexer, StringPool.NONE);
+                    } else {
+                        jflexLexer.yyreset(new StringReader(source));
+                        lalrParser.reset(jflexLexer);
+                    }
+                    return lalrParser.parseUnit();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Command line shared by TestlangCompiler and TestlangCompilerCUP
+public class CompilerCli {
+    
+    // Writes a single class to output, or all shards next to it
+    static void writeOutput(Path output, Map<String, String> code, CodeGenerator.Options options) throws IOException {
+        if (!options.isSharded()) {
+            Files.write(output, code.values().iterator().next().getBytes());
+            System.out.println("Generated test code: " + output);
+            return;
+        }
+        
+        Path dir = shardDirectory(output);
+        Files.createDirectories(dir);
+        for (Map.Entry<String, String> file : code.entrySet()) {
+            Files.write(dir.resolve(file.getKey() + ".java"), file.getValue().getBytes());
+        }
+        System.out.println("Generated " + (code.size() - 1) + " test shard(s) in " + dir);
+    }
+    
+    // Writes <Name>.class files into the directory of output
+    static void writeClasses(Path output, Map<String, byte[]> classes) throws IOException {
+        Path dir = shardDirectory(output);
+        Files.createDirectories(dir);
+        for (Map.Entry<String, byte[]> file : classes.entrySet()) {
+            Files.write(dir.resolve(file.getKey() + ".class"), file.getValue());
+        }
+        System.out.println("Generated " + classes.size() + " class file(s) in " + dir);
+    }
+    
+    // Shards go next to <output.java>, or into <output> if it is a directory
+    static Path shardDirectory(Path output) {
+        return output.toString().endsWith(".java") ? output.toAbsolutePath().getParent() : output;
+    }
+    
+    // Parses the source with its imports, or materializes the given tests (null: all) of a precompiled suite
+    private static Object load(SuiteLoader loader, Path input, TestcFile precompiled, Set<String> tests) throws Exception {
+        if (precompiled != null) return precompiled.unit(tests);
+        return loader.load(input);
+    }
+    
+    static void run(String[] args, Frontend frontend, String program) {
+        CodeGenerator.Options options = new CodeGenerator.Options();
+        List<String> files = new ArrayList<>();
+        boolean compact = false;
+        List<String> onlyPaths = new ArrayList<>();
+        Path cacheDir = null;
+        Path timings = null;
+        Path testc = null;
+        boolean watch = false;
+        boolean bytecode = false;
+        
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--frontend")) {
+                    frontend = Frontend.fromId(args[++i]);
+                } else if (args[i].equals("--compact")) {
+                    compact = true;
+                } else if (args[i].equals("--max-tests")) {
+                    options.maxTestsPerShard = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--max-bytes")) {
+                    options.maxCharsPerShard = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--instrument")) {
+                    options.instrument = true;
+                } else if (args[i].equals("--only-paths")) {
+                    onlyPaths.addAll(Arrays.asList(args[++i].split(",")));
+                } else if (args[i].equals("--shards")) {
+                    options.shards = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--timings")) {
+                    timings = Paths.get(args[++i]);
+                } else if (args[i].equals("--emit-testc")) {
+                    testc = Paths.get(args[++i]);
+                } else if (args[i].equals("--watch")) {
+                    watch = true;
+                } else if (args[i].equals("--bytecode")) {
+                    bytecode = true;
+                } else if (args[i].equals("--cache")) {
+                    cacheDir = Paths.get(args[++i]);
+                } else {
+                    files.add(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            files.clear();
+        }
+        
+        // With --only-paths or --emit-testc the output file is optional
+        if (watch && (files.size() != 2 || bytecode || !onlyPaths.isEmpty() || testc != null || files.get(0).endsWith(".testc"))) {
+            files.clear();
+        }
+        if (files.size() != 2 && !(files.size() == 1 && (!onlyPaths.isEmpty() || testc != null))) {
+            System.err.println("Usage: java " + program + " <input.test> <output.java> [--frontend handwritten|cup|jflex|lalr]");
+            System.err.println("         [--compact] [--max-tests N] [--max-bytes N] [--instrument]");
+            System.err.println("         [--only-paths PATTERN,...] [--cache DIR] [--shards N [--timings FILE]]");
+            System.err.println("         [--emit-testc FILE] [--watch] [--bytecode]");
+            System.err.println("  With --max-tests/--max-bytes the suite is split into shard classes written");
+            System.err.println("  next to <output.java> (or into <output> if it is a directory).");
+            System.err.println("  With --instrument the tests record results to -Dtestlang.results=<file>, serve");
+            System.err.println("  live metrics on -Dtestlang.metrics=<port>, and record their exchanges to");
+            System.err.println("  -Dtestlang.record=<file> to replay with -Dtestlang.replay.");
+            System.err.println("  With --only-paths only tests sending a request to a matching endpoint are");
+            System.err.println("  generated, e.g. '/api/users/**' or 'GET /api/*/items'; without <output.java>");
+            System.err.println("  they are only listed. --cache keeps endpoint indexes and output in DIR.");
+            System.err.println("  --shards N writes N shards balanced by the test durations in FILE (see");
+            System.err.println("  ResultSummary --update-timings).");
+            System.err.println("  --emit-testc saves the parsed suite; a .testc input is loaded without parsing.");
+            System.err.println("  --watch recompiles on every save, re-parsing only the test blocks that changed.");
+            System.err.println("  --bytecode writes .class files instead of Java source, without needing javac.");
+            System.exit(1);
+        }
+        
+        try {
+            // Read input; a precompiled suite is mapped and generated from the handwritten AST
+            Path inputPath = Paths.get(files.get(0));
+            TestcFile precompiled = inputPath.toString().endsWith(".testc") ? TestcFile.open(inputPath) : null;
+            SuiteLoader loader = new SuiteLoader(frontend, compact);
+            Frontend generator = precompiled == null ? frontend : Frontend.HANDWRITTEN;
+            
+            if (timings != null) {
+                options.durations = TimingStore.load(timings).durations();
+            }
+            
+            if (watch) {
+                new IncrementalSuite(inputPath, frontend, compact, options).watch(Paths.get(files.get(1)));
+                return;
+            }
+            
+            CompileCache cache = new CompileCache(1, cacheDir);
+            String sourceKey = precompiled == null ? loader.key(inputPath) : "testc-" + precompiled.digest();
+            Object unit = null;
+            
+            if (testc != null) {
+                unit = load(loader, inputPath, precompiled, null);
+                TestcFile.write(unit, testc);
+                System.out.println("Precompiled suite: " + testc);
+                if (files.size() == 1 && onlyPaths.isEmpty()) return;
+            }
+            
+            // Select tests through the endpoint index, which is only rebuilt when the source changed
+            if (!onlyPaths.isEmpty()) {
+                EndpointIndex index = cache.getIndex(sourceKey);
+                if (index == null) {
+                    if (precompiled != null) {
+                        index = EndpointIndex.of(precompiled);
+                    } else {
+                        if (unit == null) unit = load(loader, inputPath, precompiled, null);
+                        index = EndpointIndex.of(unit);
+                    }
+                    cache.putIndex(sourceKey, index);
+                }
+                options.onlyTests = index.select(onlyPaths);
+                System.out.println("Selected " + options.onlyTests.size() + " of " + index.getTests().size()
+                    + " test(s) touching " + String.join(", ", onlyPaths));
+                for (String test : options.onlyTests) {
+                    System.out.println("  " + test);
+                }
+                if (files.size() == 1) return;
+            }
+            
+            // Class files are emitted straight from the AST, past the source cache
+            if (bytecode) {
+                if (unit == null) {
+                    unit = load(loader, inputPath, precompiled, options.onlyTests);
+                }
+                writeClasses(Paths.get(files.get(1)), BytecodeGenerator.generate(unit, options));
+                return;
+            }
+            
+            // Parse and generate code, unless the cache has it
+            String outputKey = CompileCache.key(sourceKey, options);
+            Map<String, String> code = cache.getOutput(outputKey);
+            if (code == null) {
+                if (unit == null) {
+                    unit = load(loader, inputPath, precompiled, options.onlyTests);
+                }
+                code = generator.generate(unit, options);
+                cache.putOutput(outputKey, code);
+            }
+            
+            // Write output
+            writeOutput(Paths.get(files.get(1)), code, options);
+            
+        } catch (CompileException e) {
+            for (Diagnostic d : e.getDiagnostics()) {
+                System.err.println(files.get(0) + ":" + d);
+            }
+            System.err.println(e.getDiagnostics().size() + " error(s)");
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
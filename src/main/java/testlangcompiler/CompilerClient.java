@@ -0,0 +1,158 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Thin command line front for CompilerDaemon. Sends one or more
+// <input.test> <output.java> pairs to the daemon in a single batch and falls
+// back to compiling in this process when no daemon is listening.
+public class CompilerClient {
+    
+    // The generated files of one source, or the message of why it failed
+    static final class Result {
+        final Map<String, String> files;
+        final String error;
+        
+        Result(Map<String, String> files, String error) {
+            this.files = files;
+            this.error = error;
+        }
+    }
+    
+    public static void main(String[] args) {
+        Path socket = CompilerDaemon.defaultSocket();
+        Frontend frontend = Frontend.HANDWRITTEN;
+        CodeGenerator.Options options = new CodeGenerator.Options();
+        boolean shutdown = false;
+        List<String> files = new ArrayList<>();
+        
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--socket")) {
+                    socket = Paths.get(args[++i]);
+                } else if (args[i].equals("--frontend")) {
+                    frontend = Frontend.fromId(args[++i]);
+                } else if (args[i].equals("--max-tests")) {
+                    options.maxTestsPerShard = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--max-bytes")) {
+                    options.maxCharsPerShard = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--instrument")) {
+                    options.instrument = true;
+                } else if (args[i].equals("--shutdown")) {
+                    shutdown = true;
+                } else {
+                    files.add(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            files.add("");  // forces the usage message
+        }
+        
+        if (shutdown && files.isEmpty()) {
+            stopDaemon(socket);
+            return;
+        }
+        if (files.isEmpty() || files.size() % 2 != 0) {
+            System.err.println("Usage: java CompilerClient [--socket PATH] [--frontend handwritten|cup|jflex|lalr]");
+            System.err.println("         [--max-tests N] [--max-bytes N] [--instrument] <input.test> <output.java> [<input> <output> ...]");
+            System.err.println("       java CompilerClient --shutdown");
+            System.exit(1);
+        }
+        
+        try {
+            List<String> sources = new ArrayList<>();
+            for (int i = 0; i < files.size(); i += 2) {
+                sources.add(new String(Files.readAllBytes(Paths.get(files.get(i)))));
+            }
+            
+            List<Result> results = compileRemote(socket, frontend, options, sources);
+            if (results == null) {
+                results = compileLocal(frontend, options, sources);
+            }
+            
+            boolean failed = false;
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                if (result.error != null) {
+                    System.err.println(files.get(i * 2) + ": Error: " + result.error);
+                    failed = true;
+                } else {
+                    CompilerCli.writeOutput(Paths.get(files.get(i * 2 + 1)), result.files, options);
+                }
+            }
+            if (failed) System.exit(1);
+            
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    // One result per source; null when no daemon is reachable
+    static List<Result> compileRemote(Path socket, Frontend frontend, CodeGenerator.Options options,
+                                      List<String> sources) throws IOException {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return null;
+        }
+        
+        try (channel;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.writeInt(CompilerDaemon.OP_COMPILE);
+            out.writeUTF(frontend.id);
+            out.writeInt(options.maxTestsPerShard);
+            out.writeInt(options.maxCharsPerShard);
+            out.writeBoolean(options.instrument);
+            out.writeInt(sources.size());
+            for (String source : sources) {
+                CompileCache.writeString(out, source);
+            }
+            out.flush();
+            
+            List<Result> results = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                if (in.readByte() == CompilerDaemon.STATUS_OK) {
+                    int count = in.readInt();
+                    Map<String, String> code = new LinkedHashMap<>();
+                    for (int j = 0; j < count; j++) {
+                        code.put(CompileCache.readString(in), CompileCache.readString(in));
+                    }
+                    results.add(new Result(code, null));
+                } else {
+                    results.add(new Result(null, CompileCache.readString(in)));
+                }
+            }
+            return results;
+        }
+    }
+    
+    static List<Result> compileLocal(Frontend frontend, CodeGenerator.Options options, List<String> sources) {
+        CompileCache cache = new CompileCache(sources.size());
+        List<Result> results = new ArrayList<>();
+        for (String source : sources) {
+            try {
+                results.add(new Result(CompilerDaemon.compile(source, frontend, options, cache), null));
+            } catch (Exception e) {
+                results.add(new Result(null, String.valueOf(e.getMessage())));
+            }
+        }
+        return results;
+    }
+    
+    static void stopDaemon(Path socket) {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+             DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel))) {
+            out.writeInt(CompilerDaemon.OP_SHUTDOWN);
+            out.flush();
+            System.out.println("Daemon stopped");
+        } catch (IOException e) {
+            System.out.println("No daemon running on " + socket);
+        }
+    }
+}
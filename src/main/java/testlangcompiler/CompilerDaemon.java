@@ -0,0 +1,204 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Long-lived compiler process listening on a Unix domain socket, so that each
+// compile only pays for parsing and code generation instead of JVM startup.
+//
+// Protocol (DataInput/DataOutput framing, one or more requests per connection):
+//   request:  int op, then for OP_COMPILE: frontend id, maxTests, maxBytes,
+//             item count and one length-prefixed UTF-8 source per item
+//   response: per item a status byte; STATUS_OK is followed by a file count and
+//             (class name, source) pairs, STATUS_ERROR by the error message
+public class CompilerDaemon {
+    
+    static final int OP_COMPILE = 1;
+    static final int OP_SHUTDOWN = 2;
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+    
+    private final Path socket;
+    private final ExecutorService workers;
+    private final CompileCache cache = new CompileCache(256);
+    private final boolean warmUp;
+    private volatile boolean running = true;
+    
+    public CompilerDaemon(Path socket, int workerCount) {
+        this(socket, workerCount, true);
+    }
+    
+    // Without the warm-up the daemon listens at once, e.g. in tests
+    CompilerDaemon(Path socket, int workerCount, boolean warmUp) {
+        this.socket = socket;
+        this.warmUp = warmUp;
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "testlang-daemon");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    public static Path defaultSocket() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "testlang-" + System.getProperty("user.name") + ".sock");
+    }
+    
+    // Parse and generate, going through the cache
+    static Map<String, String> compile(String source, Frontend frontend, CodeGenerator.Options options,
+                                       CompileCache cache) throws Exception {
+        String sourceKey = CompileCache.key(frontend, source);
+        String outputKey = CompileCache.key(sourceKey, options);
+        Map<String, String> code = cache.getOutput(outputKey);
+        if (code == null) {
+            Object unit = cache.getUnit(sourceKey);
+            if (unit == null) {
+                unit = frontend.parse(source);
+                SuiteLoader.checkNoImports(unit);
+                cache.putUnit(sourceKey, unit);
+            }
+            code = frontend.generate(unit, options);
+            cache.putOutput(outputKey, code);
+        }
+        return code;
+    }
+    
+    public void serve() throws IOException {
+        if (Files.exists(socket)) {
+            if (answers(socket)) {
+                throw new IOException("A daemon is already listening on " + socket);
+            }
+            Files.delete(socket);  // stale socket from a crashed daemon
+        }
+        
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(this::removeSocket));
+            if (warmUp) warmUp();
+            System.out.println("Compiler daemon listening on " + socket);
+            
+            while (running) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                workers.execute(() -> handle(channel, server));
+            }
+        } finally {
+            workers.shutdown();
+            removeSocket();
+        }
+    }
+    
+    // Whether something accepts connections on the socket
+    static boolean answers(Path socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    private void handle(SocketChannel channel, ServerSocketChannel server) {
+        try (channel;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            while (true) {
+                int op;
+                try {
+                    op = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (op == OP_SHUTDOWN) {
+                    running = false;
+                    server.close();
+                    return;
+                }
+                if (op != OP_COMPILE) {
+                    throw new IOException("Unknown op " + op);
+                }
+                
+                String frontendId = in.readUTF();
+                CodeGenerator.Options options = new CodeGenerator.Options();
+                options.maxTestsPerShard = in.readInt();
+                options.maxCharsPerShard = in.readInt();
+                options.instrument = in.readBoolean();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String source = CompileCache.readString(in);
+                    // Any failure, a bad frontend id included, is answered for its item
+                    try {
+                        Map<String, String> code = compile(source, Frontend.fromId(frontendId), options, cache);
+                        out.writeByte(STATUS_OK);
+                        out.writeInt(code.size());
+                        for (Map.Entry<String, String> e : code.entrySet()) {
+                            CompileCache.writeString(out, e.getKey());
+                            CompileCache.writeString(out, e.getValue());
+                        }
+                    } catch (Exception e) {
+                        out.writeByte(STATUS_ERROR);
+                        CompileCache.writeString(out, String.valueOf(e.getMessage()));
+                    }
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Daemon connection failed: " + e.getMessage());
+        }
+    }
+    
+    // Run the hot paths a few hundred times so the first real request is JIT-compiled
+    private void warmUp() {
+        StringBuilder source = new StringBuilder("config {\n  base_url = \"http://localhost\";\n}\nlet id = 1;\n");
+        for (int i = 0; i < 50; i++) {
+            source.append("test T").append(i).append(" {\n  GET \"/items/$id\";\n  expect status = 200;\n}\n");
+        }
+        CodeGenerator.Options options = new CodeGenerator.Options();
+        for (int i = 0; i < 200; i++) {
+            for (Frontend frontend : Frontend.values()) {
+                try {
+                    frontend.generate(frontend.parse(source.toString()), options);
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    private void removeSocket() {
+        try {
+            Files.deleteIfExists(socket);
+        } catch (IOException e) {
+            // nothing left to clean up
+        }
+    }
+    
+    public static void main(String[] args) {
+        Path socket = defaultSocket();
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--socket") && i + 1 < args.length) {
+                socket = Paths.get(args[++i]);
+            } else if (args[i].equals("--workers") && i + 1 < args.length) {
+                workerCount = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: java CompilerDaemon [--socket PATH] [--workers N]");
+                System.exit(1);
+            }
+        }
+        
+        try {
+            new CompilerDaemon(socket, workerCount).serve();
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package testlangcompiler;
+
+import java.util.*;
+
+// Named config entries such as `rate = 500/s;`, `max_in_flight = 64;` or
+// `compression = gzip;`.
+// Every front end stores the value as written ("500/s") in ConfigData.settings
+// after check() accepts it; CodeGenerator converts it with the accessors below.
+final class ConfigSettings {
+    static final String RATE = "rate";
+    static final String MAX_IN_FLIGHT = "max_in_flight";
+    static final String COMPRESSION = "compression";
+    static final String COMPRESS_REQUESTS_OVER = "compress_requests_over";
+    
+    private ConfigSettings() {
+    }
+    
+    // Returns the error message for an invalid setting, or null
+    static String check(String key, String value) {
+        switch (key) {
+            case RATE:
+                return ratePerSecond(value) > 0 ? null
+                    : "rate must be a positive number of requests per s, m or h, got " + value;
+            case MAX_IN_FLIGHT:
+                return positiveInt(value) > 0 ? null : "max_in_flight must be a positive number, got " + value;
+            case COMPRESSION:
+                return value.equals("gzip") || value.equals("none") ? null : "compression must be gzip or none, got " + value;
+            case COMPRESS_REQUESTS_OVER:
+                return positiveInt(value) >= 0 ? null
+                    : "compress_requests_over must be a number of bytes, got " + value;
+            default:
+                return "Unknown config setting " + key;
+        }
+    }
+    
+    // "500/s", "30/m", "1000/h" or a bare number (per second); -1 if invalid
+    static double ratePerSecond(String value) {
+        int slash = value.indexOf('/');
+        String unit = slash < 0 ? "s" : value.substring(slash + 1);
+        int count = positiveInt(slash < 0 ? value : value.substring(0, slash));
+        if (count <= 0) return -1;
+        switch (unit) {
+            case "s": return count;
+            case "m": return count / 60.0;
+            case "h": return count / 3600.0;
+            default: return -1;
+        }
+    }
+    
+    static int positiveInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    static String get(Object settings, String key) {
+        return settings instanceof Map ? (String)((Map<?, ?>)settings).get(key) : null;
+    }
+}
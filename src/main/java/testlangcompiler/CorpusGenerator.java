@@ -0,0 +1,188 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Writes synthetic .test suites shaped like example.test for scaling runs:
+// a config block, `let` variables, then tests with a mix of requests,
+// headers, bodies using the variables, chained body.json bindings and
+// status/header/body/JSON checks. The same shape and seed give the same file.
+//
+//   java testlangcompiler.CorpusGenerator big.test --tests 100000 [--requests 2] [--headers 1]
+//        [--variables 5] [--body-bytes 60] [--seed 1]
+public class CorpusGenerator {
+    
+    private static final String[] RESOURCES = {"users", "orders", "items", "carts", "invoices", "sessions", "reports"};
+    private static final String[] WORDS = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel"};
+    
+    // Size and density of a generated suite
+    public static class Shape {
+        public int tests = 1000;
+        public int requestsPerTest = 2;
+        public int headersPerRequest = 1;
+        public int variables = 5;
+        public int bodyBytes = 60;
+        public long seed = 1;
+        
+        @Override
+        public String toString() {
+            return tests + " tests, " + requestsPerTest + " requests/test, " + headersPerRequest + " headers/request, "
+                + variables + " variables, " + bodyBytes + " byte bodies";
+        }
+    }
+    
+    public static void write(Shape shape, Writer out) throws IOException {
+        Random random = new Random(shape.seed);
+        out.write("config {\n");
+        out.write("  base_url = \"http://localhost:8080\";\n");
+        out.write("  header \"Content-Type\" = \"application/json\";\n");
+        out.write("}\n\n");
+        for (int v = 0; v < shape.variables; v++) {
+            if (v % 2 == 0) {
+                out.write("let " + variable(v) + " = \"" + WORDS[v % WORDS.length] + v + "\";\n");
+            } else {
+                out.write("let " + variable(v) + " = " + (v * 7 + 1) + ";\n");
+            }
+        }
+        out.write("\n");
+        
+        StringBuilder test = new StringBuilder();
+        for (int t = 0; t < shape.tests; t++) {
+            test.setLength(0);
+            writeTest(test, t, shape, random);
+            out.append(test);
+        }
+    }
+    
+    private static void writeTest(StringBuilder out, int t, Shape shape, Random random) {
+        String resource = RESOURCES[random.nextInt(RESOURCES.length)];
+        out.append("// ").append(resource).append(" scenario ").append(t).append('\n');
+        out.append("test ").append(Character.toUpperCase(resource.charAt(0))).append(resource, 1, resource.length())
+           .append(t).append(" {\n");
+        boolean bound = false;
+        for (int r = 0; r < shape.requestsPerTest; r++) {
+            boolean last = r == shape.requestsPerTest - 1;
+            String[] methods = r == 0 && !last ? new String[] {"POST", "GET"} : new String[] {"GET", "POST", "PUT", "DELETE"};
+            String method = methods[random.nextInt(methods.length)];
+            String path = "/api/" + resource + (bound ? "/$id" : random.nextBoolean() ? "/" + random.nextInt(1000) : "");
+            out.append("  ").append(method).append(" \"").append(path).append('"');
+            
+            boolean hasBody = method.equals("POST") || method.equals("PUT");
+            if (shape.headersPerRequest == 0 && !hasBody && !bound) {
+                out.append(";\n");
+            } else {
+                out.append(" {\n");
+                for (int h = 0; h < shape.headersPerRequest; h++) {
+                    out.append("    header \"X-").append(WORDS[h % WORDS.length]).append("\" = \"")
+                       .append(h == 0 && shape.variables > 0 ? "$" + variable(random.nextInt(shape.variables)) : t + "-" + h)
+                       .append("\";\n");
+                }
+                if (bound) {
+                    out.append("    header \"Authorization\" = \"Bearer $token\";\n");
+                }
+                if (hasBody) {
+                    out.append("    body = \"");
+                    appendBody(out, shape, random);
+                    out.append("\";\n");
+                }
+                out.append("  }\n");
+            }
+            
+            // A request followed by another binds values for it from the response
+            if (!last && !bound) {
+                out.append("  let token = body.json \"$.token\";\n");
+                out.append("  let id = body.json \"$.data.id\";\n");
+                bound = true;
+            }
+        }
+        out.append("  expect status = ").append(random.nextInt(4) == 0 ? 201 : 200).append(";\n");
+        int checks = random.nextInt(3);
+        if (checks == 0) {
+            out.append("  expect header \"Content-Type\" contains \"json\";\n");
+        } else if (checks == 1) {
+            out.append("  expect body contains \"\\\"").append(resource).append("\\\"\";\n");
+        } else {
+            out.append("  expect json \"$.data.id\" exists;\n");
+            out.append("  expect json \"$.data.items\" size = ").append(random.nextInt(20)).append(";\n");
+        }
+        out.append("}\n\n");
+    }
+    
+    // A JSON object of about bodyBytes characters that uses some variables
+    private static void appendBody(StringBuilder out, Shape shape, Random random) {
+        int start = out.length();
+        out.append("{ ");
+        int field = 0;
+        do {
+            if (field > 0) out.append(", ");
+            out.append("\\\"").append(WORDS[field % WORDS.length]).append(field).append("\\\": ");
+            if (shape.variables > 0 && field % 3 == 0) {
+                out.append("\\\"$").append(variable(random.nextInt(shape.variables))).append("\\\"");
+            } else {
+                out.append(random.nextInt(100000));
+            }
+            field++;
+        } while (out.length() - start < shape.bodyBytes - 2);
+        out.append(" }");
+    }
+    
+    private static String variable(int v) {
+        return v == 0 ? "user" : "var" + v;
+    }
+    
+    public static String generate(Shape shape) {
+        StringWriter out = new StringWriter();
+        try {
+            write(shape, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+    
+    // Reads --tests, --requests, --headers, --variables, --body-bytes and --seed
+    // at args[i]; returns the index of the option's value, or -1 if it isn't one
+    static int parseOption(String[] args, int i, Shape shape) {
+        switch (args[i]) {
+            case "--tests": shape.tests = Integer.parseInt(args[++i]); return i;
+            case "--requests": shape.requestsPerTest = Integer.parseInt(args[++i]); return i;
+            case "--headers": shape.headersPerRequest = Integer.parseInt(args[++i]); return i;
+            case "--variables": shape.variables = Integer.parseInt(args[++i]); return i;
+            case "--body-bytes": shape.bodyBytes = Integer.parseInt(args[++i]); return i;
+            case "--seed": shape.seed = Long.parseLong(args[++i]); return i;
+            default: return -1;
+        }
+    }
+    
+    public static void main(String[] args) throws IOException {
+        Shape shape = new Shape();
+        String output = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                int next = parseOption(args, i, shape);
+                if (next >= 0) {
+                    i = next;
+                } else if (output == null) {
+                    output = args[i];
+                } else {
+                    output = null;
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            output = null;
+        }
+        if (output == null || shape.tests < 0 || shape.requestsPerTest < 1) {
+            System.err.println("Usage: java testlangcompiler.CorpusGenerator <output.test> [--tests N] [--requests N]");
+            System.err.println("         [--headers N] [--variables N] [--body-bytes N] [--seed N]");
+            System.exit(1);
+        }
+        Path path = Paths.get(output);
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            write(shape, out);
+        }
+        System.out.printf("Wrote %s: %s, %,d bytes%n", path, shape, Files.size(path));
+    }
+}
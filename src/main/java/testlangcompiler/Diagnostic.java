@@ -0,0 +1,18 @@
+package testlangcompiler;
+
+// A compile error at a 1-based line and column
+public class Diagnostic {
+    public final int line;
+    public final int column;
+    public final String message;
+    
+    public Diagnostic(int line, int column, String message) {
+        this.line = line;
+        this.column = column;
+        this.message = message;
+    }
+    
+    public String toString() {
+        return line + ":" + column + ": " + message;
+    }
+}
@@ -0,0 +1,169 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.util.*;
+
+// Which tests send which requests: "METHOD url-template" -> test names, where
+// the URL is resolved against base_url with the global variables filled in.
+// Variables bound at run time (let ... = body.json) stay as $name and match
+// any path segment, so a selection never misses a test that might be affected.
+public class EndpointIndex {
+    
+    private final List<String> tests = new ArrayList<>();
+    private final Map<String, List<String>> endpoints = new TreeMap<>();
+    
+    public static EndpointIndex of(Object unit) {
+        EndpointIndex index = new EndpointIndex();
+        Object testMethods = CodeGenerator.getField(unit, "testMethods");
+        if (testMethods instanceof List) {
+            for (Object tm : (List<?>)testMethods) {
+                String name = (String)CodeGenerator.getField(tm, "name");
+                index.tests.add(name);
+                for (Object req : (List<?>)CodeGenerator.getField(tm, "requests")) {
+                    index.add(name, (String)CodeGenerator.getField(req, "method"),
+                        (String)CodeGenerator.getField(req, "path"), unit);
+                }
+            }
+        }
+        return index;
+    }
+    
+    // Reads only test names, methods and paths from a precompiled suite
+    public static EndpointIndex of(TestcFile suite) {
+        EndpointIndex index = new EndpointIndex();
+        Object unit = suite.shell();
+        for (int t = 0; t < suite.testCount(); t++) {
+            String name = suite.testName(t);
+            index.tests.add(name);
+            for (int r = 0; r < suite.requestCount(t); r++) {
+                index.add(name, suite.requestMethod(t, r), suite.requestPath(t, r), unit);
+            }
+        }
+        return index;
+    }
+    
+    private void add(String test, String method, String path, Object unit) {
+        Object vars = CodeGenerator.getField(unit, "variables");
+        String url = CodeGenerator.resolveUrl(path, unit);
+        String endpoint = method + " " + (vars instanceof Map ? CodeGenerator.substituteVariablesInternal(url, vars) : url);
+        List<String> names = endpoints.computeIfAbsent(endpoint, k -> new ArrayList<>());
+        if (names.isEmpty() || !names.get(names.size() - 1).equals(test)) {
+            names.add(test);
+        }
+    }
+    
+    public List<String> getTests() {
+        return tests;
+    }
+    
+    public Map<String, List<String>> getEndpoints() {
+        return endpoints;
+    }
+    
+    // Tests sending at least one request that matches a pattern, in suite order.
+    // A pattern is a path glob, optionally prefixed with a method:
+    //   /api/users/**      any method, /api/users and everything below it
+    //   GET /api/*/items    * matches within one segment, ** across segments
+    // Patterns starting with a scheme (http://...) match the whole URL.
+    public Set<String> select(List<String> patterns) {
+        Set<String> hit = new HashSet<>();
+        for (Map.Entry<String, List<String>> e : endpoints.entrySet()) {
+            for (String pattern : patterns) {
+                if (matches(pattern, e.getKey())) {
+                    hit.addAll(e.getValue());
+                    break;
+                }
+            }
+        }
+        Set<String> selected = new LinkedHashSet<>();
+        for (String test : tests) {
+            if (hit.contains(test)) selected.add(test);
+        }
+        return selected;
+    }
+    
+    static boolean matches(String pattern, String endpoint) {
+        pattern = pattern.trim();
+        int space = endpoint.indexOf(' ');
+        String method = endpoint.substring(0, space);
+        String url = endpoint.substring(space + 1);
+        
+        int patternSpace = pattern.indexOf(' ');
+        if (patternSpace > 0) {
+            if (!pattern.substring(0, patternSpace).equalsIgnoreCase(method)) return false;
+            pattern = pattern.substring(patternSpace + 1).trim();
+        }
+        
+        int query = url.indexOf('?');
+        if (query >= 0) url = url.substring(0, query);
+        if (!pattern.contains("://")) {
+            int scheme = url.indexOf("://");
+            if (scheme >= 0) {
+                int path = url.indexOf('/', scheme + 3);
+                url = path >= 0 ? url.substring(path) : "/";
+            }
+        }
+        return matchSegments(pattern.split("/", -1), 0, url.split("/", -1), 0);
+    }
+    
+    private static boolean matchSegments(String[] pattern, int p, String[] url, int u) {
+        while (p < pattern.length) {
+            if (pattern[p].equals("**")) {
+                for (int skip = u; skip <= url.length; skip++) {
+                    if (matchSegments(pattern, p + 1, url, skip)) return true;
+                }
+                return false;
+            }
+            if (u >= url.length || !matchSegment(pattern[p], url[u])) return false;
+            p++;
+            u++;
+        }
+        // A trailing slash on either side does not matter
+        return u == url.length || (u == url.length - 1 && url[u].isEmpty());
+    }
+    
+    private static boolean matchSegment(String pattern, String segment) {
+        if (segment.indexOf('$') >= 0) return true;
+        if (pattern.indexOf('*') < 0) return pattern.equals(segment);
+        String regex = ("\\Q" + pattern + "\\E").replace("*", "\\E[^/]*\\Q");
+        return segment.matches(regex);
+    }
+    
+    // Disk format: test count and names, then endpoint count and (endpoint, test
+    // count, test indexes) entries
+    public void write(DataOutputStream out) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        out.writeInt(tests.size());
+        for (String test : tests) {
+            ids.put(test, ids.size());
+            CompileCache.writeString(out, test);
+        }
+        out.writeInt(endpoints.size());
+        for (Map.Entry<String, List<String>> e : endpoints.entrySet()) {
+            CompileCache.writeString(out, e.getKey());
+            out.writeInt(e.getValue().size());
+            for (String test : e.getValue()) {
+                out.writeInt(ids.get(test));
+            }
+        }
+    }
+    
+    public static EndpointIndex read(DataInputStream in) throws IOException {
+        EndpointIndex index = new EndpointIndex();
+        int testCount = in.readInt();
+        for (int i = 0; i < testCount; i++) {
+            index.tests.add(CompileCache.readString(in));
+        }
+        int endpointCount = in.readInt();
+        for (int i = 0; i < endpointCount; i++) {
+            String endpoint = CompileCache.readString(in);
+            int count = in.readInt();
+            List<String> names = new ArrayList<>(count);
+            for (int j = 0; j < count; j++) {
+                names.add(index.tests.get(in.readInt()));
+            }
+            index.endpoints.put(endpoint, names);
+        }
+        return index;
+    }
+}
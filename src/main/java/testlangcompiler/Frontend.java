@@ -0,0 +1,81 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.util.*;
+
+// The parser front ends that can feed CodeGenerator
+public enum Frontend {
+    HANDWRITTEN("handwritten") {
+        public Object parse(String input, StringPool pool) throws Exception {
+            return new TestlangCompiler(pool).parse(input);
+        }
+        
+        public Map<String, String> generate(Object unit, CodeGenerator.Options options) {
+            TestlangCompiler.CompilationUnit u = (TestlangCompiler.CompilationUnit)unit;
+            if (options.isSharded()) {
+                return CodeGenerator.generateShards(u, options);
+            }
+            return Collections.singletonMap(options.className, CodeGenerator.generate(u, options));
+        }
+    },
+    CUP("cup") {
+        public Object parse(String input, StringPool pool) throws Exception {
+            return new ParserCUP(new LexerCUP(new StringReader(input)), pool).parse();
+        }
+        
+        public Map<String, String> generate(Object unit, CodeGenerator.Options options) {
+            return generateCUP(unit, options);
+        }
+    },
+    // ParserCUP fed by the table-driven lexer generated from src/main/flex/lexer.flex
+    JFLEX("jflex") {
+        public Object parse(String input, StringPool pool) throws Exception {
+            return new ParserCUP(new LexerJFlex(new StringReader(input)), pool).parse();
+        }
+        
+        public Map<String, String> generate(Object unit, CodeGenerator.Options options) {
+            return generateCUP(unit, options);
+        }
+    },
+    // LALR parser generated from src/main/cup/parser.cup, also fed by LexerJFlex
+    LALR("lalr") {
+        public Object parse(String input, StringPool pool) throws Exception {
+            return new ParserLALR(new LexerJFlex(new StringReader(input)), pool).parseUnit();
+        }
+        
+        public Map<String, String> generate(Object unit, CodeGenerator.Options options) {
+            return generateCUP(unit, options);
+        }
+    };
+    
+    public final String id;
+    
+    Frontend(String id) {
+        this.id = id;
+    }
+    
+    public Object parse(String input) throws Exception {
+        return parse(input, StringPool.NONE);
+    }
+    
+    // With a real pool (not StringPool.NONE) the result is a compact AST
+    public abstract Object parse(String input, StringPool pool) throws Exception;
+    
+    // Class name -> Java source
+    public abstract Map<String, String> generate(Object unit, CodeGenerator.Options options);
+    
+    private static Map<String, String> generateCUP(Object unit, CodeGenerator.Options options) {
+        ParserCUP.CompilationUnit u = (ParserCUP.CompilationUnit)unit;
+        if (options.isSharded()) {
+            return CodeGenerator.generateShards(u, options);
+        }
+        return Collections.singletonMap(options.className, CodeGenerator.generate(u, options));
+    }
+    
+    public static Frontend fromId(String id) {
+        for (Frontend f : values()) {
+            if (f.id.equalsIgnoreCase(id)) return f;
+        }
+        throw new IllegalArgumentException("Unknown frontend: " + id);
+    }
+}
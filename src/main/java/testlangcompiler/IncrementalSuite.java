@@ -0,0 +1,359 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// A parsed suite and its generated code kept in memory between edits, for
+// --watch. A new version of the file is compared with the previous one. If
+// the change only touches test blocks, just those blocks are lexed and parsed
+// again, behind the unchanged header so that variables and line numbers come
+// out the same. Only their methods are generated again; all other methods,
+// and classes whose methods didn't change, come from options.methods.
+// Anything else, such as an edit to the config, a let or an import, falls
+// back to a full parse.
+public class IncrementalSuite {
+    
+    // Editors often save in several writes; events this close together are one change
+    private static final long SETTLE_MILLIS = 50;
+    
+    private final Path input;
+    private final Frontend frontend;
+    private final boolean compact;
+    private final CodeGenerator.Options options;
+    
+    private String source;
+    private Object unit;
+    private Map<String, String> code;
+    // Everything before the first test: imports, config and variables
+    private int headerEnd;
+    // Offsets of each test block in source, in suite order; null if the tests
+    // aren't a clean sequence of blocks, and then every change is a full parse
+    private int[] starts;
+    private int[] ends;
+    // Blocks parsed by the last update, or -1 if it parsed the whole suite
+    private int parsedBlocks;
+    
+    public IncrementalSuite(Path input, Frontend frontend, boolean compact, CodeGenerator.Options options) {
+        this.input = input.toAbsolutePath().normalize();
+        this.frontend = frontend;
+        this.compact = compact;
+        this.options = options;
+        if (options.methods == null) {
+            options.methods = new CodeGenerator.MethodCache();
+        }
+    }
+    
+    public Map<String, String> getCode() {
+        return code;
+    }
+    
+    public int getParsedBlocks() {
+        return parsedBlocks;
+    }
+    
+    // Parses the file and its imports from scratch and generates all code. On a
+    // CompileException the previous suite is kept.
+    public Map<String, String> load() throws Exception {
+        SuiteLoader loader = new SuiteLoader(frontend, compact);
+        String text = loader.source(input);
+        Object loaded = loader.load(input);
+        
+        source = text;
+        unit = loaded;
+        scanBlocks();
+        options.methods.clear();
+        parsedBlocks = -1;
+        code = frontend.generate(unit, options);
+        return code;
+    }
+    
+    // Brings the suite up to date with the file, parsing as little as possible
+    public Map<String, String> update() throws Exception {
+        if (unit == null) return load();
+        String next = new String(Files.readAllBytes(input), StandardCharsets.UTF_8);
+        if (next.equals(source)) {
+            parsedBlocks = 0;
+            return code;
+        }
+        if (!reparse(next)) return load();
+        code = frontend.generate(unit, options);
+        return code;
+    }
+    
+    // Finds the header and the test blocks of the whole source
+    private void scanBlocks() {
+        TokenBuffer tokens = new TokenBuffer(source.length() / 4);
+        TestlangCompiler.tokenize(source, tokens);
+        int i = 0;
+        int depth = 0;
+        while (i < tokens.size() && (depth > 0 || tokens.kind(i) != sym.TEST)) {
+            if (tokens.kind(i) == sym.LBRACE) depth++;
+            if (tokens.kind(i) == sym.RBRACE) depth--;
+            i++;
+        }
+        headerEnd = i < tokens.size() ? tokens.start(i) : source.length();
+        int[][] blocks = blocks(tokens, i, 0);
+        starts = blocks != null ? blocks[0] : null;
+        ends = blocks != null ? blocks[1] : null;
+    }
+    
+    // Start and end offsets (plus shift) of the test blocks from token i on, or
+    // null if anything but a complete test block follows at the top level
+    private static int[][] blocks(TokenBuffer tokens, int i, int shift) {
+        int[] blockStarts = new int[16];
+        int[] blockEnds = new int[16];
+        int count = 0;
+        while (i < tokens.size()) {
+            if (tokens.kind(i) != sym.TEST) return null;
+            int start = tokens.start(i++);
+            while (i < tokens.size() && tokens.kind(i) != sym.LBRACE) {
+                if (tokens.kind(i) == sym.TEST || tokens.kind(i) == sym.RBRACE) return null;
+                i++;
+            }
+            int depth = 0;
+            do {
+                if (i == tokens.size() || tokens.kind(i) == sym.TEST) return null;
+                if (tokens.kind(i) == sym.LBRACE) depth++;
+                if (tokens.kind(i) == sym.RBRACE) depth--;
+                i++;
+            } while (depth > 0);
+            
+            if (count == blockStarts.length) {
+                blockStarts = Arrays.copyOf(blockStarts, count * 2);
+                blockEnds = Arrays.copyOf(blockEnds, count * 2);
+            }
+            blockStarts[count] = start + shift;
+            blockEnds[count] = tokens.end(i - 1) + shift;
+            count++;
+        }
+        return new int[][] {Arrays.copyOf(blockStarts, count), Arrays.copyOf(blockEnds, count)};
+    }
+    
+    // Parses again only the test blocks the change touches and splices them into
+    // the suite; false if the change needs a full parse
+    private boolean reparse(String next) throws Exception {
+        if (starts == null) return false;
+        int length = source.length();
+        int limit = Math.min(length, next.length());
+        int prefix = 0;
+        while (prefix < limit && source.charAt(prefix) == next.charAt(prefix)) prefix++;
+        int suffix = 0;
+        while (suffix < limit - prefix
+               && source.charAt(length - 1 - suffix) == next.charAt(next.length() - 1 - suffix)) suffix++;
+        int changeEnd = length - suffix;
+        if (prefix < headerEnd) return false;
+        
+        // Blocks first to last - 1 overlap or touch the changed range; the text
+        // between the blocks around them is lexed again
+        int first = 0;
+        while (first < starts.length && ends[first] < prefix) first++;
+        int last = first;
+        while (last < starts.length && starts[last] <= changeEnd) last++;
+        int from = first > 0 ? ends[first - 1] : headerEnd;
+        int to = (last < starts.length ? starts[last] : length) + next.length() - length;
+        
+        String changedText = next.substring(from, to);
+        TokenBuffer tokens = new TokenBuffer(changedText.length() / 4);
+        TestlangCompiler.tokenize(changedText, tokens);
+        int[][] blocks = blocks(tokens, 0, from);
+        if (blocks == null) return false;
+        if (last < starts.length) {
+            // A comment or string left open at the end would swallow the next block
+            String tail = changedText.substring(tokens.size() > 0 ? tokens.end(tokens.size() - 1) : 0);
+            if (!tail.substring(tail.lastIndexOf('\n') + 1).isBlank()) return false;
+        }
+        
+        // Blocks whose text is unchanged keep their test (and generated method).
+        // The others are parsed behind the header, each padded to its own line
+        // and column so that diagnostics point into the file.
+        List<?> previous = (List<?>)CodeGenerator.getField(unit, "testMethods");
+        Map<String, Deque<Object>> unchanged = new HashMap<>();
+        for (int b = first; b < last; b++) {
+            unchanged.computeIfAbsent(source.substring(starts[b], ends[b]), k -> new ArrayDeque<>()).add(previous.get(b));
+        }
+        Object[] region = new Object[blocks[0].length];
+        StringBuilder text = new StringBuilder().append(next, 0, headerEnd);
+        int copied = headerEnd;
+        int changed = 0;
+        for (int b = 0; b < region.length; b++) {
+            String block = next.substring(blocks[0][b], blocks[1][b]);
+            Deque<Object> same = unchanged.get(block);
+            if (same != null && !same.isEmpty()) {
+                region[b] = same.poll();
+                continue;
+            }
+            pad(text, next, copied, blocks[0][b]);
+            text.append(block);
+            copied = blocks[1][b];
+            changed++;
+        }
+        if (changed > 0) {
+            Object part = frontend.parse(text.toString(), compact ? new StringPool() : StringPool.NONE);
+            List<?> parsed = (List<?>)CodeGenerator.getField(part, "testMethods");
+            if (parsed.size() != changed) return false;
+            Iterator<?> it = parsed.iterator();
+            for (int b = 0; b < region.length; b++) {
+                if (region[b] == null) region[b] = it.next();
+            }
+        }
+        for (Deque<Object> gone : unchanged.values()) {
+            for (Object test : gone) {
+                options.methods.remove(test);
+            }
+        }
+        
+        List<Object> tests = new ArrayList<>(previous);
+        List<Object> replaced = tests.subList(first, last);
+        replaced.clear();
+        replaced.addAll(Arrays.asList(region));
+        unit.getClass().getField("testMethods").set(unit, tests);
+        
+        int count = starts.length - (last - first) + blocks[0].length;
+        int shift = next.length() - length;
+        int[] newStarts = new int[count];
+        int[] newEnds = new int[count];
+        System.arraycopy(starts, 0, newStarts, 0, first);
+        System.arraycopy(ends, 0, newEnds, 0, first);
+        System.arraycopy(blocks[0], 0, newStarts, first, blocks[0].length);
+        System.arraycopy(blocks[1], 0, newEnds, first, blocks[1].length);
+        for (int b = last, at = first + blocks[0].length; b < starts.length; b++, at++) {
+            newStarts[at] = starts[b] + shift;
+            newEnds[at] = ends[b] + shift;
+        }
+        starts = newStarts;
+        ends = newEnds;
+        source = next;
+        parsedBlocks = changed;
+        return true;
+    }
+    
+    // Appends newlines and spaces that take text from offset from to offset to of source
+    private static void pad(StringBuilder text, String source, int from, int to) {
+        int newlines = 0;
+        int lineStart = from;
+        for (int p = from; p < to; p++) {
+            if (source.charAt(p) == '\n') {
+                newlines++;
+                lineStart = p + 1;
+            }
+        }
+        text.append("\n".repeat(newlines)).append(" ".repeat(to - lineStart));
+    }
+    
+    // Compiles once, then again whenever the file or one of its imports changes.
+    // Only output files whose content changed are written.
+    public void watch(Path output) throws Exception {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Set<Path> dirs = new HashSet<>();
+            Set<Path> files = new HashSet<>();
+            compile(output, true);
+            register(watcher, dirs, files);
+            System.out.println("Watching " + input.getFileName() + " for changes (Ctrl+C to stop)");
+            
+            while (true) {
+                WatchKey key = watcher.take();
+                Thread.sleep(SETTLE_MILLIS);
+                boolean edited = false;
+                boolean full = false;
+                do {
+                    Path dir = (Path)key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            full = true;
+                            continue;
+                        }
+                        Path file = dir.resolve((Path)event.context()).normalize();
+                        if (file.equals(input)) {
+                            edited = true;
+                        } else if (files.contains(file)) {
+                            full = true;
+                        }
+                    }
+                    key.reset();
+                } while ((key = watcher.poll()) != null);
+                
+                if (edited || full) {
+                    compile(output, full);
+                    if (parsedBlocks < 0) register(watcher, dirs, files);
+                }
+            }
+        }
+    }
+    
+    // Watches the directories of the file and everything it imports
+    private void register(WatchService watcher, Set<Path> dirs, Set<Path> files) throws IOException {
+        files.clear();
+        files.addAll(new SuiteLoader(frontend, compact).closure(input));
+        for (Path file : files) {
+            Path dir = file.getParent();
+            if (Files.isDirectory(dir) && dirs.add(dir)) {
+                dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+            }
+        }
+    }
+    
+    private void compile(Path output, boolean full) {
+        long start = System.nanoTime();
+        Map<String, String> before = code != null ? code : Map.of();
+        try {
+            if (full) {
+                load();
+            } else {
+                update();
+            }
+        } catch (CompileException e) {
+            for (Diagnostic d : e.getDiagnostics()) {
+                System.err.println(input.getFileName() + ":" + d);
+            }
+            System.err.println(e.getDiagnostics().size() + " error(s), keeping the last output");
+            return;
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            return;
+        }
+        long parsed = System.nanoTime();
+        
+        List<String> written = new ArrayList<>();
+        try {
+            written = writeChanges(output, before);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+        System.out.printf("%s in %.1f ms, %s%n",
+            parsedBlocks < 0 ? "Parsed the whole suite" : "Re-parsed " + parsedBlocks + " test block(s)",
+            (parsed - start) / 1e6, written.isEmpty() ? "output unchanged" : "wrote " + String.join(", ", written));
+    }
+    
+    // Writes the classes that differ from before and deletes shards that are gone
+    private List<String> writeChanges(Path output, Map<String, String> before) throws IOException {
+        List<String> written = new ArrayList<>();
+        if (!options.isSharded()) {
+            String text = code.values().iterator().next();
+            if (!text.equals(before.values().stream().findFirst().orElse(null))) {
+                Files.write(output, text.getBytes());
+                written.add(output.getFileName().toString());
+            }
+            return written;
+        }
+        
+        Path dir = CompilerCli.shardDirectory(output);
+        Files.createDirectories(dir);
+        for (Map.Entry<String, String> file : code.entrySet()) {
+            if (!file.getValue().equals(before.get(file.getKey()))) {
+                Files.write(dir.resolve(file.getKey() + ".java"), file.getValue().getBytes());
+                written.add(file.getKey() + ".java");
+            }
+        }
+        for (String name : before.keySet()) {
+            if (!code.containsKey(name)) {
+                Files.deleteIfExists(dir.resolve(name + ".java"));
+                written.add("-" + name + ".java");
+            }
+        }
+        return written;
+    }
+}
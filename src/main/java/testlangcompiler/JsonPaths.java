@@ -0,0 +1,29 @@
+package testlangcompiler;
+
+import testlangcompiler.runtime.JsonPath;
+
+// Compile-time checks for the JSON paths used in let ... = body.json and
+// expect json, shared by every front end
+final class JsonPaths {
+    private JsonPaths() {
+    }
+    
+    // Returns the error message for a path the runtime would reject, or null
+    static String check(String path) {
+        try {
+            JsonPath.of(path);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+    
+    // true, false and null are written as identifiers after expect json "..." =
+    static boolean isLiteral(String word) {
+        return word.equals("true") || word.equals("false") || word.equals("null");
+    }
+    
+    static Object literal(String word) {
+        return word.equals("null") ? null : Boolean.valueOf(word);
+    }
+}
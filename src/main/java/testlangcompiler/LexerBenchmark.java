@@ -0,0 +1,115 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java_cup.runtime.Symbol;
+
+// Times the three lexers over the same input and checks that LexerCUP and
+// LexerJFlex produce identical Symbol streams (kind, position and value).
+//
+//   java LexerBenchmark [input.test | --tests N] [--iterations K]
+public class LexerBenchmark {
+    
+    interface Lexer {
+        int run(String input) throws Exception;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        int tests = 20000;
+        int iterations = 10;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--tests")) {
+                tests = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                input = new String(Files.readAllBytes(Paths.get(args[i])));
+            }
+        }
+        if (input == null) {
+            input = sampleSuite(tests);
+        }
+        
+        String mismatch = compareStreams(input);
+        if (mismatch != null) {
+            System.err.println("LexerCUP and LexerJFlex disagree: " + mismatch);
+            System.exit(1);
+        }
+        
+        System.out.printf("Input: %,d chars%n", input.length());
+        TokenBuffer buffer = new TokenBuffer();
+        time("TestlangCompiler.tokenize", input, iterations, s -> TestlangCompiler.tokenize(s).size());
+        time("TokenBuffer", input, iterations, s -> {
+            TestlangCompiler.tokenize(s, buffer);
+            return buffer.size();
+        });
+        time("LexerCUP", input, iterations, s -> drain(new LexerCUP(new StringReader(s))));
+        time("LexerJFlex", input, iterations, s -> drain(new LexerJFlex(new StringReader(s))));
+    }
+    
+    private static void time(String name, String input, int iterations, Lexer lexer) throws Exception {
+        int tokens = 0;
+        for (int i = 0; i < Math.max(3, iterations / 2); i++) {
+            tokens = lexer.run(input);  // warm-up
+        }
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            lexer.run(input);
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+        double seconds = best / 1e9;
+        System.out.printf("%-26s best %8.2f ms  mean %8.2f ms  %7.1f MB/s  %,12.0f tokens/s  (%,d tokens)%n",
+            name, best / 1e6, total / 1e6 / iterations, input.length() / 1e6 / seconds, tokens / seconds, tokens);
+    }
+    
+    private static int drain(java_cup.runtime.Scanner lexer) throws Exception {
+        int count = 0;
+        while (lexer.next_token().sym != sym.EOF) {
+            count++;
+        }
+        return count;
+    }
+    
+    // Null when equal, otherwise a description of the first difference
+    static String compareStreams(String input) throws Exception {
+        LexerCUP a = new LexerCUP(new StringReader(input));
+        LexerJFlex b = new LexerJFlex(new StringReader(input));
+        for (int i = 0; ; i++) {
+            Symbol x = a.next_token();
+            Symbol y = b.next_token();
+            if (x.sym != y.sym || x.left != y.left || x.right != y.right
+                || (x.value == null ? y.value != null : !x.value.equals(y.value))) {
+                return "token " + i + ": " + describe(x) + " vs " + describe(y);
+            }
+            if (x.sym == sym.EOF) return null;
+        }
+    }
+    
+    private static String describe(Symbol s) {
+        return ParserCUP.tokenName(s.sym) + "(" + s.value + ")@" + s.left + ":" + s.right;
+    }
+    
+    static String sampleSuite(int tests) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("config {\n  base_url = \"http://localhost:8080\";\n  header \"Content-Type\" = \"application/json\";\n}\n\n");
+        sb.append("let user = \"admin\";\nlet id = 42;\n\n");
+        for (int i = 0; i < tests; i++) {
+            sb.append("// test ").append(i).append('\n');
+            sb.append("test Login").append(i).append(" {\n");
+            sb.append("  POST \"/api/login\" {\n");
+            sb.append("    header \"X-Request\" = \"").append(i).append("\";\n");
+            sb.append("    body = \"{ \\\"username\\\": \\\"$user\\\", \\\"password\\\": \\\"1234\\\" }\";\n");
+            sb.append("  }\n");
+            sb.append("  expect status = 200;\n");
+            sb.append("  expect header \"Content-Type\" contains \"json\";\n");
+            sb.append("  expect body contains \"\\\"token\\\":\";\n");
+            sb.append("}\n\n");
+        }
+        return sb.toString();
+    }
+}
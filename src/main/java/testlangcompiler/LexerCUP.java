@@ -9,9 +9,20 @@ public class LexerCUP implements java_cup.runtime.Scanner {
     private int currentChar;
     private int line = 1;
     private int column = 1;
+    private int tokenLine;
+    private int tokenColumn;
+    // Text of the current word, number or string; kept across tokens and inputs
+    private final StringBuilder text = new StringBuilder();
     
     public LexerCUP(Reader reader) {
+        reset(reader);
+    }
+    
+    // Starts over on a new input, so one lexer can serve many parses
+    public void reset(Reader reader) {
         this.reader = reader;
+        line = 1;
+        column = 1;
         try {
             currentChar = reader.read();
         } catch (IOException e) {
@@ -36,13 +47,19 @@ public class LexerCUP implements java_cup.runtime.Scanner {
                 // Skip comment
                 while (currentChar != -1 && currentChar != '\n') {
                     currentChar = reader.read();
+                    column++;
                 }
                 continue;
             }
             
+            // Symbols carry the line and column where the token starts
+            tokenLine = line;
+            tokenColumn = column;
+            
             // Keywords
             if (Character.isLetter(currentChar)) {
-                StringBuilder word = new StringBuilder();
+                StringBuilder word = text;
+                word.setLength(0);
                 while (Character.isLetterOrDigit(currentChar) || currentChar == '_') {
                     word.append((char) currentChar);
                     currentChar = reader.read();
@@ -51,43 +68,52 @@ public class LexerCUP implements java_cup.runtime.Scanner {
                 
                 String keyword = word.toString();
                 switch (keyword) {
-                    case "config": return new Symbol(sym.CONFIG, line, column, keyword);
-                    case "base_url": return new Symbol(sym.BASE_URL, line, column, keyword);
-                    case "header": return new Symbol(sym.HEADER, line, column, keyword);
-                    case "let": return new Symbol(sym.LET, line, column, keyword);
-                    case "test": return new Symbol(sym.TEST, line, column, keyword);
-                    case "GET": return new Symbol(sym.GET, line, column, keyword);
-                    case "POST": return new Symbol(sym.POST, line, column, keyword);
-                    case "PUT": return new Symbol(sym.PUT, line, column, keyword);
-                    case "DELETE": return new Symbol(sym.DELETE, line, column, keyword);
-                    case "expect": return new Symbol(sym.EXPECT, line, column, keyword);
-                    case "status": return new Symbol(sym.STATUS, line, column, keyword);
-                    case "body": return new Symbol(sym.BODY, line, column, keyword);
-                    case "contains": return new Symbol(sym.CONTAINS, line, column, keyword);
-                    default: return new Symbol(sym.IDENTIFIER, line, column, keyword);
+                    case "config": return symbol(sym.CONFIG, keyword);
+                    case "base_url": return symbol(sym.BASE_URL, keyword);
+                    case "header": return symbol(sym.HEADER, keyword);
+                    case "let": return symbol(sym.LET, keyword);
+                    case "test": return symbol(sym.TEST, keyword);
+                    case "GET": return symbol(sym.GET, keyword);
+                    case "POST": return symbol(sym.POST, keyword);
+                    case "PUT": return symbol(sym.PUT, keyword);
+                    case "DELETE": return symbol(sym.DELETE, keyword);
+                    case "expect": return symbol(sym.EXPECT, keyword);
+                    case "status": return symbol(sym.STATUS, keyword);
+                    case "body": return symbol(sym.BODY, keyword);
+                    case "contains": return symbol(sym.CONTAINS, keyword);
+                    case "import": return symbol(sym.IMPORT, keyword);
+                    default: return symbol(sym.IDENTIFIER, keyword);
                 }
             }
             
             // Numbers
             if (Character.isDigit(currentChar)) {
-                StringBuilder number = new StringBuilder();
+                StringBuilder number = text;
+                number.setLength(0);
                 while (Character.isDigit(currentChar)) {
                     number.append((char) currentChar);
                     currentChar = reader.read();
                     column++;
                 }
-                return new Symbol(sym.NUMBER, line, column, Integer.parseInt(number.toString()));
+                try {
+                    return symbol(sym.NUMBER, Integer.parseInt(number, 0, number.length(), 10));
+                } catch (NumberFormatException e) {
+                    // Too large for an int: reported by the parser
+                    return symbol(sym.error, number.toString());
+                }
             }
             
             // Strings
             if (currentChar == '"') {
-                StringBuilder str = new StringBuilder();
+                StringBuilder str = text;
+                str.setLength(0);
                 currentChar = reader.read();
                 column++;
                 while (currentChar != -1 && currentChar != '"') {
                     if (currentChar == '\\') {
                         currentChar = reader.read();
                         column++;
+                        if (currentChar == -1) break;
                         if (currentChar == 'n') str.append('\n');
                         else if (currentChar == 't') str.append('\t');
                         else if (currentChar == 'r') str.append('\r');
@@ -97,6 +123,10 @@ public class LexerCUP implements java_cup.runtime.Scanner {
                     } else {
                         str.append((char) currentChar);
                     }
+                    if (currentChar == '\n') {
+                        line++;
+                        column = 0;
+                    }
                     currentChar = reader.read();
                     column++;
                 }
@@ -104,7 +134,7 @@ public class LexerCUP implements java_cup.runtime.Scanner {
                     currentChar = reader.read();
                     column++;
                 }
-                return new Symbol(sym.STRING, line, column, str.toString());
+                return symbol(sym.STRING, str.toString());
             }
             
             // Symbols
@@ -112,45 +142,42 @@ public class LexerCUP implements java_cup.runtime.Scanner {
                 case '{': 
                     currentChar = reader.read();
                     column++;
-                    return new Symbol(sym.LBRACE, line, column-1, "{");
+                    return symbol(sym.LBRACE, "{");
                 case '}': 
                     currentChar = reader.read();
                     column++;
-                    return new Symbol(sym.RBRACE, line, column-1, "}");
-                case '(': 
+                    return symbol(sym.RBRACE, "}");
+                case '=': 
                     currentChar = reader.read();
                     column++;
-                    return new Symbol(sym.LPAREN, line, column-1, "(");
-                case ')': 
+                    return symbol(sym.EQ, "=");
+                case ';': 
                     currentChar = reader.read();
                     column++;
-                    return new Symbol(sym.RPAREN, line, column-1, ")");
-                case '=': 
+                    return symbol(sym.SEMICOLON, ";");
+                case '/':
                     currentChar = reader.read();
                     column++;
-                    return new Symbol(sym.EQ, line, column-1, "=");
-                case ';': 
+                    return symbol(sym.SLASH, "/");
+                case '.': 
                     currentChar = reader.read();
                     column++;
-                    return new Symbol(sym.SEMICOLON, line, column-1, ";");
-                case '.': 
-                    if (peek() == '.') {
-                        currentChar = reader.read();
-                        currentChar = reader.read();
-                        column += 2;
-                        return new Symbol(sym.DOTDOT, line, column-2, "..");
-                    } else {
-                        currentChar = reader.read();
-                        column++;
-                        return new Symbol(sym.DOT, line, column-1, ".");
-                    }
+                    return symbol(sym.DOT, ".");
                 default:
-                    System.err.println("Unknown character: " + (char)currentChar + " at line " + line + ", column " + column);
+                    // Reported by the parser
+                    String unknown = String.valueOf((char)currentChar);
                     currentChar = reader.read();
                     column++;
+                    return symbol(sym.error, unknown);
             }
         }
-        return new Symbol(sym.EOF, line, column);
+        tokenLine = line;
+        tokenColumn = column;
+        return symbol(sym.EOF, null);
+    }
+    
+    private Symbol symbol(int type, Object value) {
+        return new Symbol(type, tokenLine, tokenColumn, value);
     }
     
     private int peek() throws IOException {
@@ -0,0 +1,83 @@
+package testlangcompiler;
+
+import java.nio.file.*;
+import java.util.*;
+
+// Times every front end (lexer + parser) on the same input, checks that they
+// all lead to the same generated code, and reports the heap held by the
+// default and compact ASTs.
+//
+//   java ParserBenchmark [input.test | --tests N] [--iterations K]
+public class ParserBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        int tests = 20000;
+        int iterations = 10;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--tests")) {
+                tests = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                input = new String(Files.readAllBytes(Paths.get(args[i])));
+            }
+        }
+        if (input == null) {
+            input = LexerBenchmark.sampleSuite(tests);
+        }
+        
+        CodeGenerator.Options options = new CodeGenerator.Options();
+        String reference = null;
+        for (Frontend frontend : Frontend.values()) {
+            String code = frontend.generate(frontend.parse(input), options).values().iterator().next();
+            if (reference == null) {
+                reference = code;
+            } else if (!reference.equals(code)) {
+                System.err.println(frontend.id + " generates different code than " + Frontend.values()[0].id);
+                System.exit(1);
+            }
+        }
+        
+        System.out.printf("Input: %,d chars%n", input.length());
+        for (Frontend frontend : Frontend.values()) {
+            for (int i = 0; i < Math.max(3, iterations / 2); i++) {
+                frontend.parse(input);  // warm-up
+            }
+            long best = Long.MAX_VALUE;
+            long total = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                frontend.parse(input);
+                long elapsed = System.nanoTime() - start;
+                best = Math.min(best, elapsed);
+                total += elapsed;
+            }
+            System.out.printf("%-12s best %8.2f ms  mean %8.2f ms  %7.1f MB/s%n",
+                frontend.id, best / 1e6, total / 1e6 / iterations, input.length() / 1e6 / (best / 1e9));
+        }
+        
+        // Heap held by one parse result, default vs compact AST
+        for (Frontend frontend : Frontend.values()) {
+            long plain = retained(frontend, input, StringPool.NONE);
+            long compact = retained(frontend, input, new StringPool());
+            System.out.printf("%-12s retained %8.1f MB  compact %8.1f MB%n", frontend.id, plain / 1e6, compact / 1e6);
+        }
+    }
+    
+    private static long retained(Frontend frontend, String input, StringPool pool) throws Exception {
+        long before = usedHeap();
+        Object unit = frontend.parse(input, pool);
+        long after = usedHeap();
+        if (unit == null) throw new IllegalStateException();  // keeps unit reachable until measured
+        return after - before;
+    }
+    
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -6,7 +6,21 @@ import java.io.*;
 
 public class ParserCUP {
     
+    // import "common.test"; shares another file's config and variables
+    public static class Import {
+        public String path;
+        public int line;
+        public int column;
+        
+        public Import(String p, int l, int c) {
+            path = p;
+            line = l;
+            column = c;
+        }
+    }
+    
     public static class CompilationUnit {
+        public List<Import> imports = new ArrayList<>();
         public ConfigData config;
         public Map<String, Variable> variables = new LinkedHashMap<>();
         public List<TestCase> testMethods = new ArrayList<>();
@@ -15,6 +29,7 @@ public class ParserCUP {
     public static class ConfigData {
         public String baseUrl;
         public Map<String, String> defaultHeaders = new LinkedHashMap<>();
+        public Map<String, String> settings = new LinkedHashMap<>();
     }
     
     public static class Variable {
@@ -33,7 +48,9 @@ public class ParserCUP {
         public String method;
         public String path;
         public String body;
+        public String bodyFile;  // body = file "payload.json"; read when the request is sent
         public Map<String, String> headers = new LinkedHashMap<>();
+        public List<Extraction> extractions = new ArrayList<>();
         
         public HttpRequest(String m, String p) {
             method = m;
@@ -41,6 +58,17 @@ public class ParserCUP {
         }
     }
     
+    // let name = body.json "$.path"; binds a value from the preceding request's response
+    public static class Extraction {
+        public String name;
+        public String path;
+        
+        public Extraction(String n, String p) {
+            name = n;
+            path = p;
+        }
+    }
+    
     public static class Assertion {
         public String type;
         public Object expected;
@@ -63,21 +91,48 @@ public class ParserCUP {
         }
     }
     
-    private LexerCUP lexer;
+    // Unwinds to the nearest recovery point; the diagnostic is already recorded
+    private static class SyntaxError extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        SyntaxError() {
+            super(null, null, false, false);
+        }
+    }
+    
+    private java_cup.runtime.Scanner lexer;
     private Symbol currentToken;
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+    
+    private final StringPool pool;
     
-    public ParserCUP(LexerCUP lexer) {
+    // Works with either LexerCUP or the JFlex-generated LexerJFlex
+    public ParserCUP(java_cup.runtime.Scanner lexer) {
+        this(lexer, StringPool.NONE);
+    }
+    
+    // With a real pool the parse result uses the compact AST representation
+    public ParserCUP(java_cup.runtime.Scanner lexer, StringPool pool) {
         this.lexer = lexer;
-        try {
-            currentToken = lexer.next_token();
-        } catch (IOException e) {
-            throw new RuntimeException("Error reading input", e);
-        }
+        this.pool = pool;
+        advance();
     }
     
+    // Starts over on a new lexer (or the same one, reset), so one parser can serve many parses
+    public void reset(java_cup.runtime.Scanner lexer) {
+        this.lexer = lexer;
+        diagnostics.clear();
+        advance();
+    }
+    
+    // Parses the whole input, recovering after each syntax error so that every
+    // error is reported in one CompileException
     public CompilationUnit parse() throws Exception {
         CompilationUnit unit = new CompilationUnit();
         
+        // Parse imports
+        unit.imports = parseImports();
+        
         // Parse config block (optional)
         if (currentToken.sym == sym.CONFIG) {
             unit.config = parseConfig();
@@ -89,63 +144,137 @@ public class ParserCUP {
         // Parse test blocks
         unit.testMethods = parseTestBlocks();
         
+        if (!diagnostics.isEmpty()) {
+            throw new CompileException(diagnostics);
+        }
         return unit;
     }
     
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+    
     private ConfigData parseConfig() throws Exception {
-        expect(sym.CONFIG);
-        expect(sym.LBRACE);
-        
         ConfigData config = new ConfigData();
+        try {
+            expect(sym.CONFIG);
+            expect(sym.LBRACE);
+        } catch (SyntaxError e) {
+            synchronize();
+        }
         
-        while (currentToken.sym != sym.RBRACE) {
-            if (currentToken.sym == sym.BASE_URL) {
-                expect(sym.BASE_URL);
-                expect(sym.EQ);
-                config.baseUrl = (String)currentToken.value;
-                expect(sym.STRING);
-                expect(sym.SEMICOLON);
-            } else if (currentToken.sym == sym.HEADER) {
-                expect(sym.HEADER);
-                String key = (String)currentToken.value;
-                expect(sym.STRING);
-                expect(sym.EQ);
-                String value = (String)currentToken.value;
-                expect(sym.STRING);
-                expect(sym.SEMICOLON);
-                config.defaultHeaders.put(key, value);
-            } else {
-                throw new RuntimeException("Unexpected token in config: " + currentToken);
+        while (currentToken.sym != sym.RBRACE && currentToken.sym != sym.EOF && currentToken.sym != sym.TEST
+               && currentToken.sym != sym.LET) {
+            try {
+                if (currentToken.sym == sym.BASE_URL) {
+                    expect(sym.BASE_URL);
+                    expect(sym.EQ);
+                    String baseUrl = expectString();
+                    expect(sym.SEMICOLON);
+                    config.baseUrl = baseUrl;
+                } else if (currentToken.sym == sym.HEADER) {
+                    expect(sym.HEADER);
+                    String key = expectString();
+                    expect(sym.EQ);
+                    String value = expectString();
+                    expect(sym.SEMICOLON);
+                    config.defaultHeaders.put(key, value);
+                } else if (currentToken.sym == sym.IDENTIFIER) {
+                    parseSetting(config);
+                } else {
+                    throw error("Unexpected " + describe(currentToken) + " in config");
+                }
+            } catch (SyntaxError e) {
+                synchronize();
             }
         }
         
-        expect(sym.RBRACE);
+        try {
+            expect(sym.RBRACE);
+        } catch (SyntaxError e) {
+            // Missing '}' is reported; carry on with the let/test that follows
+        }
+        config.defaultHeaders = pool.freeze(config.defaultHeaders);
+        config.settings = pool.freeze(config.settings);
         return config;
     }
     
+    // name = NUMBER [/ unit] | IDENTIFIER | STRING ;
+    private void parseSetting(ConfigData config) throws SyntaxError {
+        Symbol key = currentToken;
+        String name = expectIdentifier();
+        expect(sym.EQ);
+        String value;
+        if (currentToken.sym == sym.NUMBER) {
+            value = currentToken.value.toString();
+            advance();
+            if (currentToken.sym == sym.SLASH) {
+                advance();
+                value += "/" + expectIdentifier();
+            }
+        } else if (currentToken.sym == sym.IDENTIFIER) {
+            value = expectIdentifier();
+        } else if (currentToken.sym == sym.STRING) {
+            value = expectString();
+        } else {
+            throw error("Expected NUMBER, IDENTIFIER or STRING for " + name + ", got " + describe(currentToken));
+        }
+        expect(sym.SEMICOLON);
+        
+        String problem = ConfigSettings.check(name, value);
+        if (problem != null) {
+            diagnostics.add(new Diagnostic(key.left, key.right, problem));
+        } else {
+            config.settings.put(pool.intern(name), pool.intern(value));
+        }
+    }
+    
+    private List<Import> parseImports() throws Exception {
+        List<Import> imports = new ArrayList<>();
+        
+        while (currentToken.sym == sym.IMPORT) {
+            try {
+                expect(sym.IMPORT);
+                Symbol path = currentToken;
+                String value = expectString();
+                expect(sym.SEMICOLON);
+                imports.add(new Import(value, path.left, path.right));
+            } catch (SyntaxError e) {
+                synchronize();
+            }
+        }
+        
+        return pool.freeze(imports);
+    }
+    
     private Map<String, Variable> parseLetStatements() throws Exception {
         Map<String, Variable> variables = new LinkedHashMap<>();
         
         while (currentToken.sym == sym.LET) {
-            expect(sym.LET);
-            String name = (String)currentToken.value;
-            expect(sym.IDENTIFIER);
-            expect(sym.EQ);
-            
-            String value;
-            boolean isString;
-            if (currentToken.sym == sym.STRING) {
-                value = (String)currentToken.value;
-                isString = true;
-                expect(sym.STRING);
-            } else {
-                value = currentToken.value.toString();
-                isString = false;
-                expect(sym.NUMBER);
+            try {
+                expect(sym.LET);
+                String name = expectIdentifier();
+                expect(sym.EQ);
+                
+                String value;
+                boolean isString;
+                if (currentToken.sym == sym.STRING) {
+                    value = (String)currentToken.value;
+                    isString = true;
+                    expect(sym.STRING);
+                } else if (currentToken.sym == sym.NUMBER) {
+                    value = currentToken.value.toString();
+                    isString = false;
+                    expect(sym.NUMBER);
+                } else {
+                    throw error("Expected STRING or NUMBER but got " + describe(currentToken));
+                }
+                
+                expect(sym.SEMICOLON);
+                variables.put(name, new Variable(name, value, isString));
+            } catch (SyntaxError e) {
+                synchronize();
             }
-            
-            expect(sym.SEMICOLON);
-            variables.put(name, new Variable(name, value, isString));
         }
         
         return variables;
@@ -154,32 +283,84 @@ public class ParserCUP {
     private List<TestCase> parseTestBlocks() throws Exception {
         List<TestCase> tests = new ArrayList<>();
         
-        while (currentToken.sym == sym.TEST) {
-            expect(sym.TEST);
-            String name = (String)currentToken.value;
-            expect(sym.IDENTIFIER);
-            expect(sym.LBRACE);
+        while (currentToken.sym != sym.EOF) {
+            if (currentToken.sym != sym.TEST) {
+                // Stray tokens between tests: report once, then skip to the next test
+                error("Expected TEST but got " + describe(currentToken));
+                skipToTest();
+                continue;
+            }
             
-            TestCase testCase = new TestCase(name);
+            TestCase testCase;
+            try {
+                expect(sym.TEST);
+                String name = expectIdentifier();
+                testCase = new TestCase(name);
+                expect(sym.LBRACE);
+            } catch (SyntaxError e) {
+                skipToTest();
+                continue;
+            }
             
-            while (currentToken.sym != sym.RBRACE) {
-                if (currentToken.sym == sym.GET || currentToken.sym == sym.POST || 
-                    currentToken.sym == sym.PUT || currentToken.sym == sym.DELETE) {
-                    testCase.requests.add(parseHttpRequest());
-                } else if (currentToken.sym == sym.EXPECT) {
-                    testCase.assertions.add(parseAssertion());
-                } else {
-                    throw new RuntimeException("Unexpected token in test: " + currentToken);
+            while (currentToken.sym != sym.RBRACE && currentToken.sym != sym.EOF && currentToken.sym != sym.TEST) {
+                try {
+                    if (currentToken.sym == sym.GET || currentToken.sym == sym.POST || 
+                        currentToken.sym == sym.PUT || currentToken.sym == sym.DELETE) {
+                        testCase.requests.add(parseHttpRequest());
+                    } else if (currentToken.sym == sym.EXPECT) {
+                        testCase.assertions.add(parseAssertion());
+                    } else if (currentToken.sym == sym.LET) {
+                        parseExtraction(testCase);
+                    } else {
+                        throw error("Unexpected " + describe(currentToken) + " in test");
+                    }
+                } catch (SyntaxError e) {
+                    synchronize();
                 }
             }
             
-            expect(sym.RBRACE);
+            try {
+                expect(sym.RBRACE);
+            } catch (SyntaxError e) {
+                // Reported; the next test starts a new block
+            }
+            for (HttpRequest req : testCase.requests) {
+                req.extractions = pool.freeze(req.extractions);
+            }
+            testCase.requests = pool.freeze(testCase.requests);
+            testCase.assertions = pool.freeze(testCase.assertions);
             tests.add(testCase);
         }
         
         return tests;
     }
     
+    // let name = body.json "$.path";
+    private void parseExtraction(TestCase testCase) throws SyntaxError {
+        Symbol let = currentToken;
+        expect(sym.LET);
+        String name = expectIdentifier();
+        expect(sym.EQ);
+        expect(sym.BODY);
+        expect(sym.DOT);
+        if (currentToken.sym != sym.IDENTIFIER || !"json".equals(currentToken.value)) {
+            throw error("Expected json after body., got " + describe(currentToken));
+        }
+        advance();
+        Symbol pathToken = currentToken;
+        String path = expectString();
+        expect(sym.SEMICOLON);
+        
+        String problem = JsonPaths.check(path);
+        if (problem != null) {
+            diagnostics.add(new Diagnostic(pathToken.left, pathToken.right, problem));
+        } else if (testCase.requests.isEmpty()) {
+            diagnostics.add(new Diagnostic(let.left, let.right, "let " + name + " must follow a request"));
+        } else {
+            testCase.requests.get(testCase.requests.size() - 1).extractions.add(new Extraction(name, path));
+        }
+    }
+    
     private HttpRequest parseHttpRequest() throws Exception {
         String method;
         if (currentToken.sym == sym.GET) {
@@ -195,42 +376,55 @@ public class ParserCUP {
             method = "DELETE";
             expect(sym.DELETE);
         } else {
-            throw new RuntimeException("Expected HTTP method");
+            throw error("Expected HTTP method but got " + describe(currentToken));
         }
         
-        String path = (String)currentToken.value;
-        expect(sym.STRING);
+        String path = expectString();
         
         HttpRequest request = new HttpRequest(method, path);
         
         if (currentToken.sym == sym.LBRACE) {
             expect(sym.LBRACE);
             
-            while (currentToken.sym != sym.RBRACE) {
-                if (currentToken.sym == sym.HEADER) {
-                    expect(sym.HEADER);
-                    String key = (String)currentToken.value;
-                    expect(sym.STRING);
-                    expect(sym.EQ);
-                    String value = (String)currentToken.value;
-                    expect(sym.STRING);
-                    expect(sym.SEMICOLON);
-                    request.headers.put(key, value);
-                } else if (currentToken.sym == sym.BODY) {
-                    expect(sym.BODY);
-                    expect(sym.EQ);
-                    request.body = (String)currentToken.value;
-                    expect(sym.STRING);
-                    expect(sym.SEMICOLON);
-                } else {
-                    throw new RuntimeException("Unexpected token in request block: " + currentToken);
+            while (currentToken.sym != sym.RBRACE && currentToken.sym != sym.EOF && currentToken.sym != sym.TEST) {
+                try {
+                    if (currentToken.sym == sym.HEADER) {
+                        expect(sym.HEADER);
+                        String key = expectString();
+                        expect(sym.EQ);
+                        String value = expectString();
+                        expect(sym.SEMICOLON);
+                        request.headers.put(key, value);
+                    } else if (currentToken.sym == sym.BODY) {
+                        expect(sym.BODY);
+                        expect(sym.EQ);
+                        if (currentToken.sym == sym.IDENTIFIER && "file".equals(currentToken.value)) {
+                            advance();
+                            request.bodyFile = expectString();
+                            request.body = null;
+                        } else {
+                            request.body = expectString();
+                            request.bodyFile = null;
+                        }
+                        expect(sym.SEMICOLON);
+                    } else {
+                        throw error("Unexpected " + describe(currentToken) + " in request block");
+                    }
+                } catch (SyntaxError e) {
+                    synchronize();
                 }
             }
             
             expect(sym.RBRACE);
+            
+            // The ';' after a request block is optional
+            if (currentToken.sym == sym.SEMICOLON) {
+                expect(sym.SEMICOLON);
+            }
+        } else {
+            expect(sym.SEMICOLON);
         }
-        
-        expect(sym.SEMICOLON);
+        request.headers = pool.freeze(request.headers);
         return request;
     }
     
@@ -242,48 +436,164 @@ public class ParserCUP {
             expect(sym.EQ);
             Object expected = currentToken.value;
             expect(sym.NUMBER);
+            expected = pool.intern((Integer)expected);
             expect(sym.SEMICOLON);
             return new Assertion("status", expected, null);
         } else if (currentToken.sym == sym.HEADER) {
             expect(sym.HEADER);
-            String headerName = (String)currentToken.value;
-            expect(sym.STRING);
+            String headerName = expectString();
             
             if (currentToken.sym == sym.EQ) {
                 expect(sym.EQ);
-                String value = (String)currentToken.value;
-                expect(sym.STRING);
+                String value = expectString();
                 expect(sym.SEMICOLON);
                 return new Assertion("header_equals", headerName, value);
             } else if (currentToken.sym == sym.CONTAINS) {
                 expect(sym.CONTAINS);
-                String value = (String)currentToken.value;
-                expect(sym.STRING);
+                String value = expectString();
                 expect(sym.SEMICOLON);
                 return new Assertion("header_contains", headerName, value);
             } else {
-                throw new RuntimeException("Expected = or contains after header");
+                throw error("Expected EQ or CONTAINS after header but got " + describe(currentToken));
             }
         } else if (currentToken.sym == sym.BODY) {
             expect(sym.BODY);
             expect(sym.CONTAINS);
-            String value = (String)currentToken.value;
-            expect(sym.STRING);
+            String value = expectString();
             expect(sym.SEMICOLON);
             return new Assertion("body_contains", null, value);
+        } else if (currentToken.sym == sym.IDENTIFIER && "json".equals(currentToken.value)) {
+            advance();
+            return parseJsonAssertion();
         } else {
-            throw new RuntimeException("Unexpected assertion type: " + currentToken);
+            throw error("Expected STATUS, HEADER, BODY or json after expect but got " + describe(currentToken));
         }
     }
     
-    private void expect(int expectedSym) throws Exception {
+    // json "$.path" = NUMBER | STRING | true | false | null ;
+    // json "$.path" exists ;
+    // json "$.path" size = NUMBER ;
+    private Assertion parseJsonAssertion() throws SyntaxError {
+        Symbol pathToken = currentToken;
+        String path = expectString();
+        Assertion assertion;
+        if (currentToken.sym == sym.EQ) {
+            advance();
+            Object value = currentToken.value;
+            if (currentToken.sym == sym.STRING) {
+                assertion = new Assertion("json_equals", expectString(), path);
+            } else if (currentToken.sym == sym.NUMBER) {
+                advance();
+                assertion = new Assertion("json_equals", pool.intern((Integer)value), path);
+            } else if (currentToken.sym == sym.IDENTIFIER && JsonPaths.isLiteral((String)value)) {
+                advance();
+                assertion = new Assertion("json_equals", JsonPaths.literal((String)value), path);
+            } else {
+                throw error("Expected NUMBER, STRING, true, false or null after = but got " + describe(currentToken));
+            }
+        } else if (currentToken.sym == sym.IDENTIFIER && "exists".equals(currentToken.value)) {
+            advance();
+            assertion = new Assertion("json_exists", null, path);
+        } else if (currentToken.sym == sym.IDENTIFIER && "size".equals(currentToken.value)) {
+            advance();
+            expect(sym.EQ);
+            Object size = currentToken.value;
+            expect(sym.NUMBER);
+            assertion = new Assertion("json_size", pool.intern((Integer)size), path);
+        } else {
+            throw error("Expected EQ, exists or size after JSON path but got " + describe(currentToken));
+        }
+        expect(sym.SEMICOLON);
+        
+        String problem = JsonPaths.check(path);
+        if (problem != null) {
+            diagnostics.add(new Diagnostic(pathToken.left, pathToken.right, problem));
+        }
+        return assertion;
+    }
+    
+    private void expect(int expectedSym) throws SyntaxError {
         if (currentToken.sym != expectedSym) {
-            throw new RuntimeException("Expected " + expectedSym + " but got " + currentToken.sym);
+            throw error("Expected " + tokenName(expectedSym) + " but got " + describe(currentToken));
+        }
+        advance();
+    }
+    
+    private String expectString() throws SyntaxError {
+        Object value = currentToken.value;
+        expect(sym.STRING);
+        return pool.intern((String)value);
+    }
+    
+    private String expectIdentifier() throws SyntaxError {
+        Object value = currentToken.value;
+        expect(sym.IDENTIFIER);
+        return (String)value;
+    }
+    
+    // Panic mode: skip to just after the next ';', or up to the next 'test', '}' or EOF
+    private void synchronize() {
+        while (currentToken.sym != sym.EOF) {
+            if (currentToken.sym == sym.SEMICOLON) {
+                advance();
+                return;
+            }
+            if (currentToken.sym == sym.TEST || currentToken.sym == sym.RBRACE) {
+                return;
+            }
+            advance();
+        }
+    }
+    
+    private void skipToTest() {
+        while (currentToken.sym != sym.TEST && currentToken.sym != sym.EOF) {
+            advance();
         }
+    }
+    
+    private void advance() {
         try {
             currentToken = lexer.next_token();
-        } catch (IOException e) {
+        } catch (Exception e) {
             throw new RuntimeException("Error reading next token", e);
         }
+        while (currentToken.sym == sym.error) {
+            diagnostics.add(lexerError(currentToken));
+            if (currentToken.sym != sym.error) break;
+            try {
+                currentToken = lexer.next_token();
+            } catch (Exception e) {
+                throw new RuntimeException("Error reading next token", e);
+            }
+        }
+    }
+    
+    // The lexers send an unknown character, or the digits of a number too large for an
+    // int, as sym.error. The number becomes NUMBER 0 so parsing goes on as after any
+    // number, with a single diagnostic like the handwritten parser's; a character is skipped.
+    static Diagnostic lexerError(Symbol token) {
+        String text = (String)token.value;
+        if (Character.isDigit(text.charAt(0))) {
+            token.sym = sym.NUMBER;
+            token.value = 0;
+            return new Diagnostic(token.left, token.right, "Invalid number " + text);
+        }
+        return new Diagnostic(token.left, token.right, "Unexpected character '" + text + "'");
+    }
+    
+    private SyntaxError error(String message) {
+        diagnostics.add(new Diagnostic(currentToken.left, currentToken.right, message));
+        return new SyntaxError();
+    }
+    
+    static String tokenName(int id) {
+        return id >= 0 && id < sym.terminalNames.length ? sym.terminalNames[id] : "token " + id;
+    }
+    
+    // Token name, plus the text for literals and identifiers
+    static String describe(Symbol token) {
+        if (token.sym == sym.STRING) return "STRING \"" + token.value + "\"";
+        if (token.sym == sym.NUMBER || token.sym == sym.IDENTIFIER) return tokenName(token.sym) + " " + token.value;
+        return tokenName(token.sym);
     }
 }
@@ -0,0 +1,200 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import testlangcompiler.runtime.Results;
+
+// Aggregates result files written by instrumented suites (-Dtestlang.results)
+// in a single pass: per-test pass/fail and duration, per-request status,
+// latency percentiles and bytes. Memory depends on the number of distinct
+// tests and requests, not on the number of records. Files from several shards
+// or machines are merged into one report; --update-timings also folds the
+// per-test mean durations into the TimingStore used by --shards. Each record
+// is folded in once: the store keeps how much of every file it has read, so a
+// file a later run appended to only adds the new records, and running it again
+// on the same files leaves the timings as they are.
+//
+//   java -cp target/classes testlangcompiler.ResultSummary [--update-timings FILE] results.bin [more files...]
+public class ResultSummary {
+    
+    // Log-scale latency histogram: buckets grow by 5%, so percentiles are
+    // accurate to within that
+    static final class Histogram {
+        private static final double RATIO = Math.log(1.05);
+        private final long[] counts = new long[512];
+        private long total;
+        private long max;
+        
+        void add(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            counts[Math.min(counts.length - 1, (int)(Math.log(micros) / RATIO))]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+        
+        // Upper bound of the bucket holding the given fraction, in milliseconds
+        double percentile(double fraction) {
+            long rank = (long)Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(Math.exp((i + 1) * RATIO), max / 1000.0) / 1000.0;
+                }
+            }
+            return max / 1e6;
+        }
+    }
+    
+    static final class TestStats {
+        long runs;
+        long failed;
+        long totalNanos;
+        final Histogram duration = new Histogram();
+    }
+    
+    static final class RequestStats {
+        long count;
+        long errors;  // status >= 400
+        long bytes;
+        final Histogram latency = new Histogram();
+    }
+    
+    final Map<String, TestStats> tests = new TreeMap<>();
+    final Map<String, RequestStats> requests = new TreeMap<>();
+    long records;
+    long dropped;
+    
+    void add(Results.Record r) {
+        records++;
+        if (r.type == Results.TEST) {
+            TestStats t = tests.computeIfAbsent(r.test, k -> new TestStats());
+            t.runs++;
+            if (!r.passed) t.failed++;
+            t.totalNanos += r.nanos;
+            t.duration.add(r.nanos);
+        } else if (r.type == Results.REQUEST) {
+            RequestStats s = requests.computeIfAbsent(r.request, k -> new RequestStats());
+            s.count++;
+            if (r.status >= 400) s.errors++;
+            if (r.bytes > 0) s.bytes += r.bytes;
+            s.latency.add(r.nanos);
+        } else if (r.type == Results.DROPPED) {
+            // bytes holds the number of records the writer dropped
+            dropped += r.bytes;
+        }
+    }
+    
+    void print() {
+        long runs = 0;
+        long failed = 0;
+        for (TestStats t : tests.values()) {
+            runs += t.runs;
+            failed += t.failed;
+        }
+        System.out.printf("%,d records: %,d test runs, %,d failed%n", records, runs, failed);
+        if (dropped > 0) {
+            System.out.printf("%,d records were dropped while the writer was behind%n", dropped);
+        }
+        
+        System.out.printf("%n%-32s %8s %8s %10s %10s %10s%n", "test", "runs", "failed", "p50 ms", "p95 ms", "max ms");
+        for (Map.Entry<String, TestStats> e : tests.entrySet()) {
+            TestStats t = e.getValue();
+            System.out.printf("%-32s %,8d %,8d %10.2f %10.2f %10.2f%n", e.getKey(), t.runs, t.failed,
+                t.duration.percentile(0.5), t.duration.percentile(0.95), t.duration.max / 1e6);
+        }
+        
+        System.out.printf("%n%-40s %8s %8s %10s %10s %10s %12s%n", "request", "count", ">=400", "p50 ms", "p99 ms",
+            "max ms", "bytes");
+        for (Map.Entry<String, RequestStats> e : requests.entrySet()) {
+            RequestStats s = e.getValue();
+            System.out.printf("%-40s %,8d %,8d %10.2f %10.2f %10.2f %,12d%n", e.getKey(), s.count, s.errors,
+                s.latency.percentile(0.5), s.latency.percentile(0.99), s.latency.max / 1e6, s.bytes);
+        }
+    }
+    
+    // Folds these stats (the records not folded yet of the files read) into the store and saves it
+    void updateTimings(TimingStore store, Map<String, TimingStore.Folded> read, Path file) throws IOException {
+        if (records == 0) {
+            System.out.printf("%n%s already has these results%n", file);
+            return;
+        }
+        for (Map.Entry<String, TestStats> e : tests.entrySet()) {
+            TestStats t = e.getValue();
+            store.update(e.getKey(), t.totalNanos / t.runs, t.runs);
+        }
+        for (Map.Entry<String, TimingStore.Folded> e : read.entrySet()) {
+            store.fold(e.getKey(), e.getValue());
+        }
+        store.save(file);
+        System.out.printf("%nUpdated %s (%,d tests)%n", file, store.size());
+    }
+    
+    // Prints the summary of the files; with a timings file, folds in the records it doesn't have yet
+    static ResultSummary run(List<Path> files, Path timings) throws IOException {
+        ResultSummary summary = new ResultSummary();
+        ResultSummary unfolded = new ResultSummary();
+        TimingStore store = timings != null ? TimingStore.load(timings) : null;
+        Map<String, TimingStore.Folded> read = new LinkedHashMap<>();
+        for (Path file : files) {
+            String path = file.toAbsolutePath().normalize().toString();
+            // Records before this index were folded in by an earlier update
+            long skip = store == null || read.containsKey(path) ? Long.MAX_VALUE : foldedRecords(store.folded(path), file);
+            long size = Files.size(file);
+            long[] count = {0};
+            Results.read(file, r -> {
+                summary.add(r);
+                if (count[0]++ >= skip) unfolded.add(r);
+            });
+            if (skip != Long.MAX_VALUE) {
+                read.put(path, new TimingStore.Folded(digest(file, size), size, count[0]));
+            }
+        }
+        summary.print();
+        if (store != null) {
+            unfolded.updateTimings(store, read, timings);
+        }
+        return summary;
+    }
+    
+    // Records of the file folded in before: none unless it still starts with the bytes folded then
+    private static long foldedRecords(TimingStore.Folded folded, Path file) throws IOException {
+        if (folded == null || Files.size(file) < folded.bytes) return 0;
+        return digest(file, folded.bytes).equals(folded.digest) ? folded.records : 0;
+    }
+    
+    // SHA-256 of the first `bytes` bytes of a results file
+    static String digest(Path file, long bytes) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[1 << 16];
+            for (int n; bytes > 0 && (n = in.read(buf, 0, (int)Math.min(buf.length, bytes))) > 0; bytes -= n) {
+                md.update(buf, 0, n);
+            }
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Path timings = null;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--update-timings") && i + 1 < args.length) {
+                timings = Paths.get(args[++i]);
+            } else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: java testlangcompiler.ResultSummary [--update-timings FILE] <results file> [...]");
+            System.exit(1);
+        }
+        run(files, timings);
+    }
+}
@@ -0,0 +1,225 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Runs the whole compile pipeline (read, parse, generate, write) on generated
+// suites of growing size and shows how time and heap grow with the number of
+// tests. Growth is the log-log slope between neighbouring sizes: about 1 is
+// linear, clearly above 1 means something is superlinear (a quadratic scan,
+// reflection in an inner loop, copying the whole input per line, ...).
+//
+//   java testlangcompiler.ScalingBenchmark [--sizes 1000,10000,100000] [--frontends handwritten,cup]
+//        [--max-tests N] [--compact] [--csv FILE] [--check] [CorpusGenerator shape options]
+public class ScalingBenchmark {
+    
+    // A slope above this between two sizes is reported as superlinear
+    private static final double SUPERLINEAR = 1.25;
+    // Runs shorter than this are too noisy to judge
+    private static final long MIN_NANOS = 20_000_000;
+    
+    static class Run {
+        final String frontend;
+        final int tests;
+        final long inputBytes;
+        long read, parse, generate, write;
+        long heapPeak;
+        
+        Run(String frontend, int tests, long inputBytes) {
+            this.frontend = frontend;
+            this.tests = tests;
+            this.inputBytes = inputBytes;
+        }
+        
+        long total() {
+            return read + parse + generate + write;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        CorpusGenerator.Shape shape = new CorpusGenerator.Shape();
+        List<Integer> sizes = List.of(1000, 10000, 100000);
+        List<Frontend> frontends = List.of(Frontend.HANDWRITTEN, Frontend.CUP);
+        CodeGenerator.Options options = new CodeGenerator.Options();
+        Path csv = null;
+        boolean check = false;
+        boolean compact = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                int next = CorpusGenerator.parseOption(args, i, shape);
+                if (next >= 0) {
+                    i = next;
+                } else if (args[i].equals("--sizes")) {
+                    sizes = new ArrayList<>();
+                    for (String size : args[++i].split(",")) sizes.add(Integer.parseInt(size.replace("_", "")));
+                } else if (args[i].equals("--frontends")) {
+                    frontends = new ArrayList<>();
+                    for (String id : args[++i].split(",")) frontends.add(Frontend.fromId(id));
+                } else if (args[i].equals("--max-tests")) {
+                    options.maxTestsPerShard = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--compact")) {
+                    compact = true;
+                } else if (args[i].equals("--csv")) {
+                    csv = Paths.get(args[++i]);
+                } else if (args[i].equals("--check")) {
+                    check = true;
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java testlangcompiler.ScalingBenchmark [--sizes N,N,...] [--frontends ID,...]");
+            System.err.println("         [--max-tests N] [--compact] [--csv FILE] [--check]");
+            System.err.println("         [--requests N] [--headers N] [--variables N] [--body-bytes N] [--seed N]");
+            System.err.println("  --check exits with 1 if time or heap grows superlinearly.");
+            System.exit(1);
+        }
+        
+        Path dir = Files.createTempDirectory("testlang-scaling");
+        try {
+            List<Run> runs = new ArrayList<>();
+            List<Path> inputs = new ArrayList<>();
+            for (int size : sizes) {
+                shape.tests = size;
+                Path input = dir.resolve("suite-" + size + ".test");
+                try (Writer out = Files.newBufferedWriter(input, StandardCharsets.UTF_8)) {
+                    CorpusGenerator.write(shape, out);
+                }
+                inputs.add(input);
+            }
+            shape.tests = sizes.get(0);
+            System.out.println("Suites: " + shape + " (tests varying)");
+            System.out.println();
+            
+            for (Frontend frontend : frontends) {
+                // Warm up on the smallest suite so the first size isn't mostly JIT time
+                for (int i = 0; i < 5; i++) {
+                    run(frontend, compact, inputs.get(0), sizes.get(0), options, dir);
+                }
+                for (int s = 0; s < sizes.size(); s++) {
+                    int repeats = sizes.get(s) <= 10000 ? 5 : sizes.get(s) <= 100000 ? 3 : 1;
+                    Run best = null;
+                    for (int r = 0; r < repeats; r++) {
+                        Run run = run(frontend, compact, inputs.get(s), sizes.get(s), options, dir);
+                        if (best == null || run.total() < best.total()) best = run;
+                    }
+                    runs.add(best);
+                }
+            }
+            
+            boolean superlinear = report(runs);
+            if (csv != null) {
+                writeCsv(runs, csv);
+                System.out.println("Wrote " + csv);
+            }
+            if (check && superlinear) {
+                System.exit(1);
+            }
+        } finally {
+            try (var files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+    
+    // One pass through the pipeline as TestlangCompiler runs it
+    private static Run run(Frontend frontend, boolean compact, Path input, int tests, CodeGenerator.Options options,
+                           Path dir) throws Exception {
+        Run run = new Run(frontend.id, tests, Files.size(input));
+        List<MemoryPoolMXBean> pools = heapPools();
+        System.gc();
+        long baseline = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            pool.resetPeakUsage();
+            baseline += pool.getUsage().getUsed();
+        }
+        
+        // Phase boundaries: each one is taken when the phase before it is done
+        long start = System.nanoTime();
+        String source = Files.readString(input, StandardCharsets.UTF_8);
+        long readDone = System.nanoTime();
+        Object unit = frontend.parse(source, compact ? new StringPool() : StringPool.NONE);
+        source = null;
+        long parseDone = System.nanoTime();
+        Map<String, String> code = frontend.generate(unit, options);
+        long generateDone = System.nanoTime();
+        for (Map.Entry<String, String> file : code.entrySet()) {
+            Files.write(dir.resolve(file.getKey() + ".java"), file.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        long writeDone = System.nanoTime();
+        
+        run.read = readDone - start;
+        run.parse = parseDone - readDone;
+        run.generate = generateDone - parseDone;
+        run.write = writeDone - generateDone;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        run.heapPeak = Math.max(0, peak - baseline);
+        return run;
+    }
+    
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) pools.add(pool);
+        }
+        return pools;
+    }
+    
+    // Prints the table and the growth curve; true if anything grew superlinearly
+    private static boolean report(List<Run> runs) {
+        boolean superlinear = false;
+        System.out.printf("%-12s %10s %9s %8s %9s %9s %8s %9s %8s %10s %7s %7s%n", "frontend", "tests", "input MB",
+            "read ms", "parse ms", "gen ms", "write ms", "total ms", "us/test", "heap MB", "time^", "heap^");
+        Run previous = null;
+        for (Run run : runs) {
+            String timeGrowth = "";
+            String heapGrowth = "";
+            List<String> flags = new ArrayList<>();
+            if (previous != null && previous.frontend.equals(run.frontend)) {
+                double scale = Math.log((double)run.tests / previous.tests);
+                double time = Math.log((double)run.total() / previous.total()) / scale;
+                timeGrowth = String.format("%.2f", time);
+                if (time > SUPERLINEAR && run.total() > MIN_NANOS) flags.add("time");
+                if (previous.heapPeak > 0 && run.heapPeak > 0) {
+                    double heap = Math.log((double)run.heapPeak / previous.heapPeak) / scale;
+                    heapGrowth = String.format("%.2f", heap);
+                    if (heap > SUPERLINEAR && run.heapPeak > 64L << 20) flags.add("heap");
+                }
+            }
+            System.out.printf("%-12s %,10d %9.1f %8.1f %9.1f %9.1f %8.1f %9.1f %8.2f %10.1f %7s %7s%s%n",
+                run.frontend, run.tests, run.inputBytes / 1e6, run.read / 1e6, run.parse / 1e6, run.generate / 1e6,
+                run.write / 1e6, run.total() / 1e6, run.total() / 1e3 / run.tests, run.heapPeak / 1e6,
+                timeGrowth, heapGrowth, flags.isEmpty() ? "" : "  <- superlinear " + String.join(", ", flags));
+            superlinear |= !flags.isEmpty();
+            previous = run;
+        }
+        
+        // Cost per test should stay flat as the suite grows
+        System.out.println();
+        System.out.println("Microseconds per test (flat = linear):");
+        double max = 0;
+        for (Run run : runs) max = Math.max(max, run.total() / 1e3 / run.tests);
+        for (Run run : runs) {
+            double perTest = run.total() / 1e3 / run.tests;
+            System.out.printf("  %-12s %,10d |%-50s %.2f%n", run.frontend, run.tests,
+                "#".repeat((int)Math.round(perTest / max * 50)), perTest);
+        }
+        return superlinear;
+    }
+    
+    private static void writeCsv(List<Run> runs, Path csv) throws IOException {
+        StringBuilder text = new StringBuilder("frontend,tests,input_bytes,read_ns,parse_ns,generate_ns,write_ns,heap_peak_bytes\n");
+        for (Run run : runs) {
+            text.append(run.frontend).append(',').append(run.tests).append(',').append(run.inputBytes).append(',')
+                .append(run.read).append(',').append(run.parse).append(',').append(run.generate).append(',')
+                .append(run.write).append(',').append(run.heapPeak).append('\n');
+        }
+        Files.write(csv, text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,115 @@
+package testlangcompiler;
+
+import java.util.*;
+
+// Backing store for the compact AST mode. Literals are interned so repeated
+// header names, paths and assertion strings share one String, and collections
+// are frozen into exact-size immutable forms, with shared empty instances.
+// NONE leaves everything as allocated, which is the default for both parsers.
+public class StringPool {
+    
+    public static final StringPool NONE = new StringPool() {
+        public String intern(String s) {
+            return s;
+        }
+        
+        public Integer intern(Integer i) {
+            return i;
+        }
+        
+        public Map<String, String> freeze(Map<String, String> map) {
+            return map;
+        }
+        
+        public <T> List<T> freeze(List<T> list) {
+            return list;
+        }
+    };
+    
+    private final HashMap<String, String> strings = new HashMap<>();
+    private final HashMap<Integer, Integer> numbers = new HashMap<>();
+    
+    public String intern(String s) {
+        if (s == null) return null;
+        String pooled = strings.putIfAbsent(s, s);
+        return pooled != null ? pooled : s;
+    }
+    
+    public Integer intern(Integer i) {
+        if (i == null) return null;
+        Integer pooled = numbers.putIfAbsent(i, i);
+        return pooled != null ? pooled : i;
+    }
+    
+    public int size() {
+        return strings.size();
+    }
+    
+    // Immutable copy backed by one flat key/value array, or the shared empty map
+    public Map<String, String> freeze(Map<String, String> map) {
+        if (map.isEmpty()) return Collections.emptyMap();
+        String[] entries = new String[map.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            entries[i++] = intern(e.getKey());
+            entries[i++] = intern(e.getValue());
+        }
+        return new CompactMap(entries);
+    }
+    
+    // Immutable exact-size copy, or the shared empty list
+    public <T> List<T> freeze(List<T> list) {
+        if (list.isEmpty()) return Collections.emptyList();
+        return List.copyOf(list);
+    }
+    
+    // Insertion-ordered map over a flat [key0, value0, key1, value1, ...] array.
+    // Lookups scan linearly, which is faster than hashing for a few headers.
+    static final class CompactMap extends AbstractMap<String, String> {
+        private final String[] entries;
+        
+        CompactMap(String[] entries) {
+            this.entries = entries;
+        }
+        
+        public int size() {
+            return entries.length / 2;
+        }
+        
+        public String get(Object key) {
+            for (int i = 0; i < entries.length; i += 2) {
+                if (entries[i].equals(key)) return entries[i + 1];
+            }
+            return null;
+        }
+        
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+        
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                public int size() {
+                    return entries.length / 2;
+                }
+                
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int i = 0;
+                        
+                        public boolean hasNext() {
+                            return i < entries.length;
+                        }
+                        
+                        public Map.Entry<String, String> next() {
+                            if (i >= entries.length) throw new NoSuchElementException();
+                            Map.Entry<String, String> e = new SimpleImmutableEntry<>(entries[i], entries[i + 1]);
+                            i += 2;
+                            return e;
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
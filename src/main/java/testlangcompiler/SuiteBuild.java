@@ -0,0 +1,219 @@
+package testlangcompiler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+// Compiles every .test file under a directory into one test class each, and
+// on later runs only the files whose source or imports changed. The state of
+// the last build (per file: key of the file and its imports, class name) is
+// kept in the output directory. Files without tests are only imported and
+// produce no class.
+//
+//   java -cp target/classes testlangcompiler.SuiteBuild src/test/api build/generated [--frontend lalr] [--threads N]
+public class SuiteBuild {
+    
+    static final String STATE_FILE = ".testlang-build";
+    
+    private final Path sourceDir;
+    private final Path outputDir;
+    private final Frontend frontend;
+    private final SuiteLoader loader;
+    private final int threads;
+    
+    public SuiteBuild(Path sourceDir, Path outputDir, Frontend frontend, boolean compact, int threads) {
+        this.sourceDir = sourceDir.toAbsolutePath().normalize();
+        this.outputDir = outputDir;
+        this.frontend = frontend;
+        this.loader = new SuiteLoader(frontend, compact);
+        this.threads = threads;
+    }
+    
+    // usages.test -> UsagesTests, user-api.test -> UserApiTests
+    static String className(Path file) {
+        String stem = file.getFileName().toString().replaceFirst("\\.test$", "");
+        StringBuilder name = new StringBuilder();
+        boolean upper = true;
+        for (char c : stem.toCharArray()) {
+            if (!Character.isLetterOrDigit(c)) {
+                upper = true;
+            } else {
+                name.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        }
+        if (name.length() == 0 || !Character.isLetter(name.charAt(0))) name.insert(0, 'T');
+        return name + "Tests";
+    }
+    
+    // Returns the number of files that failed to compile
+    public int run() throws Exception {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(sourceDir)) {
+            files = walk.filter(p -> p.toString().endsWith(".test") && Files.isRegularFile(p)).sorted()
+                        .collect(Collectors.toList());
+        }
+        Map<String, String[]> previous = readState();
+        Map<String, String[]> state = new TreeMap<>();
+        
+        // Files that map to one class name would overwrite each other's class,
+        // so all of them are rejected before anything is compiled or written
+        Map<String, List<Path>> byClass = new HashMap<>();
+        for (Path file : files) {
+            byClass.computeIfAbsent(className(file), k -> new ArrayList<>()).add(file);
+        }
+        Set<Path> clashing = new HashSet<>();
+        for (Map.Entry<String, List<Path>> e : byClass.entrySet()) {
+            if (e.getValue().size() < 2) continue;
+            clashing.addAll(e.getValue());
+            for (Path file : e.getValue()) {
+                List<String> others = new ArrayList<>();
+                for (Path other : e.getValue()) {
+                    if (other != file) others.add(relative(other));
+                }
+                System.err.println(relative(file) + ": class " + e.getKey() + " is also generated from "
+                    + String.join(", ", others) + ", rename one of them");
+            }
+        }
+        
+        // Work out what changed from the sources alone: a file is rebuilt when
+        // its key (its text plus everything it imports) differs from last time
+        Map<Path, Set<Path>> dependents = new HashMap<>();
+        Map<Path, String> keys = new LinkedHashMap<>();
+        List<Path> dirty = new ArrayList<>();
+        for (Path file : files) {
+            for (Path imported : loader.closure(file)) {
+                dependents.computeIfAbsent(imported, k -> new TreeSet<>()).add(file);
+            }
+            if (clashing.contains(file)) continue;
+            String key = loader.key(file);
+            keys.put(file, key);
+            String[] last = previous.get(relative(file));
+            boolean upToDate = last != null && last[0].equals(key)
+                && (last[1].equals("-") || Files.exists(outputDir.resolve(last[1] + ".java")));
+            if (upToDate) {
+                state.put(relative(file), last);
+            } else {
+                dirty.add(file);
+            }
+        }
+        for (Path file : dirty) {
+            Set<Path> users = dependents.get(file.toAbsolutePath().normalize());
+            if (previous.containsKey(relative(file)) && users.size() > 1) {
+                System.out.println(relative(file) + " changed, rebuilding " + (users.size() - 1) + " file(s) that import it");
+            }
+        }
+        
+        // Compile the changed files in parallel; shared imports are parsed once
+        Files.createDirectories(outputDir);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, dirty.size())));
+        Map<Path, Future<String>> results = new LinkedHashMap<>();
+        for (Path file : dirty) {
+            results.put(file, pool.submit(() -> compile(file)));
+        }
+        pool.shutdown();
+        
+        int failed = 0;
+        for (Map.Entry<Path, Future<String>> r : results.entrySet()) {
+            Path file = r.getKey();
+            try {
+                state.put(relative(file), new String[] {keys.get(file), r.getValue().get()});
+            } catch (ExecutionException e) {
+                failed++;
+                if (e.getCause() instanceof CompileException) {
+                    for (Diagnostic d : ((CompileException)e.getCause()).getDiagnostics()) {
+                        System.err.println(relative(file) + ":" + d);
+                    }
+                } else {
+                    System.err.println(relative(file) + ": " + e.getCause());
+                }
+            }
+        }
+        
+        // Remove classes of deleted files, and classes that a file no longer produces
+        Set<String> current = new HashSet<>();
+        for (String[] entry : state.values()) current.add(entry[1]);
+        for (String[] entry : previous.values()) {
+            if (!entry[1].equals("-") && !current.contains(entry[1])) {
+                Files.deleteIfExists(outputDir.resolve(entry[1] + ".java"));
+            }
+        }
+        
+        writeState(state);
+        failed += clashing.size();
+        System.out.println("Compiled " + (dirty.size() - failed + clashing.size()) + " of " + files.size() + " file(s), "
+            + (files.size() - dirty.size() - clashing.size()) + " up to date, " + loader.getParseCount() + " parsed"
+            + (failed > 0 ? ", " + failed + " failed" : ""));
+        return failed;
+    }
+    
+    // Writes the file's class and returns its name, or "-" when it has no tests
+    private String compile(Path file) throws Exception {
+        Object unit = loader.load(file);
+        List<?> tests = (List<?>)CodeGenerator.getField(unit, "testMethods");
+        if (tests == null || tests.isEmpty()) return "-";
+        CodeGenerator.Options options = new CodeGenerator.Options();
+        options.className = className(file);
+        String code = frontend.generate(unit, options).get(options.className);
+        Files.write(outputDir.resolve(options.className + ".java"), code.getBytes(StandardCharsets.UTF_8));
+        return options.className;
+    }
+    
+    private String relative(Path file) {
+        return sourceDir.relativize(file.toAbsolutePath().normalize()).toString();
+    }
+    
+    // One line per source file: path, key, class name ("-" for none)
+    private Map<String, String[]> readState() throws IOException {
+        Map<String, String[]> state = new HashMap<>();
+        Path file = outputDir.resolve(STATE_FILE);
+        if (!Files.exists(file)) return state;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t");
+            if (parts.length == 3) state.put(parts[0], new String[] {parts[1], parts[2]});
+        }
+        return state;
+    }
+    
+    private void writeState(Map<String, String[]> state) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String[]> e : state.entrySet()) {
+            text.append(e.getKey()).append('\t').append(e.getValue()[0]).append('\t').append(e.getValue()[1]).append('\n');
+        }
+        Path tmp = Files.createTempFile(outputDir, STATE_FILE, ".tmp");
+        Files.write(tmp, text.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, outputDir.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Frontend frontend = Frontend.HANDWRITTEN;
+        boolean compact = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> dirs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--frontend")) {
+                    frontend = Frontend.fromId(args[++i]);
+                } else if (args[i].equals("--compact")) {
+                    compact = true;
+                } else if (args[i].equals("--threads")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else {
+                    dirs.add(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            dirs.clear();
+        }
+        if (dirs.size() != 2) {
+            System.err.println("Usage: java testlangcompiler.SuiteBuild <source dir> <output dir>");
+            System.err.println("         [--frontend handwritten|cup|jflex|lalr] [--compact] [--threads N]");
+            System.exit(1);
+        }
+        int failed = new SuiteBuild(Paths.get(dirs.get(0)), Paths.get(dirs.get(1)), frontend, compact, threads).run();
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
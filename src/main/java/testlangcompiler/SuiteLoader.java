@@ -0,0 +1,241 @@
+package testlangcompiler;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Loads .test files together with the files they import. Imports are applied
+// in order before the file's own config and variables, so the importing file
+// can override base_url, headers, settings and variables; tests of imported
+// files are not included. A loader reads and parses each file at most once,
+// also when several threads load suites that share an import.
+public class SuiteLoader {
+    
+    private final Frontend frontend;
+    private final boolean compact;
+    private final ConcurrentHashMap<Path, String> sources = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, CompletableFuture<Object>> units = new ConcurrentHashMap<>();
+    private final AtomicInteger parses = new AtomicInteger();
+    
+    public SuiteLoader(Frontend frontend, boolean compact) {
+        this.frontend = frontend;
+        this.compact = compact;
+    }
+    
+    // Number of files parsed so far
+    public int getParseCount() {
+        return parses.get();
+    }
+    
+    public String source(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        String source = sources.get(key);
+        if (source == null) {
+            source = new String(Files.readAllBytes(key), StandardCharsets.UTF_8);
+            sources.putIfAbsent(key, source);
+        }
+        return source;
+    }
+    
+    // Imports of a file, resolved against its directory, found by scanning the
+    // start of the file instead of parsing it (imports must come first)
+    public List<Path> imports(Path file) throws IOException {
+        List<Path> imports = new ArrayList<>();
+        Path dir = file.toAbsolutePath().normalize().getParent();
+        for (String path : scanImports(source(file))) {
+            imports.add(dir.resolve(path).normalize());
+        }
+        return imports;
+    }
+    
+    // The file and everything it imports, directly or not, each once
+    public Set<Path> closure(Path file) throws IOException {
+        Set<Path> closure = new LinkedHashSet<>();
+        Deque<Path> pending = new ArrayDeque<>();
+        pending.add(file.toAbsolutePath().normalize());
+        while (!pending.isEmpty()) {
+            Path next = pending.poll();
+            if (closure.add(next) && Files.exists(next)) {
+                pending.addAll(imports(next));
+            }
+        }
+        return closure;
+    }
+    
+    // Cache key of a file and its imports; equals CompileCache.key for a file without imports
+    public String key(Path file) throws IOException {
+        StringBuilder text = new StringBuilder(source(file));
+        Iterator<Path> closure = closure(file).iterator();
+        closure.next();
+        while (closure.hasNext()) {
+            Path imported = closure.next();
+            text.append('\0').append(imported).append('\0').append(Files.exists(imported) ? source(imported) : "");
+        }
+        return CompileCache.key(frontend, text);
+    }
+    
+    // The parsed file with its imports applied
+    public Object load(Path file) throws Exception {
+        Path root = file.toAbsolutePath().normalize();
+        Object unit = parse(root);
+        List<?> imports = (List<?>)CodeGenerator.getField(unit, "imports");
+        if (imports == null || imports.isEmpty()) return unit;
+        
+        Deque<Path> stack = new ArrayDeque<>();
+        stack.push(root);
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Object merged = copy(unit);
+        for (Object imp : imports) {
+            Object shared = resolve(root, imp, stack, diagnostics);
+            if (shared != null) mergeInto(merged, shared);
+        }
+        if (!diagnostics.isEmpty()) {
+            throw new CompileException(diagnostics);
+        }
+        mergeInto(merged, unit);
+        return merged;
+    }
+    
+    // Effective config and variables of an imported file, or null after reporting
+    // a problem at the import statement
+    private Object resolve(Path importer, Object imp, Deque<Path> stack, List<Diagnostic> diagnostics) throws Exception {
+        String path = (String)CodeGenerator.getField(imp, "path");
+        int line = (Integer)CodeGenerator.getField(imp, "line");
+        int column = (Integer)CodeGenerator.getField(imp, "column");
+        Path file = importer.getParent().resolve(path).normalize();
+        
+        if (stack.contains(file)) {
+            StringBuilder cycle = new StringBuilder();
+            for (Iterator<Path> it = stack.descendingIterator(); it.hasNext(); ) {
+                cycle.append(it.next().getFileName()).append(" -> ");
+            }
+            diagnostics.add(new Diagnostic(line, column, "Import cycle: " + cycle + file.getFileName()));
+            return null;
+        }
+        if (!Files.isRegularFile(file)) {
+            diagnostics.add(new Diagnostic(line, column, "Cannot find import " + path));
+            return null;
+        }
+        
+        Object unit;
+        try {
+            unit = parse(file);
+        } catch (CompileException e) {
+            for (Diagnostic d : e.getDiagnostics()) {
+                diagnostics.add(new Diagnostic(line, column, "In " + path + ":" + d));
+            }
+            return null;
+        }
+        
+        Object merged = copy(unit);
+        List<Diagnostic> nested = new ArrayList<>();
+        stack.push(file);
+        for (Object next : (List<?>)CodeGenerator.getField(unit, "imports")) {
+            Object shared = resolve(file, next, stack, nested);
+            if (shared != null) mergeInto(merged, shared);
+        }
+        stack.pop();
+        for (Diagnostic d : nested) {
+            diagnostics.add(new Diagnostic(line, column, "In " + path + ":" + d));
+        }
+        mergeInto(merged, unit);
+        return merged;
+    }
+    
+    private Object parse(Path file) throws Exception {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = units.putIfAbsent(file, future);
+        if (existing == null) {
+            try {
+                future.complete(frontend.parse(source(file), compact ? new StringPool() : StringPool.NONE));
+                parses.incrementAndGet();
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+            existing = future;
+        }
+        try {
+            return existing.join();
+        } catch (CompletionException e) {
+            throw (Exception)e.getCause();
+        }
+    }
+    
+    // Same tests and imports, empty config and variables to merge into; the
+    // parsed unit itself may be shared with other importers
+    private static Object copy(Object unit) throws Exception {
+        Object copy = unit.getClass().getDeclaredConstructor().newInstance();
+        copy.getClass().getField("testMethods").set(copy, CodeGenerator.getField(unit, "testMethods"));
+        copy.getClass().getField("imports").set(copy, CodeGenerator.getField(unit, "imports"));
+        copy.getClass().getField("variables").set(copy, new LinkedHashMap<>());
+        return copy;
+    }
+    
+    // Later values win: base_url, each header, setting and variable
+    @SuppressWarnings("unchecked")
+    private static void mergeInto(Object target, Object source) throws Exception {
+        Object from = CodeGenerator.getField(source, "config");
+        if (from != null) {
+            Field configField = target.getClass().getField("config");
+            Object to = configField.get(target);
+            if (to == null) {
+                to = configField.getType().getDeclaredConstructor().newInstance();
+                to.getClass().getField("defaultHeaders").set(to, new LinkedHashMap<>());
+                to.getClass().getField("settings").set(to, new LinkedHashMap<>());
+                configField.set(target, to);
+            }
+            Object baseUrl = CodeGenerator.getField(from, "baseUrl");
+            if (baseUrl != null) to.getClass().getField("baseUrl").set(to, baseUrl);
+            ((Map<Object, Object>)CodeGenerator.getField(to, "defaultHeaders")).putAll((Map<?, ?>)CodeGenerator.getField(from, "defaultHeaders"));
+            ((Map<Object, Object>)CodeGenerator.getField(to, "settings")).putAll((Map<?, ?>)CodeGenerator.getField(from, "settings"));
+        }
+        ((Map<Object, Object>)CodeGenerator.getField(target, "variables")).putAll((Map<?, ?>)CodeGenerator.getField(source, "variables"));
+    }
+    
+    // For callers that compile a source text without a file around it
+    public static void checkNoImports(Object unit) throws CompileException {
+        List<?> imports = (List<?>)CodeGenerator.getField(unit, "imports");
+        if (imports != null && !imports.isEmpty()) {
+            Object imp = imports.get(0);
+            throw new CompileException(List.of(new Diagnostic((Integer)CodeGenerator.getField(imp, "line"),
+                (Integer)CodeGenerator.getField(imp, "column"), "import needs the suite to be compiled from a file")));
+        }
+    }
+    
+    // Leading import "path"; statements, skipping whitespace and // comments.
+    // Keywords are case-insensitive, as in the handwritten lexer.
+    static List<String> scanImports(String source) {
+        List<String> imports = new ArrayList<>();
+        int pos = 0;
+        int length = source.length();
+        while (true) {
+            while (pos < length) {
+                if (Character.isWhitespace(source.charAt(pos))) {
+                    pos++;
+                } else if (source.startsWith("//", pos)) {
+                    while (pos < length && source.charAt(pos) != '\n') pos++;
+                } else {
+                    break;
+                }
+            }
+            if (!source.regionMatches(true, pos, "import", 0, 6)) return imports;
+            pos += 6;
+            while (pos < length && Character.isWhitespace(source.charAt(pos))) pos++;
+            if (pos >= length || source.charAt(pos) != '"') return imports;
+            StringBuilder path = new StringBuilder();
+            pos++;
+            while (pos < length && source.charAt(pos) != '"' && source.charAt(pos) != '\n') {
+                if (source.charAt(pos) == '\\' && pos + 1 < length) pos++;
+                path.append(source.charAt(pos++));
+            }
+            pos++;
+            imports.add(path.toString());
+            while (pos < length && Character.isWhitespace(source.charAt(pos))) pos++;
+            if (pos < length && source.charAt(pos) == ';') pos++;
+        }
+    }
+}
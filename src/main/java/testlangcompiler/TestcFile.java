@@ -0,0 +1,400 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+// Precompiled suite (.testc): the parsed CompilationUnit as a string table plus
+// fixed-width records, read through a memory-mapped buffer. Opening a file only
+// checks the header; strings and tests are materialized when first asked for,
+// so a tool that needs a few tests of a huge suite never decodes the rest.
+//
+// Layout (big-endian, all references are record or string indexes, -1 = null):
+//   header     "TSTC", version, section counts and offsets (HEADER_SIZE bytes)
+//   strings    count + 1 offsets into the UTF-8 blob that follows them
+//   tests      name, first request, request count, first assertion, assertion count
+//   requests   method, path, body, first header, header count, first extraction, extraction count,
+//              body file
+//   assertions type, value kind, value (int, string or boolean), expectedStr
+//   pairs      key, value: config headers and settings, request headers, extractions
+//   variables  name, value, isString
+public final class TestcFile {
+    
+    public static final int VERSION = 2;
+    private static final byte[] MAGIC = {'T', 'S', 'T', 'C'};
+    
+    private static final int TEST_SIZE = 20;
+    private static final int REQUEST_SIZE = 32;
+    private static final int ASSERTION_SIZE = 16;
+    private static final int PAIR_SIZE = 8;
+    private static final int VARIABLE_SIZE = 12;
+    
+    // Header fields after magic and version: base URL, config header and
+    // setting pairs, then count and offset of each section
+    private static final int BASE_URL = 8, CONFIG_HEADERS = 12, CONFIG_HEADER_COUNT = 16, SETTINGS = 20,
+        SETTING_COUNT = 24, HAS_CONFIG = 28, STRINGS = 32, TESTS = 40, REQUESTS = 48, ASSERTIONS = 56,
+        PAIRS = 64, VARIABLES = 72;
+    private static final int HEADER_SIZE = 80;
+    
+    private static final int NULL_VALUE = 0, INT_VALUE = 1, STRING_VALUE = 2, BOOLEAN_VALUE = 3;
+    
+    private final ByteBuffer buf;
+    private final String[] strings;
+    private final int stringData;
+    
+    private TestcFile(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        // Length first: a file shorter than the magic cannot be read for it
+        if (buf.limit() < HEADER_SIZE) {
+            throw new IOException("Not a precompiled suite");
+        }
+        byte[] magic = new byte[MAGIC.length];
+        buf.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a precompiled suite");
+        }
+        if (buf.getInt(4) != VERSION) {
+            throw new IOException("Unsupported .testc version " + buf.getInt(4) + ", recompile the suite");
+        }
+        this.strings = new String[count(STRINGS)];
+        this.stringData = offset(STRINGS) + (strings.length + 1) * 4;
+    }
+    
+    public static TestcFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new TestcFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+    
+    private int count(int section) {
+        return buf.getInt(section);
+    }
+    
+    private int offset(int section) {
+        return buf.getInt(section + 4);
+    }
+    
+    private String string(int id) {
+        if (id < 0) return null;
+        String s = strings[id];
+        if (s == null) {
+            int table = offset(STRINGS);
+            int start = buf.getInt(table + id * 4);
+            int end = buf.getInt(table + id * 4 + 4);
+            byte[] bytes = new byte[end - start];
+            buf.get(stringData + start, bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            strings[id] = s;
+        }
+        return s;
+    }
+    
+    // SHA-256 of the file contents, used as the compile cache key
+    public String digest() {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(buf.duplicate().clear());
+            return HexFormat.of().formatHex(md.digest());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public int testCount() {
+        return count(TESTS);
+    }
+    
+    public String testName(int i) {
+        return string(buf.getInt(offset(TESTS) + i * TEST_SIZE));
+    }
+    
+    public int requestCount(int test) {
+        return buf.getInt(offset(TESTS) + test * TEST_SIZE + 8);
+    }
+    
+    // Method and path of a test's r-th request, without materializing the test
+    public String requestMethod(int test, int r) {
+        return string(buf.getInt(requestRecord(test, r)));
+    }
+    
+    public String requestPath(int test, int r) {
+        return string(buf.getInt(requestRecord(test, r) + 4));
+    }
+    
+    private int requestRecord(int test, int r) {
+        return offset(REQUESTS) + (buf.getInt(offset(TESTS) + test * TEST_SIZE + 4) + r) * REQUEST_SIZE;
+    }
+    
+    public TestlangCompiler.TestCase test(int i) {
+        int t = offset(TESTS) + i * TEST_SIZE;
+        TestlangCompiler.TestCase test = new TestlangCompiler.TestCase(string(buf.getInt(t)));
+        int firstRequest = buf.getInt(t + 4);
+        int requestCount = buf.getInt(t + 8);
+        for (int r = firstRequest; r < firstRequest + requestCount; r++) {
+            test.requests.add(request(r));
+        }
+        int firstAssertion = buf.getInt(t + 12);
+        int assertionCount = buf.getInt(t + 16);
+        for (int a = firstAssertion; a < firstAssertion + assertionCount; a++) {
+            test.assertions.add(assertion(a));
+        }
+        return test;
+    }
+    
+    private TestlangCompiler.HttpRequest request(int i) {
+        int r = offset(REQUESTS) + i * REQUEST_SIZE;
+        TestlangCompiler.HttpRequest req = new TestlangCompiler.HttpRequest(string(buf.getInt(r)), string(buf.getInt(r + 4)));
+        req.body = string(buf.getInt(r + 8));
+        req.bodyFile = string(buf.getInt(r + 28));
+        readPairs(req.headers, buf.getInt(r + 12), buf.getInt(r + 16));
+        int firstExtraction = buf.getInt(r + 20);
+        int extractionCount = buf.getInt(r + 24);
+        for (int e = firstExtraction; e < firstExtraction + extractionCount; e++) {
+            int p = offset(PAIRS) + e * PAIR_SIZE;
+            req.extractions.add(new TestlangCompiler.Extraction(string(buf.getInt(p)), string(buf.getInt(p + 4))));
+        }
+        return req;
+    }
+    
+    private TestlangCompiler.Assertion assertion(int i) {
+        int a = offset(ASSERTIONS) + i * ASSERTION_SIZE;
+        int value = buf.getInt(a + 8);
+        Object expected;
+        switch (buf.getInt(a + 4)) {
+            case INT_VALUE: expected = value; break;
+            case STRING_VALUE: expected = string(value); break;
+            case BOOLEAN_VALUE: expected = value != 0; break;
+            default: expected = null;
+        }
+        return new TestlangCompiler.Assertion(string(buf.getInt(a)), expected, string(buf.getInt(a + 12)));
+    }
+    
+    private void readPairs(Map<String, String> map, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            int p = offset(PAIRS) + i * PAIR_SIZE;
+            map.put(string(buf.getInt(p)), string(buf.getInt(p + 4)));
+        }
+    }
+    
+    // The whole suite; tests are materialized as the list is read
+    public TestlangCompiler.CompilationUnit unit() {
+        TestlangCompiler.CompilationUnit unit = shell();
+        TestlangCompiler.TestCase[] tests = new TestlangCompiler.TestCase[testCount()];
+        unit.testMethods = new AbstractList<TestlangCompiler.TestCase>() {
+            public TestlangCompiler.TestCase get(int i) {
+                if (tests[i] == null) tests[i] = test(i);
+                return tests[i];
+            }
+            
+            public int size() {
+                return tests.length;
+            }
+        };
+        return unit;
+    }
+    
+    // Only the named tests (all when names is null), matched without
+    // materializing the others
+    public TestlangCompiler.CompilationUnit unit(Set<String> names) {
+        if (names == null) return unit();
+        TestlangCompiler.CompilationUnit unit = shell();
+        for (int i = 0; i < testCount(); i++) {
+            if (names.contains(testName(i))) unit.testMethods.add(test(i));
+        }
+        return unit;
+    }
+    
+    // Config and variables only, which are small and needed by every test
+    public TestlangCompiler.CompilationUnit shell() {
+        TestlangCompiler.CompilationUnit unit = new TestlangCompiler.CompilationUnit();
+        if (buf.getInt(HAS_CONFIG) != 0) {
+            unit.config = new TestlangCompiler.ConfigData();
+            unit.config.baseUrl = string(buf.getInt(BASE_URL));
+            readPairs(unit.config.defaultHeaders, buf.getInt(CONFIG_HEADERS), buf.getInt(CONFIG_HEADER_COUNT));
+            readPairs(unit.config.settings, buf.getInt(SETTINGS), buf.getInt(SETTING_COUNT));
+        }
+        for (int i = 0; i < count(VARIABLES); i++) {
+            int v = offset(VARIABLES) + i * VARIABLE_SIZE;
+            String name = string(buf.getInt(v));
+            unit.variables.put(name, new TestlangCompiler.Variable(name, string(buf.getInt(v + 4)), buf.getInt(v + 8) != 0));
+        }
+        return unit;
+    }
+    
+    // Writes a unit from any front end
+    public static void write(Object unit, Path file) throws IOException {
+        Writer w = new Writer();
+        w.add(unit);
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+            w.writeTo(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Collects the sections in memory, then writes header and sections in order
+    private static final class Writer {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        private final List<Integer> stringOffsets = new ArrayList<>();
+        private final DataBuffer tests = new DataBuffer();
+        private final DataBuffer requests = new DataBuffer();
+        private final DataBuffer assertions = new DataBuffer();
+        private final DataBuffer pairs = new DataBuffer();
+        private final DataBuffer variables = new DataBuffer();
+        private final int[] config = {-1, 0, 0, 0, 0, 0};
+        private int testCount, requestCount, assertionCount, pairCount, variableCount;
+        
+        private int id(Object s) {
+            if (s == null) return -1;
+            return ids.computeIfAbsent((String)s, k -> {
+                stringOffsets.add(blob.size());
+                blob.writeBytes(k.getBytes(StandardCharsets.UTF_8));
+                return stringOffsets.size() - 1;
+            });
+        }
+        
+        // Returns the index of the first pair written
+        private int pairs(Object map) {
+            int first = pairCount;
+            if (map instanceof Map) {
+                for (Map.Entry<?, ?> e : ((Map<?, ?>)map).entrySet()) {
+                    pairs.putInt(id(e.getKey())).putInt(id(e.getValue()));
+                    pairCount++;
+                }
+            }
+            return first;
+        }
+        
+        void add(Object unit) {
+            Object cfg = CodeGenerator.getField(unit, "config");
+            if (cfg != null) {
+                config[0] = id(CodeGenerator.getField(cfg, "baseUrl"));
+                Object headers = CodeGenerator.getField(cfg, "defaultHeaders");
+                config[1] = pairs(headers);
+                config[2] = pairCount - config[1];
+                Object settings = CodeGenerator.getField(cfg, "settings");
+                config[3] = pairs(settings);
+                config[4] = pairCount - config[3];
+                config[5] = 1;
+            }
+            Object vars = CodeGenerator.getField(unit, "variables");
+            if (vars instanceof Map) {
+                for (Object var : ((Map<?, ?>)vars).values()) {
+                    variables.putInt(id(CodeGenerator.getField(var, "name")))
+                             .putInt(id(CodeGenerator.getField(var, "value")))
+                             .putInt(Boolean.TRUE.equals(CodeGenerator.getField(var, "isString")) ? 1 : 0);
+                    variableCount++;
+                }
+            }
+            for (Object tm : (List<?>)CodeGenerator.getField(unit, "testMethods")) {
+                List<?> reqs = (List<?>)CodeGenerator.getField(tm, "requests");
+                List<?> asserts = (List<?>)CodeGenerator.getField(tm, "assertions");
+                tests.putInt(id(CodeGenerator.getField(tm, "name")))
+                     .putInt(requestCount).putInt(reqs.size())
+                     .putInt(assertionCount).putInt(asserts.size());
+                testCount++;
+                for (Object req : reqs) {
+                    addRequest(req);
+                }
+                for (Object ass : asserts) {
+                    addAssertion(ass);
+                }
+            }
+        }
+        
+        private void addRequest(Object req) {
+            int method = id(CodeGenerator.getField(req, "method"));
+            int path = id(CodeGenerator.getField(req, "path"));
+            int body = id(CodeGenerator.getField(req, "body"));
+            int bodyFile = id(CodeGenerator.getField(req, "bodyFile"));
+            int firstHeader = pairs(CodeGenerator.getField(req, "headers"));
+            int headerCount = pairCount - firstHeader;
+            int firstExtraction = pairCount;
+            for (Object e : (List<?>)CodeGenerator.getField(req, "extractions")) {
+                pairs.putInt(id(CodeGenerator.getField(e, "name"))).putInt(id(CodeGenerator.getField(e, "path")));
+                pairCount++;
+            }
+            requests.putInt(method).putInt(path).putInt(body).putInt(firstHeader).putInt(headerCount)
+                    .putInt(firstExtraction).putInt(pairCount - firstExtraction).putInt(bodyFile);
+            requestCount++;
+        }
+        
+        private void addAssertion(Object ass) {
+            Object expected = CodeGenerator.getField(ass, "expected");
+            int kind;
+            int value;
+            if (expected instanceof Integer) {
+                kind = INT_VALUE;
+                value = (Integer)expected;
+            } else if (expected instanceof String) {
+                kind = STRING_VALUE;
+                value = id(expected);
+            } else if (expected instanceof Boolean) {
+                kind = BOOLEAN_VALUE;
+                value = (Boolean)expected ? 1 : 0;
+            } else {
+                kind = NULL_VALUE;
+                value = 0;
+            }
+            assertions.putInt(id(CodeGenerator.getField(ass, "type"))).putInt(kind).putInt(value)
+                      .putInt(id(CodeGenerator.getField(ass, "expectedStr")));
+            assertionCount++;
+        }
+        
+        void writeTo(OutputStream out) throws IOException {
+            int stringsOffset = HEADER_SIZE;
+            int testsOffset = stringsOffset + (stringOffsets.size() + 1) * 4 + blob.size();
+            int requestsOffset = testsOffset + tests.size();
+            int assertionsOffset = requestsOffset + requests.size();
+            int pairsOffset = assertionsOffset + assertions.size();
+            int variablesOffset = pairsOffset + pairs.size();
+            
+            DataOutputStream data = new DataOutputStream(out);
+            data.write(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(config[0]);
+            data.writeInt(config[1]);
+            data.writeInt(config[2]);
+            data.writeInt(config[3]);
+            data.writeInt(config[4]);
+            data.writeInt(config[5]);
+            int[][] sections = {
+                {stringOffsets.size(), stringsOffset}, {testCount, testsOffset}, {requestCount, requestsOffset},
+                {assertionCount, assertionsOffset}, {pairCount, pairsOffset}, {variableCount, variablesOffset}
+            };
+            for (int[] section : sections) {
+                data.writeInt(section[0]);
+                data.writeInt(section[1]);
+            }
+            for (int offset : stringOffsets) {
+                data.writeInt(offset);
+            }
+            data.writeInt(blob.size());
+            blob.writeTo(data);
+            tests.writeTo(data);
+            requests.writeTo(data);
+            assertions.writeTo(data);
+            pairs.writeTo(data);
+            variables.writeTo(data);
+            data.flush();
+        }
+    }
+    
+    // Growable big-endian int buffer for one record section
+    private static final class DataBuffer extends ByteArrayOutputStream {
+        DataBuffer putInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+            return this;
+        }
+    }
+}
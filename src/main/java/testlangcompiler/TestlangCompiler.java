@@ -9,6 +9,7 @@ public class TestlangCompiler {
     public static class ConfigData {
         public String baseUrl;
         public Map<String, String> defaultHeaders = new LinkedHashMap<>();
+        public Map<String, String> settings = new LinkedHashMap<>();
     }
     
     public static class Variable {
@@ -27,7 +28,9 @@ public class TestlangCompiler {
         public String method;
         public String path;
         public String body;
+        public String bodyFile;  // body = file "payload.json"; read when the request is sent
         public Map<String, String> headers = new LinkedHashMap<>();
+        public List<Extraction> extractions = new ArrayList<>();
         
         public HttpRequest(String m, String p) {
             method = m;
@@ -35,6 +38,17 @@ public class TestlangCompiler {
         }
     }
     
+    // let name = body.json "$.path"; binds a value from the preceding request's response
+    public static class Extraction {
+        public String name;
+        public String path;
+        
+        public Extraction(String n, String p) {
+            name = n;
+            path = p;
+        }
+    }
+    
     public static class Assertion {
         public String type;
         public Object expected;
@@ -57,368 +71,637 @@ public class TestlangCompiler {
         }
     }
     
+    // import "common.test"; shares another file's config and variables
+    public static class Import {
+        public String path;
+        public int line;
+        public int column;
+        
+        public Import(String p, int l, int c) {
+            path = p;
+            line = l;
+            column = c;
+        }
+    }
+    
     public static class CompilationUnit {
+        public List<Import> imports = new ArrayList<>();
         public ConfigData config;
         public Map<String, Variable> variables = new LinkedHashMap<>();
         public List<TestCase> testMethods = new ArrayList<>();
     }
     
-    // Simple tokenizer
+    // Simple tokenizer. Kept for callers that want token objects; the parser
+    // itself works on a TokenBuffer.
     public static class Token {
         public String type;
         public String value;
         public int line;
+        public int column;
         
         public Token(String t, String v, int l) {
+            this(t, v, l, 1);
+        }
+        
+        public Token(String t, String v, int l, int c) {
             type = t;
             value = v;
             line = l;
+            column = c;
         }
     }
     
     public static List<Token> tokenize(String input) throws Exception {
-        List<Token> tokens = new ArrayList<>();
-        String[] lines = input.split("\n");
+        TokenBuffer buf = new TokenBuffer(input.length() / 4);
+        tokenize(input, buf);
+        List<Token> tokens = new ArrayList<>(buf.size());
+        for (int i = 0; i < buf.size(); i++) {
+            tokens.add(new Token(typeName(buf.kind(i)), buf.text(i), buf.line(i), buf.column(i)));
+        }
+        return tokens;
+    }
+    
+    // Legacy Token.type: the symbol itself for punctuation, else the sym name
+    private static String typeName(int kind) {
+        switch (kind) {
+            case sym.LBRACE: return "{";
+            case sym.RBRACE: return "}";
+            case sym.SEMICOLON: return ";";
+            case sym.EQ: return "=";
+            case sym.DOT: return ".";
+            case sym.SLASH: return "/";
+            default: return sym.terminalNames[kind];
+        }
+    }
+    
+    private static final String[] KEYWORDS = {"config", "base_url", "header", "let", "test", "GET", "POST", "PUT",
+                                              "DELETE", "expect", "status", "body", "contains", "import"};
+    private static final int[] KEYWORD_KINDS = {sym.CONFIG, sym.BASE_URL, sym.HEADER, sym.LET, sym.TEST, sym.GET,
+                                                sym.POST, sym.PUT, sym.DELETE, sym.EXPECT, sym.STATUS, sym.BODY,
+                                                sym.CONTAINS, sym.IMPORT};
+    
+    // Scans the whole input into buf in one pass. Keywords are case-insensitive,
+    // "//" starts a comment, a word starting with a digit is a NUMBER, and a
+    // STRING token spans its quotes (or to the end of the line if unterminated).
+    public static void tokenize(String input, TokenBuffer buf) {
+        buf.reset(input);
+        int length = input.length();
+        int pos = 0;
+        int line = 1;
+        int lineStart = 0;
         
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i].trim();
-            if (line.isEmpty() || line.startsWith("//")) continue;
+        while (pos < length) {
+            char c = input.charAt(pos);
             
-            // Simple tokenizer
-            int pos = 0;
-            while (pos < line.length()) {
-                char c = line.charAt(pos);
-                
-                if (Character.isWhitespace(c)) {
+            if (c == '\n') {
+                pos++;
+                line++;
+                lineStart = pos;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                pos++;
+                continue;
+            }
+            if (c == '/' && pos + 1 < length && input.charAt(pos + 1) == '/') {
+                while (pos < length && input.charAt(pos) != '\n') pos++;
+                continue;
+            }
+            
+            int start = pos;
+            int column = start - lineStart + 1;
+            if (c == '"') {
+                // Read string
+                pos++;
+                while (pos < length && input.charAt(pos) != '"' && input.charAt(pos) != '\n') {
+                    if (input.charAt(pos) == '\\' && pos + 1 < length && input.charAt(pos + 1) != '\n') pos++;
                     pos++;
-                    continue;
                 }
-                
-                if (c == '"') {
-                    // Read string
-                    int start = pos;
-                    pos++;
-                    while (pos < line.length() && (line.charAt(pos) != '"' || (pos > 0 && line.charAt(pos-1) == '\\'))) {
-                        pos++;
-                    }
-                    if (pos < line.length()) pos++;
-                    tokens.add(new Token("STRING", line.substring(start, pos), i + 1));
-                } else if (isSymbol(c)) {
-                    tokens.add(new Token("" + c, "" + c, i + 1));
+                if (pos < length && input.charAt(pos) == '"') pos++;
+                buf.add(sym.STRING, start, pos, line, column);
+            } else if (isSymbol(c)) {
+                buf.add(symbolKind(c), start, start + 1, line, column);
+                pos++;
+            } else {
+                // Read word
+                while (pos < length && !Character.isWhitespace(input.charAt(pos)) && !isSymbol(input.charAt(pos))
+                       && input.charAt(pos) != '"') {
                     pos++;
-                } else {
-                    // Read word
-                    int start = pos;
-                    while (pos < line.length() && !Character.isWhitespace(line.charAt(pos)) && !isSymbol(line.charAt(pos)) && line.charAt(pos) != '"') {
-                        pos++;
-                    }
-                    String word = line.substring(start, pos);
-                    if (!word.isEmpty()) {
-                        if (isKeyword(word)) {
-                            tokens.add(new Token(word.toUpperCase(), word, i + 1));
-                        } else if (Character.isDigit(word.charAt(0))) {
-                            tokens.add(new Token("NUMBER", word, i + 1));
-                        } else {
-                            tokens.add(new Token("IDENTIFIER", word, i + 1));
-                        }
-                    }
                 }
+                buf.add(wordKind(input, start, pos), start, pos, line, column);
             }
         }
-        
-        return tokens;
     }
     
     private static boolean isSymbol(char c) {
-        return c == '{' || c == '}' || c == '(' || c == ')' || c == ';' || c == '=' || c == '.';
+        return c == '{' || c == '}' || c == ';' || c == '=' || c == '.' || c == '/';
+    }
+    
+    private static int symbolKind(char c) {
+        switch (c) {
+            case '{': return sym.LBRACE;
+            case '}': return sym.RBRACE;
+            case ';': return sym.SEMICOLON;
+            case '=': return sym.EQ;
+            case '/': return sym.SLASH;
+            default: return sym.DOT;
+        }
     }
     
-    private static boolean isKeyword(String text) {
-        String[] keywords = {"config", "base_url", "header", "let", "test", "GET", "POST", "PUT", "DELETE",
-                             "expect", "status", "body", "contains"};
-        for (String kw : keywords) {
-            if (kw.equalsIgnoreCase(text)) return true;
+    private static int wordKind(String input, int start, int end) {
+        int length = end - start;
+        for (int k = 0; k < KEYWORDS.length; k++) {
+            if (KEYWORDS[k].length() == length && input.regionMatches(true, start, KEYWORDS[k], 0, length)) {
+                return KEYWORD_KINDS[k];
+            }
         }
-        return false;
+        return Character.isDigit(input.charAt(start)) ? sym.NUMBER : sym.IDENTIFIER;
     }
     
     // Parser
-    private List<Token> tokens;
+    private final TokenBuffer tokens;
     private int pos = 0;
+    private int count = 0;
+    private List<Diagnostic> diagnostics = new ArrayList<>();
+    private final StringPool pool;
     
+    public TestlangCompiler() {
+        this(StringPool.NONE);
+    }
+    
+    // With a real pool the parse result uses the compact AST representation
+    public TestlangCompiler(StringPool pool) {
+        this(pool, new TokenBuffer());
+    }
+    
+    // The buffer is reused by every parse() on this instance
+    public TestlangCompiler(StringPool pool, TokenBuffer tokens) {
+        this.pool = pool;
+        this.tokens = tokens;
+    }
+    
+    // Unwinds to the nearest recovery point; the diagnostic is already recorded
+    private static class SyntaxError extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        SyntaxError() {
+            super(null, null, false, false);
+        }
+    }
+    
+    // Parses the whole input, recovering after each syntax error so that every
+    // error is reported in one CompileException
     public CompilationUnit parse(String input) throws Exception {
-        tokens = tokenize(input);
+        tokenize(input, tokens);
+        count = tokens.size();
         pos = 0;
+        diagnostics = new ArrayList<>();
         
         CompilationUnit unit = new CompilationUnit();
         
+        // Parse imports
+        while (peek(sym.IMPORT)) {
+            try {
+                parseImport(unit);
+            } catch (SyntaxError e) {
+                synchronize();
+            }
+        }
+        unit.imports = pool.freeze(unit.imports);
+        
         // Parse config (optional)
-        if (peek("CONFIG")) {
+        if (peek(sym.CONFIG)) {
             unit.config = parseConfig();
         }
         
         // Parse let statements
-        while (peek("LET")) {
-            parseLet(unit);
+        while (peek(sym.LET)) {
+            try {
+                parseLet(unit);
+            } catch (SyntaxError e) {
+                synchronize();
+            }
         }
         
         // Parse test methods
-        while (pos < tokens.size()) {
-            if (peek("TEST")) {
-                unit.testMethods.add(parseTest());
+        while (pos < count) {
+            if (peek(sym.TEST)) {
+                try {
+                    unit.testMethods.add(parseTest());
+                } catch (SyntaxError e) {
+                    skipToTest();
+                }
             } else {
-                next();
+                // Stray tokens between tests: report once, then skip to the next test
+                error("Expected TEST but got " + describe(pos));
+                skipToTest();
             }
         }
         
+        if (!diagnostics.isEmpty()) {
+            throw new CompileException(diagnostics);
+        }
         return unit;
     }
     
-    private Token current() {
-        return pos < tokens.size() ? tokens.get(pos) : null;
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
     }
     
-    private Token next() {
-        if (pos < tokens.size()) {
-            return tokens.get(pos++);
+    private boolean peek(int kind) {
+        return pos < count && tokens.kind(pos) == kind;
+    }
+    
+    // True while inside a block: not at its closing '}' and not at EOF
+    private boolean inBlock() {
+        return pos < count && tokens.kind(pos) != sym.RBRACE;
+    }
+    
+    private void expect(int kind) throws SyntaxError {
+        if (!peek(kind)) {
+            throw error("Expected " + sym.terminalNames[kind] + " but got " + describe(pos));
         }
-        return null;
+        pos++;
     }
     
-    private Token peek() {
-        if (pos < tokens.size()) {
-            return tokens.get(pos);
+    // Consumes the next token, which must be of the given kind, and returns its index
+    private int expectToken(int kind, String context) throws SyntaxError {
+        if (!peek(kind)) {
+            throw error("Expected " + sym.terminalNames[kind] + " " + context + ", got " + describe(pos));
         }
-        return null;
+        return pos++;
     }
     
-    private boolean peek(String type) {
-        Token t = peek();
-        return t != null && t.type.equals(type);
+    // A let or test name ends up in a Java identifier (v_name, test_name), so it
+    // must look like an IDENTIFIER of LexerCUP: a letter, then letters, digits
+    // or '_'. Words from this tokenizer can hold any other character.
+    private int expectName(String context) throws SyntaxError {
+        int name = expectToken(sym.IDENTIFIER, context);
+        String source = tokens.source();
+        boolean valid = Character.isLetter(source.charAt(tokens.start(name)));
+        for (int i = tokens.start(name) + 1; valid && i < tokens.end(name); i++) {
+            valid = Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '_';
+        }
+        if (!valid) {
+            pos = name;
+            throw error("Invalid name " + tokens.text(name) + " " + context + ": use letters, digits and _");
+        }
+        return name;
     }
     
-    private void expect(String type) throws Exception {
-        Token t = next();
-        if (t == null || !t.type.equals(type)) {
-            throw new Exception("Expected " + type + " but got " + (t == null ? "EOF" : t.type));
+    private SyntaxError error(String message) {
+        if (pos < count) {
+            diagnostics.add(new Diagnostic(tokens.line(pos), tokens.column(pos), message));
+        } else if (count > 0) {
+            int last = count - 1;
+            diagnostics.add(new Diagnostic(tokens.line(last), tokens.column(last) + tokens.length(last), message));
+        } else {
+            diagnostics.add(new Diagnostic(1, 1, message));
         }
+        return new SyntaxError();
     }
     
-    private ConfigData parseConfig() throws Exception {
-        expect("CONFIG");
-        expect("{");
-        
+    private String describe(int i) {
+        if (i >= count) return "EOF";
+        int kind = tokens.kind(i);
+        if (kind == sym.STRING || kind == sym.NUMBER || kind == sym.IDENTIFIER) {
+            return sym.terminalNames[kind] + " " + tokens.text(i);
+        }
+        return sym.terminalNames[kind];
+    }
+    
+    // Panic mode: skip to just after the next ';', or up to the next 'test', '}' or EOF
+    private void synchronize() {
+        while (pos < count) {
+            int kind = tokens.kind(pos);
+            if (kind == sym.SEMICOLON) {
+                pos++;
+                return;
+            }
+            if (kind == sym.TEST || kind == sym.RBRACE) {
+                return;
+            }
+            pos++;
+        }
+    }
+    
+    private void skipToTest() {
+        while (pos < count && tokens.kind(pos) != sym.TEST) {
+            pos++;
+        }
+    }
+    
+    private ConfigData parseConfig() {
         ConfigData config = new ConfigData();
+        pos++;  // config
+        try {
+            expect(sym.LBRACE);
+        } catch (SyntaxError e) {
+            synchronize();
+        }
         
-        while (!peek("}")) {
-            if (peek("BASE_URL")) {
-                expect("BASE_URL");
-                expect("=");
-                Token t = next();
-                if (t == null || !t.type.equals("STRING")) {
-                    throw new Exception("Expected STRING after base_url =");
-                }
-                config.baseUrl = unquote(t.value);
-                expect(";");
-            } else if (peek("HEADER")) {
-                expect("HEADER");
-                Token key = next();
-                if (key == null || !key.type.equals("STRING")) {
-                    throw new Exception("Expected STRING after header");
-                }
-                expect("=");
-                Token value = next();
-                if (value == null || !value.type.equals("STRING")) {
-                    throw new Exception("Expected STRING after =");
+        while (inBlock() && !peek(sym.LET) && !peek(sym.TEST)) {
+            try {
+                if (peek(sym.BASE_URL)) {
+                    pos++;
+                    expect(sym.EQ);
+                    int t = expectToken(sym.STRING, "after base_url =");
+                    config.baseUrl = unquote(t);
+                    expect(sym.SEMICOLON);
+                } else if (peek(sym.HEADER)) {
+                    pos++;
+                    int key = expectToken(sym.STRING, "after header");
+                    expect(sym.EQ);
+                    int value = expectToken(sym.STRING, "after =");
+                    config.defaultHeaders.put(unquote(key), unquote(value));
+                    expect(sym.SEMICOLON);
+                } else if (peek(sym.IDENTIFIER)) {
+                    parseSetting(config);
+                } else {
+                    throw error("Unexpected " + describe(pos) + " in config");
                 }
-                config.defaultHeaders.put(unquote(key.value), unquote(value.value));
-                expect(";");
-            } else {
-                next();
+            } catch (SyntaxError e) {
+                synchronize();
             }
         }
         
-        expect("}");
+        try {
+            expect(sym.RBRACE);
+        } catch (SyntaxError e) {
+            // Missing '}' is reported; carry on with the let/test that follows
+        }
+        config.defaultHeaders = pool.freeze(config.defaultHeaders);
+        config.settings = pool.freeze(config.settings);
         return config;
     }
     
-    private void parseLet(CompilationUnit unit) throws Exception {
-        expect("LET");
-        Token name = next();
-        if (name == null || !name.type.equals("IDENTIFIER")) {
-            throw new Exception("Expected IDENTIFIER after let");
+    // name = NUMBER [/ unit] | IDENTIFIER | STRING ;
+    private void parseSetting(ConfigData config) throws SyntaxError {
+        int key = pos++;
+        expect(sym.EQ);
+        String value;
+        if (peek(sym.NUMBER)) {
+            value = tokens.text(pos++);
+            if (peek(sym.SLASH)) {
+                pos++;
+                value += "/" + tokens.text(expectToken(sym.IDENTIFIER, "after /"));
+            }
+        } else if (peek(sym.IDENTIFIER)) {
+            value = tokens.text(pos++);
+        } else if (peek(sym.STRING)) {
+            value = unquote(pos++);
+        } else {
+            throw error("Expected NUMBER, IDENTIFIER or STRING for " + tokens.text(key) + ", got " + describe(pos));
         }
-        expect("=");
-        Token value = next();
-        if (value == null || (!value.type.equals("STRING") && !value.type.equals("NUMBER"))) {
-            throw new Exception("Expected STRING or NUMBER after =");
+        expect(sym.SEMICOLON);
+        
+        String problem = ConfigSettings.check(tokens.text(key), value);
+        if (problem != null) {
+            diagnostics.add(new Diagnostic(tokens.line(key), tokens.column(key), problem));
+        } else {
+            config.settings.put(pool.intern(tokens.text(key)), pool.intern(value));
         }
-        unit.variables.put(name.value, new Variable(name.value, 
-            value.type.equals("STRING") ? unquote(value.value) : value.value,
-            value.type.equals("STRING")));
-        expect(";");
     }
     
-    private TestCase parseTest() throws Exception {
-        expect("TEST");
-        Token name = next();
-        if (name == null || !name.type.equals("IDENTIFIER")) {
-            throw new Exception("Expected IDENTIFIER after test");
+    private void parseImport(CompilationUnit unit) throws SyntaxError {
+        expect(sym.IMPORT);
+        int path = expectToken(sym.STRING, "after import");
+        expect(sym.SEMICOLON);
+        unit.imports.add(new Import(pool.intern(unquote(path)), tokens.line(path), tokens.column(path)));
+    }
+    
+    private void parseLet(CompilationUnit unit) throws SyntaxError {
+        expect(sym.LET);
+        String name = tokens.text(expectName("after let"));
+        expect(sym.EQ);
+        if (!peek(sym.STRING) && !peek(sym.NUMBER)) {
+            throw error("Expected STRING or NUMBER after =, got " + describe(pos));
         }
-        expect("{");
+        int value = pos++;
+        boolean isString = tokens.kind(value) == sym.STRING;
+        unit.variables.put(name, new Variable(name, isString ? unquote(value) : tokens.text(value), isString));
+        expect(sym.SEMICOLON);
+    }
+    
+    private TestCase parseTest() throws SyntaxError {
+        expect(sym.TEST);
+        String name = tokens.text(expectName("after test"));
+        expect(sym.LBRACE);
         
-        TestCase tm = new TestCase(name.value);
+        TestCase tm = new TestCase(name);
         
-        while (!peek("}")) {
-            if (peek("GET") || peek("POST") || peek("PUT") || peek("DELETE")) {
-                tm.requests.add(parseHttpRequest());
-            } else if (peek("EXPECT")) {
-                tm.assertions.add(parseAssertion());
-            } else {
-                next();
+        while (inBlock() && !peek(sym.TEST)) {
+            try {
+                int kind = tokens.kind(pos);
+                if (kind == sym.GET || kind == sym.POST || kind == sym.PUT || kind == sym.DELETE) {
+                    tm.requests.add(parseHttpRequest());
+                } else if (kind == sym.EXPECT) {
+                    tm.assertions.add(parseAssertion());
+                } else if (kind == sym.LET) {
+                    parseExtraction(tm);
+                } else {
+                    throw error("Unexpected " + describe(pos) + " in test");
+                }
+            } catch (SyntaxError e) {
+                synchronize();
             }
         }
         
-        expect("}");
+        try {
+            expect(sym.RBRACE);
+        } catch (SyntaxError e) {
+            // Reported; the next test starts a new block
+        }
+        for (HttpRequest req : tm.requests) {
+            req.extractions = pool.freeze(req.extractions);
+        }
+        tm.requests = pool.freeze(tm.requests);
+        tm.assertions = pool.freeze(tm.assertions);
         return tm;
     }
     
-    private HttpRequest parseHttpRequest() throws Exception {
-        Token methodTok = next();
-        String method = methodTok.type;
+    // let name = body.json "$.path";
+    private void parseExtraction(TestCase tm) throws SyntaxError {
+        int let = pos;
+        expect(sym.LET);
+        String name = tokens.text(expectName("after let"));
+        expect(sym.EQ);
+        expect(sym.BODY);
+        expect(sym.DOT);
+        int json = expectToken(sym.IDENTIFIER, "after body.");
+        if (!tokens.text(json).equals("json")) {
+            pos = json;
+            throw error("Expected json after body., got " + describe(json));
+        }
+        int path = expectToken(sym.STRING, "for JSON path");
+        expect(sym.SEMICOLON);
         
-        Token path = next();
-        if (path == null || !path.type.equals("STRING")) {
-            throw new Exception("Expected STRING for URL path");
+        String problem = JsonPaths.check(unquote(path));
+        if (problem != null) {
+            diagnostics.add(new Diagnostic(tokens.line(path), tokens.column(path), problem));
+        } else if (tm.requests.isEmpty()) {
+            diagnostics.add(new Diagnostic(tokens.line(let), tokens.column(let), "let " + name + " must follow a request"));
+        } else {
+            tm.requests.get(tm.requests.size() - 1).extractions.add(new Extraction(name, unquote(path)));
         }
+    }
+    
+    private HttpRequest parseHttpRequest() throws SyntaxError {
+        String method = sym.terminalNames[tokens.kind(pos++)];
+        
+        int path = expectToken(sym.STRING, "for URL path");
         
-        HttpRequest req = new HttpRequest(method, unquote(path.value));
+        HttpRequest req = new HttpRequest(method, unquote(path));
         
-        if (peek("{")) {
-            expect("{");
-            while (!peek("}")) {
-                if (peek("HEADER")) {
-                    expect("HEADER");
-                    Token key = next();
-                    if (key.type.equals("STRING")) {
-                        expect("=");
-                        Token value = next();
-                        if (value.type.equals("STRING")) {
-                            req.headers.put(unquote(key.value), unquote(value.value));
+        if (peek(sym.LBRACE)) {
+            pos++;
+            while (inBlock() && !peek(sym.TEST)) {
+                try {
+                    if (peek(sym.HEADER)) {
+                        pos++;
+                        int key = expectToken(sym.STRING, "after header");
+                        expect(sym.EQ);
+                        int value = expectToken(sym.STRING, "after =");
+                        req.headers.put(unquote(key), unquote(value));
+                        expect(sym.SEMICOLON);
+                    } else if (peek(sym.BODY)) {
+                        pos++;
+                        expect(sym.EQ);
+                        if (peek(sym.IDENTIFIER) && tokens.text(pos).equals("file")) {
+                            pos++;
+                            req.bodyFile = unquote(expectToken(sym.STRING, "after file"));
+                            req.body = null;
+                        } else {
+                            req.body = unquote(expectToken(sym.STRING, "for body"));
+                            req.bodyFile = null;
                         }
+                        expect(sym.SEMICOLON);
+                    } else {
+                        throw error("Unexpected " + describe(pos) + " in request block");
                     }
-                    expect(";");
-                } else if (peek("BODY")) {
-                    expect("BODY");
-                    expect("=");
-                    Token value = next();
-                    if (!value.type.equals("STRING")) {
-                        throw new Exception("Expected STRING for body, got " + value.type);
-                    }
-                    req.body = unquote(value.value);
-                    expect(";");
-                } else {
-                    next();
+                } catch (SyntaxError e) {
+                    synchronize();
                 }
             }
-            expect("}");
+            expect(sym.RBRACE);
             
-            // Only expect semicolon if there's one (for GET/DELETE without block, semicolon is mandatory)
-            if (!peek("EXPECT") && !peek("}") && peek() != null && !peek().value.equals("}")) {
-                expect(";");
+            // The ';' after a request block is optional
+            if (peek(sym.SEMICOLON)) {
+                pos++;
             }
         } else {
             // GET/DELETE must have semicolon
-            expect(";");
+            expect(sym.SEMICOLON);
         }
         
+        req.headers = pool.freeze(req.headers);
         return req;
     }
     
-    private Assertion parseAssertion() throws Exception {
-        expect("EXPECT");
-        Token type = next();
+    private Assertion parseAssertion() throws SyntaxError {
+        expect(sym.EXPECT);
+        int type = pos;
         
-        if (type.type.equals("STATUS")) {
-            expect("=");
-            Token num = next();
-            if (!num.type.equals("NUMBER")) {
-                throw new Exception("Expected NUMBER for status, got " + num.type);
-            }
-            expect(";");
-            return new Assertion("status", Integer.parseInt(num.value), null);
-        } else if (type.type.equals("HEADER")) {
-            Token headerName = next();
-            if (headerName.type.equals("STRING")) {
-                if (peek("=")) {
-                    expect("=");
-                    Token value = next();
-                    if (value.type.equals("STRING")) {
-                        expect(";");
-                        return new Assertion("header_equals", unquote(headerName.value), unquote(value.value));
-                    }
-                    throw new Exception("Expected STRING after =");
-                } else if (peek("CONTAINS")) {
-                    expect("CONTAINS");
-                    Token value = next();
-                    if (value.type.equals("STRING")) {
-                        expect(";");
-                        return new Assertion("header_contains", unquote(headerName.value), unquote(value.value));
-                    }
-                    throw new Exception("Expected STRING after contains");
-                }
+        if (peek(sym.STATUS)) {
+            pos++;
+            expect(sym.EQ);
+            int num = expectToken(sym.NUMBER, "for status");
+            Integer status = number(num);
+            expect(sym.SEMICOLON);
+            return new Assertion("status", pool.intern(status), null);
+        } else if (peek(sym.HEADER)) {
+            pos++;
+            int headerName = expectToken(sym.STRING, "after header");
+            if (peek(sym.EQ)) {
+                pos++;
+                int value = expectToken(sym.STRING, "after =");
+                expect(sym.SEMICOLON);
+                return new Assertion("header_equals", unquote(headerName), unquote(value));
+            } else if (peek(sym.CONTAINS)) {
+                pos++;
+                int value = expectToken(sym.STRING, "after contains");
+                expect(sym.SEMICOLON);
+                return new Assertion("header_contains", unquote(headerName), unquote(value));
             }
-            throw new Exception("Expected STRING after header");
-        } else if (type.type.equals("BODY")) {
-            if (peek("CONTAINS")) {
-                expect("CONTAINS");
-                Token value = next();
-                if (value.type.equals("STRING")) {
-                    expect(";");
-                    return new Assertion("body_contains", null, unquote(value.value));
-                }
-                throw new Exception("Expected STRING after contains");
+            throw error("Expected EQ or CONTAINS after header name, got " + describe(pos));
+        } else if (peek(sym.BODY)) {
+            pos++;
+            expect(sym.CONTAINS);
+            int value = expectToken(sym.STRING, "after contains");
+            expect(sym.SEMICOLON);
+            return new Assertion("body_contains", null, unquote(value));
+        } else if (peek(sym.IDENTIFIER) && tokens.text(pos).equals("json")) {
+            pos++;
+            return parseJsonAssertion();
+        }
+        
+        throw error("Expected STATUS, HEADER, BODY or json after expect, got " + describe(type));
+    }
+    
+    // json "$.path" = NUMBER | STRING | true | false | null ;
+    // json "$.path" exists ;
+    // json "$.path" size = NUMBER ;
+    private Assertion parseJsonAssertion() throws SyntaxError {
+        int pathToken = expectToken(sym.STRING, "after json");
+        String path = unquote(pathToken);
+        Assertion assertion;
+        if (peek(sym.EQ)) {
+            pos++;
+            if (peek(sym.STRING)) {
+                assertion = new Assertion("json_equals", unquote(pos++), path);
+            } else if (peek(sym.NUMBER)) {
+                assertion = new Assertion("json_equals", pool.intern(number(pos++)), path);
+            } else if (peek(sym.IDENTIFIER) && JsonPaths.isLiteral(tokens.text(pos))) {
+                assertion = new Assertion("json_equals", JsonPaths.literal(tokens.text(pos++)), path);
+            } else {
+                throw error("Expected NUMBER, STRING, true, false or null after =, got " + describe(pos));
             }
-            throw new Exception("Expected contains after body");
+        } else if (peek(sym.IDENTIFIER) && tokens.text(pos).equals("exists")) {
+            pos++;
+            assertion = new Assertion("json_exists", null, path);
+        } else if (peek(sym.IDENTIFIER) && tokens.text(pos).equals("size")) {
+            pos++;
+            expect(sym.EQ);
+            int num = expectToken(sym.NUMBER, "for size");
+            assertion = new Assertion("json_size", pool.intern(number(num)), path);
+        } else {
+            throw error("Expected EQ, exists or size after JSON path, got " + describe(pos));
         }
+        expect(sym.SEMICOLON);
         
-        throw new Exception("Expected status, header, or body");
+        String problem = JsonPaths.check(path);
+        if (problem != null) {
+            diagnostics.add(new Diagnostic(tokens.line(pathToken), tokens.column(pathToken), problem));
+        }
+        return assertion;
     }
     
-    private String unquote(String s) {
-        if (s.startsWith("\"") && s.endsWith("\"")) {
-            s = s.substring(1, s.length() - 1);
+    private Integer number(int token) throws SyntaxError {
+        try {
+            return Integer.valueOf(tokens.text(token));
+        } catch (NumberFormatException e) {
+            pos = token;
+            throw error("Invalid number " + tokens.text(token));
         }
-        return s.replace("\\\"", "\"").replace("\\\\", "\\");
     }
     
-    public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: java TestlangCompiler <input.test> <output.java>");
-            System.exit(1);
+    // Text of a STRING token without its quotes, with \" and \\ unescaped
+    private String unquote(int token) {
+        String source = tokens.source();
+        int start = tokens.start(token);
+        int end = tokens.end(token);
+        if (end - start >= 2 && source.charAt(start) == '"' && source.charAt(end - 1) == '"') {
+            start++;
+            end--;
         }
-        
-        try {
-            // Read input
-            String input = new String(java.nio.file.Files.readAllBytes(
-                java.nio.file.Paths.get(args[0])));
-            
-            // Parse
-            TestlangCompiler compiler = new TestlangCompiler();
-            CompilationUnit unit = compiler.parse(input);
-            
-            // Generate code
-            String code = CodeGenerator.generate(unit);
-            
-            // Write output
-            java.nio.file.Files.write(java.nio.file.Paths.get(args[1]), code.getBytes());
-            
-            System.out.println("Generated test code: " + args[1]);
-            
-        } catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
-            e.printStackTrace();
-            System.exit(1);
+        String s = source.substring(start, end);
+        if (s.indexOf('\\') >= 0) {
+            s = s.replace("\\\"", "\"").replace("\\\\", "\\");
         }
+        return pool.intern(s);
+    }
+    
+    public static void main(String[] args) {
+        CompilerCli.run(args, Frontend.HANDWRITTEN, "TestlangCompiler");
     }
 }
@@ -0,0 +1,120 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Per-test durations from earlier runs, used by --shards to balance shards.
+// Stored as a small text file of "name<TAB>nanos<TAB>runs" lines. Each update
+// moves a test's duration a quarter of the way towards the newest mean, so one
+// slow run doesn't reshuffle every shard. "#folded<TAB>sha256<TAB>bytes<TAB>
+// records<TAB>path" lines say how much of each results file is folded in
+// already. Results files are appended to, so a later update folds only the
+// records written after that, and the same records never count twice.
+public class TimingStore {
+    private static final String FOLDED = "#folded\t";
+    // Enough to remember every recent results file
+    private static final int MAX_FOLDED = 1000;
+    
+    // The first `bytes` bytes of a results file, with this SHA-256, held `records` records
+    public static final class Folded {
+        public final String digest;
+        public final long bytes;
+        public final long records;
+        
+        public Folded(String digest, long bytes, long records) {
+            this.digest = digest;
+            this.bytes = bytes;
+            this.records = records;
+        }
+    }
+    
+    private final Map<String, long[]> tests = new TreeMap<>();
+    // By absolute path of the results file, oldest first
+    private final Map<String, Folded> folded = new LinkedHashMap<>();
+    
+    // A missing file is an empty store
+    public static TimingStore load(Path file) throws IOException {
+        TimingStore store = new TimingStore();
+        if (!Files.exists(file)) return store;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.startsWith(FOLDED)) {
+                String[] parts = line.split("\t", 5);
+                try {
+                    if (parts.length == 5) {
+                        store.fold(parts[4], new Folded(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                    }
+                } catch (NumberFormatException e) {
+                    // Skip lines we didn't write
+                }
+                continue;
+            }
+            String[] parts = line.split("\t");
+            if (parts.length != 3) continue;
+            try {
+                store.tests.put(parts[0], new long[] {Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+            } catch (NumberFormatException e) {
+                // Skip lines we didn't write
+            }
+        }
+        return store;
+    }
+    
+    public void save(Path file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Folded> e : folded.entrySet()) {
+            Folded f = e.getValue();
+            text.append(FOLDED).append(f.digest).append('\t').append(f.bytes).append('\t').append(f.records)
+                .append('\t').append(e.getKey()).append('\n');
+        }
+        for (Map.Entry<String, long[]> e : tests.entrySet()) {
+            text.append(e.getKey()).append('\t').append(e.getValue()[0]).append('\t').append(e.getValue()[1]).append('\n');
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        Files.write(tmp, text.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Folds in the mean duration of a test over `runs` runs of the latest results
+    public void update(String test, long meanNanos, long runs) {
+        long[] entry = tests.get(test);
+        if (entry == null) {
+            tests.put(test, new long[] {meanNanos, runs});
+        } else {
+            entry[0] = (entry[0] * 3 + meanNanos) / 4;
+            entry[1] += runs;
+        }
+    }
+    
+    // How much of the results file at this path was folded in, or null
+    public Folded folded(String path) {
+        return folded.get(path);
+    }
+    
+    // Remembers how much of a results file is folded in; the oldest files are forgotten first
+    public void fold(String path, Folded f) {
+        folded.remove(path);
+        folded.put(path, f);
+        if (folded.size() > MAX_FOLDED) {
+            Iterator<String> oldest = folded.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+    
+    // Test name -> expected duration in nanoseconds
+    public Map<String, Long> durations() {
+        Map<String, Long> durations = new HashMap<>();
+        for (Map.Entry<String, long[]> e : tests.entrySet()) {
+            durations.put(e.getKey(), e.getValue()[0]);
+        }
+        return durations;
+    }
+    
+    public int size() {
+        return tests.size();
+    }
+}
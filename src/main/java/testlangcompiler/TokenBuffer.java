@@ -0,0 +1,88 @@
+package testlangcompiler;
+
+import java.util.*;
+
+// Token stream stored as parallel int arrays over the source text, so lexing
+// allocates nothing per token. Kinds are sym constants; token text is only
+// sliced out of the source when a parser asks for it.
+public final class TokenBuffer {
+    private String source = "";
+    private int[] kinds;
+    private int[] starts;
+    private int[] ends;
+    private int[] lines;
+    private int[] columns;
+    private int size;
+    
+    public TokenBuffer() {
+        this(256);
+    }
+    
+    public TokenBuffer(int capacity) {
+        capacity = Math.max(capacity, 16);
+        kinds = new int[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        lines = new int[capacity];
+        columns = new int[capacity];
+    }
+    
+    // Empties the buffer for a new source; the arrays are kept for reuse
+    public void reset(String source) {
+        this.source = source;
+        size = 0;
+    }
+    
+    public void add(int kind, int start, int end, int line, int column) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+        }
+        kinds[size] = kind;
+        starts[size] = start;
+        ends[size] = end;
+        lines[size] = line;
+        columns[size] = column;
+        size++;
+    }
+    
+    public String source() {
+        return source;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public int kind(int i) {
+        return kinds[i];
+    }
+    
+    public int start(int i) {
+        return starts[i];
+    }
+    
+    public int end(int i) {
+        return ends[i];
+    }
+    
+    public int line(int i) {
+        return lines[i];
+    }
+    
+    public int column(int i) {
+        return columns[i];
+    }
+    
+    public int length(int i) {
+        return ends[i] - starts[i];
+    }
+    
+    public String text(int i) {
+        return source.substring(starts[i], ends[i]);
+    }
+}
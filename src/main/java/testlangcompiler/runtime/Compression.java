@@ -0,0 +1,298 @@
+package testlangcompiler.runtime;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.zip.*;
+
+// gzip for suites compiled with `compression = gzip;` or
+// `compress_requests_over = N;`. Responses are inflated chunk by chunk as they
+// arrive, in front of whatever body subscriber reads them, so JSON paths are
+// still resolved in one streaming pass. Request bodies are deflated the same
+// way while they are sent.
+public final class Compression {
+    
+    private static final int CHUNK = 64 * 1024;
+    
+    private Compression() {
+    }
+    
+    // Inflates the body before `subscriber` sees it if the server gzipped it
+    public static <T> HttpResponse.BodySubscriber<T> decode(HttpResponse.ResponseInfo info,
+                                                            HttpResponse.BodySubscriber<T> subscriber) {
+        String encoding = info.headers().firstValue("Content-Encoding").orElse("").trim();
+        if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+            return new GunzipSubscriber<>(subscriber);
+        }
+        return subscriber;
+    }
+    
+    // Sets the method and body of the request, gzipped (with Content-Encoding)
+    // when it is at least `threshold` bytes or of unknown length
+    public static void body(HttpRequest.Builder builder, String method, HttpRequest.BodyPublisher body, long threshold) {
+        long length = body.contentLength();
+        if (length >= 0 && length < threshold) {
+            builder.method(method, body);
+            return;
+        }
+        builder.header("Content-Encoding", "gzip");
+        builder.method(method, HttpRequest.BodyPublishers.fromPublisher(new GzipPublisher(body)));
+    }
+    
+    // One upstream item becomes at most one downstream item. An item that
+    // inflates to nothing is replaced by asking upstream for another, so
+    // demand stays in step on both sides.
+    private static final class GunzipSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private static final int HEADER = 0, BODY = 1, TRAILER = 2;
+        
+        private final HttpResponse.BodySubscriber<T> downstream;
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private byte[] pending = new byte[0];  // header or trailer bytes seen so far
+        private int state = HEADER;
+        private boolean failed;
+        private Flow.Subscription upstream;
+        
+        GunzipSubscriber(HttpResponse.BodySubscriber<T> downstream) {
+            this.downstream = downstream;
+        }
+        
+        @Override
+        public CompletionStage<T> getBody() {
+            return downstream.getBody();
+        }
+        
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(subscription);
+        }
+        
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (failed) return;
+            List<ByteBuffer> out = new ArrayList<>();
+            try {
+                for (ByteBuffer item : items) {
+                    inflate(item, out);
+                }
+            } catch (IOException | DataFormatException e) {
+                failed = true;
+                upstream.cancel();
+                downstream.onError(e instanceof IOException ? e : new IOException("Bad gzip body: " + e.getMessage(), e));
+                return;
+            }
+            if (out.isEmpty()) {
+                upstream.request(1);
+            } else {
+                downstream.onNext(out);
+            }
+        }
+        
+        private void inflate(ByteBuffer in, List<ByteBuffer> out) throws IOException, DataFormatException {
+            while (in.hasRemaining()) {
+                if (state == HEADER) {
+                    if (!take(in, -1)) return;
+                    pending = new byte[0];
+                    state = BODY;
+                } else if (state == BODY) {
+                    inflater.setInput(in);
+                    while (!inflater.finished() && !inflater.needsInput()) {
+                        ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+                        inflater.inflate(chunk);
+                        chunk.flip();
+                        crc.update(chunk.duplicate());
+                        if (chunk.hasRemaining()) out.add(chunk);
+                        if (inflater.needsDictionary()) throw new IOException("Bad gzip body: needs a dictionary");
+                    }
+                    if (inflater.finished()) state = TRAILER;
+                } else {
+                    if (!take(in, 8)) return;
+                    long size = inflater.getBytesWritten();
+                    if (readInt(pending, 0) != (int)crc.getValue() || readInt(pending, 4) != (int)size) {
+                        throw new IOException("Bad gzip body: checksum mismatch");
+                    }
+                    // Another member may follow
+                    inflater.reset();
+                    crc.reset();
+                    pending = new byte[0];
+                    state = HEADER;
+                }
+            }
+        }
+        
+        // Moves bytes into pending until it holds `length` of them, or a whole
+        // member header for length -1; true once complete
+        private boolean take(ByteBuffer in, int length) throws IOException {
+            while (in.hasRemaining() && (length < 0 ? headerLength() < 0 : pending.length < length)) {
+                pending = Arrays.copyOf(pending, pending.length + 1);
+                pending[pending.length - 1] = in.get();
+            }
+            return length < 0 ? headerLength() >= 0 : pending.length == length;
+        }
+        
+        // Length of the gzip member header in pending, or -1 if more bytes are needed
+        private int headerLength() throws IOException {
+            if (pending.length >= 2 && ((pending[0] & 0xff) != 0x1f || (pending[1] & 0xff) != 0x8b)) {
+                throw new IOException("Body is marked gzip but has no gzip header");
+            }
+            if (pending.length < 10) return -1;
+            if (pending[2] != 8) throw new IOException("Unsupported gzip compression method " + pending[2]);
+            int flags = pending[3];
+            int length = 10;
+            if ((flags & 4) != 0) {  // FEXTRA
+                if (pending.length < length + 2) return -1;
+                length += 2 + ((pending[length] & 0xff) | (pending[length + 1] & 0xff) << 8);
+            }
+            for (int flag : new int[] {8, 16}) {  // FNAME, FCOMMENT: zero-terminated
+                if ((flags & flag) == 0) continue;
+                do {
+                    if (pending.length <= length) return -1;
+                } while (pending[length++] != 0);
+            }
+            if ((flags & 2) != 0) length += 2;  // FHCRC
+            return pending.length >= length ? length : -1;
+        }
+        
+        private static int readInt(byte[] b, int offset) {
+            return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+        }
+        
+        @Override
+        public void onError(Throwable throwable) {
+            inflater.end();
+            if (!failed) downstream.onError(throwable);
+        }
+        
+        @Override
+        public void onComplete() {
+            inflater.end();
+            if (failed) return;
+            if (state != HEADER || pending.length > 0) {
+                downstream.onError(new IOException("Truncated gzip body"));
+            } else {
+                downstream.onComplete();
+            }
+        }
+    }
+    
+    // Deflates another publisher's bytes into a gzip stream. As above, each
+    // upstream item maps to at most one output item; the deflater's tail and
+    // the trailer go out as one last item once the subscriber asks for it.
+    private static final class GzipPublisher implements Flow.Publisher<ByteBuffer> {
+        private static final byte[] HEADER = {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff};
+        
+        private final Flow.Publisher<ByteBuffer> source;
+        
+        GzipPublisher(Flow.Publisher<ByteBuffer> source) {
+            this.source = source;
+        }
+        
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            source.subscribe(new Flow.Subscriber<ByteBuffer>() {
+                private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                private final CRC32 crc = new CRC32();
+                private final Object lock = new Object();
+                private Flow.Subscription upstream;
+                private long demand;
+                private boolean headerSent;
+                private ByteBuffer last;  // waiting for demand
+                private boolean done;
+                
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    upstream = subscription;
+                    subscriber.onSubscribe(new Flow.Subscription() {
+                        @Override
+                        public void request(long n) {
+                            ByteBuffer tail;
+                            synchronized (lock) {
+                                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                                tail = last;
+                                last = null;
+                            }
+                            if (tail != null) {
+                                subscriber.onNext(tail);
+                                subscriber.onComplete();
+                            } else if (!done) {
+                                upstream.request(n);
+                            }
+                        }
+                        
+                        @Override
+                        public void cancel() {
+                            done = true;
+                            upstream.cancel();
+                            deflater.end();
+                        }
+                    });
+                }
+                
+                @Override
+                public void onNext(ByteBuffer item) {
+                    if (done) return;
+                    crc.update(item.duplicate());
+                    deflater.setInput(item);
+                    ByteBuffer out = drain(false);
+                    if (out.hasRemaining()) {
+                        synchronized (lock) {
+                            demand--;
+                        }
+                        subscriber.onNext(out);
+                    } else {
+                        upstream.request(1);
+                    }
+                }
+                
+                @Override
+                public void onError(Throwable throwable) {
+                    done = true;
+                    deflater.end();
+                    subscriber.onError(throwable);
+                }
+                
+                @Override
+                public void onComplete() {
+                    if (done) return;
+                    done = true;
+                    deflater.finish();
+                    ByteBuffer tail = drain(true);
+                    ByteBuffer withTrailer = ByteBuffer.allocate(tail.remaining() + 8).order(ByteOrder.LITTLE_ENDIAN);
+                    withTrailer.put(tail).putInt((int)crc.getValue()).putInt((int)deflater.getBytesRead()).flip();
+                    deflater.end();
+                    boolean send;
+                    synchronized (lock) {
+                        send = demand > 0;
+                        if (!send) last = withTrailer;
+                    }
+                    if (send) {
+                        subscriber.onNext(withTrailer);
+                        subscriber.onComplete();
+                    }
+                }
+                
+                // Compressed output for the input given so far (all of it when finishing)
+                private ByteBuffer drain(boolean finishing) {
+                    ByteBuffer out = ByteBuffer.allocate(CHUNK);
+                    if (!headerSent) {
+                        out.put(HEADER);
+                        headerSent = true;
+                    }
+                    while (finishing ? !deflater.finished() : !deflater.needsInput()) {
+                        if (!out.hasRemaining()) {
+                            out = ByteBuffer.allocate(out.capacity() * 2).put(out.flip());
+                        }
+                        deflater.deflate(out);
+                    }
+                    return out.flip();
+                }
+            });
+        }
+    }
+}
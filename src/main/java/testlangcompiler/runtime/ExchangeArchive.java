@@ -0,0 +1,208 @@
+package testlangcompiler.runtime;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Recorded HTTP exchanges of a suite run, for Exchanges to replay offline.
+//
+// Format: "TLX1", then one record per exchange: method, URI, hash of the
+// request body, status, headers and the response body as it came over the
+// wire (still gzipped if it was). An index of (key hash, record offset) pairs
+// sorted by key follows, and the file ends with the index offset and the
+// number of records. Replay maps the file and binary-searches the index in
+// place; response bodies are handed out as slices of the mapping.
+public final class ExchangeArchive {
+    static final byte[] MAGIC = {'T', 'L', 'X', '1'};
+    private static final int TRAILER = 12;
+    private static final int ENTRY = 16;
+    
+    private final MappedByteBuffer data;
+    private final int index;
+    private final int count;
+    
+    // A recorded response; body is a read-only slice of the archive
+    public static final class Exchange {
+        public final int status;
+        public final Map<String, List<String>> headers;
+        public final ByteBuffer body;
+        
+        Exchange(int status, Map<String, List<String>> headers, ByteBuffer body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+    
+    private ExchangeArchive(MappedByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.capacity() < MAGIC.length + TRAILER || data.getInt(0) != ByteBuffer.wrap(MAGIC).getInt()) {
+            throw new IOException("not an exchange archive");
+        }
+        long indexOffset = data.getLong(data.capacity() - TRAILER);
+        this.count = data.getInt(data.capacity() - 4);
+        if (indexOffset < MAGIC.length || indexOffset + (long)count * ENTRY != data.capacity() - TRAILER) {
+            throw new IOException("exchange archive is incomplete (was the recording run stopped?)");
+        }
+        this.index = (int)indexOffset;
+    }
+    
+    public static ExchangeArchive open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("exchange archive over 2 GB: " + file);
+            }
+            return new ExchangeArchive(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+    
+    public int size() {
+        return count;
+    }
+    
+    // The occurrence-th exchange recorded for this request (counting from 0),
+    // or the last one when it was sent fewer times; null if it never was
+    public Exchange find(String method, String uri, long bodyHash, int occurrence) {
+        long key = key(method, uri, bodyHash);
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (data.getLong(index + mid * ENTRY) < key) low = mid + 1; else high = mid;
+        }
+        int found = -1;
+        for (int i = low; i < count && data.getLong(index + i * ENTRY) == key; i++) {
+            int offset = (int)data.getLong(index + i * ENTRY + 8);
+            if (!matches(offset, method, uri, bodyHash)) continue;
+            found = offset;
+            if (occurrence-- == 0) break;
+        }
+        return found < 0 ? null : read(found);
+    }
+    
+    private boolean matches(int offset, String method, String uri, long bodyHash) {
+        int[] position = {offset};
+        return string(position).equals(method) && string(position).equals(uri) && data.getLong(position[0]) == bodyHash;
+    }
+    
+    private Exchange read(int offset) {
+        int[] position = {offset};
+        string(position);
+        string(position);
+        position[0] += 8;
+        int status = data.getInt(position[0]);
+        int headerCount = data.getInt(position[0] + 4);
+        position[0] += 8;
+        Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < headerCount; i++) {
+            String name = string(position);
+            headers.computeIfAbsent(name, k -> new ArrayList<>()).add(string(position));
+        }
+        int length = data.getInt(position[0]);
+        return new Exchange(status, headers, data.slice(position[0] + 4, length).asReadOnlyBuffer());
+    }
+    
+    private String string(int[] position) {
+        int length = data.getInt(position[0]);
+        byte[] bytes = new byte[length];
+        data.get(position[0] + 4, bytes);
+        position[0] += 4 + length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    // FNV-1a, for request bodies and index keys
+    static long hash(long hash, byte[] bytes) {
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    static long hash(byte[] bytes) {
+        return hash(0xcbf29ce484222325L, bytes);
+    }
+    
+    static long key(String method, String uri, long bodyHash) {
+        long hash = hash((method + " " + uri).getBytes(StandardCharsets.UTF_8));
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ (bodyHash >>> shift & 0xff)) * 0x100000001b3L;
+        }
+        // Keys are kept positive so that they sort the same signed and unsigned
+        return hash & Long.MAX_VALUE;
+    }
+    
+    // Appends exchanges as they complete; close() writes the index
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private long offset;
+        private long[] keys = new long[1024];
+        private long[] offsets = new long[1024];
+        private int count;
+        private boolean closed;
+        
+        public Writer(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.write(MAGIC);
+            offset = MAGIC.length;
+        }
+        
+        public synchronized void add(String method, String uri, long bodyHash, int status,
+                                     Map<String, List<String>> headers, byte[] body) throws IOException {
+            if (closed) return;
+            if (offset + body.length > Integer.MAX_VALUE) {
+                throw new IOException("exchange archive over 2 GB");
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            keys[count] = key(method, uri, bodyHash);
+            offsets[count++] = offset;
+            
+            int start = out.size();
+            string(method);
+            string(uri);
+            out.writeLong(bodyHash);
+            out.writeInt(status);
+            int headerCount = 0;
+            for (List<String> values : headers.values()) headerCount += values.size();
+            out.writeInt(headerCount);
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                for (String value : header.getValue()) {
+                    string(header.getKey());
+                    string(value);
+                }
+            }
+            out.writeInt(body.length);
+            out.write(body);
+            offset += out.size() - start;
+        }
+        
+        private void string(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        
+        // Entries with the same key stay in recording order, which is the order they replay in
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingLong((Integer i) -> keys[i]));
+            for (int i : order) {
+                out.writeLong(keys[i]);
+                out.writeLong(offsets[i]);
+            }
+            out.writeLong(offset);
+            out.writeInt(count);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package testlangcompiler.runtime;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.*;
+
+// Record and replay of the HTTP exchanges of instrumented suites (compiled
+// with --instrument). -Dtestlang.record=<file> sends requests as usual and
+// saves every exchange to an ExchangeArchive. -Dtestlang.replay=<file> sends
+// nothing: responses come from the archive, so a run needs no backend and
+// measures only the client, assertions and runner. Requests are matched by
+// method, URI and a hash of the body; one sent several times gets its
+// recorded responses in order.
+public final class Exchanges {
+    public static final String RECORD = "testlang.record";
+    public static final String REPLAY = "testlang.replay";
+    
+    private Exchanges() {
+    }
+    
+    // The client the generated setup builds, recording or replaying as the properties ask
+    public static HttpClient client(HttpClient client) {
+        String replay = System.getProperty(REPLAY);
+        String record = System.getProperty(RECORD);
+        try {
+            if (replay != null && !replay.isEmpty()) {
+                return replaying(client, ExchangeArchive.open(Paths.get(replay)));
+            }
+            if (record != null && !record.isEmpty()) {
+                ExchangeArchive.Writer writer = new ExchangeArchive.Writer(Paths.get(record));
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        System.err.println("testlang: cannot write exchanges to " + record + ": " + e.getMessage());
+                    }
+                }, "testlang-exchanges-close"));
+                return recording(client, writer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("testlang: cannot open exchange archive " + (replay != null ? replay : record), e);
+        }
+        return client;
+    }
+    
+    static HttpClient recording(HttpClient client, ExchangeArchive.Writer writer) {
+        return new Delegating(client) {
+            @Override
+            public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+                    throws IOException, InterruptedException {
+                byte[] body = body(request);
+                long bodyHash = ExchangeArchive.hash(body);
+                // The publisher is read once, for the hash; the server gets a copy sending the same bytes
+                HttpRequest sent = body.length == 0 ? request : HttpRequest.newBuilder(request, (name, value) -> true)
+                        .method(request.method(), HttpRequest.BodyPublishers.ofByteArray(body)).build();
+                // The body is read raw, as it came, and handed to the handler afterwards
+                HttpResponse<byte[]> response = client.send(sent, HttpResponse.BodyHandlers.ofByteArray());
+                writer.add(request.method(), request.uri().toString(), bodyHash, response.statusCode(),
+                           response.headers().map(), response.body());
+                return new Response<>(request, response.statusCode(), response.headers(),
+                                      ByteBuffer.wrap(response.body()), handler);
+            }
+        };
+    }
+    
+    static HttpClient replaying(HttpClient client, ExchangeArchive archive) {
+        Map<String, AtomicInteger> sent = new ConcurrentHashMap<>();
+        return new Delegating(client) {
+            @Override
+            public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+                    throws IOException, InterruptedException {
+                String uri = request.uri().toString();
+                long bodyHash = ExchangeArchive.hash(body(request));
+                int occurrence = sent.computeIfAbsent(request.method() + " " + uri + " " + bodyHash,
+                                                      k -> new AtomicInteger()).getAndIncrement();
+                ExchangeArchive.Exchange exchange = archive.find(request.method(), uri, bodyHash, occurrence);
+                if (exchange == null) {
+                    throw new IOException("no recorded exchange for " + request.method() + " " + uri);
+                }
+                return new Response<>(request, exchange.status, HttpHeaders.of(exchange.headers, (k, v) -> true),
+                                      exchange.body, handler);
+            }
+        };
+    }
+    
+    // The bytes the request's publisher sends; empty without a body
+    static byte[] body(HttpRequest request) throws IOException, InterruptedException {
+        if (request.bodyPublisher().isEmpty()) return new byte[0];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompletableFuture<byte[]> done = new CompletableFuture<>();
+        request.bodyPublisher().get().subscribe(new Flow.Subscriber<ByteBuffer>() {
+            public void onSubscribe(Flow.Subscription s) {
+                s.request(Long.MAX_VALUE);
+            }
+            public void onNext(ByteBuffer buffer) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                out.write(bytes, 0, bytes.length);
+            }
+            public void onError(Throwable t) {
+                done.completeExceptionally(t);
+            }
+            public void onComplete() {
+                done.complete(out.toByteArray());
+            }
+        });
+        return await(done);
+    }
+    
+    private static <T> T await(CompletionStage<T> stage) throws IOException, InterruptedException {
+        try {
+            return stage.toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        }
+    }
+    
+    // A response whose body went through the test's handler in-process, from one buffer
+    private static final class Response<T> implements HttpResponse<T>, HttpResponse.ResponseInfo {
+        private final HttpRequest request;
+        private final int status;
+        private final HttpHeaders headers;
+        private final T body;
+        
+        Response(HttpRequest request, int status, HttpHeaders headers, ByteBuffer bytes, BodyHandler<T> handler)
+                throws IOException, InterruptedException {
+            this.request = request;
+            this.status = status;
+            this.headers = headers;
+            HttpResponse.BodySubscriber<T> subscriber = handler.apply(this);
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private boolean done;
+                
+                public void request(long n) {
+                    if (done || n <= 0) return;
+                    done = true;
+                    if (bytes.hasRemaining()) subscriber.onNext(List.of(bytes));
+                    subscriber.onComplete();
+                }
+                
+                public void cancel() {
+                    done = true;
+                }
+            });
+            this.body = await(subscriber.getBody());
+        }
+        
+        public int statusCode() { return status; }
+        public HttpRequest request() { return request; }
+        public Optional<HttpResponse<T>> previousResponse() { return Optional.empty(); }
+        public HttpHeaders headers() { return headers; }
+        public T body() { return body; }
+        public Optional<SSLSession> sslSession() { return Optional.empty(); }
+        public URI uri() { return request.uri(); }
+        public HttpClient.Version version() { return HttpClient.Version.HTTP_1_1; }
+    }
+    
+    // The client's settings, with send replaced; sendAsync runs send on the calling thread
+    private abstract static class Delegating extends HttpClient {
+        final HttpClient client;
+        
+        Delegating(HttpClient client) {
+            this.client = client;
+        }
+        
+        public Optional<CookieHandler> cookieHandler() { return client.cookieHandler(); }
+        public Optional<Duration> connectTimeout() { return client.connectTimeout(); }
+        public Redirect followRedirects() { return client.followRedirects(); }
+        public Optional<ProxySelector> proxy() { return client.proxy(); }
+        public SSLContext sslContext() { return client.sslContext(); }
+        public SSLParameters sslParameters() { return client.sslParameters(); }
+        public Optional<Authenticator> authenticator() { return client.authenticator(); }
+        public Version version() { return client.version(); }
+        public Optional<Executor> executor() { return client.executor(); }
+        
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                                HttpResponse.BodyHandler<T> handler) {
+            try {
+                return CompletableFuture.completedFuture(send(request, handler));
+            } catch (IOException | InterruptedException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                                                HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+            return sendAsync(request, handler);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package testlangcompiler.runtime;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Request bodies read from files (body = file "payload.json";). A file without
+// $variables is sent with BodyPublishers.ofFile. Otherwise the file is
+// memory-mapped once and sent as slices of the mapping with the variable
+// values in between, so a large payload never sits on the heap as a whole.
+// Relative paths are resolved against -Dtestlang.files (default: the working
+// directory).
+public final class FileBody {
+    
+    private static final int CHUNK = 64 * 1024;
+    private static final Map<Path, Template> TEMPLATES = new ConcurrentHashMap<>();
+    
+    private FileBody() {
+    }
+    
+    public static HttpRequest.BodyPublisher of(String file) throws IOException {
+        return HttpRequest.BodyPublishers.ofFile(path(file));
+    }
+    
+    // variables: values known when the suite was compiled; bound: name/value
+    // pairs bound from earlier responses, which win over variables
+    public static HttpRequest.BodyPublisher of(String file, Map<String, String> variables, String... bound)
+            throws IOException {
+        Path path = path(file);
+        Template template = template(path);
+        Map<String, String> values = variables;
+        if (bound.length > 0) {
+            values = new HashMap<>(variables);
+            for (int i = 0; i + 1 < bound.length; i += 2) {
+                values.put(bound[i], bound[i + 1]);
+            }
+        }
+        
+        // Values of the names in the file; a $name that is no variable is sent as written
+        byte[][] bytes = new byte[template.names.size()][];
+        for (int n = 0; n < bytes.length; n++) {
+            String value = values.get(template.names.get(n));
+            if (value != null) bytes[n] = value.getBytes(StandardCharsets.UTF_8);
+        }
+        long length = template.data.limit();
+        boolean substitutes = false;
+        for (int i = 0; i < template.count; i++) {
+            byte[] value = bytes[template.nameIds[i]];
+            if (value != null) {
+                length += value.length - (template.ends[i] - template.starts[i]);
+                substitutes = true;
+            }
+        }
+        if (!substitutes) {
+            return HttpRequest.BodyPublishers.ofFile(path);
+        }
+        return HttpRequest.BodyPublishers.fromPublisher(new FilledPublisher(template, bytes), length);
+    }
+    
+    static Path path(String file) throws FileNotFoundException {
+        Path path = Paths.get(System.getProperty("testlang.files", "")).resolve(file);
+        if (!Files.isRegularFile(path)) {
+            throw new FileNotFoundException("Request body file not found: " + path.toAbsolutePath());
+        }
+        return path;
+    }
+    
+    // Mapped once per file; mapped again if the file was changed since
+    private static Template template(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        long modified = Files.getLastModifiedTime(key).toMillis();
+        long size = Files.size(key);
+        Template template = TEMPLATES.get(key);
+        if (template == null || template.modified != modified || template.data.limit() != size) {
+            template = new Template(key, modified);
+            TEMPLATES.put(key, template);
+        }
+        return template;
+    }
+    
+    // A mapped file and the positions of every $name in it
+    private static final class Template {
+        final long modified;
+        final MappedByteBuffer data;
+        final List<String> names = new ArrayList<>();
+        int count;
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int[] nameIds = new int[16];
+        
+        Template(Path path, long modified) throws IOException {
+            this.modified = modified;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Request body file with variables is over 2 GB: " + path);
+                }
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            Map<String, Integer> ids = new HashMap<>();
+            int limit = data.limit();
+            for (int i = 0; i < limit; i++) {
+                if (data.get(i) != '$') continue;
+                int end = i + 1;
+                while (end < limit && isNamePart(data.get(end))) end++;
+                if (end == i + 1) continue;
+                byte[] name = new byte[end - i - 1];
+                data.get(i + 1, name);
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                    nameIds = Arrays.copyOf(nameIds, count * 2);
+                }
+                starts[count] = i;
+                ends[count] = end;
+                nameIds[count] = ids.computeIfAbsent(new String(name, StandardCharsets.US_ASCII), k -> {
+                    names.add(k);
+                    return names.size() - 1;
+                });
+                count++;
+                i = end - 1;
+            }
+        }
+        
+        private static boolean isNamePart(byte b) {
+            return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+        }
+    }
+    
+    // Reads the filled-in file front to back, one chunk at a time. A long run
+    // without variables is a slice of the mapping; around variables the text
+    // and values are copied into a fresh chunk.
+    private static final class Cursor {
+        private final Template template;
+        private final byte[][] values;
+        private int pos;
+        private int next;
+        private int valueOffset;
+        
+        Cursor(Template template, byte[][] values) {
+            this.template = template;
+            this.values = values;
+        }
+        
+        // Next chunk, or null at the end
+        ByteBuffer read() {
+            if (stop() - pos >= CHUNK) {
+                ByteBuffer slice = template.data.duplicate().position(pos).limit(pos + CHUNK).slice();
+                pos += CHUNK;
+                return slice;
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+            while (chunk.hasRemaining()) {
+                int stop = stop();
+                if (pos < stop) {
+                    int n = Math.min(stop - pos, chunk.remaining());
+                    chunk.put(chunk.position(), template.data, pos, n).position(chunk.position() + n);
+                    pos += n;
+                } else if (next < template.count) {
+                    byte[] value = values[template.nameIds[next]];
+                    int n = Math.min(value.length - valueOffset, chunk.remaining());
+                    chunk.put(value, valueOffset, n);
+                    valueOffset += n;
+                    if (valueOffset == value.length) {
+                        valueOffset = 0;
+                        pos = template.ends[next++];
+                    }
+                } else {
+                    break;
+                }
+            }
+            return chunk.position() > 0 ? chunk.flip() : null;
+        }
+        
+        // Start of the next variable to fill in, or the end of the file
+        private int stop() {
+            while (next < template.count && values[template.nameIds[next]] == null) next++;
+            return next < template.count ? template.starts[next] : template.data.limit();
+        }
+    }
+    
+    // Publishes a new Cursor's chunks to every subscriber, as fast as they ask,
+    // so the client can also resend the body
+    private static final class FilledPublisher implements Flow.Publisher<ByteBuffer> {
+        private final Template template;
+        private final byte[][] values;
+        
+        FilledPublisher(Template template, byte[][] values) {
+            this.template = template;
+            this.values = values;
+        }
+        
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            Cursor cursor = new Cursor(template, values);
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private long demand;
+                private boolean emitting;
+                private final AtomicBoolean done = new AtomicBoolean();
+                
+                @Override
+                public void request(long n) {
+                    if (n <= 0) {
+                        if (done.compareAndSet(false, true)) {
+                            subscriber.onError(new IllegalArgumentException("request(" + n + ")"));
+                        }
+                        return;
+                    }
+                    synchronized (this) {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                        if (emitting) return;  // called from onNext: the loop below picks it up
+                        emitting = true;
+                    }
+                    while (true) {
+                        ByteBuffer chunk;
+                        synchronized (this) {
+                            if (done.get() || demand == 0) {
+                                emitting = false;
+                                return;
+                            }
+                            demand--;
+                            chunk = cursor.read();
+                        }
+                        if (chunk == null) {
+                            if (done.compareAndSet(false, true)) subscriber.onComplete();
+                            synchronized (this) {
+                                emitting = false;
+                            }
+                            return;
+                        }
+                        subscriber.onNext(chunk);
+                    }
+                }
+                
+                @Override
+                public void cancel() {
+                    done.set(true);
+                }
+            });
+        }
+    }
+}
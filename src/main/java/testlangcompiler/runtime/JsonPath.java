@@ -0,0 +1,488 @@
+package testlangcompiler.runtime;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Streaming JSON path evaluation for generated tests. evaluate() pulls tokens
+// from the response bytes, skips every subtree no path points into, and stops
+// reading (closing the stream) as soon as all paths are resolved. Only the
+// values the paths select are ever materialized.
+//
+// Paths: $ followed by .name, ['name'] or [index] segments, e.g. $.data[0].id
+public final class JsonPath {
+    // Result for a path that does not exist in the document
+    public static final Object MISSING = new Object() {
+        @Override
+        public String toString() {
+            return "<missing>";
+        }
+    };
+    
+    private final String text;
+    private final Object[] segments;  // String member names and Integer indices
+    private final boolean size;
+    
+    private JsonPath(String text, Object[] segments, boolean size) {
+        this.text = text;
+        this.segments = segments;
+        this.size = size;
+    }
+    
+    public static JsonPath of(String path) {
+        return new JsonPath(path, parse(path), false);
+    }
+    
+    // Resolves to the number of elements (or members) instead of the value,
+    // counted while skipping them, so large arrays are never held in memory
+    public static JsonPath size(String path) {
+        return new JsonPath(path, parse(path), true);
+    }
+    
+    @Override
+    public String toString() {
+        return text;
+    }
+    
+    private static Object[] parse(String path) {
+        if (!path.startsWith("$")) {
+            throw new IllegalArgumentException("JSON path must start with $: " + path);
+        }
+        List<Object> segments = new ArrayList<>();
+        int i = 1;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                int start = ++i;
+                while (i < path.length() && path.charAt(i) != '.' && path.charAt(i) != '[') i++;
+                if (i == start) throw new IllegalArgumentException("Empty member name in " + path);
+                segments.add(path.substring(start, i));
+            } else if (c == '[') {
+                int close = path.indexOf(']', i);
+                if (close < 0) throw new IllegalArgumentException("Missing ] in " + path);
+                String inside = path.substring(i + 1, close).trim();
+                if (inside.length() >= 2 && (inside.charAt(0) == '\'' || inside.charAt(0) == '"')) {
+                    segments.add(inside.substring(1, inside.length() - 1));
+                } else {
+                    try {
+                        segments.add(Integer.valueOf(inside));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad index [" + inside + "] in " + path);
+                    }
+                }
+                i = close + 1;
+            } else {
+                throw new IllegalArgumentException("Unexpected '" + c + "' in " + path);
+            }
+        }
+        return segments.toArray();
+    }
+    
+    // One result per path: a String, BigDecimal, Boolean or null for scalars,
+    // the raw JSON text for objects and arrays, an Integer for size paths on
+    // an array or object, or MISSING
+    public static Object[] evaluate(InputStream body, JsonPath... paths) throws IOException {
+        Object[] results = new Object[paths.length];
+        Arrays.fill(results, MISSING);
+        int[] active = new int[paths.length];
+        for (int i = 0; i < active.length; i++) active[i] = i;
+        
+        try (InputStream in = body) {
+            new Walker(new Source(in), paths, results, new BitSet(paths.length)).visit(0, active, active.length);
+        } catch (Walker.Done e) {
+            // Every path resolved; the rest of the body is never read
+        }
+        return results;
+    }
+    
+    public static Object[] evaluate(String body, JsonPath... paths) throws IOException {
+        return evaluate(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), paths);
+    }
+    
+    // Text of a resolved value, for substitution into later requests
+    public static String require(Object value, String path) {
+        if (value == MISSING) {
+            throw new AssertionError("No JSON value at " + path);
+        }
+        return value instanceof BigDecimal ? ((BigDecimal)value).toPlainString() : String.valueOf(value);
+    }
+    
+    // expect json "$.path" = value; numbers compare by value, so 42 matches 42.0
+    public static void assertValue(Object actual, Object expected, String path) {
+        assertExists(actual, path);
+        boolean equal;
+        if (expected instanceof Number && actual instanceof BigDecimal) {
+            equal = new BigDecimal(expected.toString()).compareTo((BigDecimal)actual) == 0;
+        } else {
+            equal = Objects.equals(expected, actual);
+        }
+        if (!equal) {
+            throw new AssertionError("Expected " + describe(expected) + " at " + path + " but was " + describe(actual));
+        }
+    }
+    
+    public static void assertExists(Object actual, String path) {
+        if (actual == MISSING) {
+            throw new AssertionError("No JSON value at " + path);
+        }
+    }
+    
+    public static void assertSize(Object actual, int expected, String path) {
+        assertExists(actual, path);
+        if (!(actual instanceof Integer)) {
+            throw new AssertionError("Expected an array or object at " + path + " but was " + describe(actual));
+        }
+        if ((Integer)actual != expected) {
+            throw new AssertionError("Expected size " + expected + " at " + path + " but was " + actual);
+        }
+    }
+    
+    private static String describe(Object value) {
+        return value instanceof String ? "\"" + value + "\"" : String.valueOf(value);
+    }
+    
+    private static final class Walker {
+        // Unwinds the walk once nothing is left to resolve
+        static final class Done extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+            
+            Done() {
+                super(null, null, false, false);
+            }
+        }
+        
+        private final Source src;
+        private final JsonPath[] paths;
+        private final Object[] results;
+        // Paths with a result, shared with the walkers over captured copies
+        private final BitSet resolved;
+        
+        Walker(Source src, JsonPath[] paths, Object[] results, BitSet resolved) {
+            this.src = src;
+            this.paths = paths;
+            this.results = results;
+            this.resolved = resolved;
+        }
+        
+        // Visits the value at the current position; active[0..count) are the
+        // paths whose first depth segments lead here
+        void visit(int depth, int[] active, int count) throws IOException {
+            int[] deeper = new int[count];
+            int n = 0;
+            int values = 0;
+            int sizes = 0;
+            for (int i = 0; i < count; i++) {
+                JsonPath path = paths[active[i]];
+                if (path.segments.length > depth) deeper[n++] = active[i];
+                else if (path.size) sizes++;
+                else values++;
+            }
+            
+            if (n == 0 && (values == 0 || sizes == 0)) {
+                Object value = sizes > 0 ? src.readSize() : src.readValue();
+                for (int i = 0; i < count; i++) resolve(active[i], value);
+                return;
+            }
+            if (values > 0) {
+                // A value ends here and other paths need more than that value:
+                // capture the subtree once and resolve everything from the copy
+                byte[] raw = src.capture();
+                for (int i = 0; i < count; i++) {
+                    JsonPath path = paths[active[i]];
+                    if (path.segments.length == depth) {
+                        Source copy = new Source(new ByteArrayInputStream(raw));
+                        resolve(active[i], path.size ? copy.readSize() : copy.readValue());
+                    }
+                }
+                if (n == 0) return;
+                new Walker(new Source(new ByteArrayInputStream(raw)), paths, results, resolved).visit(depth, deeper, n);
+                return;
+            }
+            
+            // Only deeper paths, plus size paths that are counted along the way
+            Object size = walk(depth, deeper, n);
+            for (int i = 0; i < count; i++) {
+                if (paths[active[i]].segments.length == depth) resolve(active[i], size);
+            }
+        }
+        
+        // Walks a container, visiting the members or elements the active paths
+        // lead into and skipping the rest; returns the element count (or the
+        // value itself if it is not a container)
+        private Object walk(int depth, int[] active, int count) throws IOException {
+            int c = src.peek();
+            if (c != '{' && c != '[') {
+                // A scalar cannot contain the deeper paths
+                return src.readValue();
+            }
+            src.read();
+            char close = c == '{' ? '}' : ']';
+            if (src.peek() == close) {
+                src.read();
+                return 0;
+            }
+            int[] matching = new int[count];
+            for (int index = 0; ; index++) {
+                int n = 0;
+                if (c == '{') {
+                    String name = src.readString();
+                    src.expect(':');
+                    for (int i = 0; i < count; i++) {
+                        if (name.equals(paths[active[i]].segments[depth])) matching[n++] = active[i];
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        Object segment = paths[active[i]].segments[depth];
+                        if (segment instanceof Integer && (Integer)segment == index) matching[n++] = active[i];
+                    }
+                }
+                if (n == 0) src.skipValue();
+                else visit(depth + 1, matching, n);
+                if (!src.nextElement(close)) return index + 1;
+            }
+        }
+        
+        // A duplicate member reaches its paths again; the first value stays,
+        // whether or not the walk stopped after it
+        private void resolve(int path, Object value) {
+            if (resolved.get(path)) return;
+            results[path] = value;
+            resolved.set(path);
+            if (resolved.cardinality() == paths.length) throw new Done();
+        }
+    }
+    
+    // Buffered UTF-8 byte source with just enough JSON tokenizing for the walker
+    private static final class Source {
+        private final InputStream in;
+        private final byte[] buf = new byte[8192];
+        private int pos;
+        private int limit;
+        private long offset;
+        private ByteArrayOutputStream recording;
+        
+        Source(InputStream in) {
+            this.in = in;
+        }
+        
+        private int read() throws IOException {
+            if (pos == limit) {
+                offset += limit;
+                limit = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            int b = buf[pos++] & 0xff;
+            if (recording != null) recording.write(b);
+            return b;
+        }
+        
+        // Next non-whitespace byte, not consumed
+        private int peek() throws IOException {
+            while (true) {
+                if (pos == limit) {
+                    offset += limit;
+                    limit = in.read(buf, 0, buf.length);
+                    pos = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return -1;
+                    }
+                }
+                int b = buf[pos] & 0xff;
+                if (b != ' ' && b != '\n' && b != '\r' && b != '\t') return b;
+                pos++;
+                if (recording != null) recording.write(b);
+            }
+        }
+        
+        private void expect(char c) throws IOException {
+            if (peek() != c) throw malformed("expected '" + c + "'");
+            read();
+        }
+        
+        // After a member or element: true if another follows, false at the closing bracket
+        private boolean nextElement(char close) throws IOException {
+            int c = peek();
+            read();
+            if (c == ',') return true;
+            if (c == close) return false;
+            throw malformed("expected ',' or '" + close + "'");
+        }
+        
+        private IOException malformed(String message) {
+            return new IOException("Malformed JSON at byte " + (offset + pos) + ": " + message);
+        }
+        
+        Object readValue() throws IOException {
+            int c = peek();
+            switch (c) {
+                case '"':
+                    return readString();
+                case '{':
+                case '[':
+                    return new String(capture(), StandardCharsets.UTF_8).trim();
+                case 't':
+                case 'f':
+                case 'n':
+                    String word = readWord();
+                    switch (word) {
+                        case "true": return Boolean.TRUE;
+                        case "false": return Boolean.FALSE;
+                        case "null": return null;
+                        default: throw malformed("unknown literal " + word);
+                    }
+                case -1:
+                    throw malformed("unexpected end of input");
+                default:
+                    String number = readWord();
+                    try {
+                        return new BigDecimal(number);
+                    } catch (NumberFormatException e) {
+                        throw malformed("bad number " + number);
+                    }
+            }
+        }
+        
+        // Element count of an array or member count of an object; any other
+        // value is returned as by readValue()
+        Object readSize() throws IOException {
+            int c = peek();
+            if (c != '[' && c != '{') {
+                return readValue();
+            }
+            read();
+            int close = c == '[' ? ']' : '}';
+            if (peek() == close) {
+                read();
+                return 0;
+            }
+            int size = 0;
+            do {
+                if (c == '{') {
+                    skipValue();
+                    expect(':');
+                }
+                skipValue();
+                size++;
+            } while (nextElement((char)close));
+            return size;
+        }
+        
+        // Copies the bytes of the next value while skipping it
+        byte[] capture() throws IOException {
+            peek();
+            recording = new ByteArrayOutputStream();
+            try {
+                skipValue();
+                return recording.toByteArray();
+            } finally {
+                recording = null;
+            }
+        }
+        
+        void skipValue() throws IOException {
+            int c = peek();
+            if (c == '"') {
+                read();
+                while (true) {
+                    int b = read();
+                    if (b == '"') return;
+                    if (b == '\\') read();
+                    if (b < 0) throw malformed("unterminated string");
+                }
+            } else if (c == '{' || c == '[') {
+                // Bracket depth only: strings are skipped so their brackets don't count
+                int depth = 0;
+                do {
+                    int b = peek();
+                    if (b == '"') {
+                        skipValue();
+                        continue;
+                    }
+                    read();
+                    if (b == '{' || b == '[') depth++;
+                    else if (b == '}' || b == ']') depth--;
+                    else if (b < 0) throw malformed("unexpected end of input");
+                } while (depth > 0);
+            } else if (c < 0) {
+                throw malformed("unexpected end of input");
+            } else {
+                readWord();
+            }
+        }
+        
+        // Number or literal: everything up to the next delimiter
+        private String readWord() throws IOException {
+            StringBuilder word = new StringBuilder();
+            while (true) {
+                int b = peekRaw();
+                if (b < 0 || b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                    return word.toString();
+                }
+                word.append((char)read());
+            }
+        }
+        
+        private int peekRaw() throws IOException {
+            if (pos == limit) {
+                offset += limit;
+                limit = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buf[pos] & 0xff;
+        }
+        
+        String readString() throws IOException {
+            expect('"');
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            while (true) {
+                int b = read();
+                if (b == '"') return bytes.toString(StandardCharsets.UTF_8);
+                if (b < 0) throw malformed("unterminated string");
+                if (b != '\\') {
+                    bytes.write(b);
+                    continue;
+                }
+                int e = read();
+                switch (e) {
+                    case 'b': bytes.write('\b'); break;
+                    case 'f': bytes.write('\f'); break;
+                    case 'n': bytes.write('\n'); break;
+                    case 'r': bytes.write('\r'); break;
+                    case 't': bytes.write('\t'); break;
+                    case 'u':
+                        int cp = readHex();
+                        if (Character.isHighSurrogate((char)cp) && peekRaw() == '\\') {
+                            read();
+                            if (read() != 'u') throw malformed("bad surrogate pair");
+                            cp = Character.toCodePoint((char)cp, (char)readHex());
+                        }
+                        bytes.writeBytes(new String(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8));
+                        break;
+                    default:
+                        if (e < 0) throw malformed("unterminated string");
+                        bytes.write(e);  // \" \\ \/
+                }
+            }
+        }
+        
+        private int readHex() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(read(), 16);
+                if (digit < 0) throw malformed("bad \\u escape");
+                value = value * 16 + digit;
+            }
+            return value;
+        }
+    }
+}
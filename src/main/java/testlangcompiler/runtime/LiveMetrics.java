@@ -0,0 +1,242 @@
+package testlangcompiler.runtime;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.HttpServer;
+
+// Live counters of an instrumented suite while it runs, fed by Results.
+// -Dtestlang.metrics=<port> serves them at http://localhost:<port>/metrics in
+// the Prometheus text format; -Dtestlang.metrics.file=<file> rewrites a
+// snapshot every -Dtestlang.metrics.interval seconds (15 by default) and once
+// more at exit. Recording takes no locks: counters are LongAdders and each
+// histogram is striped by thread, the stripes being summed when scraped.
+public final class LiveMetrics {
+    public static final String PROPERTY = "testlang.metrics";
+    public static final String FILE_PROPERTY = "testlang.metrics.file";
+    public static final String INTERVAL_PROPERTY = "testlang.metrics.interval";
+    
+    // Upper bounds of the latency buckets, in ns: 1 ms to 10 s
+    static final long[] BOUNDS = {
+        1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L,
+        250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+    // A power of two, at least four per CPU
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+    
+    private final ConcurrentHashMap<String, TestMetrics> tests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+    private HttpServer server;
+    
+    private static final class TestMetrics {
+        final LongAdder failures = new LongAdder();
+        final Histogram duration = new Histogram();
+    }
+    
+    private static final class EndpointMetrics {
+        // Responses by status class: [0] anything outside 100-599, [1] 1xx ... [5] 5xx
+        final LongAdder[] statuses = new LongAdder[6];
+        final Histogram latency = new Histogram();
+        
+        EndpointMetrics() {
+            for (int i = 0; i < statuses.length; i++) statuses[i] = new LongAdder();
+        }
+    }
+    
+    // Bucket counts and the sum of the samples, in stripes picked by thread
+    static final class Histogram {
+        private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+        
+        void record(long nanos) {
+            int index = (int)Thread.currentThread().getId() & (STRIPES - 1);
+            AtomicLongArray stripe = stripes.get(index);
+            if (stripe == null) {
+                stripes.compareAndSet(index, null, new AtomicLongArray(BOUNDS.length + 2));
+                stripe = stripes.get(index);
+            }
+            int bucket = 0;
+            while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) bucket++;
+            stripe.getAndIncrement(bucket);
+            stripe.getAndAdd(BOUNDS.length + 1, nanos);
+        }
+        
+        // Counts per bucket (the last one above every bound), then the sum
+        long[] snapshot() {
+            long[] merged = new long[BOUNDS.length + 2];
+            for (int i = 0; i < STRIPES; i++) {
+                AtomicLongArray stripe = stripes.get(i);
+                if (stripe == null) continue;
+                for (int j = 0; j < merged.length; j++) merged[j] += stripe.get(j);
+            }
+            return merged;
+        }
+    }
+    
+    LiveMetrics() {
+    }
+    
+    // From the system properties; null when neither an endpoint nor a file is asked for
+    static LiveMetrics open() {
+        String port = System.getProperty(PROPERTY);
+        String file = System.getProperty(FILE_PROPERTY);
+        if ((port == null || port.isEmpty()) && (file == null || file.isEmpty())) return null;
+        LiveMetrics metrics = new LiveMetrics();
+        try {
+            if (port != null && !port.isEmpty()) {
+                metrics.serve(Integer.parseInt(port));
+                System.err.println("testlang: metrics at http://localhost:" + metrics.port() + "/metrics");
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("testlang: cannot serve metrics on port " + port + ": " + e.getMessage());
+        }
+        if (file != null && !file.isEmpty()) {
+            metrics.snapshotEvery(Paths.get(file), interval(System.getProperty(INTERVAL_PROPERTY)));
+        }
+        return metrics;
+    }
+    
+    // Seconds between snapshots; 15 when unset or not a positive number
+    static long interval(String value) {
+        if (value == null || value.isEmpty()) return 15;
+        try {
+            long seconds = Long.parseLong(value.trim());
+            if (seconds > 0) return seconds;
+        } catch (NumberFormatException e) {
+            // Warned about below
+        }
+        System.err.println("testlang: " + INTERVAL_PROPERTY + " must be a positive number of seconds, not " + value
+                           + ": using 15");
+        return 15;
+    }
+    
+    void request(String request, int status, long nanos) {
+        EndpointMetrics endpoint = endpoints.get(request);
+        if (endpoint == null) endpoint = endpoints.computeIfAbsent(request, k -> new EndpointMetrics());
+        endpoint.statuses[status >= 100 && status < 600 ? status / 100 : 0].increment();
+        endpoint.latency.record(nanos);
+    }
+    
+    void test(String name, boolean passed, long nanos) {
+        TestMetrics test = tests.get(name);
+        if (test == null) test = tests.computeIfAbsent(name, k -> new TestMetrics());
+        if (!passed) test.failures.increment();
+        test.duration.record(nanos);
+    }
+    
+    // The Prometheus text exposition of everything recorded so far
+    String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        Map<String, TestMetrics> tests = new TreeMap<>(this.tests);
+        Map<String, EndpointMetrics> endpoints = new TreeMap<>(this.endpoints);
+        
+        out.append("# HELP testlang_test_failures_total Failed runs of a test.\n");
+        out.append("# TYPE testlang_test_failures_total counter\n");
+        for (Map.Entry<String, TestMetrics> test : tests.entrySet()) {
+            sample(out, "testlang_test_failures_total", "test", test.getKey(), null, test.getValue().failures.sum());
+        }
+        out.append("# HELP testlang_test_duration_seconds Duration of test runs.\n");
+        out.append("# TYPE testlang_test_duration_seconds histogram\n");
+        for (Map.Entry<String, TestMetrics> test : tests.entrySet()) {
+            histogram(out, "testlang_test_duration_seconds", "test", test.getKey(), test.getValue().duration);
+        }
+        out.append("# HELP testlang_responses_total Responses by endpoint and status class.\n");
+        out.append("# TYPE testlang_responses_total counter\n");
+        for (Map.Entry<String, EndpointMetrics> endpoint : endpoints.entrySet()) {
+            LongAdder[] statuses = endpoint.getValue().statuses;
+            for (int i = 0; i < statuses.length; i++) {
+                long count = statuses[i].sum();
+                if (count > 0) {
+                    sample(out, "testlang_responses_total", "endpoint", endpoint.getKey(),
+                           "status=\"" + (i == 0 ? "other" : i + "xx") + "\"", count);
+                }
+            }
+        }
+        out.append("# HELP testlang_request_duration_seconds Latency of requests by endpoint.\n");
+        out.append("# TYPE testlang_request_duration_seconds histogram\n");
+        for (Map.Entry<String, EndpointMetrics> endpoint : endpoints.entrySet()) {
+            histogram(out, "testlang_request_duration_seconds", "endpoint", endpoint.getKey(), endpoint.getValue().latency);
+        }
+        return out.toString();
+    }
+    
+    private static void histogram(StringBuilder out, String name, String label, String value, Histogram histogram) {
+        long[] counts = histogram.snapshot();
+        long cumulative = 0;
+        for (int i = 0; i <= BOUNDS.length; i++) {
+            cumulative += counts[i];
+            String le = i < BOUNDS.length ? String.valueOf(BOUNDS[i] / 1e9) : "+Inf";
+            sample(out, name + "_bucket", label, value, "le=\"" + le + "\"", cumulative);
+        }
+        sample(out, name + "_sum", label, value, null, counts[BOUNDS.length + 1] / 1e9);
+        sample(out, name + "_count", label, value, null, cumulative);
+    }
+    
+    private static void sample(StringBuilder out, String name, String label, String value, String extra, Object sample) {
+        out.append(name).append('{').append(label).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') out.append('\\').append(c);
+            else if (c == '\n') out.append("\\n");
+            else out.append(c);
+        }
+        out.append('"');
+        if (extra != null) out.append(',').append(extra);
+        out.append("} ").append(sample).append('\n');
+    }
+    
+    // GET /metrics on the loopback interface; port 0 picks a free one
+    void serve(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(daemon("testlang-metrics")));
+        server.start();
+    }
+    
+    int port() {
+        return server.getAddress().getPort();
+    }
+    
+    void snapshotEvery(Path file, long seconds) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("testlang-metrics-snapshot"));
+        timer.scheduleWithFixedDelay(() -> snapshot(file), seconds, seconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            timer.shutdownNow();
+            snapshot(file);
+        }, "testlang-metrics-close"));
+    }
+    
+    // Written next to the file and moved over it, so a reader never sees half a snapshot
+    void snapshot(Path file) {
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(temp, scrape());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("testlang: cannot write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+    
+    void close() {
+        if (server != null) server.stop(0);
+    }
+    
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,387 @@
+package testlangcompiler.runtime;
+
+import java.io.*;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Result sink for instrumented suites (compiled with --instrument). Enabled by
+// -Dtestlang.results=<file>: *.ndjson gets one JSON object per line, anything
+// else the compact binary format below. Request threads only offer records to
+// a bounded queue; a background thread writes them. When the queue is full
+// the record is dropped and counted instead of blocking the test. Both kinds
+// of record also go to LiveMetrics when -Dtestlang.metrics(.file) asks for it.
+//
+// Binary format: "TLR1", then tagged records. Test and request names are
+// written once as STRING records and referenced by id afterwards.
+public final class Results {
+    public static final String PROPERTY = "testlang.results";
+    static final byte[] MAGIC = {'T', 'L', 'R', '1'};
+    static final int STRING = 0;
+    public static final int REQUEST = 1;
+    public static final int TEST = 2;
+    public static final int DROPPED = 3;
+    
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final Record END = new Record();
+    private static final Results SINK = open(System.getProperty(PROPERTY));
+    private static final LiveMetrics METRICS = LiveMetrics.open();
+    
+    // One request or test outcome; status, bytes and passed only apply to one kind
+    public static final class Record {
+        public int type;
+        public String test;
+        public String request;
+        public int status;
+        public long nanos;
+        public long bytes;
+        public boolean passed;
+        public long timestamp;
+        
+        @Override
+        public String toString() {
+            return type == REQUEST ? test + " " + request + " " + status + " " + nanos + "ns " + bytes + "B"
+                 : type == TEST ? test + (passed ? " passed " : " failed ") + nanos + "ns"
+                 : "dropped " + bytes;
+        }
+    }
+    
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Writer writer;
+    private final Thread thread;
+    private volatile boolean closed;
+    
+    private Results(Writer writer) {
+        this.writer = writer;
+        this.thread = new Thread(this::drain, "testlang-results");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "testlang-results-close"));
+    }
+    
+    private static Results open(String file) {
+        if (file == null || file.isEmpty()) return null;
+        try {
+            File path = new File(file);
+            boolean newFile = !path.exists() || path.length() == 0;
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(path, true), 1 << 16);
+            return new Results(writer(out, file.endsWith(".ndjson"), newFile));
+        } catch (IOException e) {
+            System.err.println("testlang: cannot write results to " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    public static boolean isEnabled() {
+        return SINK != null || METRICS != null;
+    }
+    
+    // Called right after client.send(); latency is measured from startNanos to
+    // now. send() returns once String and discarded bodies are fully read, but
+    // at the headers for streamed (InputStream) bodies, whose reading counts
+    // towards the test's duration instead.
+    public static void request(String test, String request, HttpResponse<?> response, long startNanos) {
+        if (SINK == null && METRICS == null) return;
+        long nanos = System.nanoTime() - startNanos;
+        if (METRICS != null) METRICS.request(request, response.statusCode(), nanos);
+        if (SINK == null) return;
+        Record r = new Record();
+        r.type = REQUEST;
+        r.test = test;
+        r.request = request;
+        r.status = response.statusCode();
+        r.nanos = nanos;
+        r.bytes = bodySize(response);
+        r.timestamp = System.currentTimeMillis();
+        SINK.offer(r);
+    }
+    
+    public static void test(String test, boolean passed, long startNanos) {
+        if (SINK == null && METRICS == null) return;
+        long nanos = System.nanoTime() - startNanos;
+        if (METRICS != null) METRICS.test(test, passed, nanos);
+        if (SINK == null) return;
+        Record r = new Record();
+        r.type = TEST;
+        r.test = test;
+        r.passed = passed;
+        r.nanos = nanos;
+        r.timestamp = System.currentTimeMillis();
+        SINK.offer(r);
+    }
+    
+    // Body size in bytes: exact for String bodies, else Content-Length or -1
+    private static long bodySize(HttpResponse<?> response) {
+        Object body = response.body();
+        if (body instanceof String) {
+            String s = (String)body;
+            long size = s.length();
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) size += c >= 0x800 && !Character.isSurrogate(c) ? 2 : 1;
+            }
+            return size;
+        }
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+    
+    private void offer(Record r) {
+        if (closed || !queue.offer(r)) {
+            dropped.incrementAndGet();
+        }
+    }
+    
+    private void drain() {
+        List<Record> batch = new ArrayList<>(1024);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, 1023);
+                for (Record r : batch) {
+                    if (r == END) {
+                        finish();
+                        return;
+                    }
+                    writer.write(r);
+                }
+                batch.clear();
+                if (queue.isEmpty()) writer.flush();
+            }
+        } catch (InterruptedException | IOException e) {
+            System.err.println("testlang: writing results failed: " + e);
+            closed = true;
+        }
+    }
+    
+    private void finish() throws IOException {
+        if (dropped.get() > 0) {
+            Record d = new Record();
+            d.type = DROPPED;
+            d.bytes = dropped.get();
+            d.timestamp = System.currentTimeMillis();
+            writer.write(d);
+        }
+        writer.close();
+    }
+    
+    // Shutdown hook: new records are dropped, queued ones are still written
+    private void close() {
+        closed = true;
+        try {
+            while (thread.isAlive() && !queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                // The writer is making room
+            }
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // A writer for a new results file, or for appending to one
+    static Writer writer(OutputStream out, boolean ndjson, boolean newFile) throws IOException {
+        return ndjson ? new NdjsonWriter(out) : new BinaryWriter(out, newFile);
+    }
+    
+    interface Writer extends Closeable {
+        void write(Record r) throws IOException;
+        
+        void flush() throws IOException;
+    }
+    
+    private static final class NdjsonWriter implements Writer {
+        private final OutputStream out;
+        private final StringBuilder line = new StringBuilder(256);
+        
+        NdjsonWriter(OutputStream out) {
+            this.out = out;
+        }
+        
+        public void write(Record r) throws IOException {
+            line.setLength(0);
+            if (r.type == DROPPED) {
+                line.append("{\"type\":\"dropped\",\"count\":").append(r.bytes);
+            } else {
+                line.append("{\"type\":\"").append(r.type == REQUEST ? "request" : "test").append("\",\"test\":");
+                quote(r.test);
+                if (r.type == REQUEST) {
+                    line.append(",\"request\":");
+                    quote(r.request);
+                    line.append(",\"status\":").append(r.status).append(",\"bytes\":").append(r.bytes);
+                } else {
+                    line.append(",\"passed\":").append(r.passed);
+                }
+                line.append(",\"nanos\":").append(r.nanos);
+            }
+            line.append(",\"ts\":").append(r.timestamp).append("}\n");
+            out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        
+        private void quote(String s) {
+            line.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') line.append('\\').append(c);
+                else if (c < 0x20) line.append(String.format("\\u%04x", (int)c));
+                else line.append(c);
+            }
+            line.append('"');
+        }
+        
+        public void flush() throws IOException {
+            out.flush();
+        }
+        
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+    
+    private static final class BinaryWriter implements Writer {
+        private final DataOutputStream out;
+        private final Map<String, Integer> ids = new HashMap<>();
+        
+        BinaryWriter(OutputStream out, boolean newFile) throws IOException {
+            this.out = new DataOutputStream(out);
+            if (newFile) {
+                this.out.write(MAGIC);
+            } else {
+                // Appending to an earlier run: names are defined again from scratch
+                this.out.writeByte(STRING);
+                this.out.writeInt(-1);
+                this.out.writeUTF("");
+            }
+        }
+        
+        public void write(Record r) throws IOException {
+            if (r.type == DROPPED) {
+                out.writeByte(DROPPED);
+                out.writeLong(r.bytes);
+                out.writeLong(r.timestamp);
+                return;
+            }
+            int test = id(r.test);
+            if (r.type == REQUEST) {
+                int request = id(r.request);
+                out.writeByte(REQUEST);
+                out.writeInt(test);
+                out.writeInt(request);
+                out.writeShort(r.status);
+                out.writeLong(r.nanos);
+                out.writeLong(r.bytes);
+            } else {
+                out.writeByte(TEST);
+                out.writeInt(test);
+                out.writeBoolean(r.passed);
+                out.writeLong(r.nanos);
+            }
+            out.writeLong(r.timestamp);
+        }
+        
+        private int id(String s) throws IOException {
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = ids.size();
+                ids.put(s, id);
+                out.writeByte(STRING);
+                out.writeInt(id);
+                out.writeUTF(s);
+            }
+            return id;
+        }
+        
+        public void flush() throws IOException {
+            out.flush();
+        }
+        
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+    
+    // Reads a results file of either format in one pass, in write order
+    public static void read(Path file, Consumer<Record> consumer) throws IOException {
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            raw.mark(MAGIC.length);
+            byte[] head = raw.readNBytes(MAGIC.length);
+            if (Arrays.equals(head, MAGIC)) {
+                readBinary(new DataInputStream(raw), consumer);
+            } else {
+                raw.reset();
+                readNdjson(raw, consumer);
+            }
+        }
+    }
+    
+    private static void readBinary(DataInputStream in, Consumer<Record> consumer) throws IOException {
+        List<String> strings = new ArrayList<>();
+        while (true) {
+            int type = in.read();
+            if (type < 0) return;
+            if (type == STRING) {
+                int id = in.readInt();
+                String s = in.readUTF();
+                if (id < 0) strings.clear();
+                else strings.add(s);
+                continue;
+            }
+            Record r = new Record();
+            r.type = type;
+            if (type == REQUEST) {
+                r.test = strings.get(in.readInt());
+                r.request = strings.get(in.readInt());
+                r.status = in.readShort();
+                r.nanos = in.readLong();
+                r.bytes = in.readLong();
+            } else if (type == TEST) {
+                r.test = strings.get(in.readInt());
+                r.passed = in.readBoolean();
+                r.nanos = in.readLong();
+            } else if (type == DROPPED) {
+                r.bytes = in.readLong();
+            } else {
+                throw new IOException("Corrupt results file: record type " + type);
+            }
+            r.timestamp = in.readLong();
+            consumer.accept(r);
+        }
+    }
+    
+    private static final JsonPath[] FIELDS = {
+        JsonPath.of("$.type"), JsonPath.of("$.test"), JsonPath.of("$.request"), JsonPath.of("$.status"),
+        JsonPath.of("$.nanos"), JsonPath.of("$.bytes"), JsonPath.of("$.passed"), JsonPath.of("$.count"),
+        JsonPath.of("$.ts")
+    };
+    
+    private static void readNdjson(InputStream raw, Consumer<Record> consumer) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) continue;
+            Object[] f = JsonPath.evaluate(line, FIELDS);
+            Record r = new Record();
+            r.type = "request".equals(f[0]) ? REQUEST
+                   : "test".equals(f[0]) ? TEST
+                   : "dropped".equals(f[0]) ? DROPPED : -1;
+            if (r.type < 0) {
+                throw new IOException("Corrupt results file: record type " + f[0]);
+            }
+            r.test = f[1] instanceof String ? (String)f[1] : null;
+            r.request = f[2] instanceof String ? (String)f[2] : null;
+            r.status = number(f[3]).intValue();
+            r.nanos = number(f[4]).longValue();
+            r.bytes = r.type == DROPPED ? number(f[7]).longValue() : number(f[5]).longValue();
+            r.passed = Boolean.TRUE.equals(f[6]);
+            r.timestamp = number(f[8]).longValue();
+            consumer.accept(r);
+        }
+    }
+    
+    private static Number number(Object value) {
+        return value instanceof Number ? (Number)value : 0;
+    }
+}
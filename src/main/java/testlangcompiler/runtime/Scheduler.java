@@ -0,0 +1,129 @@
+package testlangcompiler.runtime;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+
+// Caps the load a generated suite puts on a shared environment: a token bucket
+// limits requests per second and a semaphore limits requests in flight. One
+// instance is shared by every test class of a suite. The test bodies run on the
+// scheduler's own threads (see run), so the suite drives the environment up to
+// the ceiling whatever JUnit's parallelism is.
+public final class Scheduler {
+    // Prefix of the generated methods holding the test bodies
+    static final String BODY_PREFIX = "run_";
+    
+    private final double ratePerSecond;
+    private final double capacity;
+    private final Semaphore inFlight;
+    private final LongSupplier clock;
+    private double tokens;
+    private long lastRefill;
+    // One thread per request in flight, or a thread per test when only the rate is capped
+    private final ExecutorService runners;
+    // Futures of the bodies started, by test class and method name
+    private final ConcurrentHashMap<Class<?>, Map<String, Future<?>>> started = new ConcurrentHashMap<>();
+    
+    // A rate or maxInFlight of 0 disables that limit
+    public Scheduler(double ratePerSecond, int maxInFlight) {
+        this(ratePerSecond, maxInFlight, System::nanoTime);
+    }
+    
+    // With a clock in nanoseconds, so tests can step time by hand
+    Scheduler(double ratePerSecond, int maxInFlight, LongSupplier clock) {
+        this.ratePerSecond = ratePerSecond;
+        // Allow bursts of up to 100ms worth of requests
+        this.capacity = Math.max(1, ratePerSecond / 10);
+        this.tokens = capacity;
+        this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight, true) : null;
+        this.clock = clock;
+        this.lastRefill = clock.getAsLong();
+        this.runners = maxInFlight > 0 ? Executors.newFixedThreadPool(maxInFlight, daemon("testlang-test")) : executor();
+    }
+    
+    // Runs the generated test body named body and waits for it, rethrowing what
+    // it threw. The first call for a test class starts every body of the class
+    // on the runners, so while JUnit waits on one test the others already send;
+    // the rate and in-flight limits, not JUnit's thread count, decide the load.
+    public void run(Object test, String body) throws Throwable {
+        Future<?> future = started.computeIfAbsent(test.getClass(), type -> start(test)).get(body);
+        if (future == null) {
+            throw new IllegalArgumentException("No test body " + body + " in " + test.getClass().getName());
+        }
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof InvocationTargetException ? cause.getCause() : cause;
+        }
+    }
+    
+    private Map<String, Future<?>> start(Object test) {
+        Map<String, Future<?>> bodies = new HashMap<>();
+        for (Method method : test.getClass().getDeclaredMethods()) {
+            if (!method.getName().startsWith(BODY_PREFIX) || method.getParameterCount() != 0) continue;
+            method.setAccessible(true);
+            bodies.put(method.getName(), runners.submit(() -> method.invoke(test)));
+        }
+        return bodies;
+    }
+    
+    public <T> HttpResponse<T> send(HttpClient client, HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        long wait = reserve();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        if (inFlight != null) {
+            inFlight.acquire();
+        }
+        try {
+            return client.send(request, handler);
+        } finally {
+            if (inFlight != null) {
+                inFlight.release();
+            }
+        }
+    }
+    
+    // Takes a token and returns how long to wait for it. The balance may go
+    // negative: each waiting caller has reserved its own slot in the future.
+    synchronized long reserve() {
+        if (ratePerSecond <= 0) return 0;
+        long now = clock.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerSecond / 1e9);
+        lastRefill = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long)(-tokens / ratePerSecond * 1e9);
+    }
+    
+    // Callers blocked on the in-flight limit
+    int waiting() {
+        return inFlight != null ? inFlight.getQueueLength() : 0;
+    }
+    
+    // Executor for the HttpClient's own work (connection I/O and async
+    // handlers): virtual threads where the JVM has them (Java 21+), otherwise a
+    // cached pool of daemon threads
+    public static ExecutorService executor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(daemon("testlang-http"));
+        }
+    }
+    
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
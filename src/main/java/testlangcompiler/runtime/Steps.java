@@ -0,0 +1,84 @@
+package testlangcompiler.runtime;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+// Steps of a generated test as methods, for class files emitted by
+// BytecodeGenerator. Each does exactly what the Java source from CodeGenerator
+// writes out inline, so both outputs behave the same while the bytecode of a
+// test stays a short list of calls. Assertions are called on JUnit directly,
+// which is only on the class path of the generated tests.
+public final class Steps {
+    
+    // Body handler kinds: what a send reads of the response body
+    public static final int DISCARD = 0, STRING = 1, STREAM = 2;
+    
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    
+    private Steps() {
+    }
+    
+    // HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(10))
+    public static HttpRequest.Builder request(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(TIMEOUT);
+    }
+    
+    // The default headers, then the request's own as name, value pairs
+    public static void headers(HttpRequest.Builder b, Map<String, String> defaults, String... headers) {
+        for (var e: defaults.entrySet()) b.header(e.getKey(), e.getValue());
+        for (int i = 0; i < headers.length; i += 2) {
+            b.header(headers[i], headers[i + 1]);
+        }
+    }
+    
+    // The handler CodeGenerator.generateSend writes for a send. The body is only
+    // subscribed to when every check holds; checks are (type, expected,
+    // expectedStr) triples of status and header assertions.
+    public static HttpResponse.BodyHandler<?> handler(int kind, boolean gzip, String... checks) {
+        if (kind == DISCARD) {
+            return HttpResponse.BodyHandlers.discarding();
+        }
+        if (!gzip && checks.length == 0) {
+            return kind == STRING ? HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8)
+                : HttpResponse.BodyHandlers.ofInputStream();
+        }
+        return info -> {
+            if (!holds(info, checks)) {
+                return HttpResponse.BodySubscribers.replacing(null);
+            }
+            HttpResponse.BodySubscriber<Object> subscriber = subscriber(kind);
+            return gzip ? Compression.decode(info, subscriber) : subscriber;
+        };
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static HttpResponse.BodySubscriber<Object> subscriber(int kind) {
+        return (HttpResponse.BodySubscriber<Object>)(kind == STRING
+            ? HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8)
+            : HttpResponse.BodySubscribers.ofInputStream());
+    }
+    
+    private static boolean holds(HttpResponse.ResponseInfo info, String[] checks) {
+        for (int i = 0; i < checks.length; i += 3) {
+            boolean holds;
+            if (checks[i].equals("status")) {
+                holds = info.statusCode() == Integer.parseInt(checks[i + 1]);
+            } else if (checks[i].equals("header_equals")) {
+                holds = info.headers().firstValue(checks[i + 1]).orElse("").equals(checks[i + 2]);
+            } else {
+                holds = info.headers().firstValue(checks[i + 1]).orElse("").contains(checks[i + 2]);
+            }
+            if (!holds) return false;
+        }
+        return true;
+    }
+    
+    // resp.headers().firstValue(name).orElse(""), what header assertions compare
+    public static String header(HttpResponse<?> resp, String name) {
+        return resp.headers().firstValue(name).orElse("");
+    }
+}
@@ -1,31 +0,0 @@
-package testlangcompiler;
-
-public class sym {
-  /* terminals */
-  public static final int STRING = 1;
-  public static final int NUMBER = 2;
-  public static final int IDENTIFIER = 3;
-  public static final int LPAREN = 4;
-  public static final int RPAREN = 5;
-  public static final int LBRACE = 6;
-  public static final int RBRACE = 7;
-  public static final int SEMICOLON = 8;
-  public static final int EQ = 9;
-  public static final int DOT = 10;
-  public static final int DOTDOT = 11;
-  public static final int CONFIG = 12;
-  public static final int BASE_URL = 13;
-  public static final int HEADER = 14;
-  public static final int LET = 15;
-  public static final int TEST = 16;
-  public static final int GET = 17;
-  public static final int POST = 18;
-  public static final int PUT = 19;
-  public static final int DELETE = 20;
-  public static final int EXPECT = 21;
-  public static final int STATUS = 22;
-  public static final int BODY = 23;
-  public static final int CONTAINS = 24;
-  public static final int EOF = 0;
-  public static final int error = -1;
-}
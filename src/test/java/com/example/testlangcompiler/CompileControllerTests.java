@@ -0,0 +1,65 @@
+package com.example.testlangcompiler;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletException;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import testlangcompiler.CodeGenerator;
+import testlangcompiler.Frontend;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+class CompileControllerTests {
+
+	private static final String SOURCE = "test Ping {\n  GET \"http://localhost/ping\";\n  expect status = 200;\n}\n";
+
+	@Autowired
+	private MockMvc mvc;
+
+	@Test
+	void compilesAndCachesSource() throws Exception {
+		mvc.perform(post("/compile").contentType(MediaType.TEXT_PLAIN).content(SOURCE))
+			.andExpect(status().isOk())
+			.andExpect(header().string("X-Testlang-Cache", "miss"))
+			.andExpect(content().string(containsString("void test_Ping()")));
+		mvc.perform(post("/compile").contentType(MediaType.TEXT_PLAIN).content(SOURCE))
+			.andExpect(header().string("X-Testlang-Cache", "hit"));
+	}
+
+	@Test
+	void reportsCompileErrors() throws Exception {
+		for (Frontend frontend : Frontend.values()) {
+			mvc.perform(post("/compile").param("frontend", frontend.id).contentType(MediaType.TEXT_PLAIN).content("test {"))
+				.andExpect(status().isUnprocessableEntity())
+				.andExpect(content().string(containsString("Error: ")));
+		}
+	}
+
+	@Test
+	void otherFailuresAreNotCompileErrors() {
+		CompileService failing = new CompileService(new SimpleMeterRegistry(), 1, 1, 1) {
+			@Override
+			public CompileResult compile(String source, Frontend frontend, CodeGenerator.Options options) {
+				throw new NullPointerException("generator bug");
+			}
+		};
+		MockMvc standalone = MockMvcBuilders.standaloneSetup(new CompileController(failing)).build();
+		// Not handled by the controller: the servlet container answers 500
+		ServletException e = assertThrows(ServletException.class, () -> standalone.perform(
+				post("/compile").contentType(MediaType.TEXT_PLAIN).content(SOURCE)));
+		assertInstanceOf(NullPointerException.class, e.getCause());
+		failing.shutdown();
+	}
+
+}
@@ -0,0 +1,250 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+import javax.tools.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BytecodeGeneratorTests {
+
+	private static final String TESTS = """
+			let user = "admin";
+			let id = 42;
+
+			test Login {
+			  POST "/api/login" {
+			    body = "{ \\"username\\": \\"$user\\" }";
+			  }
+			  expect status = 200;
+			  expect header "Content-Type" contains "json";
+			  expect body contains "\\"token\\":";
+			}
+
+			test WrongStatus {
+			  GET "/api/users/$id";
+			  expect status = 404;
+			}
+
+			test UserJson {
+			  GET "/api/users/$id";
+			  expect json "$.id" = 42;
+			  expect json "$.name" = "Ann";
+			  expect json "$.active" = true;
+			  expect json "$.none" = null;
+			  expect json "$.tags" size = 2;
+			  expect header "X-Trace" = "abc-123";
+			  expect status = 200;
+			}
+
+			test WrongJson {
+			  GET "/api/users/$id";
+			  expect json "$.name" = "Bob";
+			}
+
+			test WrongHeader {
+			  GET "/api/users/$id";
+			  expect status = 200;
+			  expect header "X-Trace" contains "xyz";
+			}
+
+			test Chained {
+			  POST "/api/login" {
+			    body = "{ \\"username\\": \\"$user\\" }";
+			  }
+			  let token = body.json "$.token";
+			  PUT "/api/items/$token?user=$user" {
+			    header "Authorization" = "Bearer $token";
+			    body = "{ \\"owner\\": \\"$token\\" }";
+			  }
+			  expect status = 200;
+			  expect header "X-Auth" = "Bearer t0k";
+			  expect json "$.owner" = "t0k";
+			  expect body contains "owner";
+			}
+
+			test Deleted {
+			  DELETE "/api/items/1";
+			  expect status = 204;
+			}
+			""";
+
+	private static HttpServer server;
+	private static String base;
+
+	@TempDir
+	Path dir;
+
+	@BeforeAll
+	static void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", BytecodeGeneratorTests::handle);
+		server.start();
+		base = "http://localhost:" + server.getAddress().getPort();
+	}
+
+	@AfterAll
+	static void stop() {
+		server.stop(0);
+	}
+
+	@Test
+	void classesBehaveLikeTheCompiledSource() throws Exception {
+		Path login = Files.writeString(dir.resolve("login.json"), "{ \"username\": \"$user\" }");
+		String tests = TESTS + "test Upload {\n  POST \"/api/login\" { body = file \""
+				+ login.toString().replace("\\", "/") + "\"; }\n  expect status = 200;\n}\n";
+		String plain = "config {\n  base_url = \"" + base + "\";\n  header \"X-Suite\" = \"bytecode\";\n}\n" + tests;
+		String limited = "config {\n  base_url = \"" + base + "\";\n  compression = gzip;\n"
+				+ "  compress_requests_over = 10;\n  rate = 1000/s;\n  max_in_flight = 4;\n}\n" + tests;
+		Set<String> failing = Set.of("test_WrongStatus", "test_WrongJson", "test_WrongHeader");
+
+		for (Frontend frontend : List.of(Frontend.HANDWRITTEN, Frontend.LALR)) {
+			for (String source : List.of(plain, limited)) {
+				for (int maxTests : new int[] {0, 3}) {
+					CodeGenerator.Options options = new CodeGenerator.Options();
+					options.maxTestsPerShard = maxTests;
+					options.instrument = maxTests > 0;
+					Object unit = frontend.parse(source);
+
+					Map<String, String> outcomes = run(new BytesLoader(BytecodeGenerator.generate(unit, options)),
+													   options.className);
+					assertEquals(run(javac(frontend.generate(unit, options)), options.className), outcomes);
+					assertEquals(8, outcomes.size());
+					for (Map.Entry<String, String> outcome : outcomes.entrySet()) {
+						assertEquals(failing.contains(outcome.getKey()), !outcome.getValue().equals("passed"),
+									 outcome.toString());
+					}
+				}
+			}
+		}
+	}
+
+	// Test method -> "passed" or the class of what it threw, over all classes of the suite
+	private static Map<String, String> run(ClassLoader loader, String className) throws Exception {
+		Map<String, String> outcomes = new TreeMap<>();
+		for (int i = 0; ; i++) {
+			Class<?> type;
+			try {
+				type = Class.forName(i == 0 ? className : className + i, true, loader);
+			} catch (ClassNotFoundException e) {
+				if (i == 0) continue;
+				break;
+			}
+			Object instance = type.getConstructor().newInstance();
+			for (Method method : type.getDeclaredMethods()) {
+				if (method.getName().equals("setup")) {
+					method.setAccessible(true);
+					method.invoke(null);
+				}
+			}
+			for (Method method : type.getDeclaredMethods()) {
+				if (!method.getName().startsWith("test_")) continue;
+				assertNotNull(method.getAnnotation(Test.class));
+				method.setAccessible(true);
+				try {
+					method.invoke(instance);
+					outcomes.put(method.getName(), "passed");
+				} catch (InvocationTargetException e) {
+					outcomes.put(method.getName(), e.getCause().getClass().getName());
+				}
+			}
+		}
+		return outcomes;
+	}
+
+	private ClassLoader javac(Map<String, String> sources) throws IOException {
+		Path src = Files.createDirectories(dir.resolve("src"));
+		Path classes = Files.createDirectories(dir.resolve("classes"));
+		List<File> sourceFiles = new ArrayList<>();
+		for (Map.Entry<String, String> source : sources.entrySet()) {
+			Path file = src.resolve(source.getKey() + ".java");
+			Files.writeString(file, source.getValue());
+			sourceFiles.add(file.toFile());
+		}
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+			assertTrue(compiler.getTask(null, fileManager, null,
+					List.of("-d", classes.toString(), "-cp", System.getProperty("java.class.path")), null,
+					fileManager.getJavaFileObjectsFromFiles(sourceFiles)).call());
+		}
+		Map<String, byte[]> bytes = new HashMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(classes)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				bytes.put(name.substring(0, name.length() - ".class".length()), Files.readAllBytes(file));
+				Files.delete(file);
+			}
+		}
+		return new BytesLoader(bytes);
+	}
+
+	private static class BytesLoader extends ClassLoader {
+		private final Map<String, byte[]> classes;
+
+		BytesLoader(Map<String, byte[]> classes) {
+			super(BytecodeGeneratorTests.class.getClassLoader());
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name);
+			if (bytes == null) throw new ClassNotFoundException(name);
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	private static void handle(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			in = new GZIPInputStream(in);
+		}
+		String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		String path = exchange.getRequestURI().getPath();
+		String method = exchange.getRequestMethod();
+		Headers headers = exchange.getResponseHeaders();
+		int status = 404;
+		String response = "";
+		if (method.equals("POST") && path.equals("/api/login") && body.contains("\"admin\"")) {
+			status = 200;
+			response = "{\"token\": \"t0k\"}";
+		} else if (method.equals("GET") && path.equals("/api/users/42")) {
+			status = 200;
+			headers.set("X-Trace", "abc-123");
+			response = "{\"id\": 42, \"name\": \"Ann\", \"active\": true, \"none\": null, \"tags\": [\"a\", \"b\"]}";
+		} else if (method.equals("PUT") && path.equals("/api/items/t0k")
+				&& "user=admin".equals(exchange.getRequestURI().getQuery())) {
+			status = 200;
+			headers.set("X-Auth", exchange.getRequestHeaders().getFirst("Authorization"));
+			response = body;
+		} else if (method.equals("DELETE") && path.equals("/api/items/1")) {
+			status = 204;
+		}
+		headers.set("Content-Type", "application/json");
+		// A new connection per request, so that no request races the server closing an idle one
+		headers.set("Connection", "close");
+		byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0 && "gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+				gz.write(bytes);
+			}
+			bytes = out.toByteArray();
+			headers.set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		exchange.getResponseBody().write(bytes);
+		exchange.close();
+	}
+}
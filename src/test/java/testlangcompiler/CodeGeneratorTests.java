@@ -0,0 +1,156 @@
+package testlangcompiler;
+
+import java.util.*;
+import java.util.regex.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodeGeneratorTests {
+
+	private static final long SECOND = 1_000_000_000L;
+
+	private static final String SUITE = String.join("\n",
+			"test StatusOnly {",
+			"  GET \"/a\";",
+			"  expect status = 200;",
+			"  expect header \"Content-Type\" contains \"json\";",
+			"}",
+			"test NoAssertions {",
+			"  DELETE \"/a\";",
+			"}",
+			"test BodyText {",
+			"  GET \"/b\";",
+			"  expect body contains \"ok\";",
+			"}",
+			"test StatusThenBody {",
+			"  GET \"/c\";",
+			"  expect status = 200;",
+			"  expect body contains \"ok\";",
+			"}",
+			"test JsonOnly {",
+			"  GET \"/d\";",
+			"  expect json \"$.id\" = 1;",
+			"}",
+			"test Extracts {",
+			"  GET \"/e\";",
+			"  let id = body.json \"$.id\";",
+			"}",
+			"");
+
+	@Test
+	void bodyHandlerFollowsWhatReadsTheBody() throws Exception {
+		for (Frontend frontend : Frontend.values()) {
+			String code = generate(frontend, SUITE);
+
+			// Nothing reads the body: it is discarded
+			for (String test : List.of("StatusOnly", "NoAssertions")) {
+				String method = method(code, test);
+				assertTrue(method.contains("HttpResponse<Void> resp = client.send(b.build(), HttpResponse.BodyHandlers.discarding());"),
+						frontend.id + " " + test + ":\n" + method);
+				assertFalse(method.contains("ofString(StandardCharsets.UTF_8)"), method);
+			}
+
+			// Full-text checks read a String, subscribed only after the status passed
+			assertTrue(method(code, "BodyText").contains(
+					"HttpResponse<String> resp = client.send(b.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));"),
+					frontend.id);
+			String statusThenBody = method(code, "StatusThenBody");
+			assertTrue(statusThenBody.contains("HttpResponse<String> resp = client.send(b.build(), info ->"), statusThenBody);
+			assertTrue(statusThenBody.contains("? HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8)"), statusThenBody);
+			assertTrue(statusThenBody.contains(": HttpResponse.BodySubscribers.replacing(null));"), statusThenBody);
+
+			// JSON paths are read from a stream
+			for (String test : List.of("JsonOnly", "Extracts")) {
+				String method = method(code, test);
+				assertTrue(method.contains(
+						"HttpResponse<InputStream> resp = client.send(b.build(), HttpResponse.BodyHandlers.ofInputStream());"),
+						frontend.id + " " + test + ":\n" + method);
+				assertFalse(method.contains("discarding()"), method);
+			}
+		}
+	}
+
+	@Test
+	void gzipDecodesOnlyBodiesThatAreRead() throws Exception {
+		String code = generate(Frontend.HANDWRITTEN, "config {\n  compression = \"gzip\";\n}\n" + SUITE);
+		assertTrue(method(code, "StatusOnly").contains("HttpResponse.BodyHandlers.discarding());"));
+		assertTrue(method(code, "BodyText").contains(
+				"Compression.decode(info, HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8)));"));
+		assertTrue(method(code, "JsonOnly").contains("Compression.decode(info, HttpResponse.BodySubscribers.ofInputStream()));"));
+	}
+
+	@Test
+	void balancedShardsPackTheSlowestTestsFirst() throws Exception {
+		CodeGenerator.Options options = new CodeGenerator.Options();
+		options.shards = 3;
+		options.durations = Map.of("A", 9 * SECOND, "B", 7 * SECOND, "C", 6 * SECOND, "D", 5 * SECOND,
+				"E", 4 * SECOND, "F", 3 * SECOND);
+		// A, B, C open the shards; D joins C (6 s), E joins B (7 s), F joins A (9 s)
+		Map<String, String> files = generateShards(suite("F", "E", "D", "C", "B", "A"), options);
+		assertEquals(List.of(List.of("F", "A"), List.of("E", "B"), List.of("D", "C")), shards(files));
+		assertTrue(files.get("GeneratedTests1").contains("// Shard 1 of 3, about 12.0 s of recorded test time"));
+		assertTrue(files.get("GeneratedTests2").contains("// Shard 2 of 3, about 11.0 s of recorded test time"));
+		assertTrue(files.get("GeneratedTests3").contains("// Shard 3 of 3, about 11.0 s of recorded test time"));
+	}
+
+	@Test
+	void testsWithoutATimeCountAsTheMedianTest() throws Exception {
+		CodeGenerator.Options options = new CodeGenerator.Options();
+		options.shards = 2;
+		// Median of 2, 4 and 10 s: New counts as 4 s
+		options.durations = Map.of("Slow", 10 * SECOND, "Mid", 4 * SECOND, "Fast", 2 * SECOND);
+		Map<String, String> files = generateShards(suite("Fast", "Mid", "New", "Slow"), options);
+		assertEquals(List.of(List.of("Slow"), List.of("Fast", "Mid", "New")), shards(files));
+		assertTrue(files.get("GeneratedTests2").contains("about 10.0 s"));
+
+		// Without any times every test costs the same and there is no comment
+		options.durations = null;
+		files = generateShards(suite("T1", "T2", "T3", "T4", "T5"), options);
+		assertEquals(List.of(List.of("T1", "T3", "T5"), List.of("T2", "T4")), shards(files));
+		assertFalse(files.get("GeneratedTests1").contains("recorded test time"));
+
+		// Never more shards than tests
+		options.shards = 5;
+		assertEquals(List.of(List.of("T1"), List.of("T2")), shards(generateShards(suite("T1", "T2"), options)));
+	}
+
+	private static String suite(String... tests) {
+		StringBuilder suite = new StringBuilder();
+		for (String test : tests) {
+			suite.append("test ").append(test).append(" {\n  GET \"/").append(test).append("\";\n}\n");
+		}
+		return suite.toString();
+	}
+
+	private static Map<String, String> generateShards(String suite, CodeGenerator.Options options) throws Exception {
+		return Frontend.HANDWRITTEN.generate(Frontend.HANDWRITTEN.parse(suite), options);
+	}
+
+	// Test names of GeneratedTests1, GeneratedTests2, ... in order
+	private static List<List<String>> shards(Map<String, String> files) {
+		List<List<String>> shards = new ArrayList<>();
+		for (int i = 1; files.containsKey("GeneratedTests" + i); i++) {
+			Matcher m = Pattern.compile("void test_(\\w+)\\(").matcher(files.get("GeneratedTests" + i));
+			List<String> names = new ArrayList<>();
+			while (m.find()) names.add(m.group(1));
+			shards.add(names);
+		}
+		assertTrue(files.containsKey("GeneratedTestsBase"), files.keySet().toString());
+		assertEquals(shards.size() + 1, files.size(), files.keySet().toString());
+		return shards;
+	}
+
+	private static String generate(Frontend frontend, String suite) throws Exception {
+		return frontend.generate(frontend.parse(suite), new CodeGenerator.Options()).values().iterator().next();
+	}
+
+	// The generated method of one test, up to the next test method
+	private static String method(String code, String test) {
+		int start = code.indexOf("void test_" + test + "(");
+		assertTrue(start >= 0, test);
+		int end = code.indexOf("void test_", start + 1);
+		return code.substring(start, end < 0 ? code.length() : end);
+	}
+}
@@ -0,0 +1,71 @@
+package testlangcompiler;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.stream.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompilerCliTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void maxTestsSplitsTheSuiteIntoShardsInOrder() throws Exception {
+		StringBuilder suite = new StringBuilder("config {\n  base_url = \"http://localhost\";\n}\n");
+		for (int i = 1; i <= 5; i++) {
+			suite.append("test T").append(i).append(" {\n  GET \"/items/").append(i).append("\";\n  expect status = 200;\n}\n");
+		}
+		Path input = dir.resolve("suite.test");
+		Files.writeString(input, suite);
+
+		// 0 does not shard: one class with every test
+		Path single = dir.resolve("single");
+		Files.createDirectories(single);
+		CompilerCli.run(new String[] {input.toString(), single.resolve("GeneratedTests.java").toString(), "--max-tests", "0"},
+				Frontend.HANDWRITTEN, "test");
+		assertEquals(List.of("GeneratedTests.java"), files(single));
+		assertEquals(List.of("T1", "T2", "T3", "T4", "T5"), tests(single.resolve("GeneratedTests.java")));
+
+		assertEquals(List.of(List.of("T1"), List.of("T2"), List.of("T3"), List.of("T4"), List.of("T5")), shards(input, 1));
+		assertEquals(List.of(List.of("T1", "T2"), List.of("T3", "T4"), List.of("T5")), shards(input, 2));
+		assertEquals(List.of(List.of("T1", "T2", "T3", "T4", "T5")), shards(input, 5));
+		assertEquals(List.of(List.of("T1", "T2", "T3", "T4", "T5")), shards(input, 50));
+	}
+
+	// Tests of each shard, GeneratedTests1 first; the base class must be there too
+	private List<List<String>> shards(Path input, int maxTests) throws Exception {
+		Path out = dir.resolve("max" + maxTests);
+		Files.createDirectories(out);
+		CompilerCli.run(new String[] {input.toString(), out.toString(), "--max-tests", String.valueOf(maxTests)},
+				Frontend.CUP, "test");
+		List<String> names = files(out);
+		assertTrue(names.remove("GeneratedTestsBase.java"), names.toString());
+		List<List<String>> shards = new ArrayList<>();
+		for (int i = 1; i <= names.size(); i++) {
+			Path shard = out.resolve("GeneratedTests" + i + ".java");
+			assertTrue(Files.readString(shard).contains("class GeneratedTests" + i + " extends GeneratedTestsBase"));
+			shards.add(tests(shard));
+		}
+		assertEquals(names.size(), shards.size());
+		return shards;
+	}
+
+	private static List<String> files(Path dir) throws Exception {
+		try (Stream<Path> list = Files.list(dir)) {
+			return list.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toCollection(ArrayList::new));
+		}
+	}
+
+	private static List<String> tests(Path file) throws Exception {
+		Matcher m = Pattern.compile("void test_(\\w+)\\(").matcher(Files.readString(file));
+		List<String> names = new ArrayList<>();
+		while (m.find()) names.add(m.group(1));
+		return names;
+	}
+}
@@ -0,0 +1,94 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompilerDaemonTests {
+
+	private static final String SUITE = """
+			config {
+			  base_url = "http://localhost";
+			}
+			test Items {
+			  GET "/items";
+			  expect status = 200;
+			}
+			""";
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void compilesAnswersErrorsAndShutsDown() throws Exception {
+		Path socket = dir.resolve("d.sock");
+		// A socket file left by a daemon that died: nothing listens on it
+		try (ServerSocketChannel stale = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			stale.bind(UnixDomainSocketAddress.of(socket));
+		}
+		assertTrue(Files.exists(socket));
+		assertFalse(CompilerDaemon.answers(socket));
+
+		ExecutorService runner = Executors.newSingleThreadExecutor();
+		Future<?> serving = runner.submit(() -> {
+			new CompilerDaemon(socket, 2, false).serve();
+			return null;
+		});
+		try {
+			for (int i = 0; i < 500 && !CompilerDaemon.answers(socket); i++) Thread.sleep(10);
+			assertTrue(CompilerDaemon.answers(socket));
+
+			// A second daemon on the same socket refuses to start
+			IOException busy = assertThrows(IOException.class, () -> new CompilerDaemon(socket, 1, false).serve());
+			assertTrue(busy.getMessage().contains("already listening"));
+
+			CodeGenerator.Options options = new CodeGenerator.Options();
+			List<CompilerClient.Result> results = CompilerClient.compileRemote(socket, Frontend.CUP, options,
+					List.of(SUITE, "test Broken {\n  GET ;\n}\n"));
+			assertEquals(Frontend.CUP.generate(Frontend.CUP.parse(SUITE), options), results.get(0).files);
+			assertNull(results.get(0).error);
+			assertNull(results.get(1).files);
+			assertTrue(results.get(1).error.contains("2:"), results.get(1).error);
+
+			// A bad frontend id gets an error reply and the connection stays usable
+			try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+					DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+					DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel))) {
+				request(out, "nope");
+				assertEquals(CompilerDaemon.STATUS_ERROR, in.readByte());
+				assertTrue(CompileCache.readString(in).contains("Unknown frontend"));
+				request(out, "handwritten");
+				assertEquals(CompilerDaemon.STATUS_OK, in.readByte());
+				assertEquals(1, in.readInt());
+				assertEquals("GeneratedTests", CompileCache.readString(in));
+				assertTrue(CompileCache.readString(in).contains("void test_Items()"));
+			}
+
+			CompilerClient.stopDaemon(socket);
+			serving.get(10, TimeUnit.SECONDS);
+			assertFalse(Files.exists(socket));
+			assertNull(CompilerClient.compileRemote(socket, Frontend.CUP, options, List.of(SUITE)));
+		} finally {
+			runner.shutdownNow();
+		}
+	}
+
+	private static void request(DataOutputStream out, String frontend) throws IOException {
+		out.writeInt(CompilerDaemon.OP_COMPILE);
+		out.writeUTF(frontend);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeBoolean(false);
+		out.writeInt(1);
+		CompileCache.writeString(out, SUITE);
+		out.flush();
+	}
+}
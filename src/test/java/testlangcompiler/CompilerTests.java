@@ -0,0 +1,58 @@
+package testlangcompiler;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompilerTests {
+
+	@Test
+	void sharedCompilerMatchesFrontendFromManyThreads() throws Exception {
+		List<String> sources = new ArrayList<>();
+		for (int seed = 1; seed <= 3; seed++) {
+			CorpusGenerator.Shape shape = new CorpusGenerator.Shape();
+			shape.tests = 30;
+			shape.requestsPerTest = seed;
+			shape.headersPerRequest = seed - 1;
+			shape.variables = 4 * seed;
+			shape.seed = seed;
+			sources.add(CorpusGenerator.generate(shape));
+		}
+		String broken = "test Broken {\n  GET ;\n}\n";
+
+		CodeGenerator.Options options = new CodeGenerator.Options();
+		options.maxTestsPerShard = 7;
+		for (Frontend frontend : Frontend.values()) {
+			Compiler compiler = new Compiler(frontend, options);
+			// The compiler keeps the options it was made with
+			options.className = "Changed";
+
+			ExecutorService pool = Executors.newFixedThreadPool(4);
+			try {
+				List<Future<?>> runs = new ArrayList<>();
+				for (int t = 0; t < 4; t++) {
+					int offset = t;
+					runs.add(pool.submit(() -> {
+						for (int i = 0; i < 12; i++) {
+							String source = sources.get((i + offset) % sources.size());
+							CodeGenerator.Options expected = new CodeGenerator.Options();
+							expected.maxTestsPerShard = 7;
+							assertEquals(frontend.generate(frontend.parse(source), expected),
+									compiler.compile(source).files, frontend.id);
+							// A failed parse leaves nothing behind for the next one
+							assertThrows(CompileException.class, () -> compiler.compile(broken));
+						}
+						return null;
+					}));
+				}
+				for (Future<?> run : runs) run.get();
+			} finally {
+				pool.shutdown();
+			}
+			options.className = "GeneratedTests";
+		}
+	}
+}
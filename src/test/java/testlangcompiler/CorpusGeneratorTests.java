@@ -0,0 +1,33 @@
+package testlangcompiler;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CorpusGeneratorTests {
+
+	@Test
+	void generatedSuitesParseTheSameInEveryFrontend() throws Exception {
+		int[][] shapes = {{1, 2, 1, 5, 60}, {3, 1, 0, 0, 10}, {5, 4, 3, 12, 400}};
+		for (int[] values : shapes) {
+			CorpusGenerator.Shape shape = new CorpusGenerator.Shape();
+			shape.tests = 40;
+			shape.requestsPerTest = values[1];
+			shape.headersPerRequest = values[2];
+			shape.variables = values[3];
+			shape.bodyBytes = values[4];
+			shape.seed = values[0];
+			String source = CorpusGenerator.generate(shape);
+			assertEquals(source, CorpusGenerator.generate(shape));
+
+			CodeGenerator.Options options = new CodeGenerator.Options();
+			Object reference = null;
+			for (Frontend frontend : Frontend.values()) {
+				Object code = frontend.generate(frontend.parse(source), options);
+				if (reference == null) reference = code;
+				assertEquals(reference, code, frontend.id + " with " + shape);
+			}
+			assertEquals(40, EndpointIndex.of(Frontend.HANDWRITTEN.parse(source)).getTests().size());
+		}
+	}
+}
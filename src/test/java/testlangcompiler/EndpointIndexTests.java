@@ -0,0 +1,42 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EndpointIndexTests {
+
+	private static final String SUITE = String.join("\n",
+			"config { base_url = \"http://localhost:8080\"; }",
+			"let id = 42;",
+			"test Login { POST \"/api/login\" { body = \"{}\"; } expect status = 200; }",
+			"test User { GET \"/api/users/$id\"; expect status = 200; }",
+			"test Page { GET \"/api/users?page=2\"; expect status = 200; }",
+			"test Chain { POST \"/api/login\" { body = \"{}\"; } let uid = body.json \"$.id\";",
+			"  GET \"/api/users/$uid/items\"; expect status = 200; }",
+			"test Orders { DELETE \"/api/orders/7\"; expect status = 204; }",
+			"");
+
+	@Test
+	void selectsTestsByEndpointPattern() throws Exception {
+		EndpointIndex index = EndpointIndex.of(new TestlangCompiler().parse(SUITE));
+		assertEquals(List.of("User", "Page", "Chain"), List.copyOf(index.select(List.of("/api/users/**"))));
+		assertEquals(List.of("User"), List.copyOf(index.select(List.of("/api/users/42"))));
+		assertEquals(List.of("Chain"), List.copyOf(index.select(List.of("GET /api/*/*/items"))));
+		assertEquals(List.of("Login", "Chain", "Orders"), List.copyOf(index.select(List.of("POST /api/**", "/api/orders/*"))));
+		assertTrue(index.select(List.of("DELETE /api/users/**")).isEmpty());
+	}
+
+	@Test
+	void roundTripsThroughDiskFormat() throws Exception {
+		EndpointIndex index = EndpointIndex.of(new TestlangCompiler().parse(SUITE));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		index.write(new DataOutputStream(bytes));
+		EndpointIndex read = EndpointIndex.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(index.getTests(), read.getTests());
+		assertEquals(index.getEndpoints(), read.getEndpoints());
+	}
+}
@@ -0,0 +1,66 @@
+package testlangcompiler;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncrementalSuiteTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void editsGiveTheSameCodeAsAFullCompile() throws Exception {
+		CorpusGenerator.Shape shape = new CorpusGenerator.Shape();
+		shape.tests = 30;
+		String original = CorpusGenerator.generate(shape);
+		Path file = dir.resolve("suite.test");
+
+		for (Frontend frontend : Frontend.values()) {
+			CodeGenerator.Options options = new CodeGenerator.Options();
+			options.maxTestsPerShard = frontend == Frontend.HANDWRITTEN ? 0 : 7;
+			Files.writeString(file, original);
+			IncrementalSuite suite = new IncrementalSuite(file, frontend, false, options);
+			suite.load();
+
+			String text = original;
+			text = edit(suite, frontend, file, text.replace("test Users3 {", "test Renamed3 {"), 1);
+			text = edit(suite, frontend, file, text.replace("test Users13 {", "test Users13 {\n  expect status = 204;"), 1);
+			// Two edits far apart; the blocks in between are lexed but not parsed
+			text = edit(suite, frontend, file, text.replace("test Items1 {", "test Items1b {")
+					.replace("test Items29 {", "test Items29b {"), 2);
+			text = edit(suite, frontend, file, text + "test Added {\n  GET \"/api/added/$user\";\n  expect status = 200;\n}\n", 1);
+			text = edit(suite, frontend, file, text.replace("test Added {", "test Added {\n  GET \"/api/first\";"), 1);
+			text = edit(suite, frontend, file, text.substring(0, text.indexOf("// orders scenario 5"))
+					+ text.substring(text.indexOf("// reports scenario 6")), 0);
+			text = edit(suite, frontend, file, text.replace("http://localhost:8080", "http://test"), -1);
+
+			// A broken block is reported where it is in the file and the suite is kept
+			String broken = text.replace("test Renamed3 {", "test Renamed3 {\n  GET;");
+			Files.writeString(file, broken);
+			Map<String, String> before = suite.getCode();
+			CompileException error = assertThrows(CompileException.class, suite::update);
+			CompileException full = assertThrows(CompileException.class, () -> frontend.parse(broken));
+			assertEquals(full.getDiagnostics().get(0).toString(), error.getDiagnostics().get(0).toString(), frontend.id);
+			assertSame(before, suite.getCode());
+			edit(suite, frontend, file, text, 0);
+		}
+	}
+
+	// Saves text, updates the suite and compares it with compiling text from scratch;
+	// parsed is the expected number of re-parsed blocks, -1 for a full parse
+	private static String edit(IncrementalSuite suite, Frontend frontend, Path file, String text, int parsed)
+			throws Exception {
+		Files.writeString(file, text);
+		Map<String, String> code = suite.update();
+		CodeGenerator.Options options = new CodeGenerator.Options();
+		options.maxTestsPerShard = frontend == Frontend.HANDWRITTEN ? 0 : 7;
+		assertEquals(frontend.generate(frontend.parse(text), options), code, frontend.id);
+		assertEquals(parsed, suite.getParsedBlocks(), frontend.id);
+		return text;
+	}
+}
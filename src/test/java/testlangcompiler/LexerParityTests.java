@@ -0,0 +1,31 @@
+package testlangcompiler;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LexerParityTests {
+
+	@Test
+	void jflexLexerGivesTheSameTokensAsLexerCUP() throws Exception {
+		List<String> inputs = new ArrayList<>();
+		for (String file : List.of("example.test", "invalid1.test", "invalid2.test", "invalid3.test", "invalid4.test")) {
+			inputs.add(Files.readString(Paths.get(file)));
+		}
+		inputs.add(LexerBenchmark.sampleSuite(20));
+		CorpusGenerator.Shape shape = new CorpusGenerator.Shape();
+		shape.tests = 30;
+		shape.variables = 6;
+		inputs.add(CorpusGenerator.generate(shape));
+		// Escapes, a string over two lines, an unknown character, numbers and an identifier with '_'
+		inputs.add("let a_b = \"x\\\"y\\\\z\\n\\t\";\ntest T {\n  GET \"/a\n b\";\n  expect status = 404; # \n}\n");
+		inputs.add("");
+
+		for (String input : inputs) {
+			assertNull(LexerBenchmark.compareStreams(input), input);
+		}
+	}
+}
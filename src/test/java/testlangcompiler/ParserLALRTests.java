@@ -0,0 +1,48 @@
+package testlangcompiler;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParserLALRTests {
+
+	@Test
+	void lalrGeneratesTheSameCodeAsHandwritten() throws Exception {
+		CorpusGenerator.Shape shape = new CorpusGenerator.Shape();
+		shape.tests = 30;
+		shape.variables = 6;
+		List<String> suites = List.of(Files.readString(Paths.get("example.test")), LexerBenchmark.sampleSuite(20),
+				CorpusGenerator.generate(shape));
+
+		CodeGenerator.Options sharded = new CodeGenerator.Options();
+		sharded.maxTestsPerShard = 7;
+		for (String suite : suites) {
+			for (CodeGenerator.Options options : List.of(new CodeGenerator.Options(), sharded)) {
+				Map<String, String> expected = Frontend.HANDWRITTEN.generate(Frontend.HANDWRITTEN.parse(suite), options);
+				assertEquals(expected, Frontend.LALR.generate(Frontend.LALR.parse(suite), options));
+			}
+		}
+	}
+
+	@Test
+	void badJsonLiteralIsReportedAtTheWord() {
+		String suite = "test T {\n  GET \"/x\";\n  expect json \"$.a\" = maybe;\n}\n";
+		CompileException e = assertThrows(CompileException.class, () -> Frontend.LALR.parse(suite));
+		assertEquals(1, e.getDiagnostics().size(), e.getDiagnostics().toString());
+		Diagnostic d = e.getDiagnostics().get(0);
+		assertEquals("Expected NUMBER, STRING, true, false or null after =, got IDENTIFIER maybe", d.message);
+		assertEquals(3, d.line);
+		assertEquals(23, d.column);
+	}
+
+	@Test
+	void parenthesesAreUnexpectedCharacters() {
+		CompileException e = assertThrows(CompileException.class, () -> Frontend.LALR.parse("test T {\n  GET \"/x\"();\n}\n"));
+		assertEquals("Unexpected character '('", e.getDiagnostics().get(0).message);
+		assertEquals(2, e.getDiagnostics().get(0).line);
+		assertEquals(11, e.getDiagnostics().get(0).column);
+	}
+}
@@ -0,0 +1,108 @@
+package testlangcompiler;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParserRecoveryTests {
+
+	private static final String BROKEN = String.join("\n",
+			"let 2a = \"x\";",
+			"test One {",
+			"  GET \"/x\" expect status = 200;",
+			"  expect status = \"200\";",
+			"}",
+			"test Two {",
+			"  POST \"/y\" { body = 123; }",
+			"  expect status = 200;",
+			"}",
+			"");
+
+	@Test
+	void handwrittenParserReportsEveryError() {
+		CompileException e = assertThrows(CompileException.class, () -> new TestlangCompiler().parse(BROKEN));
+		assertLines(e.getDiagnostics(), 1, 3, 4, 7);
+	}
+
+	@Test
+	void cupParserReportsEveryError() {
+		CompileException e = assertThrows(CompileException.class, () -> Frontend.CUP.parse(BROKEN));
+		assertLines(e.getDiagnostics(), 1, 3, 4, 7);
+		assertEquals("Expected SEMICOLON but got EXPECT", e.getDiagnostics().get(1).message);
+		assertEquals(12, e.getDiagnostics().get(1).column);
+	}
+
+	@Test
+	void strayTokensBetweenTestsAreReportedByEveryFrontend() throws Exception {
+		String stray = "test One {\n  GET \"/x\";\n}\nGET \"/y\";\ntest Two {\n  GET \"/z\";\n}\n";
+		for (Frontend frontend : Frontend.values()) {
+			CompileException e = assertThrows(CompileException.class, () -> frontend.parse(stray), frontend.id);
+			assertLines(e.getDiagnostics(), 4);
+			assertEquals(1, e.getDiagnostics().get(0).column);
+		}
+	}
+
+	@Test
+	void unexpectedTokensInsideBlocksAreReportedByEveryFrontend() throws Exception {
+		String suite = "config { base_url = \"http://x\"; 42; } test A { bogus 7 ; GET \"/x\"; expect status = 200; }";
+		String request = "test A {\n  POST \"/x\" { 8; body = \"b\"; }\n  expect status = 200;\n}\n";
+		for (Frontend frontend : Frontend.values()) {
+			CompileException e = assertThrows(CompileException.class, () -> frontend.parse(suite), frontend.id);
+			assertEquals(List.of("1:33 Unexpected NUMBER 42", "1:48 Unexpected IDENTIFIER bogus"), positions(e), frontend.id);
+			e = assertThrows(CompileException.class, () -> frontend.parse(request), frontend.id);
+			assertEquals(List.of("2:15 Unexpected NUMBER 8"), positions(e), frontend.id);
+			if (frontend != Frontend.LALR) {
+				assertEquals("Unexpected NUMBER 8 in request block", e.getDiagnostics().get(0).message, frontend.id);
+			}
+		}
+		CompileException e = assertThrows(CompileException.class, () -> new TestlangCompiler().parse(suite));
+		assertEquals("Unexpected NUMBER 42 in config", e.getDiagnostics().get(0).message);
+		assertEquals("Unexpected IDENTIFIER bogus in test", e.getDiagnostics().get(1).message);
+	}
+
+	@Test
+	void numbersTooLargeForAnIntAreReportedByEveryFrontend() throws Exception {
+		String suite = "test A {\n  GET \"/x\";\n  expect status = 99999999999;\n  expect json \"$.a\" = 2147483648;\n}\n";
+		for (Frontend frontend : Frontend.values()) {
+			CompileException e = assertThrows(CompileException.class, () -> frontend.parse(suite), frontend.id);
+			assertEquals(List.of("3:19 Invalid number 99999999999", "4:23 Invalid number 2147483648"), positions(e), frontend.id);
+		}
+	}
+
+	@Test
+	void handwrittenParserRejectsNamesThatAreNotJavaIdentifiers() {
+		String suite = String.join("\n",
+				"let a-b = \"x\";",
+				"test Bad# {",
+				"  GET \"/x\";",
+				"}",
+				"test Good {",
+				"  GET \"/x\";",
+				"  let id$ = body.json \"$.id\";",
+				"}",
+				"");
+		CompileException e = assertThrows(CompileException.class, () -> new TestlangCompiler().parse(suite));
+		assertLines(e.getDiagnostics(), 1, 2, 7);
+		assertEquals("Invalid name a-b after let: use letters, digits and _", e.getDiagnostics().get(0).message);
+		assertEquals(5, e.getDiagnostics().get(0).column);
+		assertEquals("Invalid name Bad# after test: use letters, digits and _", e.getDiagnostics().get(1).message);
+		assertEquals(7, e.getDiagnostics().get(2).column);
+	}
+
+	// Position and the start of each message, which the LALR parser words differently
+	private static List<String> positions(CompileException e) {
+		return e.getDiagnostics().stream()
+				.map(d -> d.line + ":" + d.column + " " + d.message.replaceAll("( in |, expected ).*", ""))
+				.toList();
+	}
+
+	private static void assertLines(List<Diagnostic> diagnostics, int... lines) {
+		assertEquals(lines.length, diagnostics.size(), diagnostics.toString());
+		for (int i = 0; i < lines.length; i++) {
+			assertEquals(lines[i], diagnostics.get(i).line, diagnostics.get(i).toString());
+		}
+	}
+
+}
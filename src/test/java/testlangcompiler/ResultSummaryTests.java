@@ -0,0 +1,101 @@
+package testlangcompiler;
+
+import org.junit.jupiter.api.Test;
+
+import testlangcompiler.runtime.Results;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResultSummaryTests {
+
+	private static final long MS = 1_000_000;
+
+	@Test
+	void percentilesAreWithinOneBucketOfTheExactValue() {
+		ResultSummary.Histogram h = new ResultSummary.Histogram();
+		for (int i = 1; i <= 100; i++) {
+			h.add(i * MS);
+		}
+		// Buckets are 5% wide and report their upper bound
+		assertBucket(50, h.percentile(0.5));
+		assertBucket(95, h.percentile(0.95));
+		assertBucket(99, h.percentile(0.99));
+		// Never above the largest value seen
+		assertEquals(100.0, h.percentile(1.0), 1e-9);
+	}
+
+	@Test
+	void singleValueIsExact() {
+		ResultSummary.Histogram h = new ResultSummary.Histogram();
+		h.add(7 * MS);
+		assertEquals(7.0, h.percentile(0.5), 1e-9);
+		assertEquals(7.0, h.percentile(0.99), 1e-9);
+	}
+
+	@Test
+	void skewedLatenciesKeepTheirTail() {
+		ResultSummary.Histogram h = new ResultSummary.Histogram();
+		for (int i = 0; i < 990; i++) h.add(2 * MS);
+		for (int i = 0; i < 10; i++) h.add(800 * MS);
+		assertBucket(2, h.percentile(0.5));
+		assertBucket(2, h.percentile(0.99));
+		assertEquals(800.0, h.percentile(0.999), 1e-9);
+		// Sub-microsecond latencies land in the first bucket
+		ResultSummary.Histogram fast = new ResultSummary.Histogram();
+		fast.add(10);
+		assertTrue(fast.percentile(0.5) <= 0.001);
+	}
+
+	@Test
+	void aggregatesTestsRequestsAndDroppedRecords() {
+		ResultSummary summary = new ResultSummary();
+		summary.add(request("GET /a", 200, 3 * MS, 100));
+		summary.add(request("GET /a", 503, 5 * MS, -1));
+		summary.add(request("POST /b", 201, 1 * MS, 10));
+		summary.add(test("A", true, 10 * MS));
+		summary.add(test("A", false, 30 * MS));
+		Results.Record dropped = new Results.Record();
+		dropped.type = Results.DROPPED;
+		dropped.bytes = 17;
+		summary.add(dropped);
+		summary.add(dropped);
+
+		assertEquals(7, summary.records);
+		assertEquals(34, summary.dropped);
+		ResultSummary.RequestStats a = summary.requests.get("GET /a");
+		assertEquals(2, a.count);
+		assertEquals(1, a.errors);
+		assertEquals(100, a.bytes);
+		ResultSummary.TestStats t = summary.tests.get("A");
+		assertEquals(2, t.runs);
+		assertEquals(1, t.failed);
+		assertEquals(40 * MS, t.totalNanos);
+		// Dropped records name no test or request
+		assertEquals(1, summary.tests.size());
+		assertEquals(2, summary.requests.size());
+	}
+
+	private static void assertBucket(double exactMillis, double reported) {
+		assertTrue(reported >= exactMillis && reported <= exactMillis * 1.05, exactMillis + " ms reported as " + reported);
+	}
+
+	static Results.Record request(String request, int status, long nanos, long bytes) {
+		Results.Record r = new Results.Record();
+		r.type = Results.REQUEST;
+		r.test = "T";
+		r.request = request;
+		r.status = status;
+		r.nanos = nanos;
+		r.bytes = bytes;
+		return r;
+	}
+
+	static Results.Record test(String test, boolean passed, long nanos) {
+		Results.Record r = new Results.Record();
+		r.type = Results.TEST;
+		r.test = test;
+		r.passed = passed;
+		r.nanos = nanos;
+		return r;
+	}
+}
@@ -0,0 +1,111 @@
+package testlangcompiler;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StringPoolTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void internReturnsTheFirstEqualInstance() {
+		StringPool pool = new StringPool();
+		String first = new String("Content-Type");
+		assertSame(first, pool.intern(first));
+		assertSame(first, pool.intern(new String("Content-Type")));
+		assertNotSame(first, pool.intern(new String("Accept")));
+		assertEquals(2, pool.size());
+		assertNull(pool.intern((String)null));
+
+		Integer number = Integer.valueOf(100000);
+		assertSame(number, pool.intern(number));
+		assertSame(number, pool.intern(Integer.valueOf(100000)));
+		assertNull(pool.intern((Integer)null));
+	}
+
+	@Test
+	void noneKeepsEverythingAsAllocated() {
+		String s = new String("x");
+		assertSame(s, StringPool.NONE.intern(s));
+		Map<String, String> map = new LinkedHashMap<>();
+		assertSame(map, StringPool.NONE.freeze(map));
+		List<String> list = new ArrayList<>();
+		assertSame(list, StringPool.NONE.freeze(list));
+	}
+
+	@Test
+	void compactMapLooksUpAndIteratesInInsertionOrder() {
+		StringPool pool = new StringPool();
+		String accept = pool.intern(new String("Accept"));
+		Map<String, String> source = new LinkedHashMap<>();
+		source.put("Content-Type", "application/json");
+		source.put("Accept", "*/*");
+		source.put("X-Trace", "1");
+
+		Map<String, String> frozen = pool.freeze(source);
+		assertInstanceOf(StringPool.CompactMap.class, frozen);
+		assertEquals(3, frozen.size());
+		assertEquals("*/*", frozen.get("Accept"));
+		assertTrue(frozen.containsKey("X-Trace"));
+		assertNull(frozen.get("accept"));
+		assertFalse(frozen.containsKey("Missing"));
+		assertEquals(List.copyOf(source.keySet()), List.copyOf(frozen.keySet()));
+		assertEquals(List.copyOf(source.values()), List.copyOf(frozen.values()));
+		assertEquals(source, frozen);
+		assertEquals(source.hashCode(), frozen.hashCode());
+		// Keys and values come from the pool
+		assertSame(accept, new ArrayList<>(frozen.keySet()).get(1));
+
+		Iterator<Map.Entry<String, String>> it = frozen.entrySet().iterator();
+		for (int i = 0; i < 3; i++) it.next();
+		assertFalse(it.hasNext());
+		assertThrows(NoSuchElementException.class, it::next);
+		assertThrows(UnsupportedOperationException.class, () -> frozen.put("a", "b"));
+	}
+
+	@Test
+	void emptyCollectionsAreShared() {
+		StringPool pool = new StringPool();
+		assertSame(Collections.emptyMap(), pool.freeze(new LinkedHashMap<>()));
+		assertSame(Collections.emptyList(), pool.freeze(new ArrayList<String>()));
+		List<String> frozen = pool.freeze(new ArrayList<>(List.of("a", "b")));
+		assertEquals(List.of("a", "b"), frozen);
+		assertThrows(UnsupportedOperationException.class, () -> frozen.add("c"));
+	}
+
+	@Test
+	void compactParseSharesLiterals() throws Exception {
+		String suite = "config {\n  header \"Accept\" = \"*/*\";\n}\n"
+				+ "test A {\n  GET \"/a\" { header \"X-Id\" = \"1\"; }\n}\n"
+				+ "test B {\n  GET \"/b\" { header \"X-Id\" = \"1\"; }\n}\n";
+		TestlangCompiler.CompilationUnit unit =
+				(TestlangCompiler.CompilationUnit)Frontend.HANDWRITTEN.parse(suite, new StringPool());
+		assertInstanceOf(StringPool.CompactMap.class, unit.config.defaultHeaders);
+		String a = unit.testMethods.get(0).requests.get(0).headers.keySet().iterator().next();
+		String b = unit.testMethods.get(1).requests.get(0).headers.keySet().iterator().next();
+		assertSame(a, b);
+	}
+
+	@Test
+	void compactOutputIsTheSameAsDefaultOutput() throws Exception {
+		CorpusGenerator.Shape shape = new CorpusGenerator.Shape();
+		shape.tests = 12;
+		shape.variables = 4;
+		Path input = dir.resolve("suite.test");
+		Files.writeString(input, CorpusGenerator.generate(shape));
+
+		for (Frontend frontend : Frontend.values()) {
+			Path plain = dir.resolve(frontend.id + ".java");
+			Path compact = dir.resolve(frontend.id + "-compact.java");
+			CompilerCli.run(new String[] {input.toString(), plain.toString()}, frontend, "test");
+			CompilerCli.run(new String[] {input.toString(), compact.toString(), "--compact"}, frontend, "test");
+			assertEquals(Files.readString(plain), Files.readString(compact), frontend.id);
+		}
+	}
+}
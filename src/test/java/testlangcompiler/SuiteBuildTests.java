@@ -0,0 +1,77 @@
+package testlangcompiler;
+
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SuiteBuildTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void rebuildsOnlyChangedFiles() throws Exception {
+		Path src = dir.resolve("src");
+		Path out = dir.resolve("out");
+		Files.createDirectories(src);
+		Files.writeString(src.resolve("user-api.test"), suite("Users"));
+		Files.writeString(src.resolve("orders.test"), suite("Orders"));
+
+		assertEquals(0, build(src, out));
+		assertEquals(List.of("OrdersTests.java", "UserApiTests.java"), classes(out));
+		Path orders = out.resolve("OrdersTests.java");
+		long written = Files.getLastModifiedTime(orders).toMillis();
+
+		Files.writeString(src.resolve("user-api.test"), suite("Users2"));
+		Files.setLastModifiedTime(orders, FileTime.fromMillis(written - 10_000));
+		assertEquals(0, build(src, out));
+		assertTrue(Files.readString(out.resolve("UserApiTests.java")).contains("test_Users2"));
+		assertEquals(written - 10_000, Files.getLastModifiedTime(orders).toMillis());
+	}
+
+	@Test
+	void filesWithOneClassNameAreRejectedBeforeAnythingIsWritten() throws Exception {
+		Path src = dir.resolve("src");
+		Path out = dir.resolve("out");
+		Files.createDirectories(src);
+		Files.writeString(src.resolve("user-api.test"), suite("First"));
+		assertEquals(0, build(src, out));
+
+		// user_api.test is UserApiTests too: neither file may write it
+		Files.writeString(src.resolve("user_api.test"), suite("Second"));
+		Files.writeString(src.resolve("orders.test"), suite("Orders"));
+		for (int run = 0; run < 2; run++) {
+			assertEquals(2, build(src, out));
+			assertEquals(List.of("OrdersTests.java"), classes(out));
+			assertFalse(Files.readString(out.resolve(SuiteBuild.STATE_FILE)).contains("user"));
+		}
+
+		// Renaming one of them builds both
+		Files.move(src.resolve("user_api.test"), src.resolve("user-api-v2.test"));
+		assertEquals(0, build(src, out));
+		assertEquals(List.of("OrdersTests.java", "UserApiTests.java", "UserApiV2Tests.java"), classes(out));
+		assertTrue(Files.readString(out.resolve("UserApiTests.java")).contains("test_First"));
+		assertTrue(Files.readString(out.resolve("UserApiV2Tests.java")).contains("test_Second"));
+	}
+
+	private static String suite(String test) {
+		return "test " + test + " {\n  GET \"/" + test + "\";\n  expect status = 200;\n}\n";
+	}
+
+	private static int build(Path src, Path out) throws Exception {
+		return new SuiteBuild(src, out, Frontend.HANDWRITTEN, false, 4).run();
+	}
+
+	private static List<String> classes(Path out) throws Exception {
+		try (Stream<Path> list = Files.list(out)) {
+			return list.map(p -> p.getFileName().toString()).filter(n -> n.endsWith(".java")).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+}
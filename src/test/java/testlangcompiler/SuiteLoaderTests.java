@@ -0,0 +1,52 @@
+package testlangcompiler;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SuiteLoaderTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void importsShareConfigAndAreParsedOnce() throws Exception {
+		Files.writeString(dir.resolve("common.test"),
+				"config { base_url = \"http://localhost:8080\"; header \"A\" = \"1\"; }\nlet user = \"admin\";\n");
+		Files.writeString(dir.resolve("a.test"),
+				"import \"common.test\";\nlet user = \"root\";\ntest A { GET \"/a/$user\"; expect status = 200; }\n");
+		Files.writeString(dir.resolve("b.test"),
+				"import \"common.test\";\ntest B { GET \"/b/$user\"; expect status = 200; }\n");
+		String inlined = "config { base_url = \"http://localhost:8080\"; header \"A\" = \"1\"; }\n"
+				+ "let user = \"root\";\ntest A { GET \"/a/$user\"; expect status = 200; }\n";
+
+		for (Frontend frontend : Frontend.values()) {
+			SuiteLoader loader = new SuiteLoader(frontend, false);
+			CodeGenerator.Options options = new CodeGenerator.Options();
+			assertEquals(frontend.generate(frontend.parse(inlined), options),
+					frontend.generate(loader.load(dir.resolve("a.test")), options));
+			String b = frontend.generate(loader.load(dir.resolve("b.test")), options).get("GeneratedTests");
+			assertTrue(b.contains("/b/admin"));
+			assertEquals(3, loader.getParseCount());
+		}
+	}
+
+	@Test
+	void importProblemsAreReportedAtTheImport() throws Exception {
+		Files.writeString(dir.resolve("a.test"), "import \"b.test\";\nimport \"missing.test\";\n");
+		Files.writeString(dir.resolve("b.test"), "\n  import \"a.test\";\n");
+
+		CompileException e = assertThrows(CompileException.class,
+				() -> new SuiteLoader(Frontend.HANDWRITTEN, false).load(dir.resolve("a.test")));
+		List<String> messages = new ArrayList<>();
+		for (Diagnostic d : e.getDiagnostics()) {
+			messages.add(d.toString());
+		}
+		assertEquals(List.of("1:8: In b.test:2:10: Import cycle: a.test -> b.test -> a.test",
+				"2:8: Cannot find import missing.test"), messages);
+	}
+}
@@ -0,0 +1,55 @@
+package testlangcompiler;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestcFileTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void precompiledSuiteGeneratesTheSameCode() throws Exception {
+		String source = Files.readString(Paths.get("example.test"))
+				+ "test Json { GET \"/api/x\"; let id = body.json \"$.id\"; GET \"/api/x/$id\";"
+				+ " expect json \"$.ok\" = true; expect json \"$.n\" = 3; expect json \"$.s\" = \"v\";"
+				+ " expect json \"$.z\" = null; expect json \"$.a\" size = 2; expect json \"$.e\" exists; }\n"
+				+ "test Upload { POST \"/api/files\" { body = file \"payload.json\"; } expect status = 201; }\n";
+		for (Frontend frontend : Frontend.values()) {
+			Object unit = frontend.parse(source);
+			Path file = dir.resolve(frontend.id + ".testc");
+			TestcFile.write(unit, file);
+			TestcFile suite = TestcFile.open(file);
+
+			CodeGenerator.Options options = new CodeGenerator.Options();
+			assertEquals(frontend.generate(unit, options), Frontend.HANDWRITTEN.generate(suite.unit(), options));
+
+			options.onlyTests = Set.of("Json");
+			assertEquals(frontend.generate(unit, options),
+					Frontend.HANDWRITTEN.generate(suite.unit(options.onlyTests), options));
+			assertEquals(EndpointIndex.of(unit).getEndpoints(), EndpointIndex.of(suite).getEndpoints());
+		}
+	}
+
+	@Test
+	void truncatedOrForeignFilesAreNotPrecompiledSuites() throws Exception {
+		Path good = dir.resolve("good.testc");
+		TestcFile.write(Frontend.HANDWRITTEN.parse(Files.readString(Paths.get("example.test"))), good);
+		byte[] bytes = Files.readAllBytes(good);
+
+		List<byte[]> bad = List.of(new byte[0], Arrays.copyOf(bytes, 3), Arrays.copyOf(bytes, 4), Arrays.copyOf(bytes, 79),
+				"not a suite at all, but long enough to hold a whole header of eighty bytes..........".getBytes());
+		for (byte[] content : bad) {
+			Path file = dir.resolve("bad.testc");
+			Files.write(file, content);
+			IOException e = assertThrows(IOException.class, () -> TestcFile.open(file), content.length + " bytes");
+			assertEquals("Not a precompiled suite", e.getMessage());
+		}
+	}
+}
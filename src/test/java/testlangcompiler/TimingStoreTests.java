@@ -0,0 +1,111 @@
+package testlangcompiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingStoreTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void updateMovesAQuarterOfTheWayAndCountsRuns() {
+		TimingStore store = new TimingStore();
+		store.update("A", 1000, 2);
+		assertEquals(Map.of("A", 1000L), store.durations());
+		store.update("A", 2000, 3);
+		assertEquals(1250L, store.durations().get("A"));
+		store.update("B", 40, 1);
+		assertEquals(2, store.size());
+	}
+
+	@Test
+	void saveAndLoadRoundTrip() throws IOException {
+		Path file = dir.resolve("sub/timings.tsv");
+		assertEquals(0, TimingStore.load(file).size());
+
+		TimingStore store = new TimingStore();
+		store.update("Login", 1_500_000, 4);
+		store.update("GetUser", 300, 1);
+		store.fold("/runs/a\tb.bin", new TimingStore.Folded("abc", 120, 3));
+		store.save(file);
+		assertEquals("#folded\tabc\t120\t3\t/runs/a\tb.bin\nGetUser\t300\t1\nLogin\t1500000\t4\n",
+				Files.readString(file));
+
+		TimingStore loaded = TimingStore.load(file);
+		assertEquals(store.durations(), loaded.durations());
+		TimingStore.Folded folded = loaded.folded("/runs/a\tb.bin");
+		assertEquals("abc", folded.digest);
+		assertEquals(120, folded.bytes);
+		assertEquals(3, folded.records);
+		assertNull(loaded.folded("/runs/a.bin"));
+		// Runs are kept too: the next update still moves a quarter of the way
+		loaded.update("Login", 500_000, 1);
+		assertEquals(1_250_000L, loaded.durations().get("Login"));
+
+		// Lines it didn't write are skipped
+		Files.writeString(file, "junk\nA\tx\t1\nB\t5\t1\n#folded\tabc\n#folded\tabc\tx\t1\t/a\n");
+		assertNull(TimingStore.load(file).folded("/a"));
+		assertEquals(Map.of("B", 5L), TimingStore.load(file).durations());
+	}
+
+	@Test
+	void updateTimingsFoldsEachResultsFileOnce() throws IOException {
+		Path results = dir.resolve("run1.ndjson");
+		Files.writeString(results, ndjson("A", 4_000_000) + ndjson("A", 2_000_000) + ndjson("B", 1_000_000));
+		Path timings = dir.resolve("timings.tsv");
+
+		ResultSummary.run(List.of(results), timings);
+		String first = Files.readString(timings);
+		assertEquals(Map.of("A", 3_000_000L, "B", 1_000_000L), TimingStore.load(timings).durations());
+
+		// The same file again, also twice in one call, changes nothing
+		ResultSummary.run(List.of(results), timings);
+		ResultSummary.run(List.of(results, results), timings);
+		assertEquals(first, Files.readString(timings));
+
+		// A new run is folded in
+		Path run2 = dir.resolve("run2.ndjson");
+		Files.writeString(run2, ndjson("A", 7_000_000));
+		ResultSummary.run(List.of(results, run2), timings);
+		assertEquals(4_000_000L, TimingStore.load(timings).durations().get("A"));
+		assertEquals(1_000_000L, TimingStore.load(timings).durations().get("B"));
+	}
+
+	@Test
+	void updateTimingsFoldsOnlyTheRunsAppendedSinceTheLastUpdate() throws IOException {
+		Path results = dir.resolve("shard-1.ndjson");
+		Path timings = dir.resolve("timings.tsv");
+		Files.writeString(results, ndjson("A", 4_000_000));
+		ResultSummary.run(List.of(results), timings);
+		assertEquals(4_000_000L, TimingStore.load(timings).durations().get("A"));
+
+		// A second run appends to the same file: only its record moves the time
+		Files.writeString(results, ndjson("A", 8_000_000), StandardOpenOption.APPEND);
+		ResultSummary.run(List.of(results), timings);
+		assertEquals(5_000_000L, TimingStore.load(timings).durations().get("A"));
+		String second = Files.readString(timings);
+		ResultSummary.run(List.of(results), timings);
+		assertEquals(second, Files.readString(timings));
+
+		// A third run, and a new record of B
+		Files.writeString(results, ndjson("A", 9_000_000) + ndjson("B", 2_000_000), StandardOpenOption.APPEND);
+		ResultSummary.run(List.of(results), timings);
+		assertEquals(Map.of("A", 6_000_000L, "B", 2_000_000L), TimingStore.load(timings).durations());
+
+		// A file rewritten from scratch at the same path is read whole again
+		Files.writeString(results, ndjson("A", 2_000_000));
+		ResultSummary.run(List.of(results), timings);
+		assertEquals(5_000_000L, TimingStore.load(timings).durations().get("A"));
+	}
+
+	private static String ndjson(String test, long nanos) {
+		return "{\"type\":\"test\",\"test\":\"" + test + "\",\"passed\":true,\"nanos\":" + nanos + ",\"ts\":" + nanos + "}\n";
+	}
+}
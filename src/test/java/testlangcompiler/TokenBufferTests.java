@@ -0,0 +1,75 @@
+package testlangcompiler;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBufferTests {
+
+	@Test
+	void growsPastItsCapacityAndKeepsEveryToken() {
+		TokenBuffer buf = new TokenBuffer(1);
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			source.append("let v").append(i).append(" = ").append(i).append(";\n");
+		}
+		TestlangCompiler.tokenize(source.toString(), buf);
+
+		assertEquals(500, buf.size());
+		for (int i = 0; i < 100; i++) {
+			int t = i * 5;
+			assertEquals(sym.LET, buf.kind(t));
+			assertEquals("v" + i, buf.text(t + 1));
+			assertEquals(sym.IDENTIFIER, buf.kind(t + 1));
+			assertEquals(sym.EQ, buf.kind(t + 2));
+			assertEquals(sym.NUMBER, buf.kind(t + 3));
+			assertEquals(String.valueOf(i), buf.text(t + 3));
+			assertEquals(sym.SEMICOLON, buf.kind(t + 4));
+			assertEquals(i + 1, buf.line(t));
+			assertEquals(1, buf.column(t));
+			assertEquals(5, buf.column(t + 1));
+		}
+	}
+
+	@Test
+	void resetReusesTheBufferForANewSource() {
+		TokenBuffer buf = new TokenBuffer();
+		TestlangCompiler.tokenize("test A { GET \"/a\"; }", buf);
+		assertEquals(7, buf.size());
+
+		TestlangCompiler.tokenize("let x = 1;", buf);
+		assertEquals("let x = 1;", buf.source());
+		assertEquals(5, buf.size());
+		assertEquals("x", buf.text(1));
+		assertEquals(4, buf.start(1));
+		assertEquals(5, buf.end(1));
+		assertEquals(1, buf.length(1));
+
+		buf.reset("");
+		assertEquals(0, buf.size());
+		assertEquals("", buf.source());
+	}
+
+	@Test
+	void inputEndsWithoutAnEndToken() {
+		TokenBuffer buf = new TokenBuffer();
+		TestlangCompiler.tokenize("", buf);
+		assertEquals(0, buf.size());
+
+		// A trailing comment without a newline adds nothing
+		TestlangCompiler.tokenize("let x = 1; // done", buf);
+		assertEquals(5, buf.size());
+		assertEquals(sym.SEMICOLON, buf.kind(4));
+
+		// An unterminated string runs to the end of the input
+		TestlangCompiler.tokenize("GET \"/open", buf);
+		assertEquals(2, buf.size());
+		assertEquals(sym.STRING, buf.kind(1));
+		assertEquals("\"/open", buf.text(1));
+		assertEquals(10, buf.end(1));
+
+		// The parser reports the missing tokens as EOF
+		CompileException e = assertThrows(CompileException.class, () -> new TestlangCompiler().parse("test A {"));
+		assertTrue(e.getDiagnostics().get(0).message.endsWith("EOF"), e.getDiagnostics().toString());
+	}
+}
@@ -0,0 +1,91 @@
+package testlangcompiler.runtime;
+
+import java.io.*;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressionTests {
+
+	private static final String TEXT = "{\"data\": [" + "{\"id\": 1, \"name\": \"x\"}, ".repeat(20000) + "{}]}";
+
+	@Test
+	void requestBodiesRoundTripThroughResponseDecoding() throws Exception {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(java.net.URI.create("http://localhost/"));
+		Compression.body(builder, "POST", HttpRequest.BodyPublishers.ofString(TEXT), 100);
+		HttpRequest request = builder.build();
+		assertEquals("gzip", request.headers().firstValue("Content-Encoding").orElse(""));
+		byte[] gzipped = collect(request.bodyPublisher().get());
+		assertTrue(gzipped.length < TEXT.length() / 10);
+
+		// Pieces of a few bytes split the header and trailer
+		assertEquals(TEXT, decode(gzipped, 7));
+		assertEquals(TEXT, decode(gzipped, 64 * 1024));
+
+		HttpRequest.Builder small = HttpRequest.newBuilder(java.net.URI.create("http://localhost/"));
+		Compression.body(small, "PUT", HttpRequest.BodyPublishers.ofString("{}"), 100);
+		assertTrue(small.build().headers().firstValue("Content-Encoding").isEmpty());
+	}
+
+	@Test
+	void decodesConcatenatedMembersAndRejectsTruncatedBodies() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(gzip(TEXT.substring(0, 1000)));
+		out.write(gzip(TEXT.substring(1000)));
+		assertEquals(TEXT, decode(out.toByteArray(), 1000));
+
+		byte[] whole = gzip(TEXT);
+		ExecutionException e = assertThrows(ExecutionException.class,
+				() -> decode(Arrays.copyOf(whole, whole.length - 3), 1000));
+		assertTrue(e.getCause() instanceof IOException);
+	}
+
+	private static byte[] gzip(String text) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+			gz.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		return out.toByteArray();
+	}
+
+	// Feeds the bytes in pieces to a decoding String subscriber, as the client would
+	private static String decode(byte[] body, int piece) throws Exception {
+		HttpResponse.ResponseInfo info = new HttpResponse.ResponseInfo() {
+			public int statusCode() { return 200; }
+			public HttpHeaders headers() { return HttpHeaders.of(Map.of("Content-Encoding", List.of("gzip")), (k, v) -> true); }
+			public HttpClient.Version version() { return HttpClient.Version.HTTP_1_1; }
+		};
+		HttpResponse.BodySubscriber<String> subscriber = Compression.decode(info,
+				HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8));
+		SubmissionPublisher<List<ByteBuffer>> publisher = new SubmissionPublisher<>(Runnable::run, 16);
+		publisher.subscribe(subscriber);
+		for (int i = 0; i < body.length; i += piece) {
+			publisher.submit(List.of(ByteBuffer.wrap(body, i, Math.min(piece, body.length - i))));
+		}
+		publisher.close();
+		return subscriber.getBody().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+
+	private static byte[] collect(Flow.Publisher<ByteBuffer> publisher) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompletableFuture<byte[]> done = new CompletableFuture<>();
+		publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+			public void onSubscribe(Flow.Subscription s) { s.request(Long.MAX_VALUE); }
+			public void onNext(ByteBuffer item) {
+				byte[] bytes = new byte[item.remaining()];
+				item.get(bytes);
+				out.writeBytes(bytes);
+			}
+			public void onError(Throwable t) { done.completeExceptionally(t); }
+			public void onComplete() { done.complete(out.toByteArray()); }
+		});
+		return done.get(10, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,126 @@
+package testlangcompiler.runtime;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExchangesTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void replaysRecordedExchangesWithoutTheServer() throws Exception {
+		AtomicInteger counter = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			byte[] response = ("{\"count\": " + counter.incrementAndGet() + ", \"echo\": \"" + body + "\"}")
+					.getBytes(StandardCharsets.UTF_8);
+			if (exchange.getRequestURI().getPath().equals("/gzip")) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+					gz.write(response);
+				}
+				response = out.toByteArray();
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			}
+			exchange.getResponseHeaders().set("X-Count", String.valueOf(counter.get()));
+			exchange.sendResponseHeaders(201, response.length);
+			exchange.getResponseBody().write(response);
+			exchange.close();
+		});
+		server.start();
+		String base = "http://localhost:" + server.getAddress().getPort();
+
+		Path archive = dir.resolve("run.tlx");
+		List<String> recorded;
+		try (ExchangeArchive.Writer writer = new ExchangeArchive.Writer(archive)) {
+			recorded = send(Exchanges.recording(HttpClient.newHttpClient(), writer), base);
+		} finally {
+			server.stop(0);
+		}
+		assertEquals(6, ExchangeArchive.open(archive).size());
+
+		HttpClient replay = Exchanges.replaying(HttpClient.newHttpClient(), ExchangeArchive.open(archive));
+		assertEquals(recorded, send(replay, base));
+		// Sent more often than recorded: the last response again
+		assertTrue(replay.send(HttpRequest.newBuilder(URI.create(base + "/items")).build(),
+				HttpResponse.BodyHandlers.ofString()).body().contains("\"count\": 2"));
+		IOException missing = assertThrows(IOException.class, () -> replay.send(
+				HttpRequest.newBuilder(URI.create(base + "/other")).build(), HttpResponse.BodyHandlers.discarding()));
+		assertTrue(missing.getMessage().contains("GET " + base + "/other"));
+	}
+
+	@Test
+	void recordingReadsTheRequestBodyOnce() throws Exception {
+		List<String> received = new ArrayList<>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			received.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+			exchange.sendResponseHeaders(204, -1);
+			exchange.close();
+		});
+		server.start();
+		AtomicInteger opened = new AtomicInteger();
+		// A stream that can be read only once, as a publisher subscribed twice would find out
+		HttpRequest post = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getAddress().getPort() + "/items"))
+				.POST(HttpRequest.BodyPublishers.ofInputStream(() -> opened.incrementAndGet() == 1
+						? new ByteArrayInputStream("{\"id\": 1}".getBytes(StandardCharsets.UTF_8))
+						: InputStream.nullInputStream()))
+				.header("X-Trace", "1").build();
+		Path archive = dir.resolve("run.tlx");
+		try (ExchangeArchive.Writer writer = new ExchangeArchive.Writer(archive)) {
+			HttpResponse<Void> response = Exchanges.recording(HttpClient.newHttpClient(), writer)
+					.send(post, HttpResponse.BodyHandlers.discarding());
+			assertEquals(204, response.statusCode());
+			assertSame(post, response.request());
+		} finally {
+			server.stop(0);
+		}
+		assertEquals(1, opened.get());
+		assertEquals(List.of("{\"id\": 1}"), received);
+
+		// The hash recorded is that of the bytes sent: replay finds the exchange
+		HttpRequest again = HttpRequest.newBuilder(post.uri())
+				.POST(HttpRequest.BodyPublishers.ofString("{\"id\": 1}")).build();
+		assertEquals(204, Exchanges.replaying(HttpClient.newHttpClient(), ExchangeArchive.open(archive))
+				.send(again, HttpResponse.BodyHandlers.discarding()).statusCode());
+	}
+
+	// The same requests each time, as status, header and body through different handlers
+	private static List<String> send(HttpClient client, String base) throws Exception {
+		List<String> seen = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			HttpResponse<String> items = client.send(HttpRequest.newBuilder(URI.create(base + "/items")).build(),
+					HttpResponse.BodyHandlers.ofString());
+			seen.add(items.statusCode() + " " + items.headers().firstValue("X-Count").orElse("") + " " + items.body());
+		}
+		for (String body : List.of("a", "b")) {
+			HttpRequest post = HttpRequest.newBuilder(URI.create(base + "/items"))
+					.POST(HttpRequest.BodyPublishers.ofString(body)).build();
+			try (InputStream in = client.send(post, HttpResponse.BodyHandlers.ofInputStream()).body()) {
+				seen.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+			}
+		}
+		HttpResponse<String> gzip = client.send(HttpRequest.newBuilder(URI.create(base + "/gzip")).build(),
+				info -> Compression.decode(info, HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8)));
+		seen.add(gzip.body());
+		seen.add(String.valueOf(client.send(HttpRequest.newBuilder(URI.create(base + "/items")).DELETE().build(),
+				HttpResponse.BodyHandlers.discarding()).statusCode()));
+		return seen;
+	}
+}
@@ -0,0 +1,123 @@
+package testlangcompiler.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Flow;
+import java.util.regex.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileBodyTests {
+
+	private static final int CHUNK = 64 * 1024;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void nameSplitAcrossAChunkBoundaryIsFilledIn() throws Exception {
+		// $token starts 2 bytes before the end of the first chunk
+		String text = "a".repeat(CHUNK - 2) + "$token" + "b".repeat(CHUNK) + "$token.";
+		Map<String, String> values = Map.of("token", "XYZ");
+		assertPublishes(text, values, 1);
+		assertPublishes(text, values, Long.MAX_VALUE);
+	}
+
+	@Test
+	void valuesLongerThanAChunkAndEmptyValues() throws Exception {
+		String text = "{\"big\": \"$big\", \"none\": \"$empty\", \"tail\": \"$big$empty$big\"}";
+		Map<String, String> values = Map.of("big", "é".repeat(CHUNK), "empty", "");
+		assertPublishes(text, values, 1);
+		assertPublishes(text, values, 3);
+	}
+
+	@Test
+	void unknownNamesAndLoneDollarsAreSentAsWritten() throws Exception {
+		String text = "$known costs $5 or $ 6; $unknown stays, $known_2 too. $known";
+		assertPublishes(text, Map.of("known", "K"), 2);
+	}
+
+	@Test
+	void boundValuesWinOverCompiledVariables() throws Exception {
+		Path file = write("bound.json", "{\"id\": \"$id\", \"user\": \"$user\"}");
+		HttpRequest.BodyPublisher body = FileBody.of(file.toString(), Map.of("id", "1", "user", "admin"), "id", "42");
+		assertEquals("{\"id\": \"42\", \"user\": \"admin\"}", read(body, 1));
+	}
+
+	@Test
+	void fileWithoutSubstitutionsIsSentAsIs() throws Exception {
+		Path file = write("plain.json", "{\"price\": \"$unknown\"}");
+		HttpRequest.BodyPublisher body = FileBody.of(file.toString(), Map.of("other", "x"));
+		assertEquals(Files.size(file), body.contentLength());
+		assertEquals("{\"price\": \"$unknown\"}", read(body, Long.MAX_VALUE));
+	}
+
+	// Content-Length, the published bytes and a second subscription all match the text filled in by hand
+	private void assertPublishes(String text, Map<String, String> values, long batch) throws Exception {
+		Path file = write("body-" + Math.abs((text + batch).hashCode()) + ".txt", text);
+		HttpRequest.BodyPublisher body = FileBody.of(file.toString(), values);
+		String expected = fill(text, values);
+		byte[] bytes = expected.getBytes(StandardCharsets.UTF_8);
+		assertEquals(bytes.length, body.contentLength());
+		assertEquals(expected, read(body, batch));
+		assertEquals(expected, read(body, batch));
+	}
+
+	private static String fill(String text, Map<String, String> values) {
+		Matcher m = Pattern.compile("\\$([A-Za-z0-9_]+)").matcher(text);
+		StringBuilder filled = new StringBuilder();
+		while (m.find()) {
+			String value = values.get(m.group(1));
+			m.appendReplacement(filled, Matcher.quoteReplacement(value != null ? value : m.group()));
+		}
+		return m.appendTail(filled).toString();
+	}
+
+	private Path write(String name, String text) throws Exception {
+		return Files.writeString(dir.resolve(name), text);
+	}
+
+	// Subscribes and asks for batch chunks at a time; chunks are never larger than CHUNK
+	private static String read(HttpRequest.BodyPublisher body, long batch) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		boolean[] complete = new boolean[1];
+		body.subscribe(new Flow.Subscriber<ByteBuffer>() {
+			private Flow.Subscription subscription;
+			private long left;
+
+			public void onSubscribe(Flow.Subscription s) {
+				subscription = s;
+				left = batch;
+				s.request(batch);
+			}
+
+			public void onNext(ByteBuffer chunk) {
+				assertTrue(chunk.remaining() <= CHUNK);
+				byte[] bytes = new byte[chunk.remaining()];
+				chunk.get(bytes);
+				out.writeBytes(bytes);
+				if (batch != Long.MAX_VALUE && --left == 0) {
+					left = batch;
+					subscription.request(batch);
+				}
+			}
+
+			public void onError(Throwable t) {
+				fail(t);
+			}
+
+			public void onComplete() {
+				complete[0] = true;
+			}
+		});
+		assertTrue(complete[0]);
+		return out.toString(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,86 @@
+package testlangcompiler.runtime;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonPathTests {
+
+	private static final String DOC = "{\"skip\": {\"a\": [1, \"}]\", {\"b\": null}]}, "
+			+ "\"data\": [{\"id\": 41}, {\"id\": 42, \"tags\": [\"x\", \"y\"]}], "
+			+ "\"name\": \"caf\\u00e9 \\\"q\\\"\", \"ok\": true}";
+
+	@Test
+	void resolvesScalarsAndSubtrees() throws IOException {
+		Object[] r = JsonPath.evaluate(DOC, JsonPath.of("$.data[1].id"), JsonPath.of("$.name"),
+				JsonPath.of("$.ok"), JsonPath.of("$.data[1].tags"), JsonPath.of("$['skip'].a[2].b"),
+				JsonPath.of("$.data[5]"));
+		assertEquals(new BigDecimal(42), r[0]);
+		assertEquals("café \"q\"", r[1]);
+		assertEquals(Boolean.TRUE, r[2]);
+		assertEquals("[\"x\", \"y\"]", r[3]);
+		assertNull(r[4]);
+		assertSame(JsonPath.MISSING, r[5]);
+	}
+
+	@Test
+	void pathEndingAboveAnotherPathResolvesBoth() throws IOException {
+		Object[] r = JsonPath.evaluate(DOC, JsonPath.of("$.data[1]"), JsonPath.of("$.data[1].tags[1]"));
+		assertEquals("{\"id\": 42, \"tags\": [\"x\", \"y\"]}", r[0]);
+		assertEquals("y", r[1]);
+	}
+
+	@Test
+	void countsElementsWithoutMaterializingThem() throws IOException {
+		Object[] r = JsonPath.evaluate(DOC, JsonPath.size("$.data"), JsonPath.size("$.data[1]"),
+				JsonPath.of("$.data[1].id"), JsonPath.size("$.name"), JsonPath.size("$.none"));
+		assertEquals(2, r[0]);
+		assertEquals(2, r[1]);
+		assertEquals(new BigDecimal(42), r[2]);
+		assertEquals("café \"q\"", r[3]);
+		assertSame(JsonPath.MISSING, r[4]);
+		JsonPath.assertSize(r[0], 2, "$.data");
+		JsonPath.assertValue(r[2], 42, "$.data[1].id");
+		assertThrows(AssertionError.class, () -> JsonPath.assertSize(r[3], 1, "$.name"));
+		assertThrows(AssertionError.class, () -> JsonPath.assertValue(r[2], "42", "$.data[1].id"));
+	}
+
+	@Test
+	void stopsReadingOnceEveryPathIsResolved() throws IOException {
+		// The stream fails if the evaluator reads past the first member
+		InputStream head = new ByteArrayInputStream("{\"token\": \"abc\", ".getBytes(StandardCharsets.UTF_8));
+		InputStream body = new SequenceInputStream(head, new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("read past the token");
+			}
+		});
+		assertEquals("abc", JsonPath.evaluate(body, JsonPath.of("$.token"))[0]);
+	}
+
+	@Test
+	void duplicateMembersKeepTheFirstValueAndDoNotEndTheWalk() throws IOException {
+		// The second "a" must not count as resolving $.b
+		Object[] r = JsonPath.evaluate("{\"a\": 1, \"a\": 2, \"b\": 3}", JsonPath.of("$.a"), JsonPath.of("$.b"));
+		assertEquals(new BigDecimal("1"), r[0]);
+		assertEquals(new BigDecimal("3"), r[1]);
+
+		// The same through a captured subtree
+		r = JsonPath.evaluate("{\"o\": {\"x\": 1, \"x\": 2}, \"o\": {\"x\": 3}, \"y\": 4}",
+				JsonPath.of("$.o"), JsonPath.of("$.o.x"), JsonPath.of("$.y"));
+		assertEquals("{\"x\": 1, \"x\": 2}", r[0]);
+		assertEquals(new BigDecimal("1"), r[1]);
+		assertEquals(new BigDecimal("4"), r[2]);
+	}
+
+	@Test
+	void rejectsMalformedPaths() {
+		assertThrows(IllegalArgumentException.class, () -> JsonPath.of("data.id"));
+		assertThrows(IllegalArgumentException.class, () -> JsonPath.of("$.data[x]"));
+		assertThrows(AssertionError.class, () -> JsonPath.require(JsonPath.MISSING, "$.a"));
+	}
+}
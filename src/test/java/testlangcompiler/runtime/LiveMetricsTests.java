@@ -0,0 +1,70 @@
+package testlangcompiler.runtime;
+
+import java.net.URI;
+import java.net.http.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LiveMetricsTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void countsFromManyThreadsAreScrapedAsPrometheusText() throws Exception {
+		LiveMetrics metrics = new LiveMetrics();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					metrics.request("GET /api/users/$id", i % 10 == 0 ? 500 : 200, 3_000_000L);
+					metrics.test("Users \"quoted\"", i % 10 != 0, 20_000_000_000L);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) thread.join();
+
+		String text = metrics.scrape();
+		assertTrue(text.contains("testlang_test_failures_total{test=\"Users \\\"quoted\\\"\"} 4000\n"), text);
+		assertTrue(text.contains("testlang_test_duration_seconds_bucket{test=\"Users \\\"quoted\\\"\",le=\"10.0\"} 0\n"), text);
+		assertTrue(text.contains("testlang_test_duration_seconds_count{test=\"Users \\\"quoted\\\"\"} 40000\n"), text);
+		assertTrue(text.contains("testlang_responses_total{endpoint=\"GET /api/users/$id\",status=\"2xx\"} 36000\n"), text);
+		assertTrue(text.contains("testlang_responses_total{endpoint=\"GET /api/users/$id\",status=\"5xx\"} 4000\n"), text);
+		assertTrue(text.contains("testlang_request_duration_seconds_bucket{endpoint=\"GET /api/users/$id\",le=\"0.0025\"} 0\n"), text);
+		assertTrue(text.contains("testlang_request_duration_seconds_bucket{endpoint=\"GET /api/users/$id\",le=\"0.005\"} 40000\n"), text);
+		assertTrue(text.contains("testlang_request_duration_seconds_sum{endpoint=\"GET /api/users/$id\"} 120.0\n"), text);
+
+		metrics.serve(0);
+		try {
+			HttpResponse<String> scraped = HttpClient.newHttpClient().send(
+					HttpRequest.newBuilder(URI.create("http://localhost:" + metrics.port() + "/metrics")).build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, scraped.statusCode());
+			assertTrue(scraped.headers().firstValue("Content-Type").orElse("").startsWith("text/plain; version=0.0.4"));
+			assertEquals(text, scraped.body());
+		} finally {
+			metrics.close();
+		}
+
+		Path snapshot = dir.resolve("metrics.prom");
+		metrics.snapshot(snapshot);
+		assertEquals(text, Files.readString(snapshot));
+	}
+
+	@Test
+	void badSnapshotIntervalsFallBackToTheDefault() {
+		assertEquals(15, LiveMetrics.interval(null));
+		assertEquals(15, LiveMetrics.interval(""));
+		assertEquals(30, LiveMetrics.interval("30"));
+		assertEquals(5, LiveMetrics.interval(" 5 "));
+		assertEquals(15, LiveMetrics.interval("15s"));
+		assertEquals(15, LiveMetrics.interval("0"));
+		assertEquals(15, LiveMetrics.interval("-1"));
+	}
+}
@@ -0,0 +1,98 @@
+package testlangcompiler.runtime;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResultsTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void binaryRoundTrip() throws IOException {
+		Path file = dir.resolve("results.bin");
+		write(file, false, true, records());
+		assertEquals(describe(records()), describe(read(file)));
+	}
+
+	@Test
+	void ndjsonRoundTrip() throws IOException {
+		Path file = dir.resolve("results.ndjson");
+		write(file, true, true, records());
+		assertEquals(describe(records()), describe(read(file)));
+	}
+
+	@Test
+	void binaryRunsAppendToOneFile() throws IOException {
+		Path file = dir.resolve("results.bin");
+		write(file, false, true, records());
+		// The second run defines its names again, with ids starting over
+		Results.Record other = record(Results.REQUEST, "Other", "GET /other", 500, 9_000_000, 7, false);
+		write(file, false, false, List.of(other));
+
+		List<Results.Record> expected = new ArrayList<>(records());
+		expected.add(other);
+		assertEquals(describe(expected), describe(read(file)));
+	}
+
+	@Test
+	void ndjsonRejectsUnknownRecordTypes() throws IOException {
+		Path file = dir.resolve("results.ndjson");
+		Files.writeString(file, "{\"type\":\"tset\",\"test\":\"A\",\"passed\":true,\"nanos\":1,\"ts\":2}\n");
+		IOException e = assertThrows(IOException.class, () -> read(file));
+		assertTrue(e.getMessage().contains("tset"), e.getMessage());
+	}
+
+	// A request with a name that needs escaping, a passed and a failed test, and the dropped count
+	private static List<Results.Record> records() {
+		return List.of(
+			record(Results.REQUEST, "Login \"quoted\"", "POST /api/login\té", 200, 12_345_678, 512, false),
+			record(Results.REQUEST, "Login \"quoted\"", "GET /api/users/$id", 404, 1_000, -1, false),
+			record(Results.TEST, "Login \"quoted\"", null, 0, 20_000_000, 0, true),
+			record(Results.TEST, "Broken", null, 0, 5, 0, false),
+			record(Results.DROPPED, null, null, 0, 0, 42, false));
+	}
+
+	private static Results.Record record(int type, String test, String request, int status, long nanos, long bytes,
+			boolean passed) {
+		Results.Record r = new Results.Record();
+		r.type = type;
+		r.test = test;
+		r.request = request;
+		r.status = status;
+		r.nanos = nanos;
+		r.bytes = bytes;
+		r.passed = passed;
+		r.timestamp = 1_700_000_000_000L + nanos;
+		return r;
+	}
+
+	private static void write(Path file, boolean ndjson, boolean newFile, List<Results.Record> records) throws IOException {
+		try (Results.Writer writer = Results.writer(new FileOutputStream(file.toFile(), true), ndjson, newFile)) {
+			for (Results.Record r : records) writer.write(r);
+		}
+	}
+
+	private static List<Results.Record> read(Path file) throws IOException {
+		List<Results.Record> records = new ArrayList<>();
+		Results.read(file, records::add);
+		return records;
+	}
+
+	// Every field that the record type carries
+	private static List<String> describe(List<Results.Record> records) {
+		List<String> lines = new ArrayList<>();
+		for (Results.Record r : records) {
+			lines.add(r.type + "|" + (r.type == Results.DROPPED ? "" : r.test) + "|"
+					+ (r.type == Results.REQUEST ? r.request + "|" + r.status : "") + "|" + r.nanos + "|"
+					+ (r.type == Results.TEST ? r.passed : r.bytes) + "|" + r.timestamp);
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,169 @@
+package testlangcompiler.runtime;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchedulerTests {
+
+	private static final long MS = 1_000_000;
+
+	@Test
+	void tokenBucketAllowsABurstThenSpacesRequests() {
+		AtomicLong now = new AtomicLong(0);
+		// 100/s: bursts of 10, then one request every 10ms
+		Scheduler scheduler = new Scheduler(100, 0, now::get);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, scheduler.reserve(), "request " + i);
+		}
+		assertEquals(10 * MS, scheduler.reserve(), 1);
+		assertEquals(20 * MS, scheduler.reserve(), 1);
+
+		// 50ms later both reservations are paid off and 3 tokens are back
+		now.addAndGet(50 * MS);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, scheduler.reserve());
+		}
+		assertEquals(10 * MS, scheduler.reserve(), 1);
+
+		// An idle second refills only up to the burst size
+		now.addAndGet(1000 * MS);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, scheduler.reserve());
+		}
+		assertEquals(10 * MS, scheduler.reserve(), 1);
+	}
+
+	@Test
+	void slowRatesStillAllowOneRequest() {
+		AtomicLong now = new AtomicLong(0);
+		Scheduler scheduler = new Scheduler(4, 0, now::get);
+		assertEquals(0, scheduler.reserve());
+		assertEquals(250 * MS, scheduler.reserve(), 1);
+		assertEquals(500 * MS, scheduler.reserve(), 1);
+	}
+
+	@Test
+	void zeroRateNeverWaits() {
+		Scheduler scheduler = new Scheduler(0, 0, () -> 0);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(0, scheduler.reserve());
+		}
+	}
+
+	@Test
+	void runStartsEveryBodyOfTheClassUpToTheLimit() throws Throwable {
+		Scheduler scheduler = new Scheduler(0, 3);
+		Bodies bodies = new Bodies();
+		// One caller, as JUnit without parallelism: the other bodies run meanwhile, three at a time
+		scheduler.run(bodies, "run_A");
+		scheduler.run(bodies, "run_B");
+		scheduler.run(bodies, "run_C");
+		scheduler.run(bodies, "run_D");
+		assertEquals(3, bodies.maxActive.get());
+		assertEquals(4, bodies.finished.get());
+
+		AssertionError failed = assertThrows(AssertionError.class, () -> scheduler.run(bodies, "run_Fails"));
+		assertEquals("expected 200", failed.getMessage());
+		assertThrows(IllegalArgumentException.class, () -> scheduler.run(bodies, "run_Missing"));
+	}
+
+	// Stands in for a generated test class; the first three bodies wait until all three run
+	static class Bodies {
+		final CountDownLatch together = new CountDownLatch(3);
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		final AtomicInteger finished = new AtomicInteger();
+
+		void run_A() throws Exception {
+			body();
+		}
+
+		void run_B() throws Exception {
+			body();
+		}
+
+		void run_C() throws Exception {
+			body();
+		}
+
+		void run_D() throws Exception {
+			body();
+		}
+
+		void run_Fails() {
+			throw new AssertionError("expected 200");
+		}
+
+		private void body() throws InterruptedException {
+			maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+			together.countDown();
+			assertTrue(together.await(10, TimeUnit.SECONDS));
+			active.decrementAndGet();
+			finished.incrementAndGet();
+		}
+	}
+
+	@Test
+	void maxInFlightHoldsBackTheRest() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger active = new AtomicInteger();
+		AtomicInteger maxActive = new AtomicInteger();
+		AtomicInteger arrived = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+			arrived.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			active.decrementAndGet();
+			exchange.sendResponseHeaders(204, -1);
+			exchange.close();
+		});
+		server.start();
+		ExecutorService senders = Executors.newFixedThreadPool(5);
+		try {
+			Scheduler scheduler = new Scheduler(0, 2);
+			HttpClient client = HttpClient.newHttpClient();
+			HttpRequest request = HttpRequest.newBuilder(
+					URI.create("http://localhost:" + server.getAddress().getPort() + "/")).build();
+			List<Future<HttpResponse<Void>>> responses = new ArrayList<>();
+			for (int i = 0; i < 5; i++) {
+				responses.add(senders.submit(() -> scheduler.send(client, request, HttpResponse.BodyHandlers.discarding())));
+			}
+
+			// Two requests reach the server; the other three queue on the semaphore
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while ((arrived.get() < 2 || scheduler.waiting() < 3) && System.nanoTime() < deadline) {
+				Thread.sleep(5);
+			}
+			assertEquals(2, arrived.get());
+			assertEquals(3, scheduler.waiting());
+
+			release.countDown();
+			for (Future<HttpResponse<Void>> response : responses) {
+				assertEquals(204, response.get(10, TimeUnit.SECONDS).statusCode());
+			}
+			assertEquals(5, arrived.get());
+			assertEquals(2, maxActive.get());
+			assertEquals(0, scheduler.waiting());
+		} finally {
+			release.countDown();
+			senders.shutdownNow();
+			server.stop(0);
+		}
+	}
+}